@@ -10,6 +10,7 @@ import android.database.Cursor
 import androidx.core.content.contentValuesOf
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.junit.Before
+import org.junit.Assert.fail
 import org.junit.Test
 import org.signal.core.util.Hex
 import org.signal.core.util.SqlUtil
@@ -45,6 +46,7 @@ import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import org.whispersystems.signalservice.api.push.ServiceId.PNI
 import org.whispersystems.signalservice.api.subscriptions.SubscriberId
 import java.io.ByteArrayInputStream
+import java.io.IOException
 import java.util.UUID
 import kotlin.random.Random
 
@@ -282,6 +284,45 @@ class BackupTest {
     TextSecurePreferences.isShowUnidentifiedDeliveryIndicatorsEnabled(context) assertIs true
   }
 
+  @Test
+  fun singlePassImportWithBadMac_leavesEverythingUntouched() {
+    SignalDatabase.distributionLists.clearAllDataForBackupRestore()
+    SignalDatabase.recipients.clearAllDataForBackupRestore()
+    SignalDatabase.messages.clearAllDataForBackupRestore()
+    SignalDatabase.threads.clearAllDataForBackupRestore()
+
+    individualRecipient(aci = SELF_ACI, pni = SELF_PNI, e164 = SELF_E164, profileKey = SELF_PROFILE_KEY, profileSharing = true)
+    individualChat(aci = ALICE_ACI, givenName = "Alice") {
+      standardMessage(outgoing = true, body = "Outgoing")
+      standardMessage(outgoing = false, body = "Incoming")
+    }
+
+    val releaseChannelId = RecipientId.from(1234)
+    SignalStore.account().setRegistered(true)
+    SignalStore.releaseChannelValues().setReleaseChannelRecipientId(releaseChannelId)
+
+    val startingData: DatabaseData = SignalDatabase.rawDatabase.readAllContents()
+
+    val exported: ByteArray = BackupRepository.export()
+    exported[exported.lastIndex] = (exported.last().toInt() xor 1).toByte()
+
+    try {
+      BackupRepository.import(
+        length = exported.size.toLong(),
+        inputStreamFactory = { ByteArrayInputStream(exported) },
+        selfData = BackupRepository.SelfData(SELF_ACI, SELF_PNI, SELF_E164, SELF_PROFILE_KEY),
+        singlePass = true
+      )
+      fail("Expected the MAC check to fail")
+    } catch (e: IOException) {
+      // Expected
+    }
+
+    SignalStore.account().isRegistered assertIs true
+    SignalStore.releaseChannelValues().releaseChannelRecipientId assertIs releaseChannelId
+    assertDatabaseMatches(startingData, SignalDatabase.rawDatabase.readAllContents())
+  }
+
   /**
    * Sets up the database, then executes your setup code, then compares snapshots of the database
    * before an after an import to ensure that no data was lost/changed.
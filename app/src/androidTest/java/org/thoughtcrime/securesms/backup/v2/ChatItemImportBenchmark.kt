@@ -0,0 +1,171 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2
+
+import android.util.Log
+import okio.ByteString.Companion.toByteString
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.signal.core.util.Base64
+import org.signal.libsignal.zkgroup.profiles.ProfileKey
+import org.thoughtcrime.securesms.backup.v2.proto.AccountData
+import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
+import org.thoughtcrime.securesms.backup.v2.proto.Chat
+import org.thoughtcrime.securesms.backup.v2.proto.ChatItem
+import org.thoughtcrime.securesms.backup.v2.proto.Contact
+import org.thoughtcrime.securesms.backup.v2.proto.Frame
+import org.thoughtcrime.securesms.backup.v2.proto.Group
+import org.thoughtcrime.securesms.backup.v2.proto.Reaction
+import org.thoughtcrime.securesms.backup.v2.proto.Recipient
+import org.thoughtcrime.securesms.backup.v2.proto.ReleaseNotes
+import org.thoughtcrime.securesms.backup.v2.proto.Self
+import org.thoughtcrime.securesms.backup.v2.proto.SendStatus
+import org.thoughtcrime.securesms.backup.v2.proto.StandardMessage
+import org.thoughtcrime.securesms.backup.v2.proto.Text
+import org.thoughtcrime.securesms.backup.v2.stream.PlainTextBackupWriter
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.whispersystems.signalservice.api.kbs.MasterKey
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.UUID
+import kotlin.random.Random
+import kotlin.system.measureTimeMillis
+
+/**
+ * Compares how quickly chat items are restored with the default inserter versus the [org.thoughtcrime.securesms.backup.v2.database.BulkImportEngine].
+ * The reported rate counts every message, reaction and group receipt row written, and includes the time spent rebuilding indexes.
+ */
+@Ignore("Benchmark, run manually")
+class ChatItemImportBenchmark {
+
+  companion object {
+    private const val TAG = "ChatItemImportBenchmark"
+
+    private val SELF_ACI = ServiceId.ACI.from(UUID.fromString("77770000-b477-4f35-a824-d92987a63641"))
+    private val SELF_PNI = ServiceId.PNI.from(UUID.fromString("77771111-b014-41fb-bf73-05cb2ec52910"))
+    private const val SELF_E164 = "+10000000000"
+    private val SELF_PROFILE_KEY = ProfileKey(Random.nextBytes(32))
+    private val MASTER_KEY = Base64.decode("sHuBMP4ToZk4tcNU+S8eBUeCt8Am5EZnvuqTBJIR4Do")
+
+    private const val CONTACT_COUNT = 100
+    private const val GROUP_COUNT = 10
+    private const val MESSAGES_PER_CHAT = 1_000
+  }
+
+  @Before
+  fun setup() {
+    SignalStore.svr().setMasterKey(MasterKey(MASTER_KEY), "1234")
+    SignalStore.account().setE164(SELF_E164)
+    SignalStore.account().setAci(SELF_ACI)
+    SignalStore.account().setPni(SELF_PNI)
+    SignalStore.account().generateAciIdentityKeyIfNecessary()
+    SignalStore.account().generatePniIdentityKeyIfNecessary()
+  }
+
+  @Test
+  fun benchmarkChatItemImport() {
+    val (backup, rowCount) = buildBackup()
+
+    // Warm up
+    import(backup, bulkInsert = false)
+    import(backup, bulkInsert = true)
+
+    val defaultTime = measureTimeMillis { import(backup, bulkInsert = false) }
+    val bulkTime = measureTimeMillis { import(backup, bulkInsert = true) }
+
+    Log.i(TAG, "[$rowCount rows] default: $defaultTime ms (${rowCount * 1000 / defaultTime.coerceAtLeast(1)} rows/sec), bulk: $bulkTime ms (${rowCount * 1000 / bulkTime.coerceAtLeast(1)} rows/sec)")
+  }
+
+  private fun import(backup: ByteArray, bulkInsert: Boolean) {
+    BackupRepository.import(
+      length = backup.size.toLong(),
+      inputStreamFactory = { ByteArrayInputStream(backup) },
+      selfData = BackupRepository.SelfData(SELF_ACI, SELF_PNI, SELF_E164, SELF_PROFILE_KEY),
+      plaintext = true,
+      bulkInsert = bulkInsert
+    )
+  }
+
+  /**
+   * Builds a plaintext backup with a mix of 1:1 and group chats, and returns it along with the number of message, reaction and receipt rows it contains.
+   */
+  private fun buildBackup(): Pair<ByteArray, Long> {
+    val random = Random(1516)
+    val self = Recipient(id = 1, self = Self())
+    val contacts = (0 until CONTACT_COUNT).map { i ->
+      Recipient(
+        id = 3L + i,
+        contact = Contact(
+          aci = TestRecipientUtils.nextAci().toByteString(),
+          pni = TestRecipientUtils.nextPni().toByteString(),
+          e164 = 14125550000 + i,
+          registered = Contact.Registered.REGISTERED,
+          profileKey = TestRecipientUtils.generateProfileKey().toByteString(),
+          profileSharing = true,
+          profileGivenName = "Test",
+          profileFamilyName = "Recipient$i"
+        )
+      )
+    }
+    val groups = (0 until GROUP_COUNT).map { i ->
+      Recipient(
+        id = 3L + CONTACT_COUNT + i,
+        group = Group(
+          masterKey = TestRecipientUtils.generateGroupMasterKey().toByteString(),
+          whitelisted = true,
+          storySendMode = Group.StorySendMode.ENABLED,
+          name = "Group $i"
+        )
+      )
+    }
+
+    val output = ByteArrayOutputStream()
+    var rowCount = 0L
+    var sentTime = 1L
+
+    PlainTextBackupWriter(output).use { writer ->
+      writer.write(BackupInfo(version = 1L, backupTimeMs = 123456L))
+      writer.write(Frame(account = AccountData(profileKey = SELF_PROFILE_KEY.serialize().toByteString(), givenName = "Self")))
+      writer.write(Frame(recipient = self))
+      writer.write(Frame(recipient = Recipient(id = 2, releaseNotes = ReleaseNotes())))
+
+      (contacts + groups).forEach { writer.write(Frame(recipient = it)) }
+      (contacts + groups).forEach { writer.write(Frame(chat = Chat(id = it.id, recipientId = it.id))) }
+
+      for (chat in contacts + groups) {
+        val members = if (chat.group != null) contacts.shuffled(random).take(10) else listOf(chat)
+
+        for (i in 0 until MESSAGES_PER_CHAT) {
+          val outgoing = random.nextBoolean()
+          val reactions = if (random.nextInt(10) == 0) listOf(Reaction(emoji = "👍", authorId = members.random(random).id, sentTimestamp = sentTime, receivedTimestamp = sentTime)) else emptyList()
+          val sendStatus = if (outgoing) members.map { SendStatus(recipientId = it.id, deliveryStatus = SendStatus.Status.READ, sealedSender = true) } else emptyList()
+
+          writer.write(
+            Frame(
+              chatItem = ChatItem(
+                chatId = chat.id,
+                authorId = if (outgoing) self.id else members.random(random).id,
+                dateSent = sentTime++,
+                incoming = if (outgoing) null else ChatItem.IncomingMessageDetails(dateReceived = sentTime, dateServerSent = sentTime, read = true, sealedSender = true),
+                outgoing = if (outgoing) ChatItem.OutgoingMessageDetails(sendStatus = sendStatus) else null,
+                standardMessage = StandardMessage(
+                  text = Text(body = "Message $i in chat ${chat.id}, with enough text in it to make the search index do some work"),
+                  reactions = reactions
+                )
+              )
+            )
+          )
+
+          rowCount += 1 + reactions.size + (if (chat.group != null) sendStatus.size else 0)
+        }
+      }
+    }
+
+    return output.toByteArray() to rowCount
+  }
+}
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.database
 
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
@@ -8,8 +9,11 @@ import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.signal.core.util.concurrent.SignalExecutors
+import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import java.util.Collections
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -154,4 +158,85 @@ class DatabaseObserverTest {
     assertEquals(1, thread1Count.get())
     assertEquals(1, thread2Count.get())
   }
+
+  @Test
+  fun notifyConversationListeners_mergesNotificationsOutsideOfTransaction() {
+    val conversationCount = AtomicInteger(0)
+    val listCount = AtomicInteger(0)
+
+    observer.registerConversationObserver(1) { conversationCount.incrementAndGet() }
+    observer.registerVerboseConversationObserver(1) { conversationCount.incrementAndGet() }
+    observer.registerConversationListObserver { listCount.incrementAndGet() }
+
+    // A lone notification is dispatched right away, so hold up the executor to make sure the whole burst is still pending together
+    val blocking = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    observer.registerConversationObserver(2) {
+      blocking.countDown()
+      release.await()
+    }
+    observer.notifyConversationListeners(2)
+    blocking.await()
+
+    repeat(30) {
+      observer.notifyConversationListeners(1)
+      observer.notifyConversationListListeners()
+    }
+
+    release.countDown()
+    observer.flush()
+
+    assertEquals(2, conversationCount.get())
+    assertEquals(1, listCount.get())
+  }
+
+  @Test
+  fun notifyConversationListeners_callsObserverOnceForSeveralThreads() {
+    val count = AtomicInteger(0)
+    val listener = DatabaseObserver.Observer { count.incrementAndGet() }
+
+    observer.registerConversationObserver(1, listener)
+    observer.registerConversationObserver(2, listener)
+
+    observer.notifyConversationListeners(setOf(1L, 2L))
+    observer.flush()
+
+    assertEquals(1, count.get())
+  }
+
+  @Test
+  fun notifyListeners_callsObserversInTheOrderTheyWereNotified() {
+    val calls = Collections.synchronizedList(mutableListOf<String>())
+
+    observer.registerConversationObserver(1) { calls += "conversation" }
+    observer.registerMessageUpdateObserver { calls += "message" }
+    observer.registerConversationListObserver { calls += "list" }
+
+    db.beginTransaction()
+
+    observer.notifyConversationListeners(1)
+    observer.notifyMessageUpdateObservers(MessageId(1))
+    observer.notifyConversationListListeners()
+
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    observer.flush()
+
+    assertEquals(listOf("conversation", "message", "list"), calls)
+  }
+
+  @Test
+  fun notifyConversationListeners_dispatchesALoneNotificationWithoutTheMainThread() {
+    val latch = CountDownLatch(1)
+    observer.registerConversationObserver(1) { latch.countDown() }
+
+    // Let anything dispatched by an earlier test fall out of the coalescing window
+    Thread.sleep(50)
+
+    InstrumentationRegistry.getInstrumentation().runOnMainSync {
+      observer.notifyConversationListeners(1)
+      assertTrue(latch.await(5, TimeUnit.SECONDS))
+    }
+  }
 }
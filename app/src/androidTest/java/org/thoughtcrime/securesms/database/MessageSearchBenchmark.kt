@@ -0,0 +1,126 @@
+package org.thoughtcrime.securesms.database
+
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.search.MessageSearchPagedDataSource
+import org.thoughtcrime.securesms.search.SearchRepository
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.UUID
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares reading every message search result up front with finding the matching ids and then loading a single page, on a database with
+ * a large number of messages. Also measures how quickly a broad search stops once it's canceled.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(AndroidJUnit4::class)
+class MessageSearchBenchmark {
+
+  companion object {
+    private const val TAG = "MessageSearchBenchmark"
+    private const val MESSAGE_COUNT = 500_000
+    private const val PAGE_SIZE = 50
+  }
+
+  @Before
+  fun setUp() {
+    SignalDatabase.messages.deleteAllThreads()
+
+    SignalStore.account().setAci(ACI.from(UUID.randomUUID()))
+    SignalStore.account().setPni(PNI.from(UUID.randomUUID()))
+
+    val recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+
+    // Inserting through MessageTable would take far too long, so the rows are generated in SQL. The search triggers still index every one of them.
+    SignalDatabase.rawDatabase.withinTransaction { db ->
+      db.execSQL(
+        """
+        WITH RECURSIVE seq(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM seq WHERE i < $MESSAGE_COUNT)
+        INSERT INTO ${MessageTable.TABLE_NAME} (
+          ${MessageTable.DATE_SENT}, ${MessageTable.DATE_RECEIVED}, ${MessageTable.THREAD_ID}, ${MessageTable.FROM_RECIPIENT_ID},
+          ${MessageTable.TO_RECIPIENT_ID}, ${MessageTable.TYPE}, ${MessageTable.BODY}
+        )
+        SELECT i, i, $threadId, ${recipient.id.toLong()}, ${recipient.id.toLong()},
+          ${MessageTypes.BASE_INBOX_TYPE}, 'Message ' || i || ' about ' || (CASE i % 5 WHEN 0 THEN 'pizza' WHEN 1 THEN 'weather' WHEN 2 THEN 'travel plans' WHEN 3 THEN 'the game' ELSE 'nothing much' END)
+        FROM seq
+        """
+      )
+    }
+  }
+
+  @Test
+  fun benchmarkSearch() {
+    val repository = SearchRepository("Note to self")
+
+    for (query in listOf("pizza", "travel plans", "message")) {
+      // Warm up
+      SignalDatabase.messageSearch.queryMessages(query)?.use { it.count }
+
+      var allCount = 0
+      val allStart = System.nanoTime()
+      SignalDatabase.messageSearch.queryMessages(query)?.use { cursor ->
+        while (cursor.moveToNext()) {
+          allCount++
+        }
+      }
+      val allMs = (System.nanoTime() - allStart) / 1_000_000
+
+      for (order in SearchTable.MessageSearchOrder.values()) {
+        val dataSource = MessageSearchPagedDataSource(repository, query, order = order)
+
+        val idsStart = System.nanoTime()
+        val size = dataSource.size()
+        val idsMs = (System.nanoTime() - idsStart) / 1_000_000
+
+        val pageStart = System.nanoTime()
+        dataSource.load(0, PAGE_SIZE, size) { false }
+        val pageMs = (System.nanoTime() - pageStart) / 1_000_000
+
+        Log.i(TAG, "[$query] [$order] full query: $allMs ms ($allCount rows), ids: $idsMs ms ($size ids), first page: $pageMs ms")
+      }
+    }
+  }
+
+  @Test
+  fun benchmarkCancel() {
+    val executor = Executors.newSingleThreadExecutor()
+
+    for (query in listOf("m", "me", "mes")) {
+      val signal = CancellationSignal()
+      var canceledAt = 0L
+
+      val future = executor.submit<Long> {
+        try {
+          SignalDatabase.messageSearch.queryMessageHits(query, null, SearchTable.MessageSearchOrder.RELEVANCE, MESSAGE_COUNT, signal)
+          -1L
+        } catch (e: OperationCanceledException) {
+          System.nanoTime() - canceledAt
+        }
+      }
+
+      Thread.sleep(20)
+      canceledAt = System.nanoTime()
+      signal.cancel()
+
+      val latency = future.get(30, TimeUnit.SECONDS)
+      if (latency < 0) {
+        Log.i(TAG, "[$query] Finished before it could be canceled.")
+      } else {
+        Log.i(TAG, "[$query] Stopped ${latency / 1_000} us after being canceled.")
+      }
+    }
+
+    executor.shutdown()
+  }
+}
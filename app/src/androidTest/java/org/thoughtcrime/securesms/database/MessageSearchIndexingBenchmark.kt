@@ -0,0 +1,83 @@
+package org.thoughtcrime.securesms.database
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.Locale
+import java.util.UUID
+
+/**
+ * Measures how long a message insert transaction takes when the search index is updated by triggers within the transaction, versus when indexing is deferred.
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(AndroidJUnit4::class)
+class MessageSearchIndexingBenchmark {
+
+  companion object {
+    private const val TAG = "MessageSearchIndexingBenchmark"
+    private const val MESSAGE_COUNT = 2_000
+  }
+
+  private lateinit var recipient: Recipient
+
+  @Before
+  fun setUp() {
+    SignalDatabase.messages.deleteAllThreads()
+
+    SignalStore.account().setAci(ACI.from(UUID.randomUUID()))
+    SignalStore.account().setPni(PNI.from(UUID.randomUUID()))
+
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+  }
+
+  @After
+  fun tearDown() {
+    SignalDatabase.messageSearch.setDeferredIndexing(false)
+  }
+
+  @Test
+  fun benchmarkReceiveTransaction() {
+    // Warm up
+    measure(deferred = false)
+
+    val immediate = measure(deferred = false)
+    val deferred = measure(deferred = true)
+
+    val indexStart = System.nanoTime()
+    while (SignalDatabase.messageSearch.indexPendingMessages(500) > 0) {
+      // Keep going
+    }
+    val indexMs = (System.nanoTime() - indexStart) / 1_000_000
+
+    Log.i(TAG, "[$MESSAGE_COUNT messages] triggers: $immediate, deferred: $deferred, background indexing: $indexMs ms")
+  }
+
+  private fun measure(deferred: Boolean): String {
+    SignalDatabase.messageSearch.setDeferredIndexing(deferred)
+
+    val latencies = LongArray(MESSAGE_COUNT)
+    for (i in 0 until MESSAGE_COUNT) {
+      val body = "Message number $i, which has a realistic amount of text for the tokenizer to chew through. Lorem ipsum dolor sit amet."
+
+      val start = System.nanoTime()
+      SignalDatabase.runInTransaction {
+        MmsHelper.insert(recipient = recipient, body = body, sentTimeMillis = System.currentTimeMillis())
+      }
+      latencies[i] = System.nanoTime() - start
+    }
+
+    latencies.sort()
+    val average = latencies.average() / 1_000_000
+    val p95 = latencies[(MESSAGE_COUNT * 0.95).toInt()] / 1_000_000.0
+
+    return String.format(Locale.US, "avg %.3f ms, p95 %.3f ms", average, p95)
+  }
+}
@@ -0,0 +1,109 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.readToList
+import org.signal.core.util.requireLong
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.whispersystems.signalservice.api.push.ServiceId.ACI
+import org.whispersystems.signalservice.api.push.ServiceId.PNI
+import java.util.UUID
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class SearchTableTest_deferredIndexing {
+
+  private lateinit var recipient: Recipient
+
+  @Before
+  fun setUp() {
+    SignalDatabase.messages.deleteAllThreads()
+
+    SignalStore.account().setAci(ACI.from(UUID.randomUUID()))
+    SignalStore.account().setPni(PNI.from(UUID.randomUUID()))
+
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID())))
+
+    SignalDatabase.messageSearch.setDeferredIndexing(true)
+  }
+
+  @After
+  fun tearDown() {
+    SignalDatabase.messageSearch.setDeferredIndexing(false)
+  }
+
+  @Test
+  fun givenDeferredIndexing_whenIInsertAMessage_thenIExpectItToBePendingAndSearchable() {
+    val messageId = MmsHelper.insert(recipient = recipient, body = "Hello world")
+
+    assertTrue(SignalDatabase.messageSearch.hasPendingMessages())
+    assertEquals(listOf(messageId), search("wor"))
+  }
+
+  @Test
+  fun givenPendingMessage_whenIIndexPendingMessages_thenIExpectItToBeFoundExactlyOnce() {
+    val messageId = MmsHelper.insert(recipient = recipient, body = "Hello world")
+
+    assertEquals(1, SignalDatabase.messageSearch.indexPendingMessages(100))
+
+    assertFalse(SignalDatabase.messageSearch.hasPendingMessages())
+    assertEquals(listOf(messageId), search("wor"))
+  }
+
+  @Test
+  fun givenPendingMessage_whenIDeleteIt_thenIExpectItToNoLongerBePending() {
+    val messageId = MmsHelper.insert(recipient = recipient, body = "Hello world")
+
+    SignalDatabase.messages.deleteMessage(messageId)
+
+    assertFalse(SignalDatabase.messageSearch.hasPendingMessages())
+    assertEquals(emptyList<Long>(), search("wor"))
+  }
+
+  @Test
+  fun givenIndexedMessage_whenIUpdateIt_thenIExpectTheIndexToBeUpdated() {
+    val messageId = MmsHelper.insert(recipient = recipient, body = "Hello world")
+    SignalDatabase.messageSearch.indexPendingMessages(100)
+
+    SignalDatabase.rawDatabase.execSQL("UPDATE ${MessageTable.TABLE_NAME} SET ${MessageTable.BODY} = 'Goodbye moon' WHERE ${MessageTable.ID} = $messageId")
+
+    assertEquals(emptyList<Long>(), search("wor"))
+    assertEquals(listOf(messageId), search("moo"))
+  }
+
+  @Test
+  fun givenPendingMessages_whenIDisableDeferredIndexing_thenIExpectThemToBeIndexed() {
+    val first = MmsHelper.insert(recipient = recipient, body = "Hello world", sentTimeMillis = 1)
+    val second = MmsHelper.insert(recipient = recipient, body = "Hello there", sentTimeMillis = 2)
+
+    SignalDatabase.messageSearch.setDeferredIndexing(false)
+
+    assertFalse(SignalDatabase.messageSearch.isDeferredIndexing())
+    assertFalse(SignalDatabase.messageSearch.hasPendingMessages())
+    assertEquals(setOf(first, second), search("hel").toSet())
+  }
+
+  @Test
+  fun givenDeferredIndexing_whenIResetTheTables_thenIExpectItToStayDeferred() {
+    SignalDatabase.messageSearch.fullyResetTables()
+
+    assertTrue(SignalDatabase.messageSearch.isDeferredIndexing())
+
+    val messageId = MmsHelper.insert(recipient = recipient, body = "Hello world")
+
+    assertTrue(SignalDatabase.messageSearch.hasPendingMessages())
+    assertEquals(1, SignalDatabase.messageSearch.indexPendingMessages(100))
+    assertEquals(listOf(messageId), search("wor"))
+  }
+
+  private fun search(query: String): List<Long> {
+    return SignalDatabase.messageSearch.queryMessages(query)!!.readToList { it.requireLong(SearchTable.MESSAGE_ID) }
+  }
+}
@@ -68,6 +68,7 @@ import org.thoughtcrime.securesms.jobs.FcmRefreshJob;
 import org.thoughtcrime.securesms.jobs.FontDownloaderJob;
 import org.thoughtcrime.securesms.jobs.GroupRingCleanupJob;
 import org.thoughtcrime.securesms.jobs.GroupV2UpdateSelfProfileKeyJob;
+import org.thoughtcrime.securesms.jobs.IndexPendingMessageSearchJob;
 import org.thoughtcrime.securesms.jobs.LinkedDeviceInactiveCheckJob;
 import org.thoughtcrime.securesms.jobs.MultiDeviceContactUpdateJob;
 import org.thoughtcrime.securesms.jobs.PnpInitializeDevicesJob;
@@ -217,6 +218,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
                             .addNonBlocking(this::initializePeriodicTasks)
                             .addNonBlocking(this::initializeCircumvention)
                             .addNonBlocking(this::initializeCleanup)
+                            .addNonBlocking(this::initializeMessageSearchIndexing)
                             .addNonBlocking(this::initializeGlideCodecs)
                             .addNonBlocking(StorageSyncHelper::scheduleRoutineSync)
                             .addNonBlocking(this::beginJobLoop)
@@ -627,6 +629,11 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     Log.i(TAG, "Deleted " + deleted + " abandoned attachments.");
   }
 
+  private void initializeMessageSearchIndexing() {
+    SignalDatabase.messageSearch().setDeferredIndexing(FeatureFlags.deferredMessageSearchIndex());
+    IndexPendingMessageSearchJob.enqueueIfNecessary();
+  }
+
   private void initializeGlideCodecs() {
     SignalGlideCodecs.setLogProvider(new org.signal.glide.Log.Provider() {
       @Override
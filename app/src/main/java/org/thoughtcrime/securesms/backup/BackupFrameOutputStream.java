@@ -6,8 +6,11 @@
 package org.thoughtcrime.securesms.backup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.Conversions;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.kdf.HKDF;
 import org.signal.libsignal.protocol.util.ByteUtil;
@@ -21,14 +24,22 @@ import org.thoughtcrime.securesms.backup.proto.KeyValue;
 import org.thoughtcrime.securesms.backup.proto.SharedPreference;
 import org.thoughtcrime.securesms.backup.proto.SqlStatement;
 import org.thoughtcrime.securesms.backup.proto.Sticker;
+import org.thoughtcrime.securesms.backup.proto.TableHeader;
+import org.thoughtcrime.securesms.backup.proto.TableRow;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -42,6 +53,11 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
 
   private static final String TAG = Log.tag(BackupFrameOutputStream.class);
 
+  /** Big enough for deflate to find plenty of repetition between rows, small enough that the compressor keeps up. */
+  private static final int COMPRESSED_BATCH_SIZE = 64 * 1024;
+
+  private static final ExecutorService COMPRESSION_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-BackupCompression", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
+
   private final OutputStream outputStream;
   private final Cipher       cipher;
   private final Mac          mac;
@@ -52,7 +68,29 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
 
   private int frames;
 
+  private final int                   version;
+  private final boolean               compressFrames;
+  private final ByteArrayOutputStream batch;
+  private       Future<byte[]>        pendingBatch;
+
   BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    this(output, passphrase, false);
+  }
+
+  /**
+   * @param compressFrames If true, frames that aren't followed by a data stream are batched up and deflated on a separate thread, while the next batch is
+   *                       being collected. Attachments, stickers and avatars are written as they are, since they're almost always compressed already.
+   */
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, boolean compressFrames) throws IOException {
+    this(output, passphrase, compressFrames, BackupVersions.CURRENT_VERSION);
+  }
+
+  @VisibleForTesting
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, boolean compressFrames, int version) throws IOException {
+    this.version        = version;
+    this.compressFrames = compressFrames && BackupVersions.hasCompressedFrames(version);
+    this.batch          = this.compressFrames ? new ByteArrayOutputStream(COMPRESSED_BATCH_SIZE * 2) : null;
+
     try {
       byte[]   salt    = Util.getSecretBytes(32);
       byte[]   key     = getBackupKey(passphrase, salt);
@@ -73,7 +111,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
       byte[] header = new BackupFrame.Builder().header_(new Header.Builder()
                                                             .iv(new okio.ByteString(iv))
                                                             .salt(new okio.ByteString(salt))
-                                                            .version(BackupVersions.CURRENT_VERSION)
+                                                            .version(version)
                                                             .build())
                                                .build()
                                                .encode();
@@ -85,19 +123,33 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  int getVersion() {
+    return version;
+  }
+
   public void write(SharedPreference preference) throws IOException {
-    write(outputStream, new BackupFrame.Builder().preference(preference).build());
+    writeBatchable(new BackupFrame.Builder().preference(preference).build());
   }
 
   public void write(KeyValue keyValue) throws IOException {
-    write(outputStream, new BackupFrame.Builder().keyValue(keyValue).build());
+    writeBatchable(new BackupFrame.Builder().keyValue(keyValue).build());
   }
 
   public void write(SqlStatement statement) throws IOException {
-    write(outputStream, new BackupFrame.Builder().statement(statement).build());
+    writeBatchable(new BackupFrame.Builder().statement(statement).build());
+  }
+
+  public void write(TableHeader table) throws IOException {
+    writeBatchable(new BackupFrame.Builder().table(table).build());
+  }
+
+  public void write(TableRow row) throws IOException {
+    writeBatchable(new BackupFrame.Builder().row(row).build());
   }
 
   public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
+    flushBatch();
+
     try {
       write(outputStream, new BackupFrame.Builder()
           .avatar(new Avatar.Builder()
@@ -116,6 +168,8 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   }
 
   public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
+    flushBatch();
+
     try {
       write(outputStream, new BackupFrame.Builder()
           .attachment(new Attachment.Builder()
@@ -134,6 +188,8 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   }
 
   public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
+    flushBatch();
+
     try {
       write(outputStream, new BackupFrame.Builder()
           .sticker(new Sticker.Builder()
@@ -152,15 +208,91 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
   }
 
   void writeDatabaseVersion(int version) throws IOException {
-    write(outputStream, new BackupFrame.Builder()
-        .version(new DatabaseVersion.Builder().version(version).build())
-        .build());
+    writeBatchable(new BackupFrame.Builder()
+                       .version(new DatabaseVersion.Builder().version(version).build())
+                       .build());
   }
 
   void writeEnd() throws IOException {
+    flushBatch();
     write(outputStream, new BackupFrame.Builder().end(true).build());
   }
 
+  private void writeBatchable(@NonNull BackupFrame frame) throws IOException {
+    if (!compressFrames) {
+      write(outputStream, frame);
+      return;
+    }
+
+    byte[] encoded = frame.encode();
+
+    batch.write(Conversions.intToByteArray(encoded.length));
+    batch.write(encoded);
+    frames++;
+
+    if (batch.size() >= COMPRESSED_BATCH_SIZE) {
+      submitBatch();
+    }
+  }
+
+  /**
+   * Hands the current batch to the compressor, first writing out the previous one so that batches stay in order.
+   */
+  private void submitBatch() throws IOException {
+    byte[] uncompressed = batch.toByteArray();
+    batch.reset();
+
+    writePendingBatch();
+    pendingBatch = COMPRESSION_EXECUTOR.submit(() -> deflate(uncompressed));
+  }
+
+  private void flushBatch() throws IOException {
+    if (!compressFrames) {
+      return;
+    }
+
+    if (batch.size() > 0) {
+      submitBatch();
+    }
+
+    writePendingBatch();
+  }
+
+  private void writePendingBatch() throws IOException {
+    if (pendingBatch == null) {
+      return;
+    }
+
+    byte[] compressed;
+    try {
+      compressed = pendingBatch.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress frames!", e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      pendingBatch = null;
+    }
+
+    write(outputStream, new BackupFrame.Builder().compressed(okio.ByteString.of(compressed)).build());
+
+    // The frames inside were already counted as they were batched
+    frames--;
+  }
+
+  private static @NonNull byte[] deflate(@NonNull byte[] uncompressed) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(uncompressed.length / 2);
+    Deflater              deflater   = new Deflater(Deflater.BEST_SPEED);
+
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+      out.write(uncompressed);
+    } finally {
+      deflater.end();
+    }
+
+    return compressed.toByteArray();
+  }
+
   /**
    * @return The amount of data written from the provided InputStream.
    */
@@ -208,7 +340,7 @@ class BackupFrameOutputStream extends FullBackupBase.BackupStream {
 
       // this assumes a stream cipher
       byte[] length = Conversions.intToByteArray(encodedFrame.length + 10);
-      if (BackupVersions.isFrameLengthEncrypted(BackupVersions.CURRENT_VERSION)) {
+      if (BackupVersions.isFrameLengthEncrypted(version)) {
         byte[] encryptedLength = cipher.update(length);
         if (encryptedLength.length != length.length) {
           throw new IOException("Stream cipher assumption has been violated!");
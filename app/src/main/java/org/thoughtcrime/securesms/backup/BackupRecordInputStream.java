@@ -10,6 +10,9 @@ import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.backup.proto.BackupFrame;
 import org.thoughtcrime.securesms.backup.proto.Header;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -17,6 +20,9 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -31,6 +37,9 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   private final String TAG             = Log.tag(BackupRecordInputStream.class);
   private final int    MAX_BUFFER_SIZE = 8192;
 
+  /** Deflate can't do better than about 1032:1, so a batched frame that claims to be bigger than that is corrupt. */
+  private static final int MAX_DEFLATE_RATIO = 1032;
+
   private final int         version;
   private final InputStream in;
   private final Cipher      cipher;
@@ -41,6 +50,8 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   private final byte[] iv;
   private       int    counter;
 
+  private final Queue<BackupFrame> batchedFrames = new ArrayDeque<>();
+
   BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
     try {
       this.in = in;
@@ -92,8 +103,52 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  int getVersion() {
+    return version;
+  }
+
   BackupFrame readFrame() throws IOException {
-    return readFrame(in);
+    while (batchedFrames.isEmpty()) {
+      BackupFrame frame = readFrame(in);
+
+      if (frame.compressed == null) {
+        return frame;
+      }
+
+      if (!BackupVersions.hasCompressedFrames(version)) {
+        throw new IOException("Compressed frame in a version " + version + " backup!");
+      }
+
+      inflateFrames(frame.compressed.toByteArray());
+    }
+
+    return batchedFrames.remove();
+  }
+
+  /**
+   * Batches are inflated on the reading thread. Frames and data streams share one cipher counter and are read in order, and importing a batch takes
+   * far longer than decrypting and inflating it, so reading ahead on another thread wouldn't buy much.
+   */
+  private void inflateFrames(@NonNull byte[] compressed) throws IOException {
+    try (DataInputStream batch = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+      while (true) {
+        int length;
+        try {
+          length = batch.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+
+        if (length < 0 || length > (long) compressed.length * MAX_DEFLATE_RATIO) {
+          throw new IOException("Invalid batched frame length: " + length);
+        }
+
+        byte[] encoded = new byte[length];
+        batch.readFully(encoded);
+
+        batchedFrames.add(BackupFrame.ADAPTER.decode(encoded));
+      }
+    }
   }
 
   boolean validateFrame() throws InvalidAlgorithmParameterException, IOException, InvalidKeyException {
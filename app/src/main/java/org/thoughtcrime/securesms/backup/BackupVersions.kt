@@ -6,7 +6,7 @@
 package org.thoughtcrime.securesms.backup
 
 object BackupVersions {
-  const val CURRENT_VERSION = 1
+  const val CURRENT_VERSION = 3
   const val MINIMUM_VERSION = 0
 
   @JvmStatic
@@ -18,4 +18,22 @@ object BackupVersions {
   fun isFrameLengthEncrypted(version: Int): Boolean {
     return version >= 1
   }
+
+  /**
+   * Table contents are written as a [org.thoughtcrime.securesms.backup.proto.TableHeader] per table followed by a
+   * [org.thoughtcrime.securesms.backup.proto.TableRow] per row, rather than as an INSERT statement per row.
+   */
+  @JvmStatic
+  fun hasTableRowFrames(version: Int): Boolean {
+    return version >= 2
+  }
+
+  /**
+   * Frames that aren't followed by a data stream may be batched together into a single deflated
+   * [org.thoughtcrime.securesms.backup.proto.BackupFrame.compressed] frame.
+   */
+  @JvmStatic
+  fun hasCompressedFrames(version: Int): Boolean {
+    return version >= 3
+  }
 }
@@ -0,0 +1,151 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.signal.core.util.CursorUtil;
+import org.thoughtcrime.securesms.database.MessageTable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The ids of the messages that should go into a backup, which is every message that isn't about to expire. An edited message goes in if its latest revision
+ * does.
+ *
+ * This is worked out with a single pass over the message table, so that rows in other tables can be checked against their message without a query per row.
+ * The ids are kept in a sorted primitive array, which is about as compact as it gets for ids that are mostly dense.
+ */
+final class ExportableMessageIds {
+
+  private final long[] ids;
+  private final int    size;
+
+  private ExportableMessageIds(@NonNull long[] ids, int size) {
+    this.ids  = ids;
+    this.size = size;
+  }
+
+  static @NonNull ExportableMessageIds fromDatabase(@NonNull SQLiteDatabase db, long now, long expirationThreshold) {
+    String[] columns = new String[] { MessageTable.ID, MessageTable.EXPIRE_STARTED, MessageTable.EXPIRES_IN, MessageTable.LATEST_REVISION_ID };
+    Builder  builder = new Builder();
+
+    try (Cursor cursor = db.query(MessageTable.TABLE_NAME, columns, null, null, null, null, MessageTable.ID + " ASC")) {
+      while (cursor != null && cursor.moveToNext()) {
+        builder.add(CursorUtil.requireLong(cursor, MessageTable.ID),
+                    CursorUtil.requireLong(cursor, MessageTable.EXPIRE_STARTED),
+                    CursorUtil.requireLong(cursor, MessageTable.EXPIRES_IN),
+                    CursorUtil.requireLong(cursor, MessageTable.LATEST_REVISION_ID));
+      }
+    }
+
+    return builder.build(now, expirationThreshold);
+  }
+
+  boolean contains(long messageId) {
+    return Arrays.binarySearch(ids, 0, size, messageId) >= 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  static final class Builder {
+
+    /** Edits can be chained, but never anywhere near this deep. Just here to stop a corrupt database from looping forever. */
+    private static final int MAX_REVISION_HOPS = 64;
+
+    private long[] ids       = new long[1024];
+    private long[] expiresAt = new long[1024];
+    private int    size;
+
+    /** Only edited messages have a latest revision, so they're kept separately as (index, latest revision id) pairs. */
+    private int[]  revisionIndices = new int[16];
+    private long[] revisionIds     = new long[16];
+    private int    revisionCount;
+
+    /**
+     * Messages must be added in ascending id order.
+     */
+    @NonNull Builder add(long id, long expireStarted, long expiresIn, long latestRevisionId) {
+      if (size > 0 && id <= ids[size - 1]) {
+        throw new IllegalArgumentException("Ids must be added in ascending order! " + id + " came after " + ids[size - 1]);
+      }
+
+      if (size == ids.length) {
+        ids       = Arrays.copyOf(ids, size * 2);
+        expiresAt = Arrays.copyOf(expiresAt, size * 2);
+      }
+
+      if (latestRevisionId > 0 && latestRevisionId != id) {
+        if (revisionCount == revisionIndices.length) {
+          revisionIndices = Arrays.copyOf(revisionIndices, revisionCount * 2);
+          revisionIds     = Arrays.copyOf(revisionIds, revisionCount * 2);
+        }
+
+        revisionIndices[revisionCount] = size;
+        revisionIds[revisionCount]     = latestRevisionId;
+        revisionCount++;
+      }
+
+      ids[size]       = id;
+      expiresAt[size] = expireStarted > 0 ? expireStarted + expiresIn : Long.MAX_VALUE;
+      size++;
+
+      return this;
+    }
+
+    @NonNull ExportableMessageIds build(long now, long expirationThreshold) {
+      BitSet exportable = new BitSet(size);
+
+      for (int i = 0; i < size; i++) {
+        if (expiresAt[i] == Long.MAX_VALUE || expiresAt[i] - now > expirationThreshold) {
+          exportable.set(i);
+        }
+      }
+
+      // Chains are always followed to a message without a newer revision, and those are never changed here, so the order doesn't matter
+      for (int r = 0; r < revisionCount; r++) {
+        exportable.set(revisionIndices[r], isLatestRevisionExportable(revisionIds[r], exportable));
+      }
+
+      // Compacted in place, since the array is ours and we're done with it
+      int count = 0;
+      for (int i = exportable.nextSetBit(0); i >= 0; i = exportable.nextSetBit(i + 1)) {
+        ids[count++] = ids[i];
+      }
+
+      return new ExportableMessageIds(ids, count);
+    }
+
+    private boolean isLatestRevisionExportable(long latestRevisionId, @NonNull BitSet exportable) {
+      long id = latestRevisionId;
+
+      for (int hop = 0; hop < MAX_REVISION_HOPS; hop++) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+
+        if (index < 0) {
+          return false;
+        }
+
+        long next = latestRevisionOf(index);
+
+        if (next <= 0 || next == id) {
+          return exportable.get(index);
+        }
+
+        id = next;
+      }
+
+      return false;
+    }
+
+    private long latestRevisionOf(int index) {
+      int r = Arrays.binarySearch(revisionIndices, 0, revisionCount, index);
+      return r >= 0 ? revisionIds[r] : 0;
+    }
+  }
+}
@@ -10,6 +10,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.VisibleForTesting;
 import androidx.documentfile.provider.DocumentFile;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.annimon.stream.function.Predicate;
 
@@ -25,6 +26,8 @@ import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.proto.KeyValue;
 import org.thoughtcrime.securesms.backup.proto.SharedPreference;
 import org.thoughtcrime.securesms.backup.proto.SqlStatement;
+import org.thoughtcrime.securesms.backup.proto.TableHeader;
+import org.thoughtcrime.securesms.backup.proto.TableRow;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentTable;
@@ -57,6 +60,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -106,7 +110,7 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, false, cancellationSignal);
     }
   }
 
@@ -120,7 +124,7 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, false, cancellationSignal);
     }
   }
 
@@ -131,7 +135,7 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
       throws IOException
   {
-    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false));
+    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, true, () -> false));
   }
 
   private static BackupEvent internalExport(@NonNull Context context,
@@ -140,10 +144,11 @@ public class FullBackupExporter extends FullBackupBase {
                                             @NonNull OutputStream fileOutputStream,
                                             @NonNull String passphrase,
                                             boolean closeOutputStream,
+                                            boolean compressFrames,
                                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase);
+    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase, compressFrames);
     int                     count                 = 0;
     long                    estimatedCountOutside;
 
@@ -159,22 +164,29 @@ public class FullBackupExporter extends FullBackupBase {
 
       Stopwatch stopwatch = new Stopwatch("Backup");
 
+      ExportableMessageIds exportableMessageIds = ExportableMessageIds.fromDatabase(input, System.currentTimeMillis(), EXPIRATION_BACKUP_THRESHOLD);
+      stopwatch.split("message-ids");
+
+      int tableId = 0;
+
       for (String table : tables) {
         throwIfCanceled(cancellationSignal);
+        tableId++;
+
         if (table.equals(MessageTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isNonExpiringMessage(input, cursor), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> exportableMessageIds.contains(CursorUtil.requireLong(cursor, MessageTable.ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(ReactionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> exportableMessageIds.contains(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(MentionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> exportableMessageIds.contains(CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> exportableMessageIds.contains(CursorUtil.requireLong(cursor, GroupReceiptTable.MMS_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MESSAGE_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> exportableMessageIds.contains(CursorUtil.requireLong(cursor, AttachmentTable.MESSAGE_ID)), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (table.equals(StickerTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
-          count = exportTable(table, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, tableId, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
         }
         stopwatch.split("table::" + table);
       }
@@ -377,58 +389,56 @@ public class FullBackupExporter extends FullBackupBase {
            !isEmojiFtsSecretTable;
   }
 
-  private static int exportTable(@NonNull String table,
-                                 @NonNull SQLiteDatabase input,
-                                 @NonNull BackupFrameOutputStream outputStream,
-                                 @Nullable Predicate<Cursor> predicate,
-                                 @Nullable PostProcessor postProcess,
-                                 int count,
-                                 long estimatedCount,
-                                 @NonNull BackupCancellationSignal cancellationSignal)
+  @VisibleForTesting
+  static int exportTable(@NonNull String table,
+                         int tableId,
+                         @NonNull SupportSQLiteDatabase input,
+                         @NonNull BackupFrameOutputStream outputStream,
+                         @Nullable Predicate<Cursor> predicate,
+                         @Nullable PostProcessor postProcess,
+                         int count,
+                         long estimatedCount,
+                         @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
     Log.d(TAG, "Exporting table: " + table);
 
-    String template = "INSERT INTO " + table + " VALUES ";
+    boolean rowFrames   = BackupVersions.hasTableRowFrames(outputStream.getVersion());
+    boolean wroteHeader = false;
+    String  template    = "INSERT INTO " + table + " VALUES ";
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+    try (Cursor cursor = input.query("SELECT * FROM " + table)) {
       while (cursor != null && cursor.moveToNext()) {
         throwIfCanceled(cancellationSignal);
 
         if (predicate == null || predicate.test(cursor)) {
-          StringBuilder        statement        = new StringBuilder(template);
-          SqlStatement.Builder statementBuilder = new SqlStatement.Builder();
+          List<SqlStatement.SqlParameter> values = new ArrayList<>(cursor.getColumnCount());
 
-          statementBuilder.parameters = new ArrayList<>();
+          for (int i = 0; i < cursor.getColumnCount(); i++) {
+            values.add(getParameter(cursor, i));
+          }
 
-          statement.append('(');
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
 
-          for (int i = 0; i < cursor.getColumnCount(); i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().stringParamter(cursor.getString(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().doubleParameter(cursor.getDouble(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().integerParameter(cursor.getLong(i)).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().blobParameter(new ByteString(cursor.getBlob(i))).build());
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.parameters.add(new SqlStatement.SqlParameter.Builder().nullparameter(true).build());
-            } else {
-              throw new AssertionError("unknown type?" + cursor.getType(i));
+          if (rowFrames) {
+            // The header is only written once we know there's a row to go with it, so empty tables cost nothing
+            if (!wroteHeader) {
+              outputStream.write(new TableHeader.Builder().id(tableId).name(table).columns(Arrays.asList(cursor.getColumnNames())).build());
+              wroteHeader = true;
             }
 
-            if (i < cursor.getColumnCount() - 1) {
-              statement.append(',');
+            outputStream.write(new TableRow.Builder().tableId(tableId).values(values).build());
+          } else {
+            StringBuilder statement = new StringBuilder(template).append('(');
+
+            for (int i = 0; i < values.size(); i++) {
+              statement.append(i == 0 ? "?" : ",?");
             }
-          }
 
-          statement.append(')');
+            statement.append(')');
 
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          outputStream.write(statementBuilder.statement(statement.toString()).build());
+            outputStream.write(new SqlStatement.Builder().statement(statement.toString()).parameters(values).build());
+          }
 
           if (postProcess != null) {
             count = postProcess.postProcess(cursor, count);
@@ -440,6 +450,17 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
+  private static @NonNull SqlStatement.SqlParameter getParameter(@NonNull Cursor cursor, int column) {
+    switch (cursor.getType(column)) {
+      case Cursor.FIELD_TYPE_STRING:  return new SqlStatement.SqlParameter.Builder().stringParamter(cursor.getString(column)).build();
+      case Cursor.FIELD_TYPE_FLOAT:   return new SqlStatement.SqlParameter.Builder().doubleParameter(cursor.getDouble(column)).build();
+      case Cursor.FIELD_TYPE_INTEGER: return new SqlStatement.SqlParameter.Builder().integerParameter(cursor.getLong(column)).build();
+      case Cursor.FIELD_TYPE_BLOB:    return new SqlStatement.SqlParameter.Builder().blobParameter(new ByteString(cursor.getBlob(column))).build();
+      case Cursor.FIELD_TYPE_NULL:    return new SqlStatement.SqlParameter.Builder().nullparameter(true).build();
+      default:                        throw new AssertionError("unknown type?" + cursor.getType(column));
+    }
+  }
+
   private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
@@ -577,40 +598,6 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static boolean isNonExpiringMessage(@NonNull SQLiteDatabase db, @NonNull Cursor cursor) {
-    long id                = CursorUtil.requireLong(cursor, MessageTable.ID);
-    long expireStarted     = CursorUtil.requireLong(cursor, MessageTable.EXPIRE_STARTED);
-    long expiresIn         = CursorUtil.requireLong(cursor, MessageTable.EXPIRES_IN);
-    long latestRevisionId  = CursorUtil.requireLong(cursor, MessageTable.LATEST_REVISION_ID);
-
-    long expiresAt     = expireStarted + expiresIn;
-    long timeRemaining = expiresAt - System.currentTimeMillis();
-
-    if (latestRevisionId > 0 && latestRevisionId != id ) {
-      return isForNonExpiringMessage(db, latestRevisionId);
-    }
-
-    if (expireStarted > 0 && timeRemaining <= EXPIRATION_BACKUP_THRESHOLD) {
-      return false;
-    }
-
-    return true;
-  }
-
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long messageId) {
-    String[] columns = new String[] { MessageTable.ID, MessageTable.EXPIRE_STARTED, MessageTable.EXPIRES_IN, MessageTable.LATEST_REVISION_ID };
-    String   where   = MessageTable.ID + " = ?";
-    String[] args    = SqlUtil.buildArgs(messageId);
-
-    try (Cursor mmsCursor = db.query(MessageTable.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return isNonExpiringMessage(db, mmsCursor);
-      }
-    }
-
-    return false;
-  }
-
   public interface PostProcessor {
     int postProcess(@NonNull Cursor cursor, int count) throws IOException;
   }
@@ -10,6 +10,8 @@ import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
@@ -25,6 +27,8 @@ import org.thoughtcrime.securesms.backup.proto.KeyValue;
 import org.thoughtcrime.securesms.backup.proto.SharedPreference;
 import org.thoughtcrime.securesms.backup.proto.SqlStatement;
 import org.thoughtcrime.securesms.backup.proto.Sticker;
+import org.thoughtcrime.securesms.backup.proto.TableHeader;
+import org.thoughtcrime.securesms.backup.proto.TableRow;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.EncryptedPreferences;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
@@ -54,6 +58,7 @@ import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -101,7 +106,8 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    int                                  count        = 0;
+    Map<Integer, SupportSQLiteStatement> tableInserts = new HashMap<>();
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
@@ -121,6 +127,8 @@ public class FullBackupImporter extends FullBackupBase {
 
         if      (frame.version != null)    processVersion(db, frame.version);
         else if (frame.statement != null)  processStatement(db, frame.statement);
+        else if (frame.table != null)      processTableHeader(db, frame.table, inputStream.getVersion(), tableInserts);
+        else if (frame.row != null)        processTableRow(frame.row, tableInserts);
         else if (frame.preference != null) processPreference(context, frame.preference);
         else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
         else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
@@ -132,6 +140,10 @@ public class FullBackupImporter extends FullBackupBase {
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
+      for (SupportSQLiteStatement insert : tableInserts.values()) {
+        insert.close();
+      }
+
       List<SqlUtil.ForeignKeyViolation> violations = SqlUtil.getForeignKeyViolations(db)
           .stream()
           .filter(it -> !it.getTable().startsWith("msl_"))
@@ -196,6 +208,67 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.statement);
   }
 
+  @VisibleForTesting
+  static void processTableHeader(@NonNull SupportSQLiteDatabase db, @NonNull TableHeader table, int version, @NonNull Map<Integer, SupportSQLiteStatement> tableInserts)
+      throws IOException
+  {
+    if (!BackupVersions.hasTableRowFrames(version)) {
+      throw new IOException("Table frame in a version " + version + " backup!");
+    }
+
+    if (table.id == null || table.name == null || table.columns.isEmpty()) {
+      Log.w(TAG, "Incomplete table header!");
+      return;
+    }
+
+    boolean isForMmsFtsSecretTable = table.name.startsWith(SearchTable.FTS_TABLE_NAME + "_");
+    boolean isForEmojiSecretTable  = table.name.startsWith(EmojiSearchTable.TABLE_NAME + "_");
+    boolean isForSqliteSecretTable = table.name.toLowerCase().startsWith("sqlite_");
+
+    if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
+      Log.i(TAG, "Ignoring import for table: " + table.name);
+      return;
+    }
+
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.name).append(" (").append(Util.join(table.columns, ",")).append(") VALUES (");
+
+    for (int i = 0; i < table.columns.size(); i++) {
+      sql.append(i == 0 ? "?" : ",?");
+    }
+
+    sql.append(')');
+
+    SupportSQLiteStatement previous = tableInserts.put(table.id, db.compileStatement(sql.toString()));
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  @VisibleForTesting
+  static void processTableRow(@NonNull TableRow row, @NonNull Map<Integer, SupportSQLiteStatement> tableInserts) {
+    SupportSQLiteStatement insert = row.tableId != null ? tableInserts.get(row.tableId) : null;
+
+    // Rows for ignored tables land here too, so this isn't necessarily a problem
+    if (insert == null) {
+      return;
+    }
+
+    insert.clearBindings();
+
+    for (int i = 0; i < row.values.size(); i++) {
+      SqlStatement.SqlParameter value = row.values.get(i);
+      int                       index = i + 1;
+
+      if      (value.stringParamter != null)   insert.bindString(index, value.stringParamter);
+      else if (value.doubleParameter != null)  insert.bindDouble(index, value.doubleParameter);
+      else if (value.integerParameter != null) insert.bindLong(index, value.integerParameter);
+      else if (value.blobParameter != null)    insert.bindBlob(index, value.blobParameter.toByteArray());
+      else                                     insert.bindNull(index);
+    }
+
+    insert.executeInsert();
+  }
+
   private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
@@ -17,17 +17,21 @@ import org.signal.libsignal.zkgroup.profiles.ProfileKey
 import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.attachments.Cdn
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.backup.v2.database.BulkImportEngine
 import org.thoughtcrime.securesms.backup.v2.database.ChatItemImportInserter
 import org.thoughtcrime.securesms.backup.v2.database.clearAllDataForBackupRestore
+import org.thoughtcrime.securesms.backup.v2.database.createBulkImportEngine
 import org.thoughtcrime.securesms.backup.v2.processor.AccountDataProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.CallLogBackupProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.ChatBackupProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.ChatItemBackupProcessor
 import org.thoughtcrime.securesms.backup.v2.processor.RecipientBackupProcessor
+import org.thoughtcrime.securesms.backup.v2.proto.AccountData
 import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
 import org.thoughtcrime.securesms.backup.v2.stream.BackupExportWriter
 import org.thoughtcrime.securesms.backup.v2.stream.EncryptedBackupReader
 import org.thoughtcrime.securesms.backup.v2.stream.EncryptedBackupWriter
+import org.thoughtcrime.securesms.backup.v2.stream.PipelinedBackupExportWriter
 import org.thoughtcrime.securesms.backup.v2.stream.PlainTextBackupReader
 import org.thoughtcrime.securesms.backup.v2.stream.PlainTextBackupWriter
 import org.thoughtcrime.securesms.database.SignalDatabase
@@ -69,9 +73,15 @@ object BackupRepository {
     }
   }
 
-  fun export(outputStream: OutputStream, append: (ByteArray) -> Unit, plaintext: Boolean = false) {
+  /**
+   * Exports the backup to [outputStream].
+   *
+   * @param pipelined If true, frame serialization, compression and encryption happen on background threads while the database is being read.
+   *                  Frames are still built on the calling thread. The output is identical either way. See [PipelinedBackupExportWriter].
+   */
+  fun export(outputStream: OutputStream, append: (ByteArray) -> Unit, plaintext: Boolean = false, pipelined: Boolean = false) {
     val eventTimer = EventTimer()
-    val writer: BackupExportWriter = if (plaintext) {
+    val baseWriter: BackupExportWriter = if (plaintext) {
       PlainTextBackupWriter(outputStream)
     } else {
       EncryptedBackupWriter(
@@ -82,6 +92,12 @@ object BackupRepository {
       )
     }
 
+    val writer: BackupExportWriter = if (pipelined) {
+      PipelinedBackupExportWriter(baseWriter)
+    } else {
+      baseWriter
+    }
+
     val exportState = ExportState(backupTime = System.currentTimeMillis(), allowMediaBackup = true)
 
     writer.use {
@@ -137,7 +153,16 @@ object BackupRepository {
     return MessageBackup.validate(key, MessageBackup.Purpose.REMOTE_BACKUP, inputStreamFactory, length)
   }
 
-  fun import(length: Long, inputStreamFactory: () -> InputStream, selfData: SelfData, plaintext: Boolean = false) {
+  /**
+   * Imports a backup, replacing all existing data.
+   *
+   * @param singlePass If true, the backup's MAC is checked while the frames are being imported rather than with a separate pass over the file beforehand.
+   *                   Frames are imported within a single transaction that is only committed once the MAC has been verified. Everything that lives
+   *                   outside of the database, like clearing [SignalStore] and applying the account settings, is held back until then.
+   * @param bulkInsert If true, chat items are written with a [BulkImportEngine], which drops the search triggers and secondary indexes for the duration
+   *                   of the import and rebuilds them at the end.
+   */
+  fun import(length: Long, inputStreamFactory: () -> InputStream, selfData: SelfData, plaintext: Boolean = false, singlePass: Boolean = false, bulkInsert: Boolean = false) {
     val eventTimer = EventTimer()
 
     val backupKey = SignalStore.svr().getOrCreateMasterKey().deriveBackupKey()
@@ -149,10 +174,13 @@ object BackupRepository {
         key = backupKey,
         aci = selfData.aci,
         streamLength = length,
-        dataStream = inputStreamFactory
+        dataStream = inputStreamFactory,
+        validateMacUpfront = !singlePass
       )
     }
 
+    val deferNonTransactionalWrites = singlePass && !plaintext
+
     val header = frameReader.getHeader()
     if (header == null) {
       Log.e(TAG, "Backup is missing header!")
@@ -165,7 +193,9 @@ object BackupRepository {
     // Note: Without a transaction, bad imports could lead to lost data. But because we have a transaction,
     // writes from other threads are blocked. This is something to think more about.
     SignalDatabase.rawDatabase.withinTransaction {
-      SignalStore.clearAllDataForBackupRestore()
+      if (!deferNonTransactionalWrites) {
+        SignalStore.clearAllDataForBackupRestore()
+      }
       SignalDatabase.recipients.clearAllDataForBackupRestore()
       SignalDatabase.distributionLists.clearAllDataForBackupRestore()
       SignalDatabase.threads.clearAllDataForBackupRestore()
@@ -179,13 +209,19 @@ object BackupRepository {
 
       eventTimer.emit("setup")
       val backupState = BackupState(backupKey)
-      val chatItemInserter: ChatItemImportInserter = ChatItemBackupProcessor.beginImport(backupState)
+      val bulkImportEngine: BulkImportEngine? = if (bulkInsert) SignalDatabase.messages.createBulkImportEngine().apply { begin() } else null
+      val chatItemInserter: ChatItemImportInserter = ChatItemBackupProcessor.beginImport(backupState, bulkImportEngine)
+      var deferredAccountData: AccountData? = null
 
       for (frame in frameReader) {
         when {
           frame.account != null -> {
-            AccountDataProcessor.import(frame.account, selfId)
-            eventTimer.emit("account")
+            if (deferNonTransactionalWrites) {
+              deferredAccountData = frame.account
+            } else {
+              AccountDataProcessor.import(frame.account, selfId)
+              eventTimer.emit("account")
+            }
           }
 
           frame.recipient != null -> {
@@ -217,6 +253,23 @@ object BackupRepository {
         eventTimer.emit("chatItem")
       }
 
+      if (bulkImportEngine != null) {
+        bulkImportEngine.finish()
+        eventTimer.emit("reindex")
+      }
+
+      // The reader only finishes iterating once the MAC has been verified, so it's now safe to make changes that the transaction can't roll back.
+      if (deferNonTransactionalWrites) {
+        SignalStore.clearAllDataForBackupRestore()
+      }
+
+      backupState.releaseChannelRecipientId?.let { SignalStore.releaseChannelValues().setReleaseChannelRecipientId(it) }
+
+      if (deferredAccountData != null) {
+        AccountDataProcessor.import(deferredAccountData, selfId)
+        eventTimer.emit("account")
+      }
+
       backupState.chatIdToLocalThreadId.values.forEach {
         SignalDatabase.threads.update(it, unarchive = false, allowDeletion = false)
       }
@@ -645,6 +698,9 @@ class BackupState(val backupKey: BackupKey) {
   val chatIdToLocalRecipientId = HashMap<Long, RecipientId>()
   val chatIdToBackupRecipientId = HashMap<Long, Long>()
   val callIdToType = HashMap<Long, Long>()
+
+  /** The restored release notes recipient, which is written to [SignalStore] once the import has finished. */
+  var releaseChannelRecipientId: RecipientId? = null
 }
 
 class BackupMetadata(
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.database
+
+import android.content.ContentValues
+import net.zetetic.database.sqlcipher.SQLiteStatement
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readToList
+import org.signal.core.util.requireNonNullString
+import org.thoughtcrime.securesms.database.GroupReceiptTable
+import org.thoughtcrime.securesms.database.MessageTable
+import org.thoughtcrime.securesms.database.ReactionTable
+import org.thoughtcrime.securesms.database.SQLiteDatabase
+import org.thoughtcrime.securesms.database.SignalDatabase
+import java.util.Locale
+
+/**
+ * Speeds up writing a large number of rows during a backup import. Must be used entirely within a single transaction.
+ *
+ * - [begin] drops the full-text search triggers and the secondary indexes of the tables we bulk insert into, so that each insert only has to touch the table itself.
+ * - [insert] writes rows using multi-row insert statements that are compiled once per table and reused for every batch.
+ * - [finish] recreates the indexes and triggers, and then rebuilds the search index in one pass.
+ *
+ * Because SQLite DDL is transactional, rolling back the transaction will also restore anything that [begin] dropped.
+ *
+ * Only indexes that nothing reads from during the import are dropped. Notably, the attachment and call tables are left alone, since their inserts
+ * and updates look up existing rows.
+ */
+class BulkImportEngine(
+  private val db: SQLiteDatabase,
+  private val maxQueryArgs: Int = MAX_QUERY_ARGS
+) {
+
+  companion object {
+    private val TAG = Log.tag(BulkImportEngine::class.java)
+
+    private const val MAX_QUERY_ARGS = 999
+
+    private val INDEXED_TABLES = arrayOf(
+      MessageTable.TABLE_NAME,
+      ReactionTable.TABLE_NAME,
+      GroupReceiptTable.TABLE_NAME
+    )
+  }
+
+  /** Keyed by table name and row count, so that each table has at most one statement for full batches and one for single rows. */
+  private val statements: MutableMap<String, SQLiteStatement> = HashMap()
+  private val rowCounts: MutableMap<String, Long> = LinkedHashMap()
+  private val droppedIndexes: MutableList<String> = mutableListOf()
+
+  private var startTime: Long = 0
+  private var began = false
+  private var deferredSearchIndexing = false
+
+  fun begin() {
+    check(!began) { "Already began!" }
+    check(db.inTransaction()) { "Must be in a transaction!" }
+    began = true
+    startTime = System.nanoTime()
+
+    deferredSearchIndexing = SignalDatabase.messageSearch.dropTriggers()
+
+    for (table in INDEXED_TABLES) {
+      // Indexes created by the table definition (e.g. UNIQUE constraints) have no SQL, and unique indexes enforce constraints, so both are kept.
+      val indexes: List<Pair<String, String>> = db
+        .rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL", arrayOf(table))
+        .readToList { it.requireNonNullString("name") to it.requireNonNullString("sql") }
+        .filterNot { (_, sql) -> sql.trimStart().startsWith("CREATE UNIQUE", ignoreCase = true) }
+
+      for ((name, sql) in indexes) {
+        db.execSQL("DROP INDEX IF EXISTS $name")
+        droppedIndexes += sql
+      }
+    }
+
+    Log.d(TAG, "[begin] Dropped ${droppedIndexes.size} indexes and the search triggers.")
+  }
+
+  /**
+   * Inserts the [rows] into [tableName]. Only the given [columns] are written, in that order; any other values in the rows are ignored.
+   */
+  fun insert(tableName: String, columns: Array<String>, rows: List<ContentValues>) {
+    check(began) { "Must call begin() first!" }
+
+    if (rows.isEmpty()) {
+      return
+    }
+
+    val rowsPerStatement = (maxQueryArgs / columns.size).coerceAtLeast(1)
+    var position = 0
+
+    if (rows.size >= rowsPerStatement) {
+      val batchStatement = getStatement(tableName, columns, rowsPerStatement)
+      while (rows.size - position >= rowsPerStatement) {
+        execute(batchStatement, columns, rows, position, rowsPerStatement)
+        position += rowsPerStatement
+      }
+    }
+
+    if (position < rows.size) {
+      val singleStatement = getStatement(tableName, columns, 1)
+      while (position < rows.size) {
+        execute(singleStatement, columns, rows, position, 1)
+        position++
+      }
+    }
+
+    rowCounts[tableName] = (rowCounts[tableName] ?: 0) + rows.size
+  }
+
+  /**
+   * Restores everything that was dropped in [begin] and rebuilds the search index. Must be called before anything reads from the imported tables.
+   */
+  fun finish() {
+    check(began) { "Must call begin() first!" }
+
+    statements.values.forEach { it.close() }
+    statements.clear()
+
+    val insertNanos = System.nanoTime() - startTime
+
+    val indexStart = System.nanoTime()
+    droppedIndexes.forEach { db.execSQL(it) }
+    val indexNanos = System.nanoTime() - indexStart
+
+    val searchStart = System.nanoTime()
+    SignalDatabase.messageSearch.restoreTriggers(deferredSearchIndexing)
+    SignalDatabase.messageSearch.rebuildIndex()
+    val searchNanos = System.nanoTime() - searchStart
+
+    for ((table, count) in rowCounts) {
+      Log.d(TAG, "[finish] [$table] ${rate(count, insertNanos)}")
+    }
+    Log.d(TAG, "[finish] Rebuilt ${droppedIndexes.size} indexes in ${indexNanos / 1_000_000} ms and the search index in ${searchNanos / 1_000_000} ms.")
+
+    droppedIndexes.clear()
+    began = false
+  }
+
+  private fun getStatement(tableName: String, columns: Array<String>, rowCount: Int): SQLiteStatement {
+    return statements.getOrPut("$tableName:$rowCount") {
+      val placeholders = columns.joinToString(separator = ", ", prefix = "(", postfix = ")") { "?" }
+      val values = List(rowCount) { placeholders }.joinToString(separator = ", ")
+
+      db.compileStatement("INSERT INTO $tableName (${columns.joinToString(separator = ", ")}) VALUES $values")
+    }
+  }
+
+  private fun execute(statement: SQLiteStatement, columns: Array<String>, rows: List<ContentValues>, start: Int, count: Int) {
+    statement.clearBindings()
+
+    var index = 1
+    for (i in start until start + count) {
+      val row = rows[i]
+      for (column in columns) {
+        statement.bindValue(index++, row[column])
+      }
+    }
+
+    statement.executeInsert()
+  }
+
+  private fun SQLiteStatement.bindValue(index: Int, value: Any?) {
+    when (value) {
+      null -> bindNull(index)
+      is ByteArray -> bindBlob(index, value)
+      is String -> bindString(index, value)
+      is Boolean -> bindLong(index, if (value) 1 else 0)
+      is Float -> bindDouble(index, value.toDouble())
+      is Double -> bindDouble(index, value)
+      is Number -> bindLong(index, value.toLong())
+      else -> throw IllegalArgumentException("Unsupported type: ${value.javaClass}")
+    }
+  }
+
+  private fun rate(rows: Long, nanos: Long): String {
+    val seconds = nanos.coerceAtLeast(1) / 1_000_000_000.0
+    return String.format(Locale.US, "%d rows in %.2f s (%.0f rows/sec)", rows, seconds, rows / seconds)
+  }
+}
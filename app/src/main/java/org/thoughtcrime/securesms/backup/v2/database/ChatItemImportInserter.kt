@@ -64,11 +64,17 @@ import java.util.Optional
 /**
  * An object that will ingest all fo the [ChatItem]s you want to write, buffer them until hitting a specified batch size, and then batch insert them
  * for fast throughput.
+ *
+ * If a [BulkImportEngine] is provided, rows are written through its reusable statements instead, and messages are inserted with explicit ids so that
+ * nothing needs to be read back. The caller is responsible for beginning and finishing the engine.
+ *
+ * Either way, a message's id is only known once its batch is flushed, so that's when it's filled in on the rows that refer to it.
  */
 class ChatItemImportInserter(
   private val db: SQLiteDatabase,
   private val backupState: BackupState,
-  private val batchSize: Int
+  private val batchSize: Int,
+  private val bulkImportEngine: BulkImportEngine? = null
 ) {
   companion object {
     private val TAG = Log.tag(ChatItemImportInserter::class.java)
@@ -106,6 +112,8 @@ class ChatItemImportInserter(
       MessageTable.MESSAGE_EXTRAS
     )
 
+    private val MESSAGE_COLUMNS_WITH_ID = arrayOf(MessageTable.ID) + MESSAGE_COLUMNS
+
     private val REACTION_COLUMNS = arrayOf(
       ReactionTable.MESSAGE_ID,
       ReactionTable.AUTHOR_ID,
@@ -125,7 +133,6 @@ class ChatItemImportInserter(
 
   private val selfId = Recipient.self().id
   private val buffer: Buffer = Buffer()
-  private var messageId: Long = SqlUtil.getNextAutoIncrementId(db, MessageTable.TABLE_NAME)
 
   /**
    * Indicate that you want to insert the [ChatItem] into the database.
@@ -156,11 +163,11 @@ class ChatItemImportInserter(
       return
     }
 
-    buffer.messages += chatItem.toMessageInsert(fromLocalRecipientId, chatLocalRecipientId, localThreadId)
-    buffer.reactions += chatItem.toReactionContentValues(messageId)
-    buffer.groupReceipts += chatItem.toGroupReceiptContentValues(messageId, chatBackupRecipientId)
+    val messageInsert = chatItem.toMessageInsert(fromLocalRecipientId, chatLocalRecipientId, localThreadId, chatBackupRecipientId)
 
-    messageId++
+    buffer.messages += messageInsert
+    buffer.reactions += messageInsert.reactions
+    buffer.groupReceipts += messageInsert.groupReceipts
 
     if (buffer.size >= batchSize) {
       flush()
@@ -172,15 +179,17 @@ class ChatItemImportInserter(
     if (buffer.size == 0) {
       return false
     }
+
+    if (bulkImportEngine != null) {
+      flushBulk(bulkImportEngine)
+      return true
+    }
+
     buildBulkInsert(MessageTable.TABLE_NAME, MESSAGE_COLUMNS, buffer.messages).forEach {
       db.rawQuery("${it.query.where} RETURNING ${MessageTable.ID}", it.query.whereArgs).use { cursor ->
         var index = 0
         while (cursor.moveToNext()) {
-          val rowId = cursor.requireLong(MessageTable.ID)
-          val followup = it.inserts[index].followUp
-          if (followup != null) {
-            followup(rowId)
-          }
+          it.inserts[index].onInserted(cursor.requireLong(MessageTable.ID))
           index++
         }
       }
@@ -194,13 +203,30 @@ class ChatItemImportInserter(
       db.execSQL(it.where, it.whereArgs)
     }
 
-    messageId = SqlUtil.getNextAutoIncrementId(db, MessageTable.TABLE_NAME)
-
     buffer.reset()
 
     return true
   }
 
+  private fun flushBulk(engine: BulkImportEngine) {
+    // Read at every flush rather than once up front, so that messages inserted some other way in the meantime are accounted for
+    var messageId = SqlUtil.getNextAutoIncrementId(db, MessageTable.TABLE_NAME)
+    for (message in buffer.messages) {
+      message.contentValues.put(MessageTable.ID, messageId++)
+    }
+
+    engine.insert(MessageTable.TABLE_NAME, MESSAGE_COLUMNS_WITH_ID, buffer.messages.map { it.contentValues })
+
+    for (message in buffer.messages) {
+      message.onInserted(message.contentValues.getAsLong(MessageTable.ID))
+    }
+
+    engine.insert(ReactionTable.TABLE_NAME, REACTION_COLUMNS, buffer.reactions)
+    engine.insert(GroupReceiptTable.TABLE_NAME, GROUP_RECEIPT_COLUMNS, buffer.groupReceipts)
+
+    buffer.reset()
+  }
+
   private fun buildBulkInsert(tableName: String, columns: Array<String>, messageInserts: List<MessageInsert>, maxQueryArgs: Int = 999): List<BatchInsert> {
     val batchSize = maxQueryArgs / columns.size
 
@@ -210,7 +236,7 @@ class ChatItemImportInserter(
       .toList()
   }
 
-  private fun ChatItem.toMessageInsert(fromRecipientId: RecipientId, chatRecipientId: RecipientId, threadId: Long): MessageInsert {
+  private fun ChatItem.toMessageInsert(fromRecipientId: RecipientId, chatRecipientId: RecipientId, threadId: Long, chatBackupRecipientId: Long): MessageInsert {
     val contentValues = this.toMessageContentValues(fromRecipientId, chatRecipientId, threadId)
 
     var followUp: ((Long) -> Unit)? = null
@@ -255,7 +281,7 @@ class ChatItemImportInserter(
         }
       }
     }
-    return MessageInsert(contentValues, followUp)
+    return MessageInsert(contentValues, followUp, this.toReactionContentValues(), this.toGroupReceiptContentValues(chatBackupRecipientId))
   }
 
   private class BatchInsert(val inserts: List<MessageInsert>, val query: SqlUtil.Query)
@@ -315,7 +341,8 @@ class ChatItemImportInserter(
     return contentValues
   }
 
-  private fun ChatItem.toReactionContentValues(messageId: Long): List<ContentValues> {
+  /** The [ReactionTable.MESSAGE_ID] is filled in by [MessageInsert.onInserted]. */
+  private fun ChatItem.toReactionContentValues(): List<ContentValues> {
     val reactions: List<Reaction> = when {
       this.standardMessage != null -> this.standardMessage.reactions
       this.contactMessage != null -> this.contactMessage.reactions
@@ -329,7 +356,6 @@ class ChatItemImportInserter(
 
         if (authorId != null) {
           contentValuesOf(
-            ReactionTable.MESSAGE_ID to messageId,
             ReactionTable.AUTHOR_ID to authorId,
             ReactionTable.DATE_SENT to it.sentTimestamp,
             ReactionTable.DATE_RECEIVED to it.receivedTimestamp,
@@ -342,7 +368,8 @@ class ChatItemImportInserter(
       }
   }
 
-  private fun ChatItem.toGroupReceiptContentValues(messageId: Long, chatBackupRecipientId: Long): List<ContentValues> {
+  /** The [GroupReceiptTable.MMS_ID] is filled in by [MessageInsert.onInserted]. */
+  private fun ChatItem.toGroupReceiptContentValues(chatBackupRecipientId: Long): List<ContentValues> {
     if (this.outgoing == null) {
       return emptyList()
     }
@@ -357,7 +384,6 @@ class ChatItemImportInserter(
 
       if (recipientId != null) {
         contentValuesOf(
-          GroupReceiptTable.MMS_ID to messageId,
           GroupReceiptTable.RECIPIENT_ID to recipientId.serialize(),
           GroupReceiptTable.STATUS to sendStatus.deliveryStatus.toLocalSendStatus(),
           GroupReceiptTable.TIMESTAMP to sendStatus.lastStatusUpdateTimestamp,
@@ -646,7 +672,19 @@ class ChatItemImportInserter(
       ?: if (this.contentType == null) null else PointerAttachment.forPointer(quotedAttachment = DataMessage.Quote.QuotedAttachment(contentType = this.contentType, fileName = this.fileName, thumbnail = null)).orNull()
   }
 
-  private class MessageInsert(val contentValues: ContentValues, val followUp: ((Long) -> Unit)?)
+  private class MessageInsert(
+    val contentValues: ContentValues,
+    val followUp: ((Long) -> Unit)?,
+    val reactions: List<ContentValues>,
+    val groupReceipts: List<ContentValues>
+  ) {
+    /** Called once the message has been written, with the id it was given. */
+    fun onInserted(messageId: Long) {
+      reactions.forEach { it.put(ReactionTable.MESSAGE_ID, messageId) }
+      groupReceipts.forEach { it.put(GroupReceiptTable.MMS_ID, messageId) }
+      followUp?.invoke(messageId)
+    }
+  }
 
   private class Buffer(
     val messages: MutableList<MessageInsert> = mutableListOf(),
@@ -67,8 +67,16 @@ fun MessageTable.getMessagesForBackup(backupTime: Long, archiveMedia: Boolean):
   return ChatItemExportIterator(cursor, 100, archiveMedia)
 }
 
-fun MessageTable.createChatItemInserter(backupState: BackupState): ChatItemImportInserter {
-  return ChatItemImportInserter(writableDatabase, backupState, 100)
+fun MessageTable.createChatItemInserter(backupState: BackupState, bulkImportEngine: BulkImportEngine? = null): ChatItemImportInserter {
+  return if (bulkImportEngine != null) {
+    ChatItemImportInserter(writableDatabase, backupState, 2_000, bulkImportEngine)
+  } else {
+    ChatItemImportInserter(writableDatabase, backupState, 100)
+  }
+}
+
+fun MessageTable.createBulkImportEngine(): BulkImportEngine {
+  return BulkImportEngine(writableDatabase)
 }
 
 fun MessageTable.clearAllDataForBackupRestore() {
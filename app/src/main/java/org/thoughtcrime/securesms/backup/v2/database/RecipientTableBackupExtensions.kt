@@ -47,7 +47,6 @@ import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.database.model.databaseprotos.RecipientExtras
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.groups.GroupId
-import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.phonenumbers.PhoneNumberFormatter
 import org.thoughtcrime.securesms.profiles.ProfileName
 import org.thoughtcrime.securesms.recipients.Recipient
@@ -140,7 +139,7 @@ fun RecipientTable.restoreRecipientFromBackup(recipient: BackupRecipient, backup
     recipient.group != null -> restoreGroupFromBackup(recipient.group)
     recipient.distributionList != null -> SignalDatabase.distributionLists.restoreFromBackup(recipient.distributionList, backupState)
     recipient.self != null -> Recipient.self().id
-    recipient.releaseNotes != null -> restoreReleaseNotes()
+    recipient.releaseNotes != null -> restoreReleaseNotes(backupState)
     else -> {
       Log.w(TAG, "Unrecognized recipient type!")
       null
@@ -218,9 +217,9 @@ private fun RecipientTable.restoreContactFromBackup(contact: Contact): Recipient
   return id
 }
 
-private fun RecipientTable.restoreReleaseNotes(): RecipientId {
+private fun RecipientTable.restoreReleaseNotes(backupState: BackupState): RecipientId {
   val releaseChannelId: RecipientId = insertReleaseChannelRecipient()
-  SignalStore.releaseChannelValues().setReleaseChannelRecipientId(releaseChannelId)
+  backupState.releaseChannelRecipientId = releaseChannelId
 
   setProfileName(releaseChannelId, ProfileName.asGiven("Signal"))
   setMuted(releaseChannelId, Long.MAX_VALUE)
@@ -8,6 +8,7 @@ package org.thoughtcrime.securesms.backup.v2.processor
 import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.backup.v2.BackupState
 import org.thoughtcrime.securesms.backup.v2.ExportState
+import org.thoughtcrime.securesms.backup.v2.database.BulkImportEngine
 import org.thoughtcrime.securesms.backup.v2.database.ChatItemImportInserter
 import org.thoughtcrime.securesms.backup.v2.database.createChatItemInserter
 import org.thoughtcrime.securesms.backup.v2.database.getMessagesForBackup
@@ -28,7 +29,7 @@ object ChatItemBackupProcessor {
     }
   }
 
-  fun beginImport(backupState: BackupState): ChatItemImportInserter {
-    return SignalDatabase.messages.createChatItemInserter(backupState)
+  fun beginImport(backupState: BackupState, bulkImportEngine: BulkImportEngine? = null): ChatItemImportInserter {
+    return SignalDatabase.messages.createChatItemInserter(backupState, bulkImportEngine)
   }
 }
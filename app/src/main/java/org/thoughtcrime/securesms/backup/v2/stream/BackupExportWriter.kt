@@ -11,4 +11,9 @@ import org.thoughtcrime.securesms.backup.v2.proto.Frame
 interface BackupExportWriter : AutoCloseable {
   fun write(header: BackupInfo)
   fun write(frame: Frame)
+
+  /**
+   * Writes a frame that has already been serialized with [Frame.encode]. The result is identical to calling [write] with the original frame.
+   */
+  fun writeEncoded(frameBytes: ByteArray)
 }
@@ -5,6 +5,7 @@
 
 package org.thoughtcrime.securesms.backup.v2.stream
 
+import org.signal.core.util.drain
 import org.signal.core.util.readFully
 import org.signal.core.util.readNBytesOrThrow
 import org.signal.core.util.readVarInt32
@@ -28,24 +29,50 @@ import javax.crypto.spec.SecretKeySpec
  * Provides the ability to read backup frames in a streaming fashion from a target [InputStream].
  * As it's being read, it will be both decrypted and uncompressed. Specifically, the data is decrypted,
  * that decrypted data is gunzipped, then that data is read as frames.
+ *
+ * By default, the MAC is validated with a separate pass over the data before any frames are read. If [validateMacUpfront] is false,
+ * the MAC is instead calculated while the frames are being read, and is checked once the last frame has been read. In that case an
+ * [IOException] is thrown from [next] if the MAC doesn't match, so callers must treat everything they've read as unverified until
+ * iteration has finished, e.g. by keeping it in an uncommitted transaction.
  */
-class EncryptedBackupReader(
+class EncryptedBackupReader @JvmOverloads constructor(
   key: BackupKey,
   aci: ACI,
-  streamLength: Long,
-  dataStream: () -> InputStream
+  private val streamLength: Long,
+  dataStream: () -> InputStream,
+  private val validateMacUpfront: Boolean = true
 ) : BackupImportReader {
 
   val backupInfo: BackupInfo?
   var next: Frame? = null
   val stream: InputStream
 
+  private val rawStream: InputStream
+  private val macStream: MacInputStream?
+
   init {
     val keyMaterial = key.deriveBackupSecrets(aci)
 
-    validateMac(keyMaterial.macKey, streamLength, dataStream())
+    val inputStream: InputStream
+    if (validateMacUpfront) {
+      validateMac(keyMaterial.macKey, streamLength, dataStream())
+
+      rawStream = dataStream()
+      macStream = null
+      inputStream = rawStream
+    } else {
+      val mac = Mac.getInstance("HmacSHA256").apply {
+        init(SecretKeySpec(keyMaterial.macKey, "HmacSHA256"))
+      }
+
+      rawStream = dataStream()
+      macStream = MacInputStream(
+        wrapped = TruncatingInputStream(rawStream, maxBytes = streamLength - MAC_SIZE),
+        mac = mac
+      )
+      inputStream = macStream
+    }
 
-    val inputStream = dataStream()
     val iv = inputStream.readNBytesOrThrow(16)
 
     val cipher = Cipher.getInstance("AES/CBC/PKCS5Padding").apply {
@@ -56,13 +83,13 @@ class EncryptedBackupReader(
       CipherInputStream(
         TruncatingInputStream(
           wrapped = inputStream,
-          maxBytes = streamLength - MAC_SIZE
+          maxBytes = streamLength - MAC_SIZE - iv.size
         ),
         cipher
       )
     )
     backupInfo = readHeader()
-    next = read()
+    next = readAndVerify()
   }
 
   override fun getHeader(): BackupInfo? {
@@ -75,7 +102,7 @@ class EncryptedBackupReader(
 
   override fun next(): Frame {
     next?.let { out ->
-      next = read()
+      next = readAndVerify()
       return out
     } ?: throw NoSuchElementException()
   }
@@ -102,6 +129,27 @@ class EncryptedBackupReader(
     }
   }
 
+  /**
+   * Reads the next frame. If there are no frames left and the MAC is being calculated as we read, this is where it gets checked.
+   */
+  private fun readAndVerify(): Frame? {
+    val frame = read()
+
+    if (frame == null && macStream != null) {
+      // The gzip stream may end before the padding does, so make sure the MAC covers everything up to the MAC itself.
+      macStream.drain()
+
+      val calculatedMac = macStream.mac.doFinal()
+      val expectedMac = rawStream.readNBytesOrThrow(MAC_SIZE)
+
+      if (!calculatedMac.contentEquals(expectedMac)) {
+        throw IOException("Invalid MAC!")
+      }
+    }
+
+    return frame
+  }
+
   override fun close() {
     stream.close()
   }
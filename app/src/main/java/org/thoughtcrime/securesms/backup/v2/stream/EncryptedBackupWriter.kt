@@ -67,8 +67,11 @@ class EncryptedBackupWriter(
 
   @Throws(IOException::class)
   override fun write(frame: Frame) {
-    val frameBytes: ByteArray = frame.encode()
+    writeEncoded(frame.encode())
+  }
 
+  @Throws(IOException::class)
+  override fun writeEncoded(frameBytes: ByteArray) {
     mainStream.writeVarInt32(frameBytes.size)
     mainStream.write(frameBytes)
   }
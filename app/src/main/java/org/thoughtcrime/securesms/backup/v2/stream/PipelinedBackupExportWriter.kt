@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
+import org.thoughtcrime.securesms.backup.v2.proto.Frame
+import java.io.IOException
+import java.util.Locale
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Wraps another [BackupExportWriter] and splits the work of writing a backup into three stages that run concurrently:
+ *
+ * 1. The caller, which reads from the database and builds the frames. This stays on the calling thread, since that's the thread that holds the export transaction.
+ * 2. A small pool that serializes batches of frames with [Frame.encode].
+ * 3. A single writer thread that hands the serialized frames to the [delegate] in their original order, which is where compression and encryption happen.
+ *
+ * Only serialization, compression and encryption move off the calling thread. Building the frames from cursors, including the per-batch lookups in
+ * [org.thoughtcrime.securesms.backup.v2.database.ChatItemExportIterator], still happens on the caller, so that's the part this can't speed up.
+ *
+ * The queue between the stages is bounded, so a slow writer will eventually block the caller rather than buffering the whole backup in memory.
+ * Because frames are written to the [delegate] in the same order with the same bytes, the output is identical to writing to the [delegate] directly.
+ */
+class PipelinedBackupExportWriter @JvmOverloads constructor(
+  private val delegate: BackupExportWriter,
+  encoderThreads: Int = DEFAULT_ENCODER_THREADS,
+  private val batchSize: Int = DEFAULT_BATCH_SIZE,
+  maxPendingBatches: Int = DEFAULT_MAX_PENDING_BATCHES
+) : BackupExportWriter {
+
+  companion object {
+    private val TAG = Log.tag(PipelinedBackupExportWriter::class.java)
+
+    const val DEFAULT_ENCODER_THREADS = 2
+    const val DEFAULT_BATCH_SIZE = 250
+    const val DEFAULT_MAX_PENDING_BATCHES = 16
+
+    private val END_OF_STREAM: Future<List<ByteArray>> = CompletableFuture.completedFuture(emptyList())
+  }
+
+  private val encoder: ExecutorService = Executors.newFixedThreadPool(encoderThreads) { Thread(it, "backup-export-encoder") }
+  private val pendingBatches: BlockingQueue<Future<List<ByteArray>>> = ArrayBlockingQueue(maxPendingBatches)
+  private val writerThread: Thread = Thread(::runWriter, "backup-export-writer")
+
+  private var currentBatch: MutableList<Frame> = ArrayList(batchSize)
+
+  @Volatile
+  private var writerError: Throwable? = null
+
+  private val startTime: Long = System.nanoTime()
+  private val producerBlockedNanos = AtomicLong()
+  private val encoderNanos = AtomicLong()
+  private val writerNanos = AtomicLong()
+  private val frameCount = AtomicLong()
+  private val byteCount = AtomicLong()
+
+  init {
+    writerThread.start()
+  }
+
+  @Throws(IOException::class)
+  override fun write(header: BackupInfo) {
+    submitCurrentBatch()
+    enqueue(CompletableFuture.completedFuture(listOf(header.encode())))
+  }
+
+  @Throws(IOException::class)
+  override fun write(frame: Frame) {
+    currentBatch.add(frame)
+
+    if (currentBatch.size >= batchSize) {
+      submitCurrentBatch()
+    }
+  }
+
+  @Throws(IOException::class)
+  override fun writeEncoded(frameBytes: ByteArray) {
+    submitCurrentBatch()
+    enqueue(CompletableFuture.completedFuture(listOf(frameBytes)))
+  }
+
+  /**
+   * Waits for everything to be written and closes the [delegate]. The [delegate] is closed even if writing failed, in which case the original failure is
+   * thrown afterwards, with any failure to close attached as suppressed.
+   */
+  @Throws(IOException::class)
+  override fun close() {
+    var failure: Throwable? = null
+
+    try {
+      submitCurrentBatch()
+      enqueue(END_OF_STREAM)
+      writerThread.join()
+    } catch (e: Throwable) {
+      failure = e
+    } finally {
+      encoder.shutdownNow()
+    }
+
+    if (writerThread.isAlive) {
+      writerThread.interrupt()
+      joinWriterUninterruptibly()
+    }
+
+    val error: IOException? = (failure ?: writerError)?.asIOException()
+
+    try {
+      delegate.close()
+    } catch (e: Throwable) {
+      if (error == null) {
+        throw e
+      }
+      error.addSuppressed(e)
+    }
+
+    if (error != null) {
+      throw error
+    }
+
+    logStats()
+  }
+
+  private fun submitCurrentBatch() {
+    if (currentBatch.isEmpty()) {
+      return
+    }
+
+    val batch: List<Frame> = currentBatch
+    currentBatch = ArrayList(batchSize)
+
+    enqueue(
+      encoder.submit<List<ByteArray>> {
+        val start = System.nanoTime()
+        val encoded = batch.map { it.encode() }
+        encoderNanos.addAndGet(System.nanoTime() - start)
+        encoded
+      }
+    )
+  }
+
+  /**
+   * Adds a batch to the writer's queue, blocking while the queue is full. If the writer thread has failed, its error is rethrown here instead.
+   */
+  @Throws(IOException::class)
+  private fun enqueue(batch: Future<List<ByteArray>>) {
+    val start = System.nanoTime()
+
+    try {
+      while (!pendingBatches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+        writerError?.let { throw it.asIOException() }
+      }
+    } catch (e: InterruptedException) {
+      throw IOException(e)
+    } finally {
+      producerBlockedNanos.addAndGet(System.nanoTime() - start)
+    }
+
+    writerError?.let { throw it.asIOException() }
+  }
+
+  private fun runWriter() {
+    try {
+      while (true) {
+        val batch: Future<List<ByteArray>> = pendingBatches.take()
+        if (batch === END_OF_STREAM) {
+          break
+        }
+
+        val frames: List<ByteArray> = try {
+          batch.get()
+        } catch (e: ExecutionException) {
+          throw e.cause ?: e
+        }
+
+        val start = System.nanoTime()
+        for (frameBytes in frames) {
+          delegate.writeEncoded(frameBytes)
+          byteCount.addAndGet(frameBytes.size.toLong())
+        }
+        writerNanos.addAndGet(System.nanoTime() - start)
+        frameCount.addAndGet(frames.size.toLong())
+      }
+    } catch (e: Throwable) {
+      Log.w(TAG, "Writer failed!", e)
+      writerError = e
+      pendingBatches.clear()
+    }
+  }
+
+  /**
+   * Used when closing after a failure, so that the [delegate] is never closed while the writer thread might still be using it.
+   */
+  private fun joinWriterUninterruptibly() {
+    var interrupted = false
+
+    while (writerThread.isAlive) {
+      try {
+        writerThread.join()
+      } catch (e: InterruptedException) {
+        interrupted = true
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt()
+    }
+  }
+
+  private fun logStats() {
+    val totalNanos = System.nanoTime() - startTime
+    val producerNanos = totalNanos - producerBlockedNanos.get()
+
+    Log.d(TAG, "[Produce] ${throughput(frameCount.get(), byteCount.get(), producerNanos)}")
+    Log.d(TAG, "[Encode] ${throughput(frameCount.get(), byteCount.get(), encoderNanos.get())}")
+    Log.d(TAG, "[Compress+Encrypt] ${throughput(frameCount.get(), byteCount.get(), writerNanos.get())}")
+    Log.d(TAG, "[Total] ${throughput(frameCount.get(), byteCount.get(), totalNanos)}")
+  }
+
+  private fun throughput(frames: Long, bytes: Long, nanos: Long): String {
+    val seconds = nanos.coerceAtLeast(1) / 1_000_000_000.0
+    return String.format(Locale.US, "%d frames, %d bytes in %.2f s (%.0f frames/sec, %.2f MB/sec)", frames, bytes, seconds, frames / seconds, bytes / seconds / (1024 * 1024))
+  }
+
+  private fun Throwable.asIOException(): IOException {
+    return this as? IOException ?: IOException(this)
+  }
+}
@@ -26,8 +26,11 @@ class PlainTextBackupWriter(private val outputStream: OutputStream) : BackupExpo
 
   @Throws(IOException::class)
   override fun write(frame: Frame) {
-    val frameBytes: ByteArray = frame.encode()
+    writeEncoded(frame.encode())
+  }
 
+  @Throws(IOException::class)
+  override fun writeEncoded(frameBytes: ByteArray) {
     outputStream.writeVarInt32(frameBytes.size)
     outputStream.write(frameBytes)
   }
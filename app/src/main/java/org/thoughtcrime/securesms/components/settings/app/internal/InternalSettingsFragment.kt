@@ -19,6 +19,7 @@ import org.signal.core.util.logging.Log
 import org.signal.core.util.readToList
 import org.signal.core.util.requireLong
 import org.signal.core.util.requireString
+import org.signal.paging.PagingMetrics
 import org.signal.ringrtc.CallManager
 import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.R
@@ -203,6 +204,49 @@ class InternalSettingsFragment : DSLSettingsFragment(R.string.preferences__inter
         }
       )
 
+      clickPref(
+        title = DSLSettingsText.from("Recipient cache stats"),
+        summary = DSLSettingsText.from("Hit rate and resolve batch sizes since the app started or the stats were reset."),
+        onClick = {
+          val recipientCache = ApplicationDependencies.getRecipientCache()
+
+          MaterialAlertDialogBuilder(requireContext())
+            .setTitle("Recipient cache")
+            .setMessage(recipientCache.stats.toString())
+            .setPositiveButton(android.R.string.ok, null)
+            .setNeutralButton("Reset") { _, _ -> recipientCache.resetStats() }
+            .show()
+        }
+      )
+
+      clickPref(
+        title = DSLSettingsText.from("Paging stats"),
+        summary = DSLSettingsText.from("How long placeholders were visible, and how much read-ahead was done, since the app started or the stats were reset."),
+        onClick = {
+          MaterialAlertDialogBuilder(requireContext())
+            .setTitle("Paging")
+            .setMessage(PagingMetrics.getSnapshot().toString())
+            .setPositiveButton(android.R.string.ok, null)
+            .setNeutralButton("Reset") { _, _ -> PagingMetrics.reset() }
+            .show()
+        }
+      )
+
+      clickPref(
+        title = DSLSettingsText.from("Database observer stats"),
+        summary = DSLSettingsText.from("How many notifications were merged before reaching observers, since the app started or the stats were reset."),
+        onClick = {
+          val databaseObserver = ApplicationDependencies.getDatabaseObserver()
+
+          MaterialAlertDialogBuilder(requireContext())
+            .setTitle("Database observer")
+            .setMessage(databaseObserver.stats.toString())
+            .setPositiveButton(android.R.string.ok, null)
+            .setNeutralButton("Reset") { _, _ -> databaseObserver.resetStats() }
+            .show()
+        }
+      )
+
       clickPref(
         title = DSLSettingsText.from("Delete all prekeys"),
         summary = DSLSettingsText.from("Deletes all signed/last-resort/one-time prekeys for both ACI and PNI accounts. WILL cause problems."),
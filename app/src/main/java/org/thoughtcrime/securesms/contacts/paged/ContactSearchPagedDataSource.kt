@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.contacts.paged
 
 import android.database.Cursor
+import org.signal.core.util.logging.Log
 import org.signal.core.util.requireLong
 import org.signal.paging.PagedDataSource
 import org.thoughtcrime.securesms.contacts.ContactRepository
@@ -18,7 +19,7 @@ import org.thoughtcrime.securesms.phonenumbers.NumberUtil
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.search.MessageResult
-import org.thoughtcrime.securesms.search.MessageSearchResult
+import org.thoughtcrime.securesms.search.MessageSearchPagedDataSource
 import org.thoughtcrime.securesms.search.SearchRepository
 import org.thoughtcrime.securesms.search.ThreadSearchResult
 import org.thoughtcrime.securesms.util.UsernameUtil
@@ -26,16 +27,25 @@ import java.util.concurrent.TimeUnit
 
 /**
  * Manages the querying of contact information based off a configuration.
+ *
+ * [onMessageResultsChanged] is called the first time a message result turns out to have been deleted, so that the data can be invalidated and the
+ * search redone without it.
  */
 class ContactSearchPagedDataSource(
   private val contactConfiguration: ContactSearchConfiguration,
   private val contactSearchPagedDataSourceRepository: ContactSearchPagedDataSourceRepository,
   private val arbitraryRepository: ArbitraryRepository? = null,
-  private val searchRepository: SearchRepository? = null
+  private val searchRepository: SearchRepository? = null,
+  private val onMessageResultsChanged: () -> Unit = {}
 ) : PagedDataSource<ContactSearchKey, ContactSearchData> {
 
   companion object {
+    private val TAG = Log.tag(ContactSearchPagedDataSource::class.java)
+
     private val ACTIVE_STORY_CUTOFF_DURATION = TimeUnit.DAYS.toMillis(1)
+
+    /** How many message results are loaded at a time. Building a result's snippet is the expensive part of a message search. */
+    private const val MESSAGE_PAGE_SIZE = 20
   }
 
   private val latestStorySends: List<StorySend> = contactSearchPagedDataSourceRepository.getLatestStorySends(ACTIVE_STORY_CUTOFF_DURATION)
@@ -43,6 +53,8 @@ class ContactSearchPagedDataSource(
   private val activeStoryCount = latestStorySends.size
 
   private var searchCache = SearchCache()
+  private var messageSearch: MessageSearchIterator? = null
+  private var messageResultsChanged = false
   private var searchSize = -1
   private var displayEmptyState: Boolean = false
 
@@ -52,6 +64,10 @@ class ContactSearchPagedDataSource(
    * they are added to the empty state configuration.
    */
   override fun size(): Int {
+    // Size is read once per invalidation, so this is when the message search starts over
+    messageSearch?.cancel()
+    messageSearch = null
+
     val (arbitrarySections, nonArbitrarySections) = contactConfiguration.sections.partition {
       it is ContactSearchConfiguration.Section.Arbitrary
     }
@@ -88,20 +104,39 @@ class ContactSearchPagedDataSource(
     val indexOfStartSection = sections.indexOf(startIndex.category)
     val indexOfEndSection = sections.indexOf(endIndex.category)
 
-    val results: List<List<ContactSearchData>> = sections.mapIndexed { index, section ->
-      if (index in indexOfStartSection..indexOfEndSection) {
-        getSectionData(
-          section = section,
-          query = contactConfiguration.query,
-          startIndex = if (index == indexOfStartSection) startIndex.offset else 0,
-          endIndex = if (index == indexOfEndSection) endIndex.offset else sizeMap[section] ?: error("Unknown section")
-        )
-      } else {
-        emptyList()
+    val results = mutableListOf<ContactSearchData>()
+
+    for (index in indexOfStartSection..indexOfEndSection) {
+      val section = sections[index]
+      val sectionStart = if (index == indexOfStartSection) startIndex.offset else 0
+      val sectionEnd = if (index == indexOfEndSection) endIndex.offset else sizeMap[section] ?: error("Unknown section")
+
+      val sectionData = getSectionData(
+        section = section,
+        query = contactConfiguration.query,
+        startIndex = sectionStart,
+        endIndex = sectionEnd
+      )
+
+      results += sectionData
+
+      if (section is ContactSearchConfiguration.Section.Messages && sectionData.size < sectionEnd - sectionStart) {
+        // A message was deleted after the search found it. Anything after it would be out of place, so it's left unloaded until the search is redone.
+        onMessageDeleted()
+        break
       }
     }
 
-    return results.flatten().toMutableList()
+    return results
+  }
+
+  private fun onMessageDeleted() {
+    if (!messageResultsChanged) {
+      messageResultsChanged = true
+      onMessageResultsChanged()
+    } else {
+      Log.w(TAG, "Message results are still missing messages after searching again.")
+    }
   }
 
   private fun findIndex(sizeMap: Map<ContactSearchConfiguration.Section, Int>, target: Int): Index {
@@ -119,6 +154,13 @@ class ContactSearchPagedDataSource(
 
   data class Index(val category: ContactSearchConfiguration.Section, val offset: Int)
 
+  /**
+   * Stops any message search that is still running against the database. Call this once the data source has been replaced.
+   */
+  fun cancel() {
+    messageSearch?.cancel()
+  }
+
   override fun load(key: ContactSearchKey?): ContactSearchData? {
     throw UnsupportedOperationException()
   }
@@ -440,15 +482,11 @@ class ContactSearchPagedDataSource(
   private fun getMessageData(query: String?): ContactSearchIterator<MessageResult> {
     check(searchRepository != null)
 
-    if (searchCache.messageSearchResult == null && query != null) {
-      searchCache = searchCache.copy(messageSearchResult = searchRepository.queryMessagesSync(query))
+    if (query == null) {
+      return ListSearchIterator(emptyList())
     }
 
-    return if (query != null) {
-      ListSearchIterator(searchCache.messageSearchResult!!.results)
-    } else {
-      ListSearchIterator(emptyList())
-    }
+    return messageSearch ?: MessageSearchIterator(MessageSearchPagedDataSource(searchRepository, query)).also { messageSearch = it }
   }
 
   private fun getMessageContactData(section: ContactSearchConfiguration.Section.Messages, query: String?, startIndex: Int, endIndex: Int): List<ContactSearchData> {
@@ -511,7 +549,6 @@ class ContactSearchPagedDataSource(
    * Caches search results of particularly intensive queries.
    */
   private data class SearchCache(
-    val messageSearchResult: MessageSearchResult? = null,
     val threadSearchResult: ThreadSearchResult? = null
   )
 
@@ -550,4 +587,40 @@ class ContactSearchPagedDataSource(
 
     override fun close() = Unit
   }
+
+  /**
+   * Reads message results a page at a time from a [MessageSearchPagedDataSource], so only the results that are shown have to be loaded. Pages are kept
+   * once loaded, since this is reused for every load until the data source is invalidated. A page that stops short at a deleted message throws
+   * [NoSuchElementException] for the results from there on.
+   */
+  private class MessageSearchIterator(private val dataSource: MessageSearchPagedDataSource) : ContactSearchIterator<MessageResult> {
+
+    private val pages: MutableMap<Int, List<MessageResult>> = HashMap()
+    private var position = -1
+
+    fun cancel() {
+      dataSource.cancel()
+    }
+
+    override fun moveToPosition(n: Int) {
+      position = n
+    }
+
+    override fun getCount(): Int = dataSource.size()
+
+    override fun hasNext(): Boolean = position < getCount() - 1
+
+    override fun next(): MessageResult {
+      position++
+
+      val pageIndex = position / MESSAGE_PAGE_SIZE
+      val page = pages.getOrPut(pageIndex) {
+        dataSource.load(pageIndex * MESSAGE_PAGE_SIZE, MESSAGE_PAGE_SIZE, getCount()) { false }
+      }
+
+      return page.getOrNull(position % MESSAGE_PAGE_SIZE) ?: throw NoSuchElementException()
+    }
+
+    override fun close() = Unit
+  }
 }
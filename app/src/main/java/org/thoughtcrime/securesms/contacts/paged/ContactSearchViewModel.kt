@@ -56,8 +56,11 @@ class ContactSearchViewModel(
   val errorEventsStream: Observable<ContactSearchError> = errorEvents
 
   private var selectionSize = 0
+  private var pagedDataSource: ContactSearchPagedDataSource? = null
+
   override fun onCleared() {
     disposables.clear()
+    pagedDataSource?.cancel()
   }
 
   fun getSelectedMembersSize(): Int {
@@ -68,8 +71,11 @@ class ContactSearchViewModel(
       contactSearchConfiguration,
       arbitraryRepository = arbitraryRepository,
       searchRepository = searchRepository,
-      contactSearchPagedDataSourceRepository = contactSearchPagedDataSourceRepository
+      contactSearchPagedDataSourceRepository = contactSearchPagedDataSourceRepository,
+      onMessageResultsChanged = this::refresh
     )
+    this.pagedDataSource?.cancel()
+    this.pagedDataSource = pagedDataSource
     pagedData.value = PagedData.createForLiveData(pagedDataSource, pagingConfig)
   }
 
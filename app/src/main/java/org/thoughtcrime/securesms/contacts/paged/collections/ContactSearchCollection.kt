@@ -65,7 +65,14 @@ open class ContactSearchCollection<ContactRecord>(
 
     for (i in (start + startOffset) until (end - endOffset)) {
       val correctedIndex = if (section.includeHeader) i - 1 else i
-      results.add(getItemAtCorrectedIndex(correctedIndex))
+      val item = try {
+        getItemAtCorrectedIndex(correctedIndex)
+      } catch (e: NoSuchElementException) {
+        // The record is gone, and the rows after it would be out of place, so the sublist stops short here
+        return results
+      }
+
+      results.add(item)
     }
 
     if (expand != null) {
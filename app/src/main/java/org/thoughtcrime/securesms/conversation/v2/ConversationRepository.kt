@@ -112,6 +112,9 @@ class ConversationRepository(
 
   companion object {
     private val TAG = Log.tag(ConversationRepository::class.java)
+
+    /** Long enough to catch a burst of receipts or reactions, short enough that nobody will notice the delay. */
+    private const val UPDATE_COALESCING_WINDOW_MS = 25L
   }
 
   private val applicationContext = localContext.applicationContext
@@ -148,6 +151,9 @@ class ConversationRepository(
       val config = PagingConfig.Builder().setPageSize(25)
         .setBufferPages(2)
         .setStartIndex(max(metadata.getStartPosition(), 0))
+        .setUpdateCoalescingWindowMs(UPDATE_COALESCING_WINDOW_MS)
+        .setMaxReadAheadPages(4)
+        .setMaxConcurrentLoads(2)
         .build()
 
       ConversationThreadState(
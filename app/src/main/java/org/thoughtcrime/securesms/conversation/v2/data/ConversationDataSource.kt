@@ -60,6 +60,7 @@ class ConversationDataSource(
   companion object {
     private val TAG = Log.tag(ConversationDataSource::class.java)
     private const val THREAD_HEADER_COUNT = 1
+    private const val BULK_LOAD_CHUNK_SIZE = 500
   }
 
   init {
@@ -208,6 +209,59 @@ class ConversationDataSource(
     }
   }
 
+  override fun load(keys: Collection<ConversationElementKey>): Map<ConversationElementKey, ConversationElement> {
+    val stopwatch = Stopwatch(title = "load(${keys.size} keys), thread $threadId", decimalPlaces = 2)
+    val results: MutableMap<ConversationElementKey, ConversationElement> = HashMap(keys.size)
+
+    val messageIds: List<Long> = keys.mapNotNull { key ->
+      when (key) {
+        is MessageBackedKey -> key.id
+        is ThreadHeaderKey -> {
+          results[key] = loadThreadHeader()
+          null
+        }
+      }
+    }
+
+    if (messageIds.isEmpty()) {
+      return results
+    }
+
+    var records: List<MessageRecord> = messageIds
+      .chunked(BULK_LOAD_CHUNK_SIZE)
+      .flatMap { chunk -> SignalDatabase.messages.getMessages(chunk).use { reader -> reader.toList() } }
+      .filterNot { record ->
+        val mmsRecord = record as? MmsMessageRecord
+        mmsRecord?.parentStoryId?.isGroupReply() == true || (mmsRecord?.scheduledDate ?: -1L) != -1L
+      }
+
+    stopwatch.split("messages")
+
+    val extraData = MessageDataFetcher.fetch(records)
+    stopwatch.split("extra-data")
+
+    records = MessageDataFetcher.updateModelsWithData(records, extraData)
+    stopwatch.split("models")
+
+    for (record in records) {
+      results[MessageBackedKey(record.id)] = ConversationMessageFactory.createWithUnresolvedData(
+        localContext,
+        record,
+        record.getDisplayBody(localContext),
+        extraData.mentionsById[record.id],
+        extraData.hasBeenQuoted.contains(record.id),
+        threadRecipient
+      ).toMappingModel()
+    }
+
+    stopwatch.split("conversion")
+
+    val log = stopwatch.stopAndGetLogString()
+    Log.d(TAG, "$log || ${extraData.timeLog}")
+
+    return results
+  }
+
   override fun getKey(conversationMessage: ConversationElement): ConversationElementKey {
     return when (conversationMessage) {
       is ConversationMessageElement -> MessageBackedKey(conversationMessage.conversationMessage.messageRecord.id)
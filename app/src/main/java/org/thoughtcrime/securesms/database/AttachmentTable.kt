@@ -86,6 +86,7 @@ import org.thoughtcrime.securesms.util.JsonUtils.SaneJSONObject
 import org.thoughtcrime.securesms.util.MediaUtil
 import org.thoughtcrime.securesms.util.StorageUtil
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource
+import org.whispersystems.signalservice.internal.push.SegmentedDownload
 import org.whispersystems.signalservice.internal.util.JsonUtil
 import java.io.File
 import java.io.FileNotFoundException
@@ -728,11 +729,27 @@ class AttachmentTable(
 
   @Throws(MmsException::class)
   fun setTransferProgressPermanentFailure(attachmentId: AttachmentId, mmsId: Long) {
-    writableDatabase
-      .update(TABLE_NAME)
-      .values(TRANSFER_STATE to TRANSFER_PROGRESS_PERMANENT_FAILURE)
-      .where("$ID = ?", attachmentId.id)
-      .run()
+    val transferFiles: List<File> = writableDatabase.withinTransaction { db ->
+      val files = listOfNotNull(getTransferFile(db, attachmentId), getArchiveTransferFile(db, attachmentId))
+
+      db.update(TABLE_NAME)
+        .values(
+          TRANSFER_STATE to TRANSFER_PROGRESS_PERMANENT_FAILURE,
+          TRANSFER_FILE to null,
+          ARCHIVE_TRANSFER_FILE to null
+        )
+        .where("$ID = ?", attachmentId.id)
+        .run()
+
+      files
+    }
+
+    // A partial download can't be trusted once it's failed for good, so a retry has to start over
+    for (transferFile in transferFiles) {
+      if (!SegmentedDownload.deletePartialDownload(transferFile)) {
+        Log.w(TAG, "Unable to delete transfer file.")
+      }
+    }
 
     notifyConversationListeners(messages.getThreadIdForMessage(mmsId))
   }
@@ -815,7 +832,7 @@ class AttachmentTable(
     }
 
     if (transferFile != null) {
-      if (!transferFile.delete()) {
+      if (!SegmentedDownload.deletePartialDownload(transferFile)) {
         Log.w(TAG, "Unable to delete transfer file.")
       }
     }
@@ -1491,10 +1508,12 @@ class AttachmentTable(
    */
   @Throws(MmsException::class, IllegalStateException::class)
   private fun writeToDataFile(destination: File, inputStream: InputStream, transformProperties: TransformProperties): DataFileWriteResult {
+    var tempFile: File? = null
+
     return try {
       // Sometimes the destination is a file that's already in use, sometimes it's not.
       // To avoid writing to a file while it's in-use, we write to a temp file and then rename it to the destination file at the end.
-      val tempFile = newDataFile(context)
+      tempFile = newDataFile(context)
       val messageDigest = MessageDigest.getInstance("SHA-256")
       val digestInputStream = DigestInputStream(inputStream, messageDigest)
 
@@ -1519,6 +1538,8 @@ class AttachmentTable(
         transformProperties = transformProperties
       )
     } catch (e: IOException) {
+      // Downloads are only authenticated once they've been read to the end, so nothing from a failed read can be kept.
+      tempFile?.delete()
       throw MmsException(e)
     } catch (e: NoSuchAlgorithmException) {
       throw MmsException(e)
@@ -1,11 +1,14 @@
 package org.thoughtcrime.securesms.database;
 
 import android.app.Application;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -13,19 +16,30 @@ import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.service.webrtc.links.CallLinkRoomId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link DatabaseTable}. We should move to this over time.
+ *
+ * Notifications that arrive in a burst aren't delivered one at a time. They're merged by what they're about (thread, message, recipient, etc.) and sent out
+ * together about once a frame, calling each observer at most once per dispatch, in the order they were first notified. A notification on its own, with no
+ * dispatch in the last frame, goes out right away.
  */
 public class DatabaseObserver {
 
@@ -42,12 +56,15 @@ public class DatabaseObserver {
   private static final String KEY_MESSAGE_INSERT        = "MessageInsert:";
   private static final String KEY_NOTIFICATION_PROFILES = "NotificationProfiles";
   private static final String KEY_RECIPIENT             = "Recipient";
-  private static final String KEY_STORY_OBSERVER        = "Story";
+  private static final String KEY_STORY_OBSERVER        = "Story:";
   private static final String KEY_SCHEDULED_MESSAGES    = "ScheduledMessages";
   private static final String KEY_CONVERSATION_DELETES  = "ConversationDeletes";
 
   private static final String KEY_CALL_UPDATES          = "CallUpdates";
-  private static final String KEY_CALL_LINK_UPDATES     = "CallLinkUpdates";
+  private static final String KEY_CALL_LINK_UPDATES     = "CallLinkUpdates:";
+
+  /** Roughly a frame, so that a burst of changes only wakes up each observer once. */
+  private static final long DISPATCH_DELAY_MS = 16;
 
   private final Application application;
   private final Executor    executor;
@@ -70,6 +87,15 @@ public class DatabaseObserver {
   private final Set<Observer>                      callUpdateObservers;
   private final Map<CallLinkRoomId, Set<Observer>> callLinkObservers;
 
+  private final Map<String, Collector> pending = new LinkedHashMap<>();
+  private       boolean                dispatchScheduled;
+  private       long                   lastDispatchTime;
+
+  private final AtomicLong rawNotifications        = new AtomicLong();
+  private final AtomicLong dispatchedNotifications = new AtomicLong();
+  private final AtomicLong dispatches              = new AtomicLong();
+  private final AtomicLong deliveredCallbacks      = new AtomicLong();
+
   public DatabaseObserver(Application application) {
     this.application                  = application;
     this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
@@ -228,16 +254,16 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
-      notifyMapped(conversationObservers, threadId);
-      notifyMapped(verboseConversationObservers, threadId);
+    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, dispatch -> {
+      dispatch.add(conversationObservers.get(threadId));
+      dispatch.add(verboseConversationObservers.get(threadId));
     });
   }
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
-      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
-        notifyMapped(verboseConversationObservers, threadId);
+      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, dispatch -> {
+        dispatch.add(verboseConversationObservers.get(threadId));
       });
     }
   }
@@ -249,76 +275,68 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationDeleteListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION_DELETES + threadId, () -> {
-      notifyMapped(conversationDeleteObservers, threadId);
+    runPostSuccessfulTransaction(KEY_CONVERSATION_DELETES + threadId, dispatch -> {
+      dispatch.add(conversationDeleteObservers.get(threadId));
     });
   }
 
   public void notifyConversationListListeners() {
-    runPostSuccessfulTransaction(KEY_CONVERSATION_LIST, () -> {
-      for (Observer listener : conversationListObservers) {
-        listener.onChanged();
-      }
+    runPostSuccessfulTransaction(KEY_CONVERSATION_LIST, dispatch -> {
+      dispatch.add(conversationListObservers);
     });
   }
 
   public void notifyPaymentListeners(@NonNull UUID paymentId) {
-    runPostSuccessfulTransaction(KEY_PAYMENT + paymentId.toString(), () -> {
-      notifyMapped(paymentObservers, paymentId);
+    runPostSuccessfulTransaction(KEY_PAYMENT + paymentId.toString(), dispatch -> {
+      dispatch.add(paymentObservers.get(paymentId));
     });
   }
 
   public void notifyAllPaymentsListeners() {
-    runPostSuccessfulTransaction(KEY_ALL_PAYMENTS, () -> {
-      notifySet(allPaymentsObservers);
+    runPostSuccessfulTransaction(KEY_ALL_PAYMENTS, dispatch -> {
+      dispatch.add(allPaymentsObservers);
     });
   }
 
   public void notifyChatColorsListeners() {
-    runPostSuccessfulTransaction(KEY_CHAT_COLORS, () -> {
-      for (Observer chatColorsObserver : chatColorsObservers) {
-        chatColorsObserver.onChanged();
-      }
+    runPostSuccessfulTransaction(KEY_CHAT_COLORS, dispatch -> {
+      dispatch.add(chatColorsObservers);
     });
   }
 
   public void notifyStickerObservers() {
-    runPostSuccessfulTransaction(KEY_STICKERS, () -> {
-      notifySet(stickerObservers);
+    runPostSuccessfulTransaction(KEY_STICKERS, dispatch -> {
+      dispatch.add(stickerObservers);
     });
   }
 
   public void notifyStickerPackObservers() {
-    runPostSuccessfulTransaction(KEY_STICKER_PACKS, () -> {
-      notifySet(stickerPackObservers);
+    runPostSuccessfulTransaction(KEY_STICKER_PACKS, dispatch -> {
+      dispatch.add(stickerPackObservers);
     });
   }
 
   public void notifyAttachmentObservers() {
-    runPostSuccessfulTransaction(KEY_ATTACHMENTS, () -> {
-      notifySet(attachmentObservers);
+    runPostSuccessfulTransaction(KEY_ATTACHMENTS, dispatch -> {
+      dispatch.add(attachmentObservers);
     });
   }
 
   public void notifyMessageUpdateObservers(@NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
-      messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
+    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), dispatch -> {
+      dispatch.add(messageUpdateObservers, messageId);
     });
   }
 
   public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, () -> {
-      Set<MessageObserver> listeners = messageInsertObservers.get(threadId);
-
-      if (listeners != null) {
-        listeners.stream().forEach(l -> l.onMessageChanged(messageId));
-      }
+    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, dispatch -> {
+      dispatch.add(messageInsertObservers.get(threadId), messageId);
     });
   }
 
   public void notifyNotificationProfileObservers() {
-    runPostSuccessfulTransaction(KEY_NOTIFICATION_PROFILES, () -> {
-      notifySet(notificationProfileObservers);
+    runPostSuccessfulTransaction(KEY_NOTIFICATION_PROFILES, dispatch -> {
+      dispatch.add(notificationProfileObservers);
     });
   }
 
@@ -329,39 +347,106 @@ public class DatabaseObserver {
   }
 
   public void notifyStoryObservers(@NonNull RecipientId recipientId) {
-    runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
-      notifyMapped(storyObservers, recipientId);
+    runPostSuccessfulTransaction(KEY_STORY_OBSERVER + recipientId.serialize(), dispatch -> {
+      dispatch.add(storyObservers.get(recipientId));
     });
   }
 
   public void notifyStoryObservers(@NonNull Collection<RecipientId> recipientIds) {
     for (RecipientId recipientId : recipientIds) {
-      runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
-        notifyMapped(storyObservers, recipientId);
-      });
+      notifyStoryObservers(recipientId);
     }
   }
 
   public void notifyScheduledMessageObservers(long threadId) {
-    runPostSuccessfulTransaction(KEY_SCHEDULED_MESSAGES + threadId, () -> {
-      notifyMapped(scheduledMessageObservers, threadId);
+    runPostSuccessfulTransaction(KEY_SCHEDULED_MESSAGES + threadId, dispatch -> {
+      dispatch.add(scheduledMessageObservers.get(threadId));
     });
   }
 
   public void notifyCallUpdateObservers() {
-    runPostSuccessfulTransaction(KEY_CALL_UPDATES, () -> notifySet(callUpdateObservers));
+    runPostSuccessfulTransaction(KEY_CALL_UPDATES, dispatch -> dispatch.add(callUpdateObservers));
   }
 
   public void notifyCallLinkObservers(@NonNull CallLinkRoomId callLinkRoomId) {
-    runPostSuccessfulTransaction(KEY_CALL_LINK_UPDATES, () -> notifyMapped(callLinkObservers, callLinkRoomId));
+    runPostSuccessfulTransaction(KEY_CALL_LINK_UPDATES + callLinkRoomId, dispatch -> dispatch.add(callLinkObservers.get(callLinkRoomId)));
+  }
+
+  public @NonNull Stats getStats() {
+    return new Stats(rawNotifications.get(), dispatchedNotifications.get(), dispatches.get(), deliveredCallbacks.get());
+  }
+
+  public void resetStats() {
+    rawNotifications.set(0);
+    dispatchedNotifications.set(0);
+    dispatches.set(0);
+    deliveredCallbacks.set(0);
   }
 
-  private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
+  /**
+   * Notifications are collected by key until the next dispatch, so any number of notifications for the same thread, message, etc. between two dispatches
+   * only count once. A transaction's notifications are all enqueued as it commits, so they go out in order, and together unless the first one is dispatched
+   * on its own.
+   */
+  private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Collector collector) {
+    rawNotifications.incrementAndGet();
+
     SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
-      executor.execute(runnable);
+      enqueue(dedupeKey, collector);
     });
   }
 
+  private void enqueue(@NonNull String key, @NonNull Collector collector) {
+    boolean schedule;
+    boolean immediate;
+
+    synchronized (pending) {
+      pending.putIfAbsent(key, collector);
+
+      schedule          = !dispatchScheduled;
+      dispatchScheduled = true;
+
+      // There's nothing to merge a lone notification with, unless more are still arriving from whatever caused the last dispatch
+      immediate = pending.size() == 1 && SystemClock.uptimeMillis() - lastDispatchTime >= DISPATCH_DELAY_MS;
+    }
+
+    if (schedule && immediate) {
+      executor.execute(this::dispatchPending);
+    } else if (schedule) {
+      ThreadUtil.runOnMainDelayed(() -> executor.execute(this::dispatchPending), DISPATCH_DELAY_MS);
+    }
+  }
+
+  /**
+   * Must be run on the executor. Every observer is called at most once, no matter how many of the pending notifications it's interested in.
+   */
+  private void dispatchPending() {
+    List<Collector> collectors;
+
+    synchronized (pending) {
+      dispatchScheduled = false;
+
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      lastDispatchTime = SystemClock.uptimeMillis();
+
+      collectors = new ArrayList<>(pending.values());
+      pending.clear();
+    }
+
+    Dispatch dispatch = new Dispatch();
+
+    for (Collector collector : collectors) {
+      collector.collect(dispatch);
+    }
+
+    dispatches.incrementAndGet();
+    dispatchedNotifications.addAndGet(collectors.size());
+    deliveredCallbacks.addAndGet(dispatch.deliver());
+  }
+
   private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
     Set<V> listeners = map.get(key);
 
@@ -379,28 +464,13 @@ public class DatabaseObserver {
     }
   }
 
-  private static <K> void notifyMapped(@NonNull Map<K, Set<Observer>> map, @NonNull K key) {
-    Set<Observer> listeners = map.get(key);
-
-    if (listeners != null) {
-      for (Observer listener : listeners) {
-        listener.onChanged();
-      }
-    }
-  }
-
-  private static void notifySet(@NonNull Set<Observer> set) {
-    for (final Observer observer : set) {
-      observer.onChanged();
-    }
-  }
-
   /**
-   * Blocks until the executor is empty. Only intended to be used for testing.
+   * Dispatches anything pending right away, then blocks until the executor is empty. Only intended to be used for testing.
    */
   @VisibleForTesting
   void flush() {
     CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(this::dispatchPending);
     executor.execute(latch::countDown);
 
     try {
@@ -421,4 +491,127 @@ public class DatabaseObserver {
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
   }
+
+  /**
+   * Adds whoever is currently observing a notification to a dispatch. Run on the executor.
+   */
+  private interface Collector {
+    void collect(@NonNull Dispatch dispatch);
+  }
+
+  /**
+   * The callbacks to make for a single dispatch, in the order their notifications were queued. Each observer is only called once, at the point it was first
+   * notified. Message observers are still told about every distinct message.
+   */
+  private static final class Dispatch {
+    private final Set<Callback> callbacks = new LinkedHashSet<>();
+
+    void add(@Nullable Set<Observer> listeners) {
+      if (listeners != null) {
+        for (Observer listener : listeners) {
+          callbacks.add(new ObserverCallback(listener));
+        }
+      }
+    }
+
+    void add(@Nullable Set<MessageObserver> listeners, @NonNull MessageId messageId) {
+      if (listeners != null) {
+        for (MessageObserver listener : listeners) {
+          callbacks.add(new MessageCallback(listener, messageId));
+        }
+      }
+    }
+
+    /**
+     * @return How many callbacks were made.
+     */
+    int deliver() {
+      for (Callback callback : callbacks) {
+        callback.deliver();
+      }
+
+      return callbacks.size();
+    }
+  }
+
+  private interface Callback {
+    void deliver();
+  }
+
+  private static final class ObserverCallback implements Callback {
+    private final Observer observer;
+
+    private ObserverCallback(@NonNull Observer observer) {
+      this.observer = observer;
+    }
+
+    @Override
+    public void deliver() {
+      observer.onChanged();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ObserverCallback && ((ObserverCallback) o).observer.equals(observer);
+    }
+
+    @Override
+    public int hashCode() {
+      return observer.hashCode();
+    }
+  }
+
+  private static final class MessageCallback implements Callback {
+    private final MessageObserver observer;
+    private final MessageId       messageId;
+
+    private MessageCallback(@NonNull MessageObserver observer, @NonNull MessageId messageId) {
+      this.observer  = observer;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public void deliver() {
+      observer.onMessageChanged(messageId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MessageCallback)) {
+        return false;
+      }
+
+      MessageCallback other = (MessageCallback) o;
+      return other.observer.equals(observer) && other.messageId.equals(messageId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(observer, messageId);
+    }
+  }
+
+  public static final class Stats {
+    public final long rawNotifications;
+    public final long dispatchedNotifications;
+    public final long dispatches;
+    public final long deliveredCallbacks;
+
+    Stats(long rawNotifications, long dispatchedNotifications, long dispatches, long deliveredCallbacks) {
+      this.rawNotifications        = rawNotifications;
+      this.dispatchedNotifications = dispatchedNotifications;
+      this.dispatches              = dispatches;
+      this.deliveredCallbacks      = deliveredCallbacks;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      double mergedRate  = rawNotifications > 0 ? (rawNotifications - dispatchedNotifications) * 100.0 / rawNotifications : 0;
+      double perDispatch = dispatches > 0 ? deliveredCallbacks / (double) dispatches : 0;
+
+      return String.format(Locale.US,
+                           "Notifications: %d raw, %d dispatched (%.1f%% merged)\nDispatches: %d, Observer callbacks: %d (%.1f per dispatch)",
+                           rawNotifications, dispatchedNotifications, mergedRate, dispatches, deliveredCallbacks, perDispatch);
+    }
+  }
 }
@@ -208,14 +208,7 @@ class JobDatabase(
 
   @Synchronized
   fun markJobAsRunning(id: String, currentTime: Long) {
-    writableDatabase
-      .update(Jobs.TABLE_NAME)
-      .values(
-        Jobs.IS_RUNNING to 1,
-        Jobs.LAST_RUN_ATTEMPT_TIME to currentTime
-      )
-      .where("${Jobs.JOB_SPEC_ID} = ?", id)
-      .run()
+    markJobAsRunning(writableDatabase, id, currentTime)
   }
 
   @Synchronized
@@ -248,50 +241,33 @@ class JobDatabase(
     }
 
     writableDatabase.withinTransaction { db ->
-      jobs
-        .filterNot { it.isMemoryOnly }
-        .forEach { job ->
-          db.update(Jobs.TABLE_NAME)
-            .values(
-              Jobs.JOB_SPEC_ID to job.id,
-              Jobs.FACTORY_KEY to job.factoryKey,
-              Jobs.QUEUE_KEY to job.queueKey,
-              Jobs.CREATE_TIME to job.createTime,
-              Jobs.LAST_RUN_ATTEMPT_TIME to job.lastRunAttemptTime,
-              Jobs.NEXT_BACKOFF_INTERVAL to job.nextBackoffInterval,
-              Jobs.RUN_ATTEMPT to job.runAttempt,
-              Jobs.MAX_ATTEMPTS to job.maxAttempts,
-              Jobs.LIFESPAN to job.lifespan,
-              Jobs.SERIALIZED_DATA to job.serializedData,
-              Jobs.SERIALIZED_INPUT_DATA to job.serializedInputData,
-              Jobs.IS_RUNNING to if (job.isRunning) 1 else 0
-            )
-            .where("${Jobs.JOB_SPEC_ID} = ?", job.id)
-            .run()
-        }
+      updateJobs(db, jobs)
     }
   }
 
   @Synchronized
   fun deleteJobs(jobIds: List<String>) {
     writableDatabase.withinTransaction { db ->
-      for (jobId in jobIds) {
-        db.delete(Jobs.TABLE_NAME)
-          .where("${Jobs.JOB_SPEC_ID} = ?", jobId)
-          .run()
-
-        db.delete(Constraints.TABLE_NAME)
-          .where("${Constraints.JOB_SPEC_ID} = ?", jobId)
-          .run()
+      deleteJobs(db, jobIds)
+    }
+  }
 
-        db.delete(Dependencies.TABLE_NAME)
-          .where("${Dependencies.JOB_SPEC_ID} = ?", jobId)
-          .run()
+  /**
+   * Applies a batch of updates, running marks and deletes in a single transaction. Deletes are applied last, so an update for a job that is also being
+   * deleted is harmless.
+   *
+   * @param running The last run attempt time of each job that should be marked as running, keyed by job id. Only those two columns are written.
+   */
+  @Synchronized
+  fun writeBatch(updates: List<JobSpec>, running: Map<String, Long>, deletes: List<String>) {
+    if (updates.isEmpty() && running.isEmpty() && deletes.isEmpty()) {
+      return
+    }
 
-        db.delete(Dependencies.TABLE_NAME)
-          .where("${Dependencies.DEPENDS_ON_JOB_SPEC_ID} = ?", jobId)
-          .run()
-      }
+    writableDatabase.withinTransaction { db ->
+      updateJobs(db, updates)
+      running.forEach { (id, currentTime) -> markJobAsRunning(db, id, currentTime) }
+      deleteJobs(db, deletes)
     }
   }
 
@@ -343,6 +319,64 @@ class JobDatabase(
       .run(SQLiteDatabase.CONFLICT_IGNORE)
   }
 
+  private fun updateJobs(db: SQLiteDatabase, jobs: List<JobSpec>) {
+    check(db.inTransaction())
+
+    jobs
+      .filterNot { it.isMemoryOnly }
+      .forEach { job ->
+        db.update(Jobs.TABLE_NAME)
+          .values(
+            Jobs.JOB_SPEC_ID to job.id,
+            Jobs.FACTORY_KEY to job.factoryKey,
+            Jobs.QUEUE_KEY to job.queueKey,
+            Jobs.CREATE_TIME to job.createTime,
+            Jobs.LAST_RUN_ATTEMPT_TIME to job.lastRunAttemptTime,
+            Jobs.NEXT_BACKOFF_INTERVAL to job.nextBackoffInterval,
+            Jobs.RUN_ATTEMPT to job.runAttempt,
+            Jobs.MAX_ATTEMPTS to job.maxAttempts,
+            Jobs.LIFESPAN to job.lifespan,
+            Jobs.SERIALIZED_DATA to job.serializedData,
+            Jobs.SERIALIZED_INPUT_DATA to job.serializedInputData,
+            Jobs.IS_RUNNING to if (job.isRunning) 1 else 0
+          )
+          .where("${Jobs.JOB_SPEC_ID} = ?", job.id)
+          .run()
+      }
+  }
+
+  private fun markJobAsRunning(db: SQLiteDatabase, id: String, currentTime: Long) {
+    db.update(Jobs.TABLE_NAME)
+      .values(
+        Jobs.IS_RUNNING to 1,
+        Jobs.LAST_RUN_ATTEMPT_TIME to currentTime
+      )
+      .where("${Jobs.JOB_SPEC_ID} = ?", id)
+      .run()
+  }
+
+  private fun deleteJobs(db: SQLiteDatabase, jobIds: List<String>) {
+    check(db.inTransaction())
+
+    for (jobId in jobIds) {
+      db.delete(Jobs.TABLE_NAME)
+        .where("${Jobs.JOB_SPEC_ID} = ?", jobId)
+        .run()
+
+      db.delete(Constraints.TABLE_NAME)
+        .where("${Constraints.JOB_SPEC_ID} = ?", jobId)
+        .run()
+
+      db.delete(Dependencies.TABLE_NAME)
+        .where("${Dependencies.JOB_SPEC_ID} = ?", jobId)
+        .run()
+
+      db.delete(Dependencies.TABLE_NAME)
+        .where("${Dependencies.DEPENDS_ON_JOB_SPEC_ID} = ?", jobId)
+        .run()
+    }
+  }
+
   private fun insertConstraintSpecs(db: SQLiteDatabase, constraints: List<ConstraintSpec>) {
     check(db.inTransaction())
 
@@ -5,7 +5,6 @@ import android.app.Application
 import android.database.Cursor
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import net.zetetic.database.sqlcipher.SQLiteOpenHelper
-import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.Stopwatch
 import org.signal.core.util.delete
@@ -17,14 +16,19 @@ import org.signal.core.util.logging.Log
 import org.signal.core.util.mebiBytes
 import org.signal.core.util.readToList
 import org.signal.core.util.readToSingleInt
+import org.signal.core.util.requireBlob
+import org.signal.core.util.requireInt
 import org.signal.core.util.requireLong
 import org.signal.core.util.requireNonNullString
+import org.signal.core.util.requireString
 import org.signal.core.util.select
 import org.signal.core.util.update
 import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.database.model.LogRecordBatch
+import org.thoughtcrime.securesms.logging.BinaryLogRecord
 import java.io.Closeable
 import kotlin.math.abs
 import kotlin.time.Duration.Companion.days
@@ -57,7 +61,7 @@ class LogDatabase private constructor(
   companion object {
     private val TAG = Log.tag(LogDatabase::class.java)
 
-    private const val DATABASE_VERSION = 4
+    private const val DATABASE_VERSION = 5
     private const val DATABASE_NAME = "signal-logs.db"
 
     @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
@@ -91,6 +95,7 @@ class LogDatabase private constructor(
     Log.i(TAG, "onCreate()")
 
     db.execSQL(LogTable.CREATE_TABLE)
+    db.execSQL(LogTable.CREATE_STRING_TABLE)
     db.execSQL(CrashTable.CREATE_TABLE)
     db.execSQL(AnrTable.CREATE_TABLE)
 
@@ -117,6 +122,11 @@ class LogDatabase private constructor(
     if (oldVersion < 4) {
       db.execSQL("CREATE TABLE anr (_id INTEGER PRIMARY KEY, created_at INTEGER NOT NULL, thread_dump TEXT NOT NULL)")
     }
+
+    if (oldVersion < 5) {
+      db.execSQL("ALTER TABLE log ADD COLUMN record BLOB DEFAULT NULL")
+      db.execSQL("CREATE TABLE log_string (_id INTEGER PRIMARY KEY, value TEXT NOT NULL UNIQUE)")
+    }
   }
 
   override fun onOpen(db: SQLiteDatabase) {
@@ -136,13 +146,29 @@ class LogDatabase private constructor(
       const val BODY = "body"
       const val SIZE = "size"
 
+      /** A [BinaryLogRecord], for rows that don't have a [BODY]. */
+      const val RECORD = "record"
+
       const val CREATE_TABLE = """
         CREATE TABLE $TABLE_NAME (
           $ID INTEGER PRIMARY KEY,
           $CREATED_AT INTEGER, 
           $KEEP_LONGER INTEGER DEFAULT 0,
           $BODY TEXT,
-          $SIZE INTEGER
+          $SIZE INTEGER,
+          $RECORD BLOB DEFAULT NULL
+        )
+      """
+
+      /** Strings that binary records refer to by id, like tags. They're never deleted, since there are only ever a few thousand. */
+      const val STRING_TABLE_NAME = "log_string"
+      const val STRING_ID = "_id"
+      const val STRING_VALUE = "value"
+
+      const val CREATE_STRING_TABLE = """
+        CREATE TABLE $STRING_TABLE_NAME (
+          $STRING_ID INTEGER PRIMARY KEY,
+          $STRING_VALUE TEXT NOT NULL UNIQUE
         )
       """
 
@@ -172,15 +198,68 @@ class LogDatabase private constructor(
             .run()
         }
 
-        db.delete(TABLE_NAME)
-          .where("($CREATED_AT < ? AND $KEEP_LONGER = 0) OR ($CREATED_AT < ? AND $KEEP_LONGER = 1)", currentTime - DEFAULT_LIFESPAN, currentTime - LONGER_LIFESPAN)
-          .run()
+        deleteExpired(db, currentTime)
+      }
+    }
+
+    /**
+     * Inserts binary records, and then clears the batch so that it can be reused.
+     */
+    fun insert(batch: LogRecordBatch, currentTime: Long) {
+      writableDatabase.withinTransaction { db ->
+        db.compileStatement("INSERT INTO $TABLE_NAME ($CREATED_AT, $KEEP_LONGER, $RECORD, $SIZE) VALUES (?, ?, ?, ?)").use { statement ->
+          for (i in 0 until batch.size) {
+            val record = batch.records[i]!!
+
+            statement.bindLong(1, batch.createdAt[i])
+            statement.bindLong(2, if (batch.keepLonger[i]) 1 else 0)
+            statement.bindBlob(3, record)
+            statement.bindLong(4, record.size.toLong())
+            statement.executeInsert()
+          }
+        }
+
+        deleteExpired(db, currentTime)
       }
+
+      batch.clear()
+    }
+
+    private fun deleteExpired(db: SQLiteDatabase, currentTime: Long) {
+      db.delete(TABLE_NAME)
+        .where("($CREATED_AT < ? AND $KEEP_LONGER = 0) OR ($CREATED_AT < ? AND $KEEP_LONGER = 1)", currentTime - DEFAULT_LIFESPAN, currentTime - LONGER_LIFESPAN)
+        .run()
+    }
+
+    /**
+     * @return The id of the interned string, adding it if it isn't already there.
+     */
+    fun internString(value: String): Int {
+      writableDatabase.execSQL("INSERT OR IGNORE INTO $STRING_TABLE_NAME ($STRING_VALUE) VALUES (?)", arrayOf(value))
+
+      return readableDatabase
+        .select(STRING_ID)
+        .from(STRING_TABLE_NAME)
+        .where("$STRING_VALUE = ?", value)
+        .run()
+        .readToSingleInt()
+    }
+
+    /**
+     * @return All interned strings, by id.
+     */
+    fun getInternedStrings(): Map<Int, String> {
+      return readableDatabase
+        .select(STRING_ID, STRING_VALUE)
+        .from(STRING_TABLE_NAME)
+        .run()
+        .readToList { it.requireInt(STRING_ID) to it.requireNonNullString(STRING_VALUE) }
+        .toMap()
     }
 
     fun getAllBeforeTime(time: Long): Reader {
       return readableDatabase
-        .select(BODY)
+        .select(CREATED_AT, BODY, RECORD)
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
         .run()
@@ -188,13 +267,15 @@ class LogDatabase private constructor(
     }
 
     fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
+      val formatter = BinaryLogRecord.Formatter(getInternedStrings())
+
       return readableDatabase
-        .select(BODY)
+        .select(CREATED_AT, BODY, RECORD)
         .from(TABLE_NAME)
         .where("$CREATED_AT < $time")
         .limit(limit = length, offset = start)
         .run()
-        .readToList { it.requireNonNullString(BODY) }
+        .readToList { it.readBody(formatter) }
     }
 
     fun trimToSize() {
@@ -283,19 +364,19 @@ class LogDatabase private constructor(
     }
 
     private fun Cursor.toReader(): CursorReader {
-      return CursorReader(this)
+      return CursorReader(this, BinaryLogRecord.Formatter(getInternedStrings()))
     }
 
     interface Reader : Iterator<String>, Closeable
 
-    class CursorReader(private val cursor: Cursor) : Reader {
+    class CursorReader(private val cursor: Cursor, private val formatter: BinaryLogRecord.Formatter) : Reader {
       override fun hasNext(): Boolean {
         return !cursor.isLast && cursor.count > 0
       }
 
       override fun next(): String {
         cursor.moveToNext()
-        return CursorUtil.requireString(cursor, LogTable.BODY)
+        return cursor.readBody(formatter)
       }
 
       override fun close() {
@@ -437,3 +518,7 @@ class LogDatabase private constructor(
     )
   }
 }
+
+private fun Cursor.readBody(formatter: BinaryLogRecord.Formatter): String {
+  return requireString(LogDatabase.LogTable.BODY) ?: formatter.format(requireBlob(LogDatabase.LogTable.RECORD) ?: ByteArray(0), requireLong(LogDatabase.LogTable.CREATED_AT))
+}
@@ -3,7 +3,9 @@ package org.thoughtcrime.securesms.database
 import android.annotation.SuppressLint
 import android.content.Context
 import android.database.Cursor
+import android.os.CancellationSignal
 import android.text.TextUtils
+import androidx.sqlite.db.SimpleSQLiteQuery
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.intellij.lang.annotations.Language
 import org.signal.core.util.SqlUtil
@@ -11,6 +13,7 @@ import org.signal.core.util.ThreadUtil
 import org.signal.core.util.logging.Log
 import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob
+import kotlin.time.Duration.Companion.days
 
 /**
  * Contains all databases necessary for full-text search (FTS).
@@ -31,9 +34,18 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     const val MESSAGE_ID = "message_id"
     const val SNIPPET_WRAP = "..."
 
+    const val RANK = "search_rank"
+
+    /** How quickly older messages fall behind newer ones when ordering by [MessageSearchOrder.RELEVANCE]. A message this old has its score halved. */
+    private val RELEVANCE_RECENCY_HALF_LIFE = 30.days.inWholeMilliseconds
+
+    const val PENDING_TABLE_NAME = "message_fts_pending"
+    const val PENDING_MESSAGE_ID = "message_id"
+
     @Language("sql")
     val CREATE_TABLE = arrayOf(
-      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})"
+      "CREATE VIRTUAL TABLE $FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})",
+      "CREATE TABLE $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID INTEGER PRIMARY KEY)"
     )
 
     private const val TRIGGER_AFTER_INSERT = "message_ai"
@@ -60,6 +72,31 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       """
     )
 
+    /**
+     * Used instead of [CREATE_TRIGGERS] when indexing is deferred. New messages are only recorded in [PENDING_TABLE_NAME], and are indexed later by
+     * [indexPendingMessages]. Messages that are still pending have nothing in the index to update or delete, so they are skipped by the other triggers.
+     */
+    @Language("sql")
+    private val CREATE_DEFERRED_TRIGGERS = arrayOf(
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_INSERT AFTER INSERT ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT OR IGNORE INTO $PENDING_TABLE_NAME ($PENDING_MESSAGE_ID) VALUES (new.${MessageTable.ID});
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_DELETE AFTER DELETE ON ${MessageTable.TABLE_NAME} BEGIN
+          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) SELECT 'delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID} WHERE NOT EXISTS (SELECT 1 FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID});
+          DELETE FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID};
+        END;
+      """,
+      """
+        CREATE TRIGGER $TRIGGER_AFTER_UPDATE AFTER UPDATE ON ${MessageTable.TABLE_NAME} WHEN NOT EXISTS (SELECT 1 FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID = old.${MessageTable.ID}) BEGIN
+          INSERT INTO $FTS_TABLE_NAME($FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) VALUES('delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
+          INSERT INTO $FTS_TABLE_NAME($ID, $BODY, $THREAD_ID) VALUES (new.${MessageTable.ID}, new.${MessageTable.BODY}, new.${MessageTable.THREAD_ID});
+        END;
+      """
+    )
+
     @Language("sql")
     private const val MESSAGES_QUERY = """
       SELECT 
@@ -81,8 +118,6 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
-      ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
-      LIMIT 500
     """
 
     @Language("sql")
@@ -107,17 +142,69 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
         ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
-      ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
-      LIMIT 500
     """
+
+    @Language("sql")
+    private const val PENDING_MESSAGES_QUERY = """
+      SELECT 
+        ${ThreadTable.TABLE_NAME}.${ThreadTable.RECIPIENT_ID} AS $CONVERSATION_RECIPIENT, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.FROM_RECIPIENT_ID} AS $MESSAGE_RECIPIENT, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.BODY} AS $SNIPPET, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.BODY}, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.ID} AS $MESSAGE_ID, 
+        1 AS $IS_MMS 
+      FROM 
+        $PENDING_TABLE_NAME 
+          INNER JOIN ${MessageTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.ID} = $PENDING_TABLE_NAME.$PENDING_MESSAGE_ID 
+          INNER JOIN ${ThreadTable.TABLE_NAME} ON ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ${ThreadTable.TABLE_NAME}.${ThreadTable.ID} 
+      WHERE 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.GROUP_V2_BIT} = 0 AND 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
+    """
+
+    @Language("sql")
+    private const val MESSAGE_IDS_QUERY = """
+      SELECT 
+        ${MessageTable.TABLE_NAME}.${MessageTable.ID} AS $MESSAGE_ID, 
+        ${MessageTable.TABLE_NAME}.${MessageTable.DATE_RECEIVED}, 
+        bm25($FTS_TABLE_NAME) AS $RANK 
+      FROM 
+        ${MessageTable.TABLE_NAME} 
+          INNER JOIN $FTS_TABLE_NAME ON $FTS_TABLE_NAME.$ID = ${MessageTable.TABLE_NAME}.${MessageTable.ID} 
+          INNER JOIN ${ThreadTable.TABLE_NAME} ON $FTS_TABLE_NAME.$THREAD_ID = ${ThreadTable.TABLE_NAME}.${ThreadTable.ID} 
+      WHERE 
+        $FTS_TABLE_NAME MATCH ? AND 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.GROUP_V2_BIT} = 0 AND 
+        ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.SCHEDULED_DATE} < 0 AND
+        ${MessageTable.TABLE_NAME}.${MessageTable.LATEST_REVISION_ID} IS NULL
+    """
+
+    private const val ORDER_AND_LIMIT = "ORDER BY ${MessageTable.DATE_RECEIVED} DESC LIMIT 500"
   }
 
+  enum class MessageSearchOrder {
+    /** Newest messages first, the same as [queryMessages]. */
+    RECENT,
+
+    /** Best matches first, as scored by the FTS bm25 function. The score decays as a message gets older, so that recent matches are preferred among similar ones. */
+    RELEVANCE
+  }
+
+  /**
+   * Searches all messages. If indexing is deferred, messages that have not been indexed yet are also searched, albeit more crudely (see [buildPendingMessagesQuery]).
+   */
   fun queryMessages(query: String): Cursor? {
     val fullTextSearchQuery = createFullTextSearchQuery(query)
     return if (fullTextSearchQuery.isEmpty()) {
       null
     } else {
-      readableDatabase.rawQuery(MESSAGES_QUERY, SqlUtil.buildArgs(fullTextSearchQuery))
+      val pending = buildPendingMessagesQuery(query, null)
+      readableDatabase.rawQuery("$MESSAGES_QUERY UNION ALL ${pending.where} $ORDER_AND_LIMIT", SqlUtil.buildArgs(fullTextSearchQuery, *pending.whereArgs))
     }
   }
 
@@ -126,7 +213,142 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     return if (TextUtils.isEmpty(fullTextSearchQuery)) {
       null
     } else {
-      readableDatabase.rawQuery(MESSAGES_FOR_THREAD_QUERY, SqlUtil.buildArgs(fullTextSearchQuery, threadId))
+      val pending = buildPendingMessagesQuery(query, threadId)
+      readableDatabase.rawQuery("$MESSAGES_FOR_THREAD_QUERY UNION ALL ${pending.where} $ORDER_AND_LIMIT", SqlUtil.buildArgs(fullTextSearchQuery, threadId, *pending.whereArgs))
+    }
+  }
+
+  /**
+   * A message found by [queryMessageHits]. The receive date is included so that the hits can be merged with results found some other way.
+   */
+  data class MessageSearchHit(val messageId: Long, val dateReceived: Long)
+
+  /**
+   * The first step of a paged search: finds up to [limit] messages that match the [query], in display order, without building snippets
+   * or reading message bodies. Pair this with [queryMessagesById] to load only the rows that are actually shown.
+   *
+   * The query can be interrupted with the [cancellationSignal], in which case an [android.os.OperationCanceledException] is thrown.
+   *
+   * @param threadId If present, only messages in this thread are searched.
+   */
+  fun queryMessageHits(query: String, threadId: Long?, order: MessageSearchOrder, limit: Int, cancellationSignal: CancellationSignal?): List<MessageSearchHit> {
+    val fullTextSearchQuery = createFullTextSearchQuery(query)
+    if (fullTextSearchQuery.isEmpty()) {
+      return emptyList()
+    }
+
+    var indexedQuery = SqlUtil.Query(MESSAGE_IDS_QUERY, SqlUtil.buildArgs(fullTextSearchQuery))
+    if (threadId != null) {
+      indexedQuery = SqlUtil.Query("${indexedQuery.where} AND ${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ?", indexedQuery.whereArgs + threadId.toString())
+    }
+
+    // Pending messages aren't in the index, so they can't be scored. They are sorted as though they were a weak match.
+    val pending = buildPendingMessagesQuery(query, threadId)
+    val pendingQuery = "SELECT $MESSAGE_ID, ${MessageTable.DATE_RECEIVED}, 0 AS $RANK FROM (${pending.where})"
+
+    val orderBy = when (order) {
+      MessageSearchOrder.RECENT -> "${MessageTable.DATE_RECEIVED} DESC"
+      MessageSearchOrder.RELEVANCE -> "$RANK / (1.0 + (${System.currentTimeMillis()} - ${MessageTable.DATE_RECEIVED}) / ${RELEVANCE_RECENCY_HALF_LIFE}.0) ASC, ${MessageTable.DATE_RECEIVED} DESC"
+    }
+
+    val sql = "SELECT $MESSAGE_ID, ${MessageTable.DATE_RECEIVED} FROM (${indexedQuery.where} UNION ALL $pendingQuery) ORDER BY $orderBy LIMIT $limit"
+
+    return readableDatabase.query(SimpleSQLiteQuery(sql, indexedQuery.whereArgs + pending.whereArgs), cancellationSignal).use { cursor ->
+      val hits = ArrayList<MessageSearchHit>(cursor.count)
+      while (cursor.moveToNext()) {
+        hits += MessageSearchHit(cursor.getLong(0), cursor.getLong(1))
+      }
+      hits
+    }
+  }
+
+  /**
+   * The second step of a paged search: loads the full results for the given [messageIds], as returned by [queryMessageHits] for the same [query].
+   * The cursor has the same columns as [queryMessages], but the rows are in no particular order.
+   */
+  fun queryMessagesById(query: String, messageIds: Collection<Long>, cancellationSignal: CancellationSignal?): Cursor? {
+    val fullTextSearchQuery = createFullTextSearchQuery(query)
+    if (fullTextSearchQuery.isEmpty() || messageIds.isEmpty()) {
+      return null
+    }
+
+    val ids = messageIds.joinToString(separator = ",")
+    val pending = buildPendingMessagesQuery(query, null)
+    val sql = "$MESSAGES_QUERY AND $FTS_TABLE_NAME.$ID IN ($ids) UNION ALL ${pending.where} AND ${MessageTable.TABLE_NAME}.${MessageTable.ID} IN ($ids)"
+
+    return readableDatabase.query(SimpleSQLiteQuery(sql, SqlUtil.buildArgs(fullTextSearchQuery, *pending.whereArgs)), cancellationSignal)
+  }
+
+  /**
+   * Whether new messages are currently being added to [PENDING_TABLE_NAME] rather than being indexed as they're inserted.
+   */
+  fun isDeferredIndexing(): Boolean {
+    return isDeferredIndexing(writableDatabase.sqlCipherDatabase)
+  }
+
+  private fun isDeferredIndexing(db: SQLiteDatabase): Boolean {
+    return db
+      .rawQuery("SELECT sql FROM sqlite_master WHERE type = 'trigger' AND name = '$TRIGGER_AFTER_INSERT'", null)
+      .use { cursor -> cursor.moveToFirst() && cursor.getString(0).contains(PENDING_TABLE_NAME) }
+  }
+
+  /**
+   * Switches between indexing messages as they're inserted, and deferring the work to [indexPendingMessages]. Deferring keeps tokenization out of
+   * the transactions that insert messages, at the cost of new messages only being searchable through a slower scan until they've been indexed.
+   *
+   * When switching back, everything that's still pending is indexed first. Does nothing if already in the requested mode.
+   */
+  fun setDeferredIndexing(enabled: Boolean) {
+    writableDatabase.withinTransaction { db ->
+      if (isDeferredIndexing() == enabled) {
+        return@withinTransaction
+      }
+
+      Log.i(TAG, "Setting deferred indexing to $enabled")
+      dropTriggers()
+
+      if (enabled) {
+        CREATE_DEFERRED_TRIGGERS.forEach { db.execSQL(it) }
+      } else {
+        while (indexPendingMessages(Int.MAX_VALUE) > 0) {
+          // Keep going
+        }
+        CREATE_TRIGGERS.forEach { db.execSQL(it) }
+      }
+    }
+  }
+
+  fun hasPendingMessages(): Boolean {
+    return readableDatabase.rawQuery("SELECT EXISTS (SELECT 1 FROM $PENDING_TABLE_NAME)", null).use { cursor ->
+      cursor.moveToFirst() && cursor.getInt(0) == 1
+    }
+  }
+
+  /**
+   * Indexes up to [batchSize] of the oldest messages in [PENDING_TABLE_NAME] and removes them from it.
+   *
+   * @return The number of messages that were indexed. Zero means that nothing is pending.
+   */
+  fun indexPendingMessages(batchSize: Int): Int {
+    return writableDatabase.withinTransaction { db ->
+      val maxId: Long = db.rawQuery("SELECT MAX($PENDING_MESSAGE_ID) FROM (SELECT $PENDING_MESSAGE_ID FROM $PENDING_TABLE_NAME ORDER BY $PENDING_MESSAGE_ID LIMIT $batchSize)", null).use { cursor ->
+        if (cursor.moveToFirst() && !cursor.isNull(0)) cursor.getLong(0) else -1
+      }
+
+      if (maxId < 0) {
+        return@withinTransaction 0
+      }
+
+      db.execSQL(
+        """
+        INSERT INTO $FTS_TABLE_NAME ($ID, $BODY, $THREAD_ID) 
+          SELECT ${MessageTable.ID}, ${MessageTable.BODY}, ${MessageTable.THREAD_ID} 
+          FROM ${MessageTable.TABLE_NAME} 
+          WHERE ${MessageTable.ID} IN (SELECT $PENDING_MESSAGE_ID FROM $PENDING_TABLE_NAME WHERE $PENDING_MESSAGE_ID <= $maxId)
+        """
+      )
+
+      db.delete(PENDING_TABLE_NAME, "$PENDING_MESSAGE_ID <= ?", SqlUtil.buildArgs(maxId))
     }
   }
 
@@ -146,19 +368,24 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
     for (i in 1..maxId step batchSize) {
       Log.i(TAG, "Reindexing ID's [$i, ${i + batchSize})")
-      writableDatabase.execSQL(
-        """
-        INSERT INTO $FTS_TABLE_NAME ($ID, $BODY) 
-            SELECT 
-              ${MessageTable.ID}, 
-              ${MessageTable.BODY}
-            FROM 
-              ${MessageTable.TABLE_NAME} 
-            WHERE 
-              ${MessageTable.ID} >= $i AND
-              ${MessageTable.ID} < ${i + batchSize}
-        """
-      )
+      writableDatabase.withinTransaction { db ->
+        db.execSQL(
+          """
+          INSERT INTO $FTS_TABLE_NAME ($ID, $BODY) 
+              SELECT 
+                ${MessageTable.ID}, 
+                ${MessageTable.BODY}
+              FROM 
+                ${MessageTable.TABLE_NAME} 
+              WHERE 
+                ${MessageTable.ID} >= $i AND
+                ${MessageTable.ID} < ${i + batchSize}
+          """
+        )
+
+        // Anything that was waiting to be indexed just was
+        db.delete(PENDING_TABLE_NAME, "$PENDING_MESSAGE_ID >= ? AND $PENDING_MESSAGE_ID < ?", SqlUtil.buildArgs(i, i + batchSize))
+      }
     }
   }
 
@@ -230,16 +457,41 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
   }
 
   /**
-   * Drops all tables and recreates them.
+   * Drops the triggers that keep the index in sync with the message table. Writes made while the triggers are gone will not be searchable, so this is only
+   * meant for bulk imports, which must call [restoreTriggers] and [rebuildIndex] once they're done.
+   *
+   * @return True if indexing was deferred (see [setDeferredIndexing]) before the triggers were dropped. Pass this along to [restoreTriggers].
+   */
+  fun dropTriggers(): Boolean {
+    val deferred = isDeferredIndexing()
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
+    writableDatabase.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
+    return deferred
+  }
+
+  /**
+   * Recreates the triggers removed by [dropTriggers].
+   */
+  fun restoreTriggers(deferred: Boolean) {
+    val triggers = if (deferred) CREATE_DEFERRED_TRIGGERS else CREATE_TRIGGERS
+    triggers.forEach { writableDatabase.execSQL(it) }
+  }
+
+  /**
+   * Drops all tables and recreates them. The triggers are recreated in whichever mode (see [setDeferredIndexing]) was active beforehand.
    */
   @JvmOverloads
   fun fullyResetTables(db: SQLiteDatabase = writableDatabase.sqlCipherDatabase) {
+    val deferred = isDeferredIndexing(db)
+
     Log.w(TAG, "[fullyResetTables] Dropping tables and triggers...")
     db.execSQL("DROP TABLE IF EXISTS $FTS_TABLE_NAME")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_config")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_content")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_data")
     db.execSQL("DROP TABLE IF EXISTS ${FTS_TABLE_NAME}_idx")
+    db.execSQL("DROP TABLE IF EXISTS $PENDING_TABLE_NAME")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_INSERT")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_DELETE")
     db.execSQL("DROP TRIGGER IF EXISTS $TRIGGER_AFTER_UPDATE")
@@ -247,8 +499,9 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     Log.w(TAG, "[fullyResetTables] Recreating table...")
     CREATE_TABLE.forEach { db.execSQL(it) }
 
-    Log.w(TAG, "[fullyResetTables] Recreating triggers...")
-    CREATE_TRIGGERS.forEach { db.execSQL(it) }
+    Log.w(TAG, "[fullyResetTables] Recreating triggers (deferred: $deferred)...")
+    val triggers = if (deferred) CREATE_DEFERRED_TRIGGERS else CREATE_TRIGGERS
+    triggers.forEach { db.execSQL(it) }
 
     RebuildMessageSearchIndexJob.enqueue()
 
@@ -273,6 +526,38 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       )
   }
 
+  /**
+   * Builds a query that matches messages that are waiting to be indexed. These are few enough that we can afford to scan them, but since the FTS tokenizer
+   * can't be used here, every term in the query is instead matched against the body as a case-insensitive substring.
+   *
+   * That isn't quite what [createFullTextSearchQuery] matches, so the same query can find slightly different messages before and after they're indexed:
+   * - A term can match in the middle of a word ("ello" finds "hello"), whereas the index only matches the start of a word.
+   * - Only ASCII letters are case-folded, and diacritics are not removed ("cafe" doesn't find "Café"), whereas the unicode61 tokenizer folds both.
+   * - Punctuation has to match exactly ("e-mail" doesn't find "e mail"), whereas the tokenizer treats it as a word separator.
+   *
+   * Messages only stay pending until the next [indexPendingMessages] run, so these differences are short-lived.
+   */
+  private fun buildPendingMessagesQuery(query: String, threadId: Long?): SqlUtil.Query {
+    val terms: List<String> = query
+      .split(" ")
+      .map { it.trim() }
+      .filter { it.isNotEmpty() }
+
+    val clauses = terms.map { "${MessageTable.TABLE_NAME}.${MessageTable.BODY} LIKE ? ESCAPE '\\'" }.toMutableList()
+    val args: MutableList<Any> = terms.map { "%${likeEscape(it)}%" }.toMutableList()
+
+    if (threadId != null) {
+      clauses += "${MessageTable.TABLE_NAME}.${MessageTable.THREAD_ID} = ?"
+      args += threadId
+    }
+
+    return SqlUtil.Query("$PENDING_MESSAGES_QUERY AND ${clauses.joinToString(separator = " AND ")}", SqlUtil.buildArgs(*args.toTypedArray()))
+  }
+
+  private fun likeEscape(s: String): String {
+    return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+  }
+
   /**
    * If you wrap a string in quotes, sqlite considers it a string literal when making a MATCH query.
    * In order to distinguish normal quotes, you turn all " into "".
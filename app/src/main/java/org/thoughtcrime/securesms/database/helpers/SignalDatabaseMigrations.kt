@@ -87,6 +87,7 @@ import org.thoughtcrime.securesms.database.helpers.migration.V226_AddAttachmentM
 import org.thoughtcrime.securesms.database.helpers.migration.V227_AddAttachmentArchiveTransferState
 import org.thoughtcrime.securesms.database.helpers.migration.V228_AddNameCollisionTables
 import org.thoughtcrime.securesms.database.helpers.migration.V229_MarkMissedCallEventsNotified
+import org.thoughtcrime.securesms.database.helpers.migration.V230_AddMessageFtsPendingTable
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
@@ -177,10 +178,11 @@ object SignalDatabaseMigrations {
     226 to V226_AddAttachmentMediaIdIndex,
     227 to V227_AddAttachmentArchiveTransferState,
     228 to V228_AddNameCollisionTables,
-    229 to V229_MarkMissedCallEventsNotified
+    229 to V229_MarkMissedCallEventsNotified,
+    230 to V230_AddMessageFtsPendingTable
   )
 
-  const val DATABASE_VERSION = 229
+  const val DATABASE_VERSION = 230
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
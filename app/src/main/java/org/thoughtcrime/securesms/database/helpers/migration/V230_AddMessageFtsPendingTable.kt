@@ -0,0 +1,19 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table to track messages that have not been added to the search index yet, for when indexing is deferred.
+ */
+@Suppress("ClassName")
+object V230_AddMessageFtsPendingTable : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE TABLE message_fts_pending (message_id INTEGER PRIMARY KEY)")
+  }
+}
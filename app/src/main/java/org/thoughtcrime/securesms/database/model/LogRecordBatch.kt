@@ -0,0 +1,38 @@
+package org.thoughtcrime.securesms.database.model
+
+/**
+ * A reusable batch of binary log records waiting to be inserted, kept as parallel arrays so that the write path doesn't create an object per line.
+ */
+class LogRecordBatch {
+  var size: Int = 0
+    private set
+
+  var createdAt = LongArray(64)
+    private set
+
+  var keepLonger = BooleanArray(64)
+    private set
+
+  var records = arrayOfNulls<ByteArray>(64)
+    private set
+
+  fun add(createdAt: Long, keepLonger: Boolean, record: ByteArray) {
+    if (size == records.size) {
+      this.createdAt = this.createdAt.copyOf(size * 2)
+      this.keepLonger = this.keepLonger.copyOf(size * 2)
+      this.records = records.copyOf(size * 2)
+    }
+
+    this.createdAt[size] = createdAt
+    this.keepLonger[size] = keepLonger
+    this.records[size] = record
+    size++
+  }
+
+  fun isEmpty(): Boolean = size == 0
+
+  fun clear() {
+    records.fill(null, 0, size)
+    size = 0
+  }
+}
@@ -10,6 +10,7 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.RingBufferPipe;
 import org.signal.devicetransfer.ServerTask;
 import org.thoughtcrime.securesms.AppInitialization;
 import org.thoughtcrime.securesms.backup.BackupEvent;
@@ -22,21 +23,34 @@ import org.thoughtcrime.securesms.notifications.NotificationChannels;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Performs the restore with the backup data coming in over the input stream. Used in
  * conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * The socket is read on its own thread into a large in-memory buffer, which the import reads from, so that the old device can
+ * keep sending while we're busy decrypting, inflating and writing to the database.
  */
 final class NewDeviceServerTask implements ServerTask {
 
   private static final String TAG = Log.tag(NewDeviceServerTask.class);
 
+  private static final int PIPE_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final int SOCKET_READ_SIZE = 256 * 1024;
+
   @Override
   public void run(@NonNull Context context, @NonNull InputStream inputStream) {
     long start = System.currentTimeMillis();
 
     Log.i(TAG, "Starting backup restore.");
 
+    RingBufferPipe pipe     = new RingBufferPipe(PIPE_BUFFER_SIZE);
+    Thread         receiver = new Thread(() -> readFromSocket(inputStream, pipe), "signal-TransferReceive");
+
+    receiver.setDaemon(true);
+    receiver.start();
+
     EventBus.getDefault().register(this);
     try {
       DataRestoreConstraint.setRestoringData(true);
@@ -48,7 +62,7 @@ final class NewDeviceServerTask implements ServerTask {
       FullBackupImporter.importFile(context,
                                     AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                     database,
-                                    inputStream,
+                                    pipe.getInputStream(),
                                     passphrase);
 
       SignalDatabase.runPostBackupRestoreTasks(database);
@@ -67,12 +81,31 @@ final class NewDeviceServerTask implements ServerTask {
       Log.w(TAG, e);
       EventBus.getDefault().post(new Status(0, Status.State.FAILURE_UNKNOWN));
     } finally {
+      pipe.closeReader();
       EventBus.getDefault().unregister(this);
       DataRestoreConstraint.setRestoringData(false);
     }
 
     long end = System.currentTimeMillis();
-    Log.i(TAG, "Receive took: " + (end - start));
+    Log.i(TAG, "Receive took: " + (end - start) + " ms, received: " + pipe.getTotalBytesRead() + " bytes");
+  }
+
+  /**
+   * Runs until the socket is closed, which normally happens after the import has finished and we've told the old device so.
+   */
+  private static void readFromSocket(@NonNull InputStream socket, @NonNull RingBufferPipe pipe) {
+    byte[]       buffer = new byte[SOCKET_READ_SIZE];
+    OutputStream out    = pipe.getOutputStream();
+
+    try {
+      int read;
+      while ((read = socket.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      pipe.closeWriter(null);
+    } catch (IOException e) {
+      pipe.closeWriter(e);
+    }
   }
 
   @Subscribe(threadMode = ThreadMode.POSTING)
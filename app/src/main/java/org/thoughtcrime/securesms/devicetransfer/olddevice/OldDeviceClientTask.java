@@ -9,6 +9,7 @@ import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
 import org.signal.devicetransfer.ClientTask;
+import org.signal.devicetransfer.RingBufferPipe;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -17,19 +18,28 @@ import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.net.DeviceTransferBlockingInterceptor;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 /**
  * Create the backup stream of the old device and sends it over the wire via the output stream.
  * Used in conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * The backup is exported on its own thread into a large in-memory buffer, and this thread drains that buffer into the socket,
+ * so that reading the database, encrypting and writing to the network all overlap.
  */
 final class OldDeviceClientTask implements ClientTask {
 
   private static final String TAG = Log.tag(OldDeviceClientTask.class);
 
   private static final long PROGRESS_UPDATE_THROTTLE = 250;
+  private static final int  PIPE_BUFFER_SIZE         = 4 * 1024 * 1024;
+  private static final int  SOCKET_WRITE_SIZE        = 256 * 1024;
 
-  private long lastProgressUpdate = 0;
+  private          long lastProgressUpdate = 0;
+  private volatile long sendStart;
+  private volatile long bytesSent;
 
   @Override
   public void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException {
@@ -37,14 +47,23 @@ final class OldDeviceClientTask implements ClientTask {
 
     long start = System.currentTimeMillis();
 
+    RingBufferPipe pipe     = new RingBufferPipe(PIPE_BUFFER_SIZE);
+    Thread         exporter = new Thread(() -> export(context, pipe), "signal-TransferExport");
+
+    sendStart = start;
+    bytesSent = 0;
+
     EventBus.getDefault().register(this);
     try {
-      FullBackupExporter.transfer(context,
-                                  AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                  SignalDatabase.getBackupDatabase(),
-                                  outputStream,
-                                  "deadbeef");
+      exporter.start();
+      try {
+        writeToSocket(pipe.getInputStream(), outputStream);
+      } catch (RingBufferPipe.WriterFailedException e) {
+        throw unwrapExportFailure(e);
+      }
+      awaitExporter(exporter);
     } catch (Exception e) {
+      pipe.closeReader();
       DeviceTransferBlockingInterceptor.getInstance().unblockNetwork();
       throw e;
     } finally {
@@ -52,15 +71,74 @@ final class OldDeviceClientTask implements ClientTask {
     }
 
     long end = System.currentTimeMillis();
-    Log.i(TAG, "Sending took: " + (end - start));
+    Log.i(TAG, "Sending took: " + (end - start) + " ms, sent: " + bytesSent + " bytes, " + getBytesPerSecond(end) + " bytes/s");
+  }
+
+  private static void export(@NonNull Context context, @NonNull RingBufferPipe pipe) {
+    try {
+      FullBackupExporter.transfer(context,
+                                  AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                  SignalDatabase.getBackupDatabase(),
+                                  pipe.getOutputStream(),
+                                  "deadbeef");
+      pipe.closeWriter(null);
+    } catch (Throwable t) {
+      Log.w(TAG, "Export failed", t);
+      pipe.closeWriter(t);
+    }
+  }
+
+  /**
+   * The transfer retries on {@link IOException}s, so a failure in the exporter is passed on exactly as it was thrown, rather
+   * than as the pipe's wrapper. That way only the exporter's own I/O errors are retried, and anything else, like a bug that
+   * would fail the same way every time, isn't.
+   */
+  private static @NonNull IOException unwrapExportFailure(@NonNull RingBufferPipe.WriterFailedException e) {
+    Throwable failure = e.getCause();
+
+    if (failure instanceof IOException) {
+      return (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else {
+      return e;
+    }
+  }
+
+  private void writeToSocket(@NonNull InputStream in, @NonNull OutputStream socket) throws IOException {
+    byte[] buffer = new byte[SOCKET_WRITE_SIZE];
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      socket.write(buffer, 0, read);
+      bytesSent += read;
+    }
+
+    socket.flush();
+  }
+
+  private static void awaitExporter(@NonNull Thread exporter) throws IOException {
+    try {
+      exporter.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private long getBytesPerSecond(long now) {
+    long elapsed = now - sendStart;
+    return elapsed > 0 ? bytesSent * 1000 / elapsed : 0;
   }
 
   @Subscribe(threadMode = ThreadMode.POSTING)
   public void onEvent(BackupEvent event) {
     if (event.getType() == BackupEvent.Type.PROGRESS) {
-      if (System.currentTimeMillis() > lastProgressUpdate + PROGRESS_UPDATE_THROTTLE) {
-        EventBus.getDefault().post(new Status(event.getCount(), event.getEstimatedTotalCount(), event.getCompletionPercentage(), false));
-        lastProgressUpdate = System.currentTimeMillis();
+      long now = System.currentTimeMillis();
+      if (now > lastProgressUpdate + PROGRESS_UPDATE_THROTTLE) {
+        EventBus.getDefault().post(new Status(event.getCount(), event.getEstimatedTotalCount(), event.getCompletionPercentage(), bytesSent, getBytesPerSecond(now), false));
+        lastProgressUpdate = now;
       }
     }
   }
@@ -68,19 +146,23 @@ final class OldDeviceClientTask implements ClientTask {
   @Override
   public void success() {
     SignalStore.misc().setOldDeviceTransferLocked(true);
-    EventBus.getDefault().post(new Status(0, 0, 0,true));
+    EventBus.getDefault().post(new Status(0, 0, 0, bytesSent, 0, true));
   }
 
   public static final class Status {
     private final long    messages;
     private final long    estimatedMessages;
     private final double  completionPercentage;
+    private final long    bytesSent;
+    private final long    bytesPerSecond;
     private final boolean done;
 
-    public Status(long messages, long estimatedMessages, double completionPercentage, boolean done) {
+    public Status(long messages, long estimatedMessages, double completionPercentage, long bytesSent, long bytesPerSecond, boolean done) {
       this.messages             = messages;
       this.estimatedMessages    = estimatedMessages;
       this.completionPercentage = completionPercentage;
+      this.bytesSent            = bytesSent;
+      this.bytesPerSecond       = bytesPerSecond;
       this.done                 = done;
     }
 
@@ -96,6 +178,17 @@ final class OldDeviceClientTask implements ClientTask {
       return completionPercentage;
     }
 
+    public long getBytesSent() {
+      return bytesSent;
+    }
+
+    /**
+     * Average rate that data has been written to the socket since the transfer started.
+     */
+    public long getBytesPerSecond() {
+      return bytesPerSecond;
+    }
+
     public boolean isDone() {
       return done;
     }
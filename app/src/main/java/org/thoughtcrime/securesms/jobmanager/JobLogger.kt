@@ -23,4 +23,10 @@ object JobLogger {
 
     return "[JOB::$id][${job.javaClass.simpleName}]$tag $event (Time Since Submission: $timeSinceSubmission ms, Lifespan: $lifespan, Run Attempt: $runAttempt/$maxAttempts, Queue: ${job.parameters.queue})"
   }
+
+  @JvmStatic
+  fun formatJournalFlush(updates: Int, running: Int, deletes: Int, recorded: Int, latency: Long): String {
+    val writes = updates + running + deletes
+    return "[JOURNAL] Flushed $writes writes (Updates: $updates, Running: $running, Deletes: $deletes, Coalesced: ${recorded - writes}, Latency: $latency ms)"
+  }
 }
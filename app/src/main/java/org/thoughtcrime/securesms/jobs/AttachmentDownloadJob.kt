@@ -44,6 +44,7 @@ import org.whispersystems.signalservice.api.push.exceptions.MissingConfiguration
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import org.whispersystems.signalservice.api.push.exceptions.RangeException
+import org.whispersystems.signalservice.internal.push.SegmentedDownload
 import java.io.File
 import java.io.IOException
 import java.util.Optional
@@ -239,21 +240,23 @@ class AttachmentDownloadJob private constructor(
         val cdnCredentials = BackupRepository.getCdnReadCredentials(attachment.archiveCdn).successOrThrow().headers
 
         messageReceiver
-          .retrieveArchivedAttachment(
+          .retrieveArchivedAttachmentSinglePass(
             SignalStore.svr().getOrCreateMasterKey().deriveBackupKey().deriveMediaSecrets(MediaName(attachment.archiveMediaName!!)),
             cdnCredentials,
             archiveFile,
             pointer,
             attachmentFile,
             maxReceiveSize,
+            FeatureFlags.cdnDownloadSegments(),
             progressListener
           )
       } else {
         messageReceiver
-          .retrieveAttachment(
+          .retrieveAttachmentSinglePass(
             pointer,
             attachmentFile,
             maxReceiveSize,
+            FeatureFlags.cdnDownloadSegments(),
             progressListener
           )
       }
@@ -262,7 +265,7 @@ class AttachmentDownloadJob private constructor(
     } catch (e: RangeException) {
       val transferFile = archiveFile ?: attachmentFile
       Log.w(TAG, "Range exception, file size " + transferFile.length(), e)
-      if (transferFile.delete()) {
+      if (SegmentedDownload.deletePartialDownload(transferFile)) {
         Log.i(TAG, "Deleted temp download file to recover")
         throw RetryLaterException(e)
       } else {
@@ -288,7 +291,12 @@ class AttachmentDownloadJob private constructor(
       markFailed(messageId, attachmentId)
     } catch (e: MmsException) {
       Log.w(TAG, "Experienced exception while trying to download an attachment.", e)
-      markFailed(messageId, attachmentId)
+      if (e.cause?.cause is InvalidMacException) {
+        Log.w(TAG, "Detected an invalid mac while decrypting. Treating as a permanent failure.")
+        markPermanentlyFailed(messageId, attachmentId)
+      } else {
+        markFailed(messageId, attachmentId)
+      }
     } catch (e: MissingConfigurationException) {
       Log.w(TAG, "Experienced exception while trying to download an attachment.", e)
       markFailed(messageId, attachmentId)
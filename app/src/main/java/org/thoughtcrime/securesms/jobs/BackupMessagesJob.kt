@@ -99,7 +99,7 @@ class BackupMessagesJob private constructor(parameters: Parameters) : BaseJob(pa
     val tempBackupFile = BlobProvider.getInstance().forNonAutoEncryptingSingleSessionOnDisk(ApplicationDependencies.getApplication())
 
     val outputStream = FileOutputStream(tempBackupFile)
-    BackupRepository.export(outputStream = outputStream, append = { tempBackupFile.appendBytes(it) }, plaintext = false)
+    BackupRepository.export(outputStream = outputStream, append = { tempBackupFile.appendBytes(it) }, plaintext = false, pipelined = true)
 
     FileInputStream(tempBackupFile).use {
       BackupRepository.uploadBackupFile(it, tempBackupFile.length())
@@ -7,16 +7,48 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage
+import java.util.TreeSet
+
+/**
+ * An in-memory [JobStorage] that is backed by [JobDatabase].
+ *
+ * Jobs are indexed by id and by queue, and we keep track of the set of jobs that are at the head of their queue and have no outstanding dependencies.
+ * That set is updated incrementally as jobs are inserted, run, retried and deleted, so finding the next job to run doesn't require a scan over every job.
+ *
+ * If a [JobStorageJournal] is provided, marking a job as running is written to the database in batches through the journal rather than one at a time.
+ * Every other change is still on disk before its method returns, so that a finished job is never run again and a retry is never forgotten after a crash.
+ * Those writes take any pending journal entries with them in the same transaction.
+ */
+class FastJobStorage @JvmOverloads constructor(
+  private val jobDatabase: JobDatabase,
+  private val journal: JobStorageJournal? = null
+) : JobStorage {
+
+  /** All jobs, in insertion order. */
+  private val jobsById: MutableMap<String, JobEntry> = LinkedHashMap()
+
+  /** Jobs with a queue, grouped by queue key and ordered by [JobEntry.COMPARATOR]. The first item is the next job to run in that queue. */
+  private val jobsByQueue: MutableMap<String, TreeSet<JobEntry>> = HashMap()
+
+  /** The head of every queue (or queue-less job) that isn't running and has no dependencies, keyed by [effectiveQueueKey]. */
+  private val readyByQueue: MutableMap<String, JobEntry> = HashMap()
+
+  /** Same contents as [readyByQueue], but ordered by [JobEntry.COMPARATOR]. */
+  private val readyJobs: TreeSet<JobEntry> = TreeSet(JobEntry.COMPARATOR)
 
-class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
-
-  private val jobs: MutableList<JobSpec> = mutableListOf()
   private val constraintsByJobId: MutableMap<String, MutableList<ConstraintSpec>> = mutableMapOf()
   private val dependenciesByJobId: MutableMap<String, MutableList<DependencySpec>> = mutableMapOf()
 
+  /** Reverse index of [dependenciesByJobId]: jobId -> ids of the jobs that depend on it. */
+  private val dependentsByJobId: MutableMap<String, MutableSet<String>> = mutableMapOf()
+
+  private var nextSequence: Long = 0
+
   @Synchronized
   override fun init() {
-    jobs += jobDatabase.getAllJobSpecs()
+    for (jobSpec in jobDatabase.getAllJobSpecs()) {
+      addJob(jobSpec)
+    }
 
     for (constraintSpec in jobDatabase.getAllConstraintSpecs()) {
       val jobConstraints: MutableList<ConstraintSpec> = constraintsByJobId.getOrPut(constraintSpec.jobSpecId) { mutableListOf() }
@@ -24,9 +56,10 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     }
 
     for (dependencySpec in jobDatabase.getAllDependencySpecs().filterNot { it.hasCircularDependency() }) {
-      val jobDependencies: MutableList<DependencySpec> = dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() }
-      jobDependencies += dependencySpec
+      addDependency(dependencySpec)
     }
+
+    rebuildReadyJobs()
   }
 
   @Synchronized
@@ -34,24 +67,33 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     val durable: List<FullSpec> = fullSpecs.filterNot { it.isMemoryOnly }
 
     if (durable.isNotEmpty()) {
+      journal?.flush()
       jobDatabase.insertJobs(durable)
     }
 
     for (fullSpec in fullSpecs) {
-      jobs += fullSpec.jobSpec
+      addJob(fullSpec.jobSpec)
       constraintsByJobId[fullSpec.jobSpec.id] = fullSpec.constraintSpecs.toMutableList()
-      dependenciesByJobId[fullSpec.jobSpec.id] = fullSpec.dependencySpecs.toMutableList()
+
+      removeDependencies(fullSpec.jobSpec.id)
+      for (dependencySpec in fullSpec.dependencySpecs) {
+        addDependency(dependencySpec)
+      }
+    }
+
+    for (fullSpec in fullSpecs) {
+      refreshReadiness(fullSpec.jobSpec.effectiveQueueKey())
     }
   }
 
   @Synchronized
   override fun getJobSpec(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+    return jobsById[id]?.spec
   }
 
   @Synchronized
   override fun getAllJobSpecs(): List<JobSpec> {
-    return ArrayList(jobs)
+    return jobsById.values.map { it.spec }
   }
 
   @Synchronized
@@ -63,131 +105,107 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     } else if (migrationJob != null) {
       emptyList()
     } else {
-      jobs
-        .groupBy {
-          // Group together by queue. If it doesn't have a queue, we just use the ID, since it's unique and will give us all of the jobs without queues.
-          it.queueKey ?: it.id
-        }
-        .map { byQueueKey: Map.Entry<String, List<JobSpec>> ->
-          // We want to find the next job we should run within each queue. It should be the oldest job within the group of jobs with the highest priority.
-          // We can get this by sorting by createTime, then taking first job in that list that has the max priority.
-          byQueueKey.value
-            .sortedBy { it.createTime }
-            .maxByOrNull { it.priority }
-        }
-        .filterNotNull()
-        .filter { job ->
-          // Filter out all jobs with unmet dependencies
-          dependenciesByJobId[job.id].isNullOrEmpty()
-        }
-        .filterNot { it.isRunning }
-        .filter { job -> job.hasEligibleRunTime(currentTime) }
-        .sortedBy { it.createTime }
-        .sortedByDescending { it.priority }
-
-      // Note: The priority sort at the end is safe because it's stable. That means that within jobs with the same priority, they will still be sorted by createTime.
+      // readyJobs only contains the heads of each queue that aren't running and have no dependencies, already sorted by priority and then createTime.
+      // All that's left is to filter out the ones that are still waiting on their backoff.
+      readyJobs
+        .asSequence()
+        .map { it.spec }
+        .filter { it.hasEligibleRunTime(currentTime) }
+        .toList()
     }
   }
 
   @Synchronized
   override fun getJobsInQueue(queue: String): List<JobSpec> {
-    return jobs
-      .filter { it.queueKey == queue }
-      .sortedBy { it.createTime }
-  }
+    val queueJobs: Set<JobEntry> = jobsByQueue[queue] ?: return emptyList()
 
-  private fun getMigrationJob(): JobSpec? {
-    return jobs
-      .filter { it.queueKey == Job.Parameters.MIGRATION_QUEUE_KEY }
-      .firstOrNull { firstInQueue(it) }
+    return queueJobs
+      .sortedWith(JobEntry.CREATE_TIME_COMPARATOR)
+      .map { it.spec }
   }
 
-  private fun firstInQueue(job: JobSpec): Boolean {
-    return if (job.queueKey == null) {
-      true
-    } else {
-      val firstInQueue: JobSpec? = jobs
-        .filter { it.queueKey == job.queueKey }
-        .minByOrNull { it.createTime }
-
-      job == firstInQueue
-    }
+  private fun getMigrationJob(): JobSpec? {
+    return jobsByQueue[Job.Parameters.MIGRATION_QUEUE_KEY]
+      ?.minWithOrNull(JobEntry.CREATE_TIME_COMPARATOR)
+      ?.spec
   }
 
   @Synchronized
   override fun getJobCountForFactory(factoryKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey }
-      .size
+    return jobsById.values.count { it.spec.factoryKey == factoryKey }
   }
 
   @Synchronized
   override fun getJobCountForFactoryAndQueue(factoryKey: String, queueKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey && it.queueKey == queueKey }
-      .size
+    return jobsByQueue[queueKey]?.count { it.spec.factoryKey == factoryKey } ?: 0
   }
 
   @Synchronized
   override fun areQueuesEmpty(queueKeys: Set<String>): Boolean {
-    return jobs.none { it.queueKey != null && queueKeys.contains(it.queueKey) }
+    return queueKeys.all { jobsByQueue[it].isNullOrEmpty() }
   }
 
   @Synchronized
   override fun markJobAsRunning(id: String, currentTime: Long) {
     val job: JobSpec? = getJobById(id)
+    val updated: JobSpec? = job?.copy(
+      isRunning = true,
+      lastRunAttemptTime = currentTime
+    )
+
     if (job == null || !job.isMemoryOnly) {
-      jobDatabase.markJobAsRunning(id, currentTime)
+      if (journal != null && updated != null) {
+        journal.markRunning(id, currentTime)
+      } else {
+        jobDatabase.markJobAsRunning(id, currentTime)
+      }
     }
 
-    val iter = jobs.listIterator()
-
-    while (iter.hasNext()) {
-      val current: JobSpec = iter.next()
-      if (current.id == id) {
-        iter.set(
-          current.copy(
-            isRunning = true,
-            lastRunAttemptTime = currentTime
-          )
-        )
-      }
+    if (updated != null) {
+      replaceJob(updated)
     }
   }
 
   @Synchronized
   override fun updateJobAfterRetry(id: String, currentTime: Long, runAttempt: Int, nextBackoffInterval: Long, serializedData: ByteArray?) {
     val job = getJobById(id)
+    val updated: JobSpec? = job?.copy(
+      isRunning = false,
+      runAttempt = runAttempt,
+      lastRunAttemptTime = currentTime,
+      nextBackoffInterval = nextBackoffInterval,
+      serializedData = serializedData
+    )
+
     if (job == null || !job.isMemoryOnly) {
-      jobDatabase.updateJobAfterRetry(id, currentTime, runAttempt, nextBackoffInterval, serializedData)
+      if (journal != null && updated != null) {
+        journal.update(updated)
+        journal.flush()
+      } else {
+        jobDatabase.updateJobAfterRetry(id, currentTime, runAttempt, nextBackoffInterval, serializedData)
+      }
     }
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      if (current.id == id) {
-        iter.set(
-          current.copy(
-            isRunning = false,
-            runAttempt = runAttempt,
-            lastRunAttemptTime = currentTime,
-            nextBackoffInterval = nextBackoffInterval,
-            serializedData = serializedData
-          )
-        )
-      }
+    if (updated != null) {
+      replaceJob(updated)
     }
   }
 
   @Synchronized
   override fun updateAllJobsToBePending() {
+    journal?.flush()
     jobDatabase.updateAllJobsToBePending()
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      iter.set(current.copy(isRunning = false))
+    val all: List<JobEntry> = jobsById.values.toList()
+
+    jobsById.clear()
+    jobsByQueue.clear()
+
+    for (entry in all) {
+      indexEntry(JobEntry(entry.spec.copy(isRunning = false), entry.sequence))
     }
+
+    rebuildReadyJobs()
   }
 
   @Synchronized
@@ -199,18 +217,17 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       }
 
     if (durable.isNotEmpty()) {
-      jobDatabase.updateJobs(durable)
+      if (journal != null) {
+        durable.forEach { journal.update(it) }
+        journal.flush()
+      } else {
+        jobDatabase.updateJobs(durable)
+      }
     }
 
-    val updatesById: Map<String, JobSpec> = jobSpecs.associateBy { it.id }
-
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      val update = updatesById[current.id]
-
-      if (update != null) {
-        iter.set(update)
+    for (update in jobSpecs) {
+      if (jobsById.containsKey(update.id)) {
+        replaceJob(update)
       }
     }
   }
@@ -228,26 +245,40 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       .map { it.id }
 
     if (durableIds.isNotEmpty()) {
-      jobDatabase.deleteJobs(durableIds)
+      if (journal != null) {
+        durableIds.forEach { journal.delete(it) }
+        journal.flush()
+      } else {
+        jobDatabase.deleteJobs(durableIds)
+      }
     }
 
-    val deleteIds: Set<String> = jobIds.toSet()
-    jobs.removeIf { deleteIds.contains(it.id) }
+    val affectedQueueKeys: MutableSet<String> = mutableSetOf()
 
     for (jobId in jobIds) {
+      val removed: JobEntry? = jobsById.remove(jobId)
+      if (removed != null) {
+        unindexQueue(removed)
+        affectedQueueKeys += removed.spec.effectiveQueueKey()
+      }
+
       constraintsByJobId.remove(jobId)
-      dependenciesByJobId.remove(jobId)
 
-      for (dependencyList in dependenciesByJobId.values) {
-        val iter = dependencyList.iterator()
+      removeDependencies(jobId)
+
+      dependentsByJobId.remove(jobId)?.forEach { dependentId ->
+        dependenciesByJobId[dependentId]?.removeIf { it.dependsOnJobId == jobId }
 
-        while (iter.hasNext()) {
-          if (iter.next().dependsOnJobId == jobId) {
-            iter.remove()
-          }
+        val dependent: JobSpec? = getJobById(dependentId)
+        if (dependent != null) {
+          affectedQueueKeys += dependent.effectiveQueueKey()
         }
       }
     }
+
+    for (queueKey in affectedQueueKeys) {
+      refreshReadiness(queueKey)
+    }
   }
 
   @Synchronized
@@ -278,8 +309,10 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   }
 
   private fun getSingleLayerOfDependencySpecsThatDependOnJob(jobSpecId: String): List<DependencySpec> {
-    return dependenciesByJobId
-      .values
+    val dependentIds: Set<String> = dependentsByJobId[jobSpecId] ?: return emptyList()
+
+    return dependentIds
+      .mapNotNull { dependenciesByJobId[it] }
       .flatten()
       .filter { it.dependsOnJobId == jobSpecId }
   }
@@ -289,7 +322,102 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   }
 
   private fun getJobById(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+    return jobsById[id]?.spec
+  }
+
+  private fun addJob(jobSpec: JobSpec) {
+    val existing: JobEntry? = jobsById[jobSpec.id]
+    if (existing != null) {
+      unindexQueue(existing)
+    }
+
+    indexEntry(JobEntry(jobSpec, existing?.sequence ?: nextSequence++))
+  }
+
+  /**
+   * Swaps in an updated version of an existing job, keeping its original position in insertion order, and updates the ready set for any queue it touched.
+   */
+  private fun replaceJob(updated: JobSpec) {
+    val existing: JobEntry = jobsById[updated.id] ?: return
+
+    unindexQueue(existing)
+    indexEntry(JobEntry(updated, existing.sequence))
+
+    val oldQueueKey = existing.spec.effectiveQueueKey()
+    val newQueueKey = updated.effectiveQueueKey()
+
+    refreshReadiness(oldQueueKey)
+    if (newQueueKey != oldQueueKey) {
+      refreshReadiness(newQueueKey)
+    }
+  }
+
+  private fun indexEntry(entry: JobEntry) {
+    jobsById[entry.spec.id] = entry
+
+    val queueKey: String = entry.spec.queueKey ?: return
+    jobsByQueue.getOrPut(queueKey) { TreeSet(JobEntry.COMPARATOR) } += entry
+  }
+
+  private fun unindexQueue(entry: JobEntry) {
+    val queueKey: String = entry.spec.queueKey ?: return
+    val queue: TreeSet<JobEntry> = jobsByQueue[queueKey] ?: return
+
+    queue.remove(entry)
+
+    if (queue.isEmpty()) {
+      jobsByQueue.remove(queueKey)
+    }
+  }
+
+  private fun addDependency(dependencySpec: DependencySpec) {
+    dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() } += dependencySpec
+    dependentsByJobId.getOrPut(dependencySpec.dependsOnJobId) { mutableSetOf() } += dependencySpec.jobId
+  }
+
+  private fun removeDependencies(jobId: String) {
+    dependenciesByJobId.remove(jobId)?.forEach { dependency ->
+      dependentsByJobId[dependency.dependsOnJobId]?.remove(jobId)
+    }
+  }
+
+  private fun rebuildReadyJobs() {
+    readyByQueue.clear()
+    readyJobs.clear()
+
+    for (queueKey in jobsByQueue.keys) {
+      refreshReadiness(queueKey)
+    }
+
+    for (entry in jobsById.values) {
+      if (entry.spec.queueKey == null) {
+        refreshReadiness(entry.spec.id)
+      }
+    }
+  }
+
+  /**
+   * Recalculates whether or not the head of the specified queue is ready to run. For jobs without a queue, the key is the job's id.
+   */
+  private fun refreshReadiness(effectiveQueueKey: String) {
+    val previous: JobEntry? = readyByQueue.remove(effectiveQueueKey)
+    if (previous != null) {
+      readyJobs.remove(previous)
+    }
+
+    val head: JobEntry? = jobsByQueue[effectiveQueueKey]?.first() ?: jobsById[effectiveQueueKey]?.takeIf { it.spec.queueKey == null }
+
+    if (head != null && !head.spec.isRunning && dependenciesByJobId[head.spec.id].isNullOrEmpty()) {
+      readyByQueue[effectiveQueueKey] = head
+      readyJobs += head
+    }
+  }
+
+  /**
+   * Jobs without a queue are effectively in a queue of their own. We use the job's id as the key for that queue, since it's unique.
+   */
+  private fun JobSpec.effectiveQueueKey(): String {
+    return this.queueKey ?: this.id
   }
 
   /**
@@ -328,4 +456,19 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   private fun JobSpec.hasEligibleRunTime(currentTime: Long): Boolean {
     return this.lastRunAttemptTime > currentTime || (this.lastRunAttemptTime + this.nextBackoffInterval) < currentTime
   }
+
+  /**
+   * A [JobSpec] along with the order in which it was added to the storage, which is used to break ties between jobs with the same priority and createTime.
+   */
+  private class JobEntry(val spec: JobSpec, val sequence: Long) {
+    companion object {
+      /** Highest priority first, then oldest first. */
+      val COMPARATOR: Comparator<JobEntry> = compareByDescending<JobEntry> { it.spec.priority }
+        .thenBy { it.spec.createTime }
+        .thenBy { it.sequence }
+
+      val CREATE_TIME_COMPARATOR: Comparator<JobEntry> = compareBy<JobEntry> { it.spec.createTime }
+        .thenBy { it.sequence }
+    }
+  }
 }
@@ -0,0 +1,80 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import java.lang.Exception
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * When message search indexing is deferred, this adds the messages that are waiting in the pending table to the index in small batches,
+ * and then merges the index segments that this creates.
+ */
+class IndexPendingMessageSearchJob private constructor(parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    const val KEY = "IndexPendingMessageSearchJob"
+
+    private val TAG = Log.tag(IndexPendingMessageSearchJob::class.java)
+
+    private const val BATCH_SIZE = 500
+    private val MAX_RUN_TIME = 5.seconds
+
+    @JvmStatic
+    fun enqueueIfNecessary() {
+      if (SignalDatabase.messageSearch.hasPendingMessages()) {
+        ApplicationDependencies.getJobManager().add(IndexPendingMessageSearchJob())
+      }
+    }
+  }
+
+  constructor() : this(
+    Parameters.Builder()
+      .setQueue("IndexPendingMessageSearchJob")
+      .setMaxAttempts(Parameters.UNLIMITED)
+      .setMaxInstancesForQueue(2)
+      .build()
+  )
+
+  override fun serialize(): ByteArray? = null
+  override fun getFactoryKey() = KEY
+  override fun onFailure() = Unit
+  override fun onShouldRetry(e: Exception) = e is RetryLaterException
+  override fun getNextRunAttemptBackoff(pastAttemptCount: Int, exception: Exception): Long = 1.seconds.inWholeMilliseconds
+
+  override fun onRun() {
+    if (!SignalStore.registrationValues().isRegistrationComplete || SignalStore.account().aci == null) {
+      Log.w(TAG, "Registration not finished yet! Skipping.")
+      return
+    }
+
+    val startTime = System.currentTimeMillis()
+    var totalIndexed = 0
+
+    while (System.currentTimeMillis() - startTime < MAX_RUN_TIME.inWholeMilliseconds) {
+      val indexed = SignalDatabase.messageSearch.indexPendingMessages(BATCH_SIZE)
+      if (indexed == 0) {
+        break
+      }
+      totalIndexed += indexed
+    }
+
+    Log.d(TAG, "Indexed $totalIndexed messages in ${System.currentTimeMillis() - startTime} ms")
+
+    if (totalIndexed > 0) {
+      SignalDatabase.messageSearch.optimizeIndex(MAX_RUN_TIME.inWholeMilliseconds)
+    }
+
+    if (SignalDatabase.messageSearch.hasPendingMessages()) {
+      // Give other writers a chance before picking up where we left off
+      throw RetryLaterException()
+    }
+  }
+
+  class Factory : Job.Factory<IndexPendingMessageSearchJob> {
+    override fun create(parameters: Parameters, serializedData: ByteArray?) = IndexPendingMessageSearchJob(parameters)
+  }
+}
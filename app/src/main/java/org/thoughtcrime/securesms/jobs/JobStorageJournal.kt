@@ -0,0 +1,142 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.JobDatabase
+import org.thoughtcrime.securesms.jobmanager.JobLogger
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * A write-behind journal for [FastJobStorage]. Rather than writing every state change to [JobDatabase] as it happens, changes are recorded here and
+ * written out together in a single transaction, either after a short delay or when [flush] is called explicitly.
+ *
+ * Changes are coalesced per job: only the most recent version of a job is written, and any pending update for a job that is later deleted is dropped.
+ * A job being marked as running is recorded as just that, so that flushing it only writes the columns that changed rather than the whole job.
+ *
+ * Inserts are never journaled. [FastJobStorage] flushes the journal before writing an insert, so the database never sees writes out of order. This means
+ * that a durable job is always on disk once it has been submitted.
+ *
+ * Only writes that are safe to lose are left to the delayed flush. [FastJobStorage] flushes right after recording a delete, a retry or a data update, so
+ * a finished job can't run again and a retry count can't go backwards after a crash. What a crash can lose is a job being marked as running, which
+ * [FastJobStorage.updateAllJobsToBePending] resets on the next launch anyway.
+ */
+class JobStorageJournal @JvmOverloads constructor(
+  private val jobDatabase: JobDatabase,
+  private val flushDelayMs: Long = DEFAULT_FLUSH_DELAY_MS,
+  private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { Thread(it, "signal-job-journal") }
+) {
+
+  /** Guards [pending] and [flushScheduled]. */
+  private val pendingLock = Any()
+
+  /** Held for the duration of a flush, so that flushes are applied in order. */
+  private val flushLock = Any()
+
+  private val pending: MutableMap<String, PendingWrite> = LinkedHashMap()
+  private var flushScheduled = false
+  private var recordedSinceFlush = 0
+
+  /**
+   * Records the latest state of a job. Memory-only jobs are ignored.
+   */
+  fun update(jobSpec: JobSpec) {
+    if (jobSpec.isMemoryOnly) {
+      return
+    }
+
+    synchronized(pendingLock) {
+      if (pending[jobSpec.id] !is PendingWrite.Delete) {
+        pending[jobSpec.id] = PendingWrite.Update(jobSpec)
+      }
+      recordedSinceFlush++
+      scheduleFlush()
+    }
+  }
+
+  /**
+   * Records that a job started running. If a full update is already pending for the job, the change is folded into it instead.
+   */
+  fun markRunning(jobId: String, lastRunAttemptTime: Long) {
+    synchronized(pendingLock) {
+      when (val existing = pending[jobId]) {
+        is PendingWrite.Delete -> Unit
+        is PendingWrite.Update -> pending[jobId] = PendingWrite.Update(existing.jobSpec.copy(isRunning = true, lastRunAttemptTime = lastRunAttemptTime))
+        else -> pending[jobId] = PendingWrite.Running(lastRunAttemptTime)
+      }
+      recordedSinceFlush++
+      scheduleFlush()
+    }
+  }
+
+  /**
+   * Records that a job was deleted. Any pending update for the job is dropped, since it would be redundant.
+   */
+  fun delete(jobId: String) {
+    synchronized(pendingLock) {
+      pending[jobId] = PendingWrite.Delete
+      recordedSinceFlush++
+      scheduleFlush()
+    }
+  }
+
+  /**
+   * Synchronously writes everything that has been recorded so far. Once this returns, the database reflects every change made before it was called.
+   */
+  fun flush() {
+    synchronized(flushLock) {
+      val writes: List<Pair<String, PendingWrite>>
+      val recorded: Int
+
+      synchronized(pendingLock) {
+        if (pending.isEmpty()) {
+          return
+        }
+
+        writes = pending.toList()
+        recorded = recordedSinceFlush
+        pending.clear()
+        recordedSinceFlush = 0
+      }
+
+      val updates: List<JobSpec> = writes.mapNotNull { (it.second as? PendingWrite.Update)?.jobSpec }
+      val running: Map<String, Long> = writes.mapNotNull { (id, write) -> (write as? PendingWrite.Running)?.let { id to it.lastRunAttemptTime } }.toMap()
+      val deletes: List<String> = writes.filter { it.second is PendingWrite.Delete }.map { it.first }
+
+      val startTime = System.currentTimeMillis()
+      jobDatabase.writeBatch(updates, running, deletes)
+      val latency = System.currentTimeMillis() - startTime
+
+      Log.d(TAG, JobLogger.formatJournalFlush(updates.size, running.size, deletes.size, recorded, latency))
+    }
+  }
+
+  private fun scheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true
+      executor.schedule(
+        {
+          synchronized(pendingLock) {
+            flushScheduled = false
+          }
+          flush()
+        },
+        flushDelayMs,
+        TimeUnit.MILLISECONDS
+      )
+    }
+  }
+
+  private sealed class PendingWrite {
+    class Update(val jobSpec: JobSpec) : PendingWrite()
+    class Running(val lastRunAttemptTime: Long) : PendingWrite()
+    object Delete : PendingWrite()
+  }
+
+  companion object {
+    private val TAG = Log.tag(JobStorageJournal::class.java)
+
+    const val DEFAULT_FLUSH_DELAY_MS = 100L
+  }
+}
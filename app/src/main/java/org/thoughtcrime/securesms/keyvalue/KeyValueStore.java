@@ -11,6 +11,7 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.util.SignalUncaughtExceptionHandler;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
@@ -22,8 +23,11 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
- * Writes are enqueued on a separate executor, but writes are finished up in
- * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
+ * Reads never take a lock. The cache is an immutable {@link Snapshot} that is swapped out, rather than changed, on every write, so a read only has to
+ * look at whichever snapshot is current. Writes are serialized on the store, and the ones that haven't been persisted yet are merged into a single
+ * pending batch that a separate executor writes out.
+ *
+ * Writes are finished up in {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
  * or the system killing us unexpectedly (i.e. a force-stop).
  */
 public final class KeyValueStore implements KeyValueReader {
@@ -33,7 +37,10 @@ public final class KeyValueStore implements KeyValueReader {
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  private volatile Snapshot snapshot;
+
+  private KeyValueDataSet pendingWrites;
+  private Set<String>     pendingRemoves;
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
     this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
@@ -42,51 +49,44 @@ public final class KeyValueStore implements KeyValueReader {
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getSnapshot().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getSnapshot().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getSnapshot().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getSnapshot().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getSnapshot().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getSnapshot().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getSnapshot().containsKey(key);
   }
 
   /**
@@ -104,20 +104,15 @@ public final class KeyValueStore implements KeyValueReader {
    *         efficient to use the various get* methods instead.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getSnapshot();
   }
 
   /**
    * Ensures that any pending writes (such as those made via {@link Writer#apply()}) are finished.
    */
   @AnyThread
-  synchronized void blockUntilAllWritesFinished() {
+  void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
     executor.execute(latch::countDown);
@@ -133,22 +128,53 @@ public final class KeyValueStore implements KeyValueReader {
    * Forces the store to re-fetch all of it's data from the database.
    */
   synchronized void resetCache() {
-    dataSet = null;
-    initializeIfNecessary();
+    snapshot = new Snapshot(storage.getDataSet());
   }
 
   private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
-    initializeIfNecessary();
+    snapshot = getSnapshot().with(newDataSet, removes);
+
+    boolean schedule = pendingWrites == null;
+
+    if (schedule) {
+      pendingWrites  = new KeyValueDataSet();
+      pendingRemoves = new HashSet<>();
+    }
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+    pendingWrites.removeAll(removes);
+    pendingWrites.putAll(newDataSet);
+    pendingRemoves.removeAll(newDataSet.getValues().keySet());
+    pendingRemoves.addAll(removes);
+
+    if (schedule) {
+      executor.execute(this::writePending);
+    }
+  }
+
+  private void writePending() {
+    KeyValueDataSet writes;
+    Set<String>     removes;
+
+    synchronized (this) {
+      writes         = pendingWrites;
+      removes        = pendingRemoves;
+      pendingWrites  = null;
+      pendingRemoves = null;
+    }
 
-    executor.execute(() -> storage.writeDataSet(newDataSet, removes));
+    storage.writeDataSet(writes, removes);
   }
 
-  private void initializeIfNecessary() {
-    if (dataSet != null) return;
-    this.dataSet = storage.getDataSet();
+  private @NonNull Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    return current != null ? current : initialize();
+  }
+
+  private synchronized @NonNull Snapshot initialize() {
+    if (snapshot == null) {
+      snapshot = new Snapshot(storage.getDataSet());
+    }
+    return snapshot;
   }
 
   class Writer {
@@ -207,4 +233,97 @@ public final class KeyValueStore implements KeyValueReader {
       blockUntilAllWritesFinished();
     }
   }
+
+  /**
+   * An immutable view of the whole store. Copying everything on every write would make writes slow, so recent changes are kept in a small overlay on top
+   * of a base data set, and only once the overlay has grown are they folded into a new base.
+   *
+   * The first base is the data set the storage loaded, which is expected to be a new one that the storage doesn't hold on to.
+   */
+  private static final class Snapshot implements KeyValueReader {
+
+    private static final int MAX_OVERLAY_SIZE = 64;
+
+    private final KeyValueDataSet base;
+    private final KeyValueDataSet overlay;
+    private final Set<String>     removed;
+
+    Snapshot(@NonNull KeyValueDataSet base) {
+      this(base, new KeyValueDataSet(), Collections.emptySet());
+    }
+
+    private Snapshot(@NonNull KeyValueDataSet base, @NonNull KeyValueDataSet overlay, @NonNull Set<String> removed) {
+      this.base    = base;
+      this.overlay = overlay;
+      this.removed = removed;
+    }
+
+    @NonNull Snapshot with(@NonNull KeyValueDataSet writes, @NonNull Collection<String> removes) {
+      KeyValueDataSet updatedOverlay = new KeyValueDataSet();
+      updatedOverlay.putAll(overlay);
+      updatedOverlay.putAll(writes);
+      updatedOverlay.removeAll(removes);
+
+      Set<String> updatedRemoved = new HashSet<>(removed);
+      updatedRemoved.removeAll(writes.getValues().keySet());
+      updatedRemoved.addAll(removes);
+
+      if (updatedOverlay.getValues().size() + updatedRemoved.size() <= MAX_OVERLAY_SIZE) {
+        return new Snapshot(base, updatedOverlay, updatedRemoved);
+      }
+
+      KeyValueDataSet updatedBase = new KeyValueDataSet();
+      updatedBase.putAll(base);
+      updatedBase.putAll(updatedOverlay);
+      updatedBase.removeAll(updatedRemoved);
+
+      return new Snapshot(updatedBase);
+    }
+
+    @Override
+    public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+      return source(key).getBlob(key, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+      return source(key).getBoolean(key, defaultValue);
+    }
+
+    @Override
+    public float getFloat(@NonNull String key, float defaultValue) {
+      return source(key).getFloat(key, defaultValue);
+    }
+
+    @Override
+    public int getInteger(@NonNull String key, int defaultValue) {
+      return source(key).getInteger(key, defaultValue);
+    }
+
+    @Override
+    public long getLong(@NonNull String key, long defaultValue) {
+      return source(key).getLong(key, defaultValue);
+    }
+
+    @Override
+    public String getString(@NonNull String key, String defaultValue) {
+      return source(key).getString(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(@NonNull String key) {
+      return source(key).containsKey(key);
+    }
+
+    /**
+     * @return The data set that decides the value of this key. If it's been removed, that's the (empty) overlay.
+     */
+    private @NonNull KeyValueDataSet source(@NonNull String key) {
+      if (overlay.containsKey(key) || removed.contains(key)) {
+        return overlay;
+      } else {
+        return base;
+      }
+    }
+  }
 }
@@ -0,0 +1,182 @@
+package org.thoughtcrime.securesms.logging
+
+import org.signal.core.util.logging.Log
+import org.signal.core.util.logging.Scrubber
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CharsetEncoder
+import java.nio.charset.CoderResult
+import java.nio.charset.CodingErrorAction
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * A compact binary form of a single log line, as stored by [PersistentLogger] when it's writing binary records.
+ *
+ * Records are written exactly as they were logged. The app version and tag are interned by the caller, and all of the formatting and scrubbing is left until
+ * the logs are read back with a [Formatter], which produces the same text that gets stored for text records.
+ *
+ * Layout: format (1 byte), level (1 byte), app version string id (varint), tag string id (varint), thread id + 1, or 0 for the main thread (varint), then
+ * the message as UTF-8 for the rest of the record.
+ */
+object BinaryLogRecord {
+
+  private const val FORMAT: Byte = 1
+  private const val DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS zzz"
+
+  const val MAIN_THREAD_ID = -1L
+
+  @JvmStatic
+  fun formatLine(versionName: String, threadString: String, date: String, level: String, tag: String, message: String?): String {
+    val redacted = if (Log.alwaysRedact) message ?: "" else Scrubber.scrub(message ?: "")
+    return "[$versionName] [$threadString] $date $level $tag: $redacted"
+  }
+
+  @JvmStatic
+  fun threadString(threadId: Long): String {
+    return if (threadId == MAIN_THREAD_ID) "main " else String.format(Locale.US, "%-5s", threadId)
+  }
+
+  @JvmStatic
+  fun newDateFormat(): SimpleDateFormat {
+    return SimpleDateFormat(DATE_FORMAT, Locale.US)
+  }
+
+  /**
+   * Not thread safe. Meant to live as long as the thread that writes the logs, so that the same buffer is used for every record.
+   */
+  class Encoder {
+    private val charsetEncoder: CharsetEncoder = Charsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+    private var buffer: ByteBuffer = ByteBuffer.allocate(1024)
+
+    /**
+     * Encodes [message] from [start] to [end], which makes it possible to write each line of a stack trace without splitting it up first.
+     */
+    @JvmOverloads
+    fun encode(level: Char, versionId: Int, tagId: Int, threadId: Long, message: CharSequence?, start: Int = 0, end: Int = message?.length ?: 0): ByteArray {
+      buffer.clear()
+      buffer.put(FORMAT)
+      buffer.put(level.code.toByte())
+      putVarint(versionId.toLong())
+      putVarint(tagId.toLong())
+      putVarint(threadId + 1)
+
+      if (message != null) {
+        encodeMessage(message, start, end)
+      }
+
+      return buffer.array().copyOf(buffer.position())
+    }
+
+    private fun encodeMessage(message: CharSequence, start: Int, end: Int) {
+      val chars = CharBuffer.wrap(message, start, end)
+
+      charsetEncoder.reset()
+      while (true) {
+        val result: CoderResult = charsetEncoder.encode(chars, buffer, true)
+        if (result.isOverflow) {
+          grow()
+        } else {
+          break
+        }
+      }
+
+      while (charsetEncoder.flush(buffer).isOverflow) {
+        grow()
+      }
+    }
+
+    private fun putVarint(value: Long) {
+      var remaining = value
+      while (true) {
+        if (buffer.remaining() == 0) {
+          grow()
+        }
+
+        if (remaining and 0x7FL.inv() == 0L) {
+          buffer.put(remaining.toByte())
+          return
+        }
+
+        buffer.put(((remaining and 0x7F) or 0x80).toByte())
+        remaining = remaining ushr 7
+      }
+    }
+
+    private fun grow() {
+      val larger = ByteBuffer.allocate(buffer.capacity() * 2)
+      buffer.flip()
+      larger.put(buffer)
+      buffer = larger
+    }
+  }
+
+  /**
+   * Turns records back into log lines. Not thread safe.
+   *
+   * @param strings The interned strings that records refer to, by id.
+   */
+  class Formatter(private val strings: Map<Int, String>) {
+    private val dateFormat = newDateFormat()
+    private val date = Date()
+    private val charsetDecoder: CharsetDecoder = Charsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+    fun format(record: ByteArray, createdAt: Long): String {
+      val buffer = ByteBuffer.wrap(record)
+      date.time = createdAt
+
+      if (record.isEmpty() || buffer.get() != FORMAT) {
+        return "Unknown log record format at ${dateFormat.format(date)}"
+      }
+
+      val level: Char
+      val versionId: Int
+      val tagId: Int
+      val threadId: Long
+      val message: String
+
+      try {
+        level = buffer.get().toInt().toChar()
+        versionId = getVarint(buffer).toInt()
+        tagId = getVarint(buffer).toInt()
+        threadId = getVarint(buffer) - 1
+        message = charsetDecoder.decode(buffer).toString()
+      } catch (e: BufferUnderflowException) {
+        return "Truncated log record at ${dateFormat.format(date)}"
+      }
+
+      return formatLine(
+        versionName = strings[versionId] ?: "?",
+        threadString = threadString(threadId),
+        date = dateFormat.format(date),
+        level = level.toString(),
+        tag = strings[tagId] ?: "?",
+        message = message
+      )
+    }
+
+    private fun getVarint(buffer: ByteBuffer): Long {
+      var value = 0L
+      var shift = 0
+
+      while (true) {
+        val b = buffer.get().toInt()
+        value = value or ((b and 0x7F).toLong() shl shift)
+
+        if (b and 0x80 == 0 || shift >= 63) {
+          return value
+        }
+
+        shift += 7
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package org.thoughtcrime.securesms.logging
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A bounded, lock-free queue for any number of producers and a single consumer.
+ *
+ * Each slot carries a sequence number that says whose turn it is: producers claim a position by bumping [tail], and publish the item by advancing the
+ * slot's sequence, which is what the consumer waits on. Nobody ever blocks, so a producer on the main thread can't get stuck behind the consumer.
+ *
+ * Items can be offered as sheddable, in which case they're turned away once the queue is [sheddableLimit] full, leaving the rest of the space for
+ * everything else.
+ */
+class MpscRingBuffer<T : Any>(capacity: Int, private val sheddableLimit: Int = capacity) {
+
+  private val capacity: Int
+  private val mask: Int
+  private val items: AtomicReferenceArray<T?>
+  private val sequences: AtomicLongArray
+
+  private val tail = AtomicLong(0)
+
+  @Volatile
+  private var head = 0L
+
+  init {
+    require(capacity > 0 && capacity and (capacity - 1) == 0) { "Capacity must be a power of two: $capacity" }
+    require(sheddableLimit in 0..capacity) { "Sheddable limit must be within the capacity: $sheddableLimit" }
+
+    this.capacity = capacity
+    this.mask = capacity - 1
+    this.items = AtomicReferenceArray(capacity)
+    this.sequences = AtomicLongArray(capacity)
+
+    for (i in 0 until capacity) {
+      sequences.set(i, i.toLong())
+    }
+  }
+
+  /**
+   * @return False if the queue was too full to take the item.
+   */
+  fun offer(item: T, sheddable: Boolean = false): Boolean {
+    while (true) {
+      val position = tail.get()
+
+      if (sheddable && position - head >= sheddableLimit) {
+        return false
+      }
+
+      val index = (position and mask.toLong()).toInt()
+      val available = sequences.get(index) - position
+
+      if (available == 0L) {
+        if (tail.compareAndSet(position, position + 1)) {
+          items.set(index, item)
+          sequences.set(index, position + 1)
+          return true
+        }
+      } else if (available < 0) {
+        return false
+      }
+    }
+  }
+
+  /**
+   * Only to be called by the consumer.
+   */
+  fun poll(): T? {
+    val position = head
+    val index = (position and mask.toLong()).toInt()
+
+    if (sequences.get(index) != position + 1) {
+      return null
+    }
+
+    val item = items.get(index)
+    items.lazySet(index, null)
+    sequences.set(index, position + capacity)
+    head = position + 1
+
+    return item
+  }
+
+  /**
+   * Only to be called by the consumer.
+   *
+   * @return How many items were moved into [out].
+   */
+  fun drainTo(out: MutableCollection<T>): Int {
+    var count = 0
+
+    while (true) {
+      val item = poll() ?: return count
+      out.add(item)
+      count++
+    }
+  }
+
+  /**
+   * Only meaningful to the consumer, since anyone else could be racing with it.
+   */
+  fun isEmpty(): Boolean {
+    val position = head
+    return sequences.get((position and mask.toLong()).toInt()) != position + 1
+  }
+
+  /** How many items have ever been accepted, including ones that are still being published. */
+  val offeredCount: Long
+    get() = tail.get()
+
+  /** How many items the consumer has taken. */
+  val polledCount: Long
+    get() = head
+}
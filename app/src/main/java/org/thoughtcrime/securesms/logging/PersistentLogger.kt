@@ -3,17 +3,20 @@ package org.thoughtcrime.securesms.logging
 import android.app.Application
 import android.os.Looper
 import org.signal.core.util.logging.Log
-import org.signal.core.util.logging.Scrubber
 import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.database.model.LogRecordBatch
 import org.thoughtcrime.securesms.logging.PersistentLogger.LogRequest
 import org.thoughtcrime.securesms.logging.PersistentLogger.WriteThread
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
-import java.text.SimpleDateFormat
+import java.io.PrintWriter
+import java.io.StringWriter
 import java.util.Date
-import java.util.Locale
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
 
 /**
  * A logger that will persist log entries in [LogDatabase].
@@ -22,14 +25,23 @@ import java.util.Locale
  * This class takes special care to do as little as possible on the main thread, instead letting the background thread do the work.
  *
  * The process looks something like:
- * - Main thread creates a [LogRequest] object and puts it in a queue
+ * - Main thread creates a [LogRequest] object and puts it in a bounded, lock-free queue
  * - The [WriteThread] constantly pulls from that queue, formats the logs, and writes them to the database.
+ *
+ * In [Format.BINARY], the write thread doesn't format anything. It writes each line as a [BinaryLogRecord], with tags interned, and the formatting and
+ * scrubbing happens when the logs are read back out of [LogDatabase].
  */
-class PersistentLogger(
-  application: Application
+class PersistentLogger @JvmOverloads constructor(
+  application: Application,
+  private val format: Format = Format.BINARY,
+  queueCapacity: Int = DEFAULT_QUEUE_CAPACITY
 ) : Log.Logger() {
 
   companion object {
+    private val TAG = Log.tag(PersistentLogger::class.java)
+
+    private const val DEFAULT_QUEUE_CAPACITY = 8192
+
     private const val LOG_V = "V"
     private const val LOG_D = "D"
     private const val LOG_I = "I"
@@ -37,12 +49,11 @@ class PersistentLogger(
     private const val LOG_E = "E"
   }
 
-  private val logEntries = LogRequests()
+  private val logEntries = LogRequests(queueCapacity)
   private val logDatabase = LogDatabase.getInstance(application)
-  private val cachedThreadString: ThreadLocal<String> = ThreadLocal()
 
   init {
-    WriteThread(logEntries, logDatabase).apply {
+    WriteThread(logEntries, logDatabase, format).apply {
       priority = Thread.MIN_PRIORITY
     }.start()
   }
@@ -78,23 +89,23 @@ class PersistentLogger(
   }
 
   private fun write(level: String, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
-    logEntries.add(LogRequest(level, tag ?: "null", message, System.currentTimeMillis(), getThreadString(), t, keepLonger))
+    logEntries.add(LogRequest(level, tag ?: "null", message, System.currentTimeMillis(), getThreadId(), t, keepLonger))
   }
 
-  private fun getThreadString(): String {
-    var threadString = cachedThreadString.get()
-
-    if (cachedThreadString.get() == null) {
-      threadString = if (Looper.myLooper() == Looper.getMainLooper()) {
-        "main "
-      } else {
-        String.format("%-5s", Thread.currentThread().id)
-      }
-
-      cachedThreadString.set(threadString)
+  private fun getThreadId(): Long {
+    return if (Looper.myLooper() == Looper.getMainLooper()) {
+      BinaryLogRecord.MAIN_THREAD_ID
+    } else {
+      Thread.currentThread().id
     }
+  }
+
+  enum class Format {
+    /** Every line is fully formatted and scrubbed before it's stored. */
+    TEXT,
 
-    return threadString!!
+    /** Every line is stored as a [BinaryLogRecord], and only formatted and scrubbed when it's read back. */
+    BINARY
   }
 
   private data class LogRequest(
@@ -102,38 +113,89 @@ class PersistentLogger(
     val tag: String,
     val message: String?,
     val createTime: Long,
-    val threadString: String,
+    val threadId: Long,
     val throwable: Throwable?,
     val keepLonger: Boolean
   )
 
   private class WriteThread(
     private val requests: LogRequests,
-    private val db: LogDatabase
+    private val db: LogDatabase,
+    private val format: Format
   ) : Thread("signal-logger") {
 
-    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+    private val dateFormat = BinaryLogRecord.newDateFormat()
     private val buffer = mutableListOf<LogRequest>()
+    private val threadStrings = HashMap<Long, String>()
+
+    private val encoder = BinaryLogRecord.Encoder()
+    private val batch = LogRecordBatch()
+    private val stringIds = HashMap<String, Int>()
+    private var versionId = 0
 
     override fun run() {
+      if (format == Format.BINARY) {
+        db.logs.getInternedStrings().forEach { (id, value) -> stringIds[value] = id }
+        versionId = getStringId(BuildConfig.VERSION_NAME)
+      }
+
       while (true) {
         requests.blockForRequests(buffer)
-        db.logs.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
+
+        requests.takeDroppedSummary()?.let { summary ->
+          buffer.add(LogRequest(LOG_W, TAG, summary, System.currentTimeMillis(), currentThread().id, null, false))
+        }
+
+        if (format == Format.BINARY) {
+          buffer.forEach { addRecords(it) }
+          db.logs.insert(batch, System.currentTimeMillis())
+        } else {
+          db.logs.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
+        }
+
         buffer.clear()
         requests.notifyFlushed()
       }
     }
 
+    private fun addRecords(request: LogRequest) {
+      val level = request.level[0]
+      val tagId = getStringId(request.tag)
+
+      batch.add(request.createTime, request.keepLonger, encoder.encode(level, versionId, tagId, request.threadId, request.message))
+
+      if (request.throwable != null) {
+        val writer = StringWriter()
+        request.throwable.printStackTrace(PrintWriter(writer))
+
+        val trace = writer.buffer
+        var start = 0
+
+        while (start < trace.length) {
+          val newline = trace.indexOf("\n", start)
+          val end = if (newline < 0) trace.length else newline
+
+          batch.add(request.createTime, request.keepLonger, encoder.encode(level, versionId, tagId, request.threadId, trace, start, end))
+          start = end + 1
+        }
+      }
+    }
+
+    private fun getStringId(value: String): Int {
+      return stringIds.getOrPut(value) { db.logs.internString(value) }
+    }
+
     fun requestToEntries(request: LogRequest): List<LogEntry> {
       val out = mutableListOf<LogEntry>()
 
       val createDate = Date(request.createTime)
+      val threadString = threadStrings.getOrPut(request.threadId) { BinaryLogRecord.threadString(request.threadId) }
 
       out.add(
         LogEntry(
           createdAt = request.createTime,
           keepLonger = request.keepLonger,
-          body = formatBody(request.threadString, createDate, request.level, request.tag, request.message)
+          body = formatBody(threadString, createDate, request.level, request.tag, request.message)
         )
       )
 
@@ -148,7 +210,7 @@ class PersistentLogger(
           LogEntry(
             createdAt = request.createTime,
             keepLonger = request.keepLonger,
-            body = formatBody(request.threadString, createDate, request.level, request.tag, line)
+            body = formatBody(threadString, createDate, request.level, request.tag, line)
           )
         }
 
@@ -159,22 +221,40 @@ class PersistentLogger(
     }
 
     fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
-      val redacted = if (Log.alwaysRedact) message ?: "" else Scrubber.scrub(message ?: "")
-      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: $redacted"
+      return BinaryLogRecord.formatLine(BuildConfig.VERSION_NAME, threadString, dateFormat.format(date), level, tag, message)
     }
   }
 
-  private class LogRequests {
-    val logs = mutableListOf<LogRequest>()
-    val logLock = Object()
+  /**
+   * The queue between every thread that logs and the [WriteThread]. Adding never takes a lock, and the writer is only woken up if it's actually asleep,
+   * so a burst of logs costs one wakeup rather than one per line.
+   *
+   * If the writer can't keep up, the queue stops taking verbose and debug logs once it's three quarters full, and everything once it's completely full.
+   * Either way the drops are counted, and reported in the log once there's room again.
+   */
+  private class LogRequests(capacity: Int) {
+    private val queue = MpscRingBuffer<LogRequest>(capacity, sheddableLimit = capacity / 4 * 3)
+
+    private val droppedVerbose = AtomicLong(0)
+    private val droppedOther = AtomicLong(0)
 
-    var flushed = false
-    val flushedLock = Object()
+    @Volatile
+    private var consumer: Thread? = null
+    private val consumerWaiting = AtomicBoolean(false)
+
+    private val flushedLock = Object()
+    private var written = 0L
 
     fun add(entry: LogRequest) {
-      synchronized(logLock) {
-        logs.add(entry)
-        logLock.notify()
+      val verbose = entry.level == LOG_V || entry.level == LOG_D
+
+      if (!queue.offer(entry, sheddable = verbose)) {
+        if (verbose) droppedVerbose.incrementAndGet() else droppedOther.incrementAndGet()
+        return
+      }
+
+      if (consumerWaiting.get() && consumerWaiting.compareAndSet(true, false)) {
+        LockSupport.unpark(consumer)
       }
     }
 
@@ -183,20 +263,37 @@ class PersistentLogger(
      * Note: This method gets hit a *lot*, which is why we're using a buffer instead of spamming out new lists every time.
      */
     fun blockForRequests(buffer: MutableList<LogRequest>) {
-      synchronized(logLock) {
-        while (logs.isEmpty()) {
-          logLock.wait()
+      consumer = Thread.currentThread()
+
+      while (queue.drainTo(buffer) == 0) {
+        // Producers check this flag after publishing, so either we see their request here or they see that we need waking up
+        consumerWaiting.set(true)
+        if (queue.isEmpty()) {
+          LockSupport.park(this)
         }
+        consumerWaiting.set(false)
+      }
+    }
 
-        buffer.addAll(logs)
-        logs.clear()
-        flushed = false
+    /**
+     * @return A description of how many requests were dropped since the last call, or null if none were.
+     */
+    fun takeDroppedSummary(): String? {
+      val verbose = droppedVerbose.getAndSet(0)
+      val other = droppedOther.getAndSet(0)
+
+      return if (verbose + other > 0) {
+        "Log queue was full! Dropped $verbose verbose/debug and $other other log lines."
+      } else {
+        null
       }
     }
 
     fun blockForFlushed() {
+      val target = queue.offeredCount
+
       synchronized(flushedLock) {
-        while (!flushed) {
+        while (written < target) {
           flushedLock.wait()
         }
       }
@@ -204,8 +301,8 @@ class PersistentLogger(
 
     fun notifyFlushed() {
       synchronized(flushedLock) {
-        flushed = true
-        flushedLock.notify()
+        written = queue.polledCount
+        flushedLock.notifyAll()
       }
     }
   }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.messages
+
+import org.signal.core.util.logging.Log
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+/**
+ * Decides how many envelopes to read off of the websocket at a time when they're pipelined, since that's when consecutive envelopes in a batch share a
+ * transaction. Without the pipeline each envelope gets its own transaction, so the batch size has no bearing on how long the write lock is held.
+ *
+ * Bigger batches drain a backlog faster, since the locks, buffered protocol store and transactions are shared by more envelopes. But a batch that's
+ * persisted in a single transaction also holds the database write lock for longer, which stalls anything on the UI that needs to write. So:
+ *
+ * - The size grows by half when a batch came back full, meaning there's a backlog, and a batch of the new size is still expected to fit in the [transactionBudget].
+ * - The size is halved whenever a transaction goes over the [transactionBudget].
+ */
+class AdaptiveBatchSize(
+  private val minSize: Int = DEFAULT_MIN_SIZE,
+  private val maxSize: Int = DEFAULT_MAX_SIZE,
+  initialSize: Int = DEFAULT_INITIAL_SIZE,
+  private val transactionBudget: Duration = DEFAULT_TRANSACTION_BUDGET
+) {
+
+  companion object {
+    private val TAG = Log.tag(AdaptiveBatchSize::class.java)
+
+    const val DEFAULT_MIN_SIZE = 5
+    const val DEFAULT_MAX_SIZE = 300
+    const val DEFAULT_INITIAL_SIZE = 30
+    val DEFAULT_TRANSACTION_BUDGET = 50.milliseconds
+  }
+
+  @Volatile
+  var size: Int = initialSize.coerceIn(minSize, maxSize)
+    private set
+
+  /**
+   * @param messageCount How many envelopes were in the batch.
+   * @param durationNanos How long it took to process the whole batch.
+   * @param longestTransactionNanos The duration of the longest transaction used while processing the batch.
+   */
+  @Synchronized
+  fun onBatchProcessed(messageCount: Int, durationNanos: Long, longestTransactionNanos: Long) {
+    if (messageCount <= 0) {
+      return
+    }
+
+    val budgetNanos = transactionBudget.inWholeNanoseconds
+    val current = size
+    val nanosPerMessage = durationNanos / messageCount
+
+    val updated = if (longestTransactionNanos > budgetNanos) {
+      max(minSize, current / 2)
+    } else if (messageCount >= current) {
+      val grown = min(maxSize, current + max(1, current / 2))
+      if (nanosPerMessage * grown <= budgetNanos) grown else current
+    } else {
+      current
+    }
+
+    if (updated != current) {
+      Log.d(TAG, "Batch size $current -> $updated (${nanosPerMessage / 1000} us per message, longest transaction ${longestTransactionNanos / 1_000_000} ms)")
+      size = updated
+    }
+  }
+}
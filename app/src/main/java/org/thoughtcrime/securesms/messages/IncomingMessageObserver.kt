@@ -20,6 +20,7 @@ import org.thoughtcrime.securesms.jobmanager.impl.BackoffUtil
 import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint
 import org.thoughtcrime.securesms.jobs.ForegroundServiceUtil
 import org.thoughtcrime.securesms.jobs.ForegroundServiceUtil.startWhenCapable
+import org.thoughtcrime.securesms.jobs.IndexPendingMessageSearchJob
 import org.thoughtcrime.securesms.jobs.PushProcessMessageErrorJob
 import org.thoughtcrime.securesms.jobs.PushProcessMessageJob
 import org.thoughtcrime.securesms.jobs.UnableToStartException
@@ -30,8 +31,11 @@ import org.thoughtcrime.securesms.notifications.NotificationChannels
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.service.KeyCachingService
 import org.thoughtcrime.securesms.util.AppForegroundObserver
+import org.thoughtcrime.securesms.util.FeatureFlags
 import org.thoughtcrime.securesms.util.SignalLocalMetrics
 import org.thoughtcrime.securesms.util.asChain
+import org.whispersystems.signalservice.api.SignalWebSocket
+import org.whispersystems.signalservice.api.messages.EnvelopeResponse
 import org.whispersystems.signalservice.api.push.ServiceId
 import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState
 import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableException
@@ -43,6 +47,7 @@ import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
+import kotlin.math.max
 import kotlin.math.round
 import kotlin.time.Duration.Companion.minutes
 import kotlin.time.Duration.Companion.seconds
@@ -58,6 +63,9 @@ class IncomingMessageObserver(private val context: Application) {
   companion object {
     private val TAG = Log.tag(IncomingMessageObserver::class.java)
 
+    /** How many envelopes are read at a time when they aren't pipelined. Pipelined batches are sized by [AdaptiveBatchSize]. */
+    private const val SERIAL_BATCH_SIZE = 30
+
     /** How long we wait for the websocket to time out before we try to connect again. */
     private val websocketReadTimeout: Long
       get() = if (censored) 30.seconds.inWholeMilliseconds else 1.minutes.inWholeMilliseconds
@@ -94,6 +102,7 @@ class IncomingMessageObserver(private val context: Application) {
   }
 
   private val messageContentProcessor = MessageContentProcessor(context)
+  private val batchSize = AdaptiveBatchSize()
 
   private var foregroundServiceStartPending = AtomicBoolean(true)
 
@@ -347,6 +356,19 @@ class IncomingMessageObserver(private val context: Application) {
     SignalDatabase.messageLog.deleteEntryForRecipient(envelope.timestamp!!, senderId, envelope.sourceDevice!!)
   }
 
+  private fun onDecryptionsDrained() {
+    if (!decryptionDrained) {
+      Log.i(TAG, "Decryptions newly-drained.")
+      decryptionDrained = true
+
+      for (listener in decryptionDrainedListeners.toList()) {
+        listener.run()
+      }
+    } else {
+      Log.w(TAG, "Got tombstone, but we thought the network was already drained!")
+    }
+  }
+
   private fun MessageDecryptor.Result.toMessageState(): MessageState {
     return when (this) {
       is MessageDecryptor.Result.DecryptionError -> MessageState.DECRYPTION_ERROR
@@ -396,13 +418,25 @@ class IncomingMessageObserver(private val context: Application) {
         }
 
         signalWebSocket.connect(shouldKeepAliveUnidentified())
+        var pipeline: MessageRetrievalPipeline<EnvelopeResponse>? = createPipelineIfEnabled(signalWebSocket)
         try {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...")
 
-              val hasMore = signalWebSocket.readMessageBatch(websocketReadTimeout, 30) { batch ->
+              val currentPipeline = pipeline
+              val readStart = System.nanoTime()
+              // Serial batches use a transaction per envelope, so the size of the batch doesn't change how long any transaction is held for
+              val readSize = if (currentPipeline != null) batchSize.size else SERIAL_BATCH_SIZE
+              val hasMore = signalWebSocket.readMessageBatch(websocketReadTimeout, readSize) { batch ->
+                SignalLocalMetrics.PushWebsocketFetch.onBatchRead(System.nanoTime() - readStart)
                 Log.i(TAG, "Retrieved ${batch.size} envelopes!")
+
+                if (currentPipeline != null) {
+                  currentPipeline.submit(batch)
+                  return@readMessageBatch
+                }
+
                 val bufferedStore = BufferedProtocolStore.create()
 
                 val startTime = System.currentTimeMillis()
@@ -428,25 +462,33 @@ class IncomingMessageObserver(private val context: Application) {
                   }
                 }
                 val duration = System.currentTimeMillis() - startTime
+                SignalLocalMetrics.PushWebsocketFetch.onBatchDecrypted(TimeUnit.MILLISECONDS.toNanos(duration))
                 val timePerMessage: Float = duration / batch.size.toFloat()
                 Log.d(TAG, "Decrypted ${batch.size} envelopes in $duration ms (~${round(timePerMessage * 100) / 100} ms per message)")
+
+                if (FeatureFlags.deferredMessageSearchIndex()) {
+                  IndexPendingMessageSearchJob.enqueueIfNecessary()
+                }
               }
               attempts = 0
-              SignalLocalMetrics.PushWebsocketFetch.onProcessedBatch()
 
-              if (!hasMore && !decryptionDrained) {
-                Log.i(TAG, "Decryptions newly-drained.")
-                decryptionDrained = true
+              if (currentPipeline != null) {
+                if (!hasMore) {
+                  currentPipeline.markDrained()
+                }
+              } else {
+                SignalLocalMetrics.PushWebsocketFetch.onProcessedBatch()
 
-                for (listener in decryptionDrainedListeners.toList()) {
-                  listener.run()
+                if (!hasMore) {
+                  onDecryptionsDrained()
                 }
-              } else if (!hasMore) {
-                Log.w(TAG, "Got tombstone, but we thought the network was already drained!")
               }
             } catch (e: WebSocketUnavailableException) {
               Log.i(TAG, "Pipe unexpectedly unavailable, connecting")
+              // Anything still in the pipeline was read from the old connection, and will be redelivered on the new one
+              pipeline?.close()
               signalWebSocket.connect(shouldKeepAliveUnidentified())
+              pipeline = createPipelineIfEnabled(signalWebSocket)
             } catch (e: TimeoutException) {
               Log.w(TAG, "Application level read timeout...")
               attempts = 0
@@ -462,6 +504,7 @@ class IncomingMessageObserver(private val context: Application) {
           Log.w(TAG, e)
         } finally {
           Log.w(TAG, "Shutting down pipe...")
+          pipeline?.close()
           disconnect()
           webSocketDisposable.dispose()
         }
@@ -474,6 +517,71 @@ class IncomingMessageObserver(private val context: Application) {
       BackgroundService.stop(context)
     }
 
+    private fun createPipelineIfEnabled(signalWebSocket: SignalWebSocket): MessageRetrievalPipeline<EnvelopeResponse>? {
+      if (!FeatureFlags.pipelinedMessageRetrieval()) {
+        return null
+      }
+
+      return MessageRetrievalPipeline(
+        maxPendingBatches = 4,
+        process = { batch -> processBatchPipelined(batch) },
+        ack = { batch ->
+          val start = System.nanoTime()
+          batch.forEach { signalWebSocket.sendAck(it) }
+          SignalLocalMetrics.PushWebsocketFetch.onBatchAcked(System.nanoTime() - start)
+          SignalLocalMetrics.PushWebsocketFetch.onProcessedBatch()
+        },
+        onDrained = { onDecryptionsDrained() }
+      )
+    }
+
+    /**
+     * Decrypts and persists a batch on the pipeline's processing thread. Rather than a transaction per envelope, consecutive envelopes share a transaction.
+     * The transaction is only cut short when an envelope has follow-up operations, since those may enqueue jobs that later envelopes from the same sender
+     * need to see in order to be processed in the right order.
+     */
+    private fun processBatchPipelined(batch: List<EnvelopeResponse>) {
+      val bufferedStore = BufferedProtocolStore.create()
+      val startTime = System.nanoTime()
+      var transactions = 0
+      var longestTransaction = 0L
+
+      GroupsV2ProcessingLock.acquireGroupProcessingLock().use {
+        ReentrantSessionLock.INSTANCE.acquire().use {
+          var index = 0
+          while (index < batch.size) {
+            val transactionStart = System.nanoTime()
+            val followUpOperations = SignalDatabase.runInTransaction { _ ->
+              var followUps: List<FollowUpOperation>? = null
+              while (index < batch.size && followUps.isNullOrEmpty()) {
+                val response = batch[index++]
+                followUps = processEnvelope(bufferedStore, response.envelope, response.serverDeliveredTimestamp)
+              }
+              bufferedStore.flushToDisk()
+              followUps
+            }
+            transactions++
+            longestTransaction = max(longestTransaction, System.nanoTime() - transactionStart)
+
+            if (!followUpOperations.isNullOrEmpty()) {
+              Log.d(TAG, "Running ${followUpOperations.size} follow-up operations...")
+              val jobs = followUpOperations.mapNotNull { it.run() }
+              ApplicationDependencies.getJobManager().addAllChains(jobs)
+            }
+          }
+        }
+      }
+
+      val duration = System.nanoTime() - startTime
+      SignalLocalMetrics.PushWebsocketFetch.onBatchDecrypted(duration)
+      batchSize.onBatchProcessed(batch.size, duration, longestTransaction)
+      Log.d(TAG, "[Pipelined] Decrypted ${batch.size} envelopes in ${duration / 1_000_000} ms using $transactions transaction(s)")
+
+      if (FeatureFlags.deferredMessageSearchIndex()) {
+        IndexPendingMessageSearchJob.enqueueIfNecessary()
+      }
+    }
+
     override fun uncaughtException(t: Thread, e: Throwable) {
       Log.w(TAG, "Uncaught exception in message thread!", e)
     }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.messages
+
+import org.signal.core.util.logging.Log
+import java.io.IOException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Splits draining the websocket into three stages that run concurrently, so that a large backlog of envelopes isn't bottlenecked on doing one thing at a time:
+ *
+ * 1. The caller reads batches off of the websocket and [submit]s them. This is the read-ahead: it can be up to [maxPendingBatches] batches ahead of processing.
+ * 2. A single processing thread decrypts and persists each batch via [process].
+ * 3. A single ack thread acknowledges each batch via [ack], once it has been processed.
+ *
+ * Every stage handles batches one at a time and in the order they were submitted, so envelopes from the same sender are always processed in the order they arrived.
+ *
+ * If [process] or [ack] throws, the pipeline stops and the error is rethrown from the next call to [submit] or [markDrained]. Anything that hasn't been acked
+ * will be redelivered by the server once we reconnect.
+ */
+class MessageRetrievalPipeline<T>(
+  maxPendingBatches: Int,
+  private val process: (List<T>) -> Unit,
+  private val ack: (List<T>) -> Unit,
+  private val onDrained: () -> Unit
+) {
+
+  companion object {
+    private val TAG = Log.tag(MessageRetrievalPipeline::class.java)
+  }
+
+  private sealed class Item<out T> {
+    class Batch<T>(val envelopes: List<T>) : Item<T>()
+    object Drained : Item<Nothing>()
+    object EndOfStream : Item<Nothing>()
+  }
+
+  private val processQueue: BlockingQueue<Item<T>> = ArrayBlockingQueue(maxPendingBatches)
+  private val ackQueue: BlockingQueue<Item<T>> = ArrayBlockingQueue(maxPendingBatches)
+
+  private val processThread = Thread({ runStage(processQueue, ackQueue, process) }, "MessageRetrievalProcess")
+  private val ackThread = Thread({ runStage(ackQueue, null, ack) }, "MessageRetrievalAck")
+
+  @Volatile
+  private var error: Throwable? = null
+
+  @Volatile
+  private var closed = false
+
+  init {
+    processThread.start()
+    ackThread.start()
+  }
+
+  /**
+   * Queues a batch to be processed and then acked. Blocks while the pipeline is full.
+   */
+  @Throws(IOException::class)
+  fun submit(envelopes: List<T>) {
+    if (envelopes.isNotEmpty()) {
+      enqueue(Item.Batch(envelopes))
+    }
+  }
+
+  /**
+   * Indicates that the websocket has no more queued envelopes. [onDrained] will be called on the ack thread once everything submitted before now has been acked.
+   */
+  @Throws(IOException::class)
+  fun markDrained() {
+    enqueue(Item.Drained)
+  }
+
+  /**
+   * Stops the pipeline. Batches that haven't started processing are dropped, since they haven't been acked and will be redelivered, but a batch that is
+   * currently being processed is allowed to finish. Blocks until both stages have stopped.
+   */
+  fun close() {
+    if (closed) {
+      return
+    }
+    closed = true
+
+    processQueue.clear()
+    processQueue.offer(Item.EndOfStream)
+
+    try {
+      processThread.join()
+      ackThread.join()
+    } catch (e: InterruptedException) {
+      Log.w(TAG, "Interrupted while waiting for the pipeline to stop.", e)
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun enqueue(item: Item<T>) {
+    check(!closed) { "Pipeline is closed!" }
+
+    try {
+      while (!processQueue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+        error?.let { throw it.asIOException() }
+      }
+    } catch (e: InterruptedException) {
+      throw IOException(e)
+    }
+
+    error?.let { throw it.asIOException() }
+  }
+
+  private fun runStage(input: BlockingQueue<Item<T>>, output: BlockingQueue<Item<T>>?, handler: (List<T>) -> Unit) {
+    try {
+      while (true) {
+        when (val item = input.take()) {
+          is Item.Batch -> {
+            if (error == null) {
+              handler(item.envelopes)
+              output?.put(item)
+            }
+          }
+          is Item.Drained -> {
+            if (output != null) {
+              output.put(item)
+            } else {
+              onDrained()
+            }
+          }
+          is Item.EndOfStream -> {
+            output?.put(item)
+            break
+          }
+        }
+      }
+    } catch (e: Throwable) {
+      Log.w(TAG, "Stage failed!", e)
+      error = e
+
+      // Make sure the stage after this one stops too, since it will never get an EndOfStream from us otherwise
+      if (output != null) {
+        output.clear()
+        output.offer(Item.EndOfStream)
+      }
+
+      // Unblock anyone waiting to add to our input
+      input.clear()
+      if (output == null) {
+        // The ack stage failed, which leaves the process stage blocked on a full queue that will never drain
+        drainUntilEndOfStream(input)
+      }
+    }
+  }
+
+  /**
+   * Keeps taking from the [queue] until the stage before it has stopped, so that it never stays blocked trying to put into it.
+   */
+  private fun drainUntilEndOfStream(queue: BlockingQueue<Item<T>>) {
+    try {
+      while (queue.take() !is Item.EndOfStream) {
+        // Discard
+      }
+    } catch (e: InterruptedException) {
+      Log.w(TAG, e)
+    }
+  }
+
+  private fun Throwable.asIOException(): IOException {
+    return this as? IOException ?: IOException(this)
+  }
+}
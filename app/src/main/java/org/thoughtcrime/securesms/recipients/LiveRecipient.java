@@ -156,6 +156,18 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Resolves the recipient using a record that has already been read from disk, e.g. as part of a batch. Does nothing if the recipient is already resolved.
+   */
+  @WorkerThread
+  void resolve(@NonNull RecipientRecord record) {
+    if (!recipient.get().isResolving() || getId().isUnknown()) {
+      return;
+    }
+
+    set(createAndCacheRecipient(record));
+  }
+
   @WorkerThread
   public LiveRecipient refresh() {
     refresh(getId());
@@ -191,8 +203,10 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord record = recipientTable.getRecord(id);
+    return createAndCacheRecipient(recipientTable.getRecord(id));
+  }
 
+  private @NonNull Recipient createAndCacheRecipient(@NonNull RecipientRecord record) {
     Recipient recipient;
     if (record.getGroupId() != null) {
       recipient = getGroupRecipientDetails(record);
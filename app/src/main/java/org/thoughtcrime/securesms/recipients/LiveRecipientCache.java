@@ -7,6 +7,7 @@ import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,91 +16,182 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.signal.core.util.Stopwatch;
+import org.thoughtcrime.securesms.util.DeviceProperties;
+import org.thoughtcrime.securesms.util.StripedLRUCache;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ServiceId.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Hands out a single {@link LiveRecipient} per recipient, creating and resolving them as needed.
+ *
+ * The cache is striped, so lookups for different recipients rarely contend with each other. Cache misses aren't resolved one at a time: they're queued up,
+ * and up to {@link #RESOLVE_CONCURRENCY} background tasks resolve everything in the queue in batches of {@link #RESOLVE_BATCH_MAX}, reading each batch's
+ * records with one query. Inside a database transaction, misses are resolved right away on the calling thread instead, and only the caller's own.
+ */
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
-  private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_MAX              = 4000;
+  private static final int CACHE_MAX_LOW_MEMORY   = 1000;
+  private static final int CACHE_STRIPES          = 16;
+  private static final int RESOLVE_BATCH_MAX      = 100;
+  private static final int RESOLVE_CONCURRENCY    = 4;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private static final FilteredExecutor.Filter OUTSIDE_TRANSACTION = () -> !SignalDatabase.inTransaction();
+
+  private final Context                                      context;
+  private final RecipientTable                               recipientTable;
+  private final StripedLRUCache<RecipientId, LiveRecipient>  recipients;
+  private final int                                          capacity;
+  private final LiveRecipient                                unknown;
+  private final Executor                                     resolveExecutor;
+  private final FilteredExecutor.Filter                      resolveInBackground;
+  private final ConcurrentLinkedQueue<LiveRecipient>         pendingResolves;
+  private final AtomicInteger                                activeResolves;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
 
+  private final AtomicLong    hits            = new AtomicLong();
+  private final AtomicLong    misses          = new AtomicLong();
+  private final AtomicLong    batches         = new AtomicLong();
+  private final AtomicLong    batchedResolves = new AtomicLong();
+  private final AtomicInteger largestBatch    = new AtomicInteger();
+
   public LiveRecipientCache(@NonNull Context context) {
-    this(context, new FilteredExecutor(SignalExecutors.newCachedBoundedExecutor("signal-recipients", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, 4, 15), () -> !SignalDatabase.inTransaction()));
+    this(context,
+         new FilteredExecutor(SignalExecutors.newCachedBoundedExecutor("signal-recipients", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, 4, 15), OUTSIDE_TRANSACTION),
+         OUTSIDE_TRANSACTION,
+         DeviceProperties.isLowMemoryDevice(context) ? CACHE_MAX_LOW_MEMORY : CACHE_MAX);
   }
 
   @VisibleForTesting
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
-    this.context        = context.getApplicationContext();
-    this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
-    this.warmedUp          = new AtomicBoolean(false);
-    this.localRecipientId  = new AtomicReference<>(null);
-    this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
-    this.resolveExecutor   = executor;
+    this(context, executor, CACHE_MAX);
+  }
+
+  @VisibleForTesting
+  public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor, int capacity) {
+    this(context, executor, () -> true, capacity);
+  }
+
+  /**
+   * @param resolveInBackground Whether misses can be queued for the executor right now. If not, the caller resolves its own misses itself.
+   */
+  private LiveRecipientCache(@NonNull Context context, @NonNull Executor executor, @NonNull FilteredExecutor.Filter resolveInBackground, int capacity) {
+    this.context             = context.getApplicationContext();
+    this.recipientTable      = SignalDatabase.recipients();
+    this.recipients          = new StripedLRUCache<>(capacity, CACHE_STRIPES);
+    this.capacity            = capacity;
+    this.warmedUp            = new AtomicBoolean(false);
+    this.localRecipientId    = new AtomicReference<>(null);
+    this.unknown             = new LiveRecipient(context, Recipient.UNKNOWN);
+    this.resolveExecutor     = executor;
+    this.resolveInBackground = resolveInBackground;
+    this.pendingResolves     = new ConcurrentLinkedQueue<>();
+    this.activeResolves      = new AtomicInteger(0);
   }
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live;
-    boolean       needsResolve;
+    List<LiveRecipient> created = new ArrayList<>(1);
+    LiveRecipient       live    = getOrCreate(id, created);
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    enqueueResolve(created);
 
-      if (live == null) {
-        live = new LiveRecipient(context, RecipientCreator.forId(id));
-        recipients.put(id, live);
-        needsResolve = true;
-      } else {
-        needsResolve = false;
+    return live;
+  }
+
+  /**
+   * Bulk version of {@link #getLive(RecipientId)}. Any recipients that aren't cached are resolved together in the background, rather than one query each.
+   *
+   * @return The live recipients, in the same order as the ids.
+   */
+  @AnyThread
+  public @NonNull List<LiveRecipient> getLive(@NonNull Collection<RecipientId> ids) {
+    List<LiveRecipient> lives   = new ArrayList<>(ids.size());
+    List<LiveRecipient> created = new ArrayList<>();
+
+    for (RecipientId id : ids) {
+      lives.add(id.isUnknown() ? unknown : getOrCreate(id, created));
+    }
+
+    enqueueResolve(created);
+
+    return lives;
+  }
+
+  /**
+   * Resolves all of the recipients on the calling thread, reading any that aren't cached in batches.
+   *
+   * @return The resolved recipients, in the same order as the ids.
+   */
+  @WorkerThread
+  public @NonNull List<Recipient> resolveAll(@NonNull Collection<RecipientId> ids) {
+    List<LiveRecipient> lives      = new ArrayList<>(ids.size());
+    List<LiveRecipient> unresolved = new ArrayList<>();
+
+    for (RecipientId id : ids) {
+      LiveRecipient live = id.isUnknown() ? unknown : getOrCreate(id, null);
+      lives.add(live);
+
+      if (live.get().isResolving() && !id.isUnknown()) {
+        unresolved.add(live);
       }
     }
 
-    if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+    for (int i = 0; i < unresolved.size(); i += RESOLVE_BATCH_MAX) {
+      resolveBatch(unresolved.subList(i, Math.min(i + RESOLVE_BATCH_MAX, unresolved.size())));
     }
 
-    return live;
+    List<Recipient> resolved = new ArrayList<>(lives.size());
+    for (LiveRecipient live : lives) {
+      resolved.add(live.resolve());
+    }
+
+    return resolved;
   }
 
   /**
    * Handles remapping cache entries when recipients are merged.
    */
   public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
-      } else {
-        recipients.remove(oldId);
-      }
-    }
+    recipients.remap(oldId, newId);
+  }
+
+  public @NonNull Stats getStats() {
+    return new Stats(recipients.size(), capacity, hits.get(), misses.get(), batches.get(), batchedResolves.get(), largestBatch.get());
+  }
+
+  public void resetStats() {
+    hits.set(0);
+    misses.set(0);
+    batches.set(0);
+    batchedResolves.set(0);
+    largestBatch.set(0);
   }
 
   /**
@@ -111,22 +203,21 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
-      LiveRecipient live;
-      boolean       needsResolve;
-
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
-
-        if (live == null) {
-          live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
-          needsResolve = recipient.isResolving();
-        } else if (live.get().isResolving() || !recipient.isResolving()) {
-          live.set(recipient);
-          needsResolve = recipient.isResolving();
-        } else {
-          needsResolve = false;
-        }
+      boolean[]     created = new boolean[1];
+      LiveRecipient live    = recipients.computeIfAbsent(recipient.getId(), id -> {
+        created[0] = true;
+        return new LiveRecipient(context, recipient);
+      });
+
+      boolean needsResolve;
+
+      if (created[0]) {
+        needsResolve = recipient.isResolving();
+      } else if (live.get().isResolving() || !recipient.isResolving()) {
+        live.set(recipient);
+        needsResolve = recipient.isResolving();
+      } else {
+        needsResolve = false;
       }
 
       if (needsResolve) {
@@ -260,12 +351,199 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
+    recipients.clear();
+  }
+
+  /**
+   * @param created If non-null, a newly-created entry is added to this list.
+   */
+  private @NonNull LiveRecipient getOrCreate(@NonNull RecipientId id, @Nullable List<LiveRecipient> created) {
+    LiveRecipient live = recipients.get(id);
+
+    if (live != null) {
+      hits.incrementAndGet();
+      return live;
+    }
+
+    misses.incrementAndGet();
+
+    boolean[] wasCreated = new boolean[1];
+    live = recipients.computeIfAbsent(id, missingId -> {
+      wasCreated[0] = true;
+      return new LiveRecipient(context, RecipientCreator.forId(missingId));
+    });
+
+    if (wasCreated[0] && created != null) {
+      created.add(live);
+    }
+
+    return live;
+  }
+
+  /**
+   * Queues the recipients to be resolved, and starts another task to work through the queue if fewer than {@link #RESOLVE_CONCURRENCY} are running, so that
+   * misses from different callers don't have to wait on each other's batches.
+   *
+   * If they can't be resolved in the background right now, they're resolved on the calling thread instead, without touching the queue. Draining it here
+   * would resolve other callers' misses as part of this caller's transaction, and fail it if one of theirs is missing.
+   */
+  private void enqueueResolve(@NonNull List<LiveRecipient> lives) {
+    if (lives.isEmpty()) {
+      return;
+    }
+
+    if (!resolveInBackground.shouldRunOnExecutor()) {
+      for (int i = 0; i < lives.size(); i += RESOLVE_BATCH_MAX) {
+        resolveBatch(lives.subList(i, Math.min(i + RESOLVE_BATCH_MAX, lives.size())));
+      }
+      return;
+    }
+
+    pendingResolves.addAll(lives);
+
+    if (tryStartResolve()) {
+      resolveExecutor.execute(this::drainPendingResolves);
+    }
+  }
+
+  private boolean tryStartResolve() {
+    while (true) {
+      int active = activeResolves.get();
+
+      if (active >= RESOLVE_CONCURRENCY) {
+        return false;
+      }
+
+      if (activeResolves.compareAndSet(active, active + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void drainPendingResolves() {
+    RuntimeException firstError = null;
+
+    while (true) {
+      List<LiveRecipient> batch = new ArrayList<>(RESOLVE_BATCH_MAX);
+      LiveRecipient       next;
+
+      while (batch.size() < RESOLVE_BATCH_MAX && (next = pendingResolves.poll()) != null) {
+        batch.add(next);
+      }
+
+      if (batch.isEmpty()) {
+        activeResolves.decrementAndGet();
+
+        // Something may have been queued after we found it empty, but while every task was still counted as running, in which case nobody else will have
+        // started one for it
+        if (pendingResolves.isEmpty() || !tryStartResolve()) {
+          break;
+        } else {
+          continue;
+        }
+      }
+
+      try {
+        resolveBatch(batch);
+      } catch (RuntimeException e) {
+        if (firstError == null) {
+          firstError = e;
+        }
+      }
+    }
+
+    if (firstError != null) {
+      throw firstError;
+    }
+  }
+
+  /**
+   * Resolves everything in the batch that isn't resolved yet, reading all of their records with a single query.
+   */
+  @WorkerThread
+  private void resolveBatch(@NonNull List<LiveRecipient> batch) {
+    List<LiveRecipient> unresolved = new ArrayList<>(batch.size());
+    List<RecipientId>   ids        = new ArrayList<>(batch.size());
+
+    for (LiveRecipient live : batch) {
+      if (live.get().isResolving() && !ids.contains(live.getId())) {
+        unresolved.add(live);
+        ids.add(live.getId());
+      }
+    }
+
+    if (unresolved.isEmpty()) {
+      return;
+    }
+
+    batches.incrementAndGet();
+    batchedResolves.addAndGet(unresolved.size());
+    largestBatch.accumulateAndGet(unresolved.size(), Math::max);
+
+    Map<RecipientId, RecipientRecord> records;
+    try {
+      records = recipientTable.getRecords(ids);
+    } catch (MissingRecipientException e) {
+      Log.w(TAG, "Missing a recipient in a batch of " + ids.size() + ". Resolving individually.");
+      records = Collections.emptyMap();
+    }
+
+    MissingRecipientException firstMissing = null;
+
+    for (LiveRecipient live : unresolved) {
+      RecipientRecord record = records.get(live.getId());
+
+      try {
+        if (record != null) {
+          live.resolve(record);
+        } else {
+          // Either missing or remapped, both of which the single resolve handles
+          live.resolve();
+        }
+      } catch (MissingRecipientException e) {
+        if (firstMissing == null) {
+          firstMissing = e;
+        }
+      }
+    }
+
+    if (firstMissing != null) {
+      throw firstMissing;
     }
   }
 
   private boolean isValidForCache(@NonNull Recipient recipient) {
     return !recipient.getId().isUnknown() && (recipient.getHasServiceId() || recipient.getGroupId().isPresent() || recipient.getHasSmsAddress());
   }
+
+  public static final class Stats {
+    public final int  size;
+    public final int  capacity;
+    public final long hits;
+    public final long misses;
+    public final long batches;
+    public final long batchedResolves;
+    public final int  largestBatch;
+
+    Stats(int size, int capacity, long hits, long misses, long batches, long batchedResolves, int largestBatch) {
+      this.size            = size;
+      this.capacity        = capacity;
+      this.hits            = hits;
+      this.misses          = misses;
+      this.batches         = batches;
+      this.batchedResolves = batchedResolves;
+      this.largestBatch    = largestBatch;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      long   lookups      = hits + misses;
+      double hitRate      = lookups > 0 ? hits * 100.0 / lookups : 0;
+      double averageBatch = batches > 0 ? batchedResolves / (double) batches : 0;
+
+      return String.format(Locale.US,
+                           "Size: %d / %d\nHits: %d, Misses: %d (%.1f%% hit rate)\nResolve batches: %d, Average size: %.1f, Largest: %d",
+                           size, capacity, hits, misses, hitRate, batches, averageBatch, largestBatch);
+    }
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.search
+
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import org.signal.core.util.logging.Log
+import org.signal.paging.PagedDataSource
+import org.thoughtcrime.securesms.database.SearchTable
+
+/**
+ * Pages through the results of a message search, so that only the results on screen have their snippets built and their bodies read.
+ *
+ * The matching messages are found once, in [size], ordered by [order]. Each page then loads the results for its slice of them.
+ *
+ * Messages that only match through a mention are found separately with [SearchRepository.queryMentionMessages] and loaded in full up front. When
+ * ordering by [SearchTable.MessageSearchOrder.RECENT] they're merged in by date, and otherwise they come after every indexed match. They're only
+ * included when searching across all threads, like [SearchRepository.query] does.
+ *
+ * A message that's deleted after it's found can't be loaded anymore. A page stops short at it rather than moving the results after it up, so every
+ * result stays at its position. Invalidate to search again without it.
+ *
+ * A new data source should be created for every query. Call [cancel] as soon as the query changes, which interrupts any query that's still running
+ * against the database rather than letting it finish in the background.
+ */
+class MessageSearchPagedDataSource @JvmOverloads constructor(
+  private val repository: SearchRepository,
+  private val query: String,
+  private val threadId: Long? = null,
+  private val order: SearchTable.MessageSearchOrder = SearchTable.MessageSearchOrder.RECENT,
+  private val maxResults: Int = DEFAULT_MAX_RESULTS
+) : PagedDataSource<Long, MessageResult> {
+
+  companion object {
+    private val TAG = Log.tag(MessageSearchPagedDataSource::class.java)
+
+    const val DEFAULT_MAX_RESULTS = 5_000
+  }
+
+  private val databaseCancellationSignal = CancellationSignal()
+
+  @Volatile
+  private var entries: List<Entry>? = null
+
+  fun cancel() {
+    databaseCancellationSignal.cancel()
+  }
+
+  override fun size(): Int {
+    return getEntries().size
+  }
+
+  override fun load(start: Int, length: Int, totalSize: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<MessageResult> {
+    val entries = getEntries()
+    if (start >= entries.size || cancellationSignal.isCanceled) {
+      return emptyList()
+    }
+
+    val page: List<Entry> = entries.subList(start, minOf(start + length, entries.size))
+    val pageIds: List<Long> = page.filterIsInstance<Entry.Indexed>().map { it.messageId }
+
+    val loaded: Map<Long, MessageResult> = try {
+      repository.queryMessagesById(query, pageIds, databaseCancellationSignal).associateBy { it.messageId }
+    } catch (e: OperationCanceledException) {
+      Log.d(TAG, "Page load canceled.")
+      return emptyList()
+    }
+
+    val results = ArrayList<MessageResult>(page.size)
+
+    for (entry in page) {
+      val result: MessageResult? = when (entry) {
+        is Entry.Indexed -> loaded[entry.messageId]
+        is Entry.Mention -> entry.result
+      }
+
+      if (result == null) {
+        Log.w(TAG, "A message was deleted after the search found it. Loaded ${results.size} of ${page.size} results.")
+        break
+      }
+
+      results += result
+    }
+
+    return results
+  }
+
+  override fun load(key: Long?): MessageResult? {
+    if (key == null) {
+      return null
+    }
+
+    getEntries().firstOrNull { it is Entry.Mention && it.result.messageId == key }?.let { return (it as Entry.Mention).result }
+
+    return try {
+      repository.queryMessagesById(query, listOf(key), databaseCancellationSignal).firstOrNull()
+    } catch (e: OperationCanceledException) {
+      null
+    }
+  }
+
+  override fun getKey(data: MessageResult): Long {
+    return data.messageId
+  }
+
+  private fun getEntries(): List<Entry> {
+    entries?.let { return it }
+
+    val hits: List<SearchTable.MessageSearchHit> = try {
+      repository.queryMessageHits(query, threadId, order, maxResults, databaseCancellationSignal)
+    } catch (e: OperationCanceledException) {
+      Log.d(TAG, "Search canceled.")
+      emptyList()
+    }
+
+    val hitIds: Set<Long> = hits.mapTo(HashSet()) { it.messageId }
+    val mentions: List<MessageResult> = if (threadId == null && !databaseCancellationSignal.isCanceled) {
+      repository.queryMentionMessages(query)
+        .filterNot { it.isMms && it.messageId in hitIds }
+        .sortedByDescending { it.receivedTimestampMs }
+    } else {
+      emptyList()
+    }
+
+    val merged: List<Entry> = when (order) {
+      SearchTable.MessageSearchOrder.RECENT -> mergeByDate(hits, mentions)
+      SearchTable.MessageSearchOrder.RELEVANCE -> hits.map { Entry.Indexed(it.messageId) } + mentions.map { Entry.Mention(it) }
+    }.take(maxResults)
+
+    entries = merged
+    return merged
+  }
+
+  private fun mergeByDate(hits: List<SearchTable.MessageSearchHit>, mentions: List<MessageResult>): List<Entry> {
+    val merged = ArrayList<Entry>(hits.size + mentions.size)
+    var mentionIndex = 0
+
+    for (hit in hits) {
+      while (mentionIndex < mentions.size && mentions[mentionIndex].receivedTimestampMs > hit.dateReceived) {
+        merged += Entry.Mention(mentions[mentionIndex++])
+      }
+      merged += Entry.Indexed(hit.messageId)
+    }
+
+    while (mentionIndex < mentions.size) {
+      merged += Entry.Mention(mentions[mentionIndex++])
+    }
+
+    return merged
+  }
+
+  private sealed class Entry {
+    /** A match from the search index, which is loaded when its page is. */
+    class Indexed(val messageId: Long) : Entry()
+
+    /** A match through a mention, which is already loaded. */
+    class Mention(val result: MessageResult) : Entry()
+  }
+}
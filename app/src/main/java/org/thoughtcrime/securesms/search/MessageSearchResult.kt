@@ -1,3 +0,0 @@
-package org.thoughtcrime.securesms.search
-
-data class MessageSearchResult(val results: List<MessageResult>, val query: String)
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.search;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -42,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -93,17 +95,17 @@ public class SearchRepository {
     return new ThreadSearchResult(result, query);
   }
 
+  /**
+   * Finds messages that mention someone whose name matches the query. These aren't found by {@link #queryMessageHits(String, Long, SearchTable.MessageSearchOrder, int, CancellationSignal)},
+   * since the body only contains a placeholder where the mention is. There are at most a few hundred of these, so they're loaded in full.
+   */
   @WorkerThread
-  public @NonNull MessageSearchResult queryMessagesSync(@NonNull String query) {
-    long start = System.currentTimeMillis();
-
-    List<MessageResult> messages        = queryMessages(query);
-    List<MessageResult> mentionMessages = queryMentions(convertMentionsQueryToTokens(query));
-    List<MessageResult> combined        = mergeMessagesAndMentions(messages, mentionMessages);
-
-    Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
+  public @NonNull List<MessageResult> queryMentionMessages(@NonNull String query) {
+    if (Util.isEmpty(query)) {
+      return Collections.emptyList();
+    }
 
-    return new MessageSearchResult(combined, query);
+    return queryMentions(convertMentionsQueryToTokens(query));
   }
 
   public void query(@NonNull String query, long threadId, @NonNull Callback<List<MessageResult>> callback) {
@@ -164,16 +166,52 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
+  /**
+   * Finds the messages that match the query, in the order they should be shown. This is much cheaper than loading the results themselves,
+   * which can then be done a page at a time with {@link #queryMessagesById(String, List, CancellationSignal)}. See {@link MessageSearchPagedDataSource}.
+   *
+   * @param threadId If non-null, only messages in this thread are searched.
+   */
+  @WorkerThread
+  public @NonNull List<SearchTable.MessageSearchHit> queryMessageHits(@NonNull String query,
+                                                                      @Nullable Long threadId,
+                                                                      @NonNull SearchTable.MessageSearchOrder order,
+                                                                      int limit,
+                                                                      @Nullable CancellationSignal cancellationSignal)
+  {
     if (Util.isEmpty(query)) {
       return Collections.emptyList();
     }
 
+    return searchDatabase.queryMessageHits(query, threadId, order, limit, cancellationSignal);
+  }
+
+  /**
+   * Loads the results for the given message ids, as found by {@link #queryMessageHits(String, Long, SearchTable.MessageSearchOrder, int, CancellationSignal)}.
+   * The results are returned in the same order as the ids. Ids that no longer match, e.g. because the message was deleted, are skipped.
+   */
+  @WorkerThread
+  public @NonNull List<MessageResult> queryMessagesById(@NonNull String query, @NonNull List<Long> messageIds, @Nullable CancellationSignal cancellationSignal) {
+    if (Util.isEmpty(query) || messageIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+
     List<MessageResult> results;
-    try (Cursor cursor = searchDatabase.queryMessages(query)) {
+    try (Cursor cursor = searchDatabase.queryMessagesById(query, messageIds, cancellationSignal)) {
       results = readToList(cursor, new MessageModelBuilder());
     }
 
+    Map<Long, Integer> positions = new HashMap<>(messageIds.size());
+    for (int i = 0; i < messageIds.size(); i++) {
+      positions.put(messageIds.get(i), i);
+    }
+
+    Collections.sort(results, (left, right) -> Integer.compare(Objects.requireNonNull(positions.get(left.getMessageId())), Objects.requireNonNull(positions.get(right.getMessageId()))));
+
+    return applyBodyRangesAndMentions(results);
+  }
+
+  private @NonNull List<MessageResult> applyBodyRangesAndMentions(@NonNull List<MessageResult> results) {
     List<Long> messageIds = new LinkedList<>();
     for (MessageResult result : results) {
       if (result.isMms()) {
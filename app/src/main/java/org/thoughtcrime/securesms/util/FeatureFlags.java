@@ -130,6 +130,10 @@ public final class FeatureFlags {
   private static final String REGISTRATION_V2                   = "android.registration.v2";
   private static final String LIBSIGNAL_WEB_SOCKET_ENABLED      = "android.libsignalWebSocketEnabled";
   private static final String RESTORE_POST_REGISTRATION         = "android.registration.restorePostRegistration";
+  private static final String DEFERRED_MESSAGE_SEARCH_INDEX     = "android.deferredMessageSearchIndex";
+  private static final String PIPELINED_MESSAGE_RETRIEVAL       = "android.pipelinedMessageRetrieval";
+  private static final String PIPELINED_MESSAGE_SEND            = "android.pipelinedMessageSend.maxInFlight";
+  private static final String CDN_DOWNLOAD_SEGMENTS             = "android.cdnDownload.segments";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -209,7 +213,11 @@ public final class FeatureFlags {
       RX_MESSAGE_SEND,
       LINKED_DEVICE_LIFESPAN_SECONDS,
       CAMERAX_CUSTOM_CONTROLLER,
-      LIBSIGNAL_WEB_SOCKET_ENABLED
+      LIBSIGNAL_WEB_SOCKET_ENABLED,
+      DEFERRED_MESSAGE_SEARCH_INDEX,
+      PIPELINED_MESSAGE_RETRIEVAL,
+      PIPELINED_MESSAGE_SEND,
+      CDN_DOWNLOAD_SEGMENTS
   );
 
   @VisibleForTesting
@@ -680,6 +688,26 @@ public final class FeatureFlags {
     return getBoolean(RESTORE_POST_REGISTRATION, false);
   }
 
+  /** Whether new messages are added to the search index by a background job, rather than while they're being inserted. */
+  public static boolean deferredMessageSearchIndex() {
+    return getBoolean(DEFERRED_MESSAGE_SEARCH_INDEX, false);
+  }
+
+  /** Whether envelopes are read, decrypted and acked concurrently when draining the websocket, rather than one stage at a time. */
+  public static boolean pipelinedMessageRetrieval() {
+    return getBoolean(PIPELINED_MESSAGE_RETRIEVAL, false);
+  }
+
+  /** How many sends to individual recipients can be waiting on the network at once when sending to many of them. 0 disables pipelined sends. */
+  public static int pipelinedMessageSendMaxInFlight() {
+    return getInteger(PIPELINED_MESSAGE_SEND, 0);
+  }
+
+  /** How many connections a large attachment download can be split across. 1 downloads it over a single connection. */
+  public static int cdnDownloadSegments() {
+    return Math.max(1, getInteger(CDN_DOWNLOAD_SEGMENTS, 1));
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
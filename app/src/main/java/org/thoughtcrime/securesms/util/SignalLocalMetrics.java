@@ -9,6 +9,7 @@ import androidx.annotation.Nullable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -261,8 +262,14 @@ public final class SignalLocalMetrics {
     private static final String SPLIT_BATCH_PROCESSED = "batches-processed";
     private static final String SPLIT_PROCESS_TIME    = "fetch-time";
     private static final String SPLIT_TIMED_OUT = "timeout";
+    private static final String SPLIT_READ_TIME    = "read-time";
+    private static final String SPLIT_DECRYPT_TIME = "decrypt-time";
+    private static final String SPLIT_ACK_TIME     = "ack-time";
 
     private static final AtomicInteger processedBatches = new AtomicInteger(0);
+    private static final AtomicLong    readNanos        = new AtomicLong(0);
+    private static final AtomicLong    decryptNanos     = new AtomicLong(0);
+    private static final AtomicLong    ackNanos         = new AtomicLong(0);
 
     public static @NonNull String startFetch() {
       String baseId = System.currentTimeMillis() + "";
@@ -273,6 +280,9 @@ public final class SignalLocalMetrics {
       LocalMetrics.getInstance().start(successId, SUCCESS_EVENT);
       LocalMetrics.getInstance().start(timeoutId, TIMEOUT_EVENT);
       processedBatches.set(0);
+      readNanos.set(0);
+      decryptNanos.set(0);
+      ackNanos.set(0);
 
       return baseId;
     }
@@ -281,6 +291,21 @@ public final class SignalLocalMetrics {
       processedBatches.incrementAndGet();
     }
 
+    /** Time spent reading a batch of envelopes off of the websocket, including any time spent waiting for them to arrive. */
+    public static void onBatchRead(long durationNanos) {
+      readNanos.addAndGet(durationNanos);
+    }
+
+    /** Time spent decrypting and persisting a batch of envelopes. */
+    public static void onBatchDecrypted(long durationNanos) {
+      decryptNanos.addAndGet(durationNanos);
+    }
+
+    /** Time spent acknowledging a batch of envelopes. */
+    public static void onBatchAcked(long durationNanos) {
+      ackNanos.addAndGet(durationNanos);
+    }
+
     public static void onTimedOut(String metricId) {
       LocalMetrics.getInstance().cancel(SUCCESS_EVENT + metricId);
 
@@ -297,6 +322,9 @@ public final class SignalLocalMetrics {
 
       LocalMetrics.getInstance().split(successId, SPLIT_PROCESS_TIME);
       LocalMetrics.getInstance().splitWithDuration(successId, SPLIT_BATCH_PROCESSED, processedBatches.get());
+      LocalMetrics.getInstance().splitWithDuration(successId, SPLIT_READ_TIME, readNanos.get(), TimeUnit.NANOSECONDS);
+      LocalMetrics.getInstance().splitWithDuration(successId, SPLIT_DECRYPT_TIME, decryptNanos.get(), TimeUnit.NANOSECONDS);
+      LocalMetrics.getInstance().splitWithDuration(successId, SPLIT_ACK_TIME, ackNanos.get(), TimeUnit.NANOSECONDS);
       LocalMetrics.getInstance().end(successId);
     }
 
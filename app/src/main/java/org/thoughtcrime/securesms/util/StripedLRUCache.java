@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.function.Function;
+
+/**
+ * A thread-safe LRU cache that is split into a number of independently-locked stripes, so that threads working with different keys rarely contend.
+ * Each stripe is an {@link LRUCache} holding an equal share of the capacity, which means eviction is least-recently-used per stripe rather than globally.
+ */
+public final class StripedLRUCache<K, V> {
+
+  private final LRUCache<K, V>[] stripes;
+
+  @SuppressWarnings("unchecked")
+  public StripedLRUCache(int maxSize, int stripeCount) {
+    if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+      throw new IllegalArgumentException("Stripe count must be a positive power of two!");
+    }
+
+    int stripeSize = Math.max(1, (maxSize + stripeCount - 1) / stripeCount);
+
+    this.stripes = new LRUCache[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new LRUCache<>(stripeSize);
+    }
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    LRUCache<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  /**
+   * Returns the existing value for the key, or creates, stores and returns a new one. The factory is called while holding the stripe's lock, so it must be cheap.
+   */
+  public @NonNull V computeIfAbsent(@NonNull K key, @NonNull Function<K, V> factory) {
+    LRUCache<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      V value = stripe.get(key);
+      if (value == null) {
+        value = factory.apply(key);
+        stripe.put(key, value);
+      }
+      return value;
+    }
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    LRUCache<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    LRUCache<K, V> stripe = stripeFor(key);
+    synchronized (stripe) {
+      stripe.remove(key);
+    }
+  }
+
+  /**
+   * Points the old key at the value currently stored for the new key, or removes the old key if the new one has no value. Both keys' stripes are locked for
+   * the duration, so no other thread can add or replace either entry part way through.
+   */
+  public void remap(@NonNull K oldKey, @NonNull K newKey) {
+    int oldIndex = stripeIndex(oldKey);
+    int newIndex = stripeIndex(newKey);
+
+    // Always lock the lower stripe first, so that two remaps in opposite directions can't deadlock
+    LRUCache<K, V> first  = stripes[Math.min(oldIndex, newIndex)];
+    LRUCache<K, V> second = stripes[Math.max(oldIndex, newIndex)];
+
+    synchronized (first) {
+      synchronized (second) {
+        V value = stripes[newIndex].get(newKey);
+
+        if (value != null) {
+          stripes[oldIndex].put(oldKey, value);
+        } else {
+          stripes[oldIndex].remove(oldKey);
+        }
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (LRUCache<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  public void clear() {
+    for (LRUCache<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  private @NonNull LRUCache<K, V> stripeFor(@NonNull K key) {
+    return stripes[stripeIndex(key)];
+  }
+
+  private int stripeIndex(@NonNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & (stripes.length - 1);
+  }
+}
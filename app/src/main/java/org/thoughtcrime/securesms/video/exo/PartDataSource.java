@@ -69,7 +69,13 @@ class PartDataSource implements DataSource {
 
         long skipped = 0;
         while (skipped < dataSpec.position) {
-          skipped += this.inputStream.read();
+          long skip = this.inputStream.skip(dataSpec.position - skipped);
+
+          if (skip <= 0) {
+            throw new EOFException("Attachment ends before " + dataSpec.position);
+          }
+
+          skipped += skip;
         }
 
         Log.d(TAG, "Successfully loaded partial attachment file.");
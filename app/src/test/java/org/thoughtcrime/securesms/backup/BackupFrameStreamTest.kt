@@ -0,0 +1,102 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.backup.proto.KeyValue
+import org.thoughtcrime.securesms.backup.proto.SharedPreference
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import kotlin.random.Random
+
+class BackupFrameStreamTest {
+
+  private val random = Random(42)
+
+  private val attachment = random.nextBytes(100_000)
+  private val avatar = random.nextBytes(5_000)
+  private val sticker = random.nextBytes(300)
+
+  private val preference = SharedPreference.Builder().file("prefs").key("key").value("value").build()
+
+  @Test
+  fun `compressed frames and data streams come back in order`() {
+    val backup = write(version = 3, compressFrames = true)
+    val input = BackupRecordInputStream(ByteArrayInputStream(backup), PASSPHRASE)
+
+    assertEquals(3, input.version)
+    assertEquals(42, input.readFrame().version!!.version)
+
+    keyValues(0 until 5_000).forEach { assertEquals(it, input.readFrame().keyValue) }
+
+    val attachmentFrame = input.readFrame().attachment!!
+    assertEquals(1L, attachmentFrame.rowId)
+    assertArrayEquals(attachment, input.readStream(attachmentFrame.length!!))
+
+    assertEquals(preference, input.readFrame().preference)
+
+    val avatarFrame = input.readFrame().avatar!!
+    assertEquals("avatar", avatarFrame.recipientId)
+    assertArrayEquals(avatar, input.readStream(avatarFrame.length!!))
+
+    val stickerFrame = input.readFrame().sticker!!
+    assertEquals(7L, stickerFrame.rowId)
+    assertArrayEquals(sticker, input.readStream(stickerFrame.length!!))
+
+    keyValues(5_000 until 5_100).forEach { assertEquals(it, input.readFrame().keyValue) }
+
+    assertEquals(true, input.readFrame().end)
+  }
+
+  @Test
+  fun `compressed frames are smaller`() {
+    val compressed = write(version = 3, compressFrames = true)
+    val uncompressed = write(version = 3, compressFrames = false)
+
+    assertTrue(compressed.size < uncompressed.size - 100_000)
+  }
+
+  @Test
+  fun `frames are not compressed before version 3`() {
+    val compressed = write(version = 2, compressFrames = true)
+    val uncompressed = write(version = 2, compressFrames = false)
+
+    assertEquals(uncompressed.size, compressed.size)
+  }
+
+  /**
+   * Writes enough small frames to fill several batches, with data streams in the middle that force the current batch to be flushed.
+   */
+  private fun write(version: Int, compressFrames: Boolean): ByteArray {
+    val output = ByteArrayOutputStream()
+    val out = BackupFrameOutputStream(output, PASSPHRASE, compressFrames, version)
+
+    out.writeDatabaseVersion(42)
+    keyValues(0 until 5_000).forEach { out.write(it) }
+    out.write(AttachmentId(1), ByteArrayInputStream(attachment), attachment.size.toLong())
+    out.write(preference)
+    out.write("avatar", ByteArrayInputStream(avatar), avatar.size.toLong())
+    out.writeSticker(7, ByteArrayInputStream(sticker), sticker.size.toLong())
+    keyValues(5_000 until 5_100).forEach { out.write(it) }
+    out.writeEnd()
+    out.close()
+
+    return output.toByteArray()
+  }
+
+  private fun keyValues(range: IntRange): List<KeyValue> {
+    return range.map { KeyValue.Builder().key("key.$it").stringValue("value ${it % 10}").build() }
+  }
+
+  private fun BackupRecordInputStream.readStream(length: Int): ByteArray {
+    val output = ByteArrayOutputStream()
+    readAttachmentTo(output, length)
+    return output.toByteArray()
+  }
+
+  companion object {
+    private const val PASSPHRASE = "123456789012345678901234567890"
+  }
+}
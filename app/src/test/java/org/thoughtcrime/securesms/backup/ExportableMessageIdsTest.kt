@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class ExportableMessageIdsTest {
+
+  companion object {
+    private val NOW = TimeUnit.DAYS.toMillis(1000)
+    private val THRESHOLD = TimeUnit.DAYS.toMillis(1)
+    private val WEEK = TimeUnit.DAYS.toMillis(7)
+  }
+
+  @Test
+  fun `non-expiring messages are included`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, 0, 0, 0)
+      .add(2, 0, WEEK, 0)
+      .build(NOW, THRESHOLD)
+
+    assertTrue(ids.contains(1))
+    assertTrue(ids.contains(2))
+    assertEquals(2, ids.size())
+  }
+
+  @Test
+  fun `messages about to expire are excluded`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, NOW - WEEK + THRESHOLD / 2, WEEK, 0)
+      .add(2, NOW, WEEK, 0)
+      .build(NOW, THRESHOLD)
+
+    assertFalse(ids.contains(1))
+    assertTrue(ids.contains(2))
+  }
+
+  @Test
+  fun `missing messages are excluded`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, 0, 0, 0)
+      .add(3, 0, 0, 0)
+      .build(NOW, THRESHOLD)
+
+    assertFalse(ids.contains(2))
+    assertFalse(ids.contains(4))
+  }
+
+  @Test
+  fun `old revisions follow their latest revision`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, 0, 0, 2)
+      .add(2, 0, 0, 0)
+      .add(3, NOW - WEEK, WEEK, 0)
+      .add(4, 0, 0, 3)
+      .add(5, 0, 0, 6)
+      .build(NOW, THRESHOLD)
+
+    assertTrue(ids.contains(1))
+    assertTrue(ids.contains(2))
+    assertFalse(ids.contains(3))
+    assertFalse(ids.contains(4))
+    assertFalse(ids.contains(5))
+  }
+
+  @Test
+  fun `chained revisions are followed to the end`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, 0, 0, 2)
+      .add(2, 0, 0, 3)
+      .add(3, NOW - WEEK, WEEK, 0)
+      .build(NOW, THRESHOLD)
+
+    assertFalse(ids.contains(1))
+    assertFalse(ids.contains(2))
+  }
+
+  @Test
+  fun `revision cycles do not loop forever`() {
+    val ids = ExportableMessageIds.Builder()
+      .add(1, 0, 0, 2)
+      .add(2, 0, 0, 1)
+      .build(NOW, THRESHOLD)
+
+    assertFalse(ids.contains(1))
+    assertFalse(ids.contains(2))
+  }
+
+  @Test
+  fun `many messages`() {
+    val builder = ExportableMessageIds.Builder()
+    for (i in 1L..100_000L) {
+      builder.add(i * 2, if (i % 10 == 0L) NOW else 0, WEEK, 0)
+    }
+
+    val ids = builder.build(NOW, THRESHOLD)
+
+    assertEquals(100_000, ids.size())
+    assertTrue(ids.contains(200_000))
+    assertFalse(ids.contains(199_999))
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `ids must be ascending`() {
+    ExportableMessageIds.Builder()
+      .add(2, 0, 0, 0)
+      .add(1, 0, 0, 0)
+  }
+}
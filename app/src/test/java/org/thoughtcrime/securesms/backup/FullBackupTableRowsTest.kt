@@ -0,0 +1,244 @@
+package org.thoughtcrime.securesms.backup
+
+import android.app.Application
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteStatement
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteStatement
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.backup.proto.BackupFrame
+import org.thoughtcrime.securesms.backup.proto.SqlStatement
+import org.thoughtcrime.securesms.backup.proto.TableHeader
+import org.thoughtcrime.securesms.backup.proto.TableRow
+import org.thoughtcrime.securesms.database.SearchTable
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class FullBackupTableRowsTest {
+
+  private lateinit var source: SQLiteDatabase
+  private lateinit var destination: SQLiteDatabase
+
+  private lateinit var sourceSupport: SupportSQLiteDatabase
+  private lateinit var destinationSupport: SupportSQLiteDatabase
+
+  @Before
+  fun setUp() {
+    source = SQLiteDatabase.create(null)
+    destination = SQLiteDatabase.create(null)
+
+    listOf(source, destination).forEach {
+      it.execSQL("CREATE TABLE $TABLE (_id INTEGER PRIMARY KEY, body TEXT, data BLOB, amount REAL, extra TEXT)")
+    }
+
+    sourceSupport = mockk {
+      every { query(any<String>()) } answers { source.rawQuery(firstArg(), null) }
+    }
+
+    destinationSupport = mockk {
+      every { compileStatement(any()) } answers { AndroidStatement(destination.compileStatement(firstArg())) }
+    }
+  }
+
+  @After
+  fun tearDown() {
+    source.close()
+    destination.close()
+  }
+
+  @Test
+  fun `rows with null, blob, integer and text values survive export and import`() {
+    source.execSQL("INSERT INTO $TABLE VALUES (?, ?, ?, ?, ?)", arrayOf(1L, "hello", byteArrayOf(1, 2, 3), 1.5, null))
+    source.execSQL("INSERT INTO $TABLE VALUES (?, ?, ?, ?, ?)", arrayOf(2L, null, null, null, "x"))
+    source.execSQL("INSERT INTO $TABLE VALUES (?, ?, ?, ?, ?)", arrayOf(Long.MAX_VALUE, "", byteArrayOf(), -2.25, "y"))
+
+    val frames = roundTrip(version = 2) { out ->
+      FullBackupExporter.exportTable(TABLE, 1, sourceSupport, out, null, null, 0, 0) { false }
+    }
+
+    assertEquals(1, frames.count { it.table != null })
+    assertEquals(3, frames.count { it.row != null })
+    assertTrue(frames.none { it.statement != null })
+
+    destination.rawQuery("SELECT _id, body, data, amount, extra, typeof(amount) FROM $TABLE ORDER BY _id", null).use { cursor ->
+      assertEquals(3, cursor.count)
+
+      cursor.moveToNext()
+      assertEquals(1L, cursor.getLong(0))
+      assertEquals("hello", cursor.getString(1))
+      assertArrayEquals(byteArrayOf(1, 2, 3), cursor.getBlob(2))
+      assertEquals(1.5, cursor.getDouble(3), 0.0)
+      assertTrue(cursor.isNull(4))
+      assertEquals("real", cursor.getString(5))
+
+      cursor.moveToNext()
+      assertEquals(2L, cursor.getLong(0))
+      assertTrue(cursor.isNull(1))
+      assertTrue(cursor.isNull(2))
+      assertTrue(cursor.isNull(3))
+      assertEquals("x", cursor.getString(4))
+
+      cursor.moveToNext()
+      assertEquals(Long.MAX_VALUE, cursor.getLong(0))
+      assertEquals("", cursor.getString(1))
+      assertArrayEquals(byteArrayOf(), cursor.getBlob(2))
+      assertEquals(-2.25, cursor.getDouble(3), 0.0)
+      assertEquals("y", cursor.getString(4))
+    }
+  }
+
+  @Test
+  fun `empty tables do not write a header`() {
+    val frames = roundTrip(version = 2) { out ->
+      FullBackupExporter.exportTable(TABLE, 1, sourceSupport, out, null, null, 0, 0) { false }
+    }
+
+    assertTrue(frames.none { it.table != null || it.row != null })
+    verify(exactly = 0) { destinationSupport.compileStatement(any()) }
+  }
+
+  @Test
+  fun `rows for ignored tables are skipped on import`() {
+    source.execSQL("CREATE TABLE $FTS_SECRET_TABLE (id INTEGER PRIMARY KEY, block BLOB)")
+    source.execSQL("INSERT INTO $FTS_SECRET_TABLE VALUES (?, ?)", arrayOf(1L, byteArrayOf(9)))
+    source.execSQL("INSERT INTO $TABLE (_id, body) VALUES (?, ?)", arrayOf(1L, "kept"))
+
+    val frames = roundTrip(version = 2) { out ->
+      FullBackupExporter.exportTable(FTS_SECRET_TABLE, 1, sourceSupport, out, null, null, 0, 0) { false }
+      out.write(TableHeader.Builder().id(2).name("sqlite_sequence").columns(listOf("name", "seq")).build())
+      out.write(TableRow.Builder().tableId(2).values(listOf(text(TABLE), integer(1))).build())
+      FullBackupExporter.exportTable(TABLE, 3, sourceSupport, out, null, null, 0, 0) { false }
+    }
+
+    assertEquals(3, frames.count { it.row != null })
+    verify(exactly = 1) { destinationSupport.compileStatement(any()) }
+
+    destination.rawQuery("SELECT body FROM $TABLE", null).use { cursor ->
+      assertEquals(1, cursor.count)
+      cursor.moveToNext()
+      assertEquals("kept", cursor.getString(0))
+    }
+  }
+
+  @Test
+  fun `version 1 backups are exported as statements`() {
+    source.execSQL("INSERT INTO $TABLE (_id, body) VALUES (?, ?)", arrayOf(1L, "old"))
+
+    val output = ByteArrayOutputStream()
+    val out = BackupFrameOutputStream(output, PASSPHRASE, false, 1)
+    FullBackupExporter.exportTable(TABLE, 1, sourceSupport, out, null, null, 0, 0) { false }
+    out.writeEnd()
+    out.close()
+
+    val frames = readFrames(output.toByteArray())
+
+    assertTrue(frames.none { it.table != null || it.row != null })
+    assertEquals(1, frames.count { it.statement != null })
+  }
+
+  @Test
+  fun `table frames in a version 1 backup are rejected`() {
+    val output = ByteArrayOutputStream()
+    val out = BackupFrameOutputStream(output, PASSPHRASE, false, 1)
+    out.write(TableHeader.Builder().id(1).name(TABLE).columns(listOf("_id")).build())
+    out.write(TableRow.Builder().tableId(1).values(listOf(integer(1))).build())
+    out.writeEnd()
+    out.close()
+
+    val input = BackupRecordInputStream(ByteArrayInputStream(output.toByteArray()), PASSPHRASE)
+    val header = input.readFrame().table!!
+
+    try {
+      FullBackupImporter.processTableHeader(destinationSupport, header, input.version, HashMap())
+      fail()
+    } catch (e: IOException) {
+      assertEquals("Table frame in a version 1 backup!", e.message)
+    }
+
+    verify(exactly = 0) { destinationSupport.compileStatement(any()) }
+  }
+
+  /**
+   * Writes a backup with the given [version], then reads it back and feeds the table frames to the importer, the same way a restore does.
+   */
+  private fun roundTrip(version: Int, write: (BackupFrameOutputStream) -> Unit): List<BackupFrame> {
+    val output = ByteArrayOutputStream()
+    val out = BackupFrameOutputStream(output, PASSPHRASE, false, version)
+    write(out)
+    out.writeEnd()
+    out.close()
+
+    val input = BackupRecordInputStream(ByteArrayInputStream(output.toByteArray()), PASSPHRASE)
+    val inserts = HashMap<Int, SupportSQLiteStatement>()
+    val frames = mutableListOf<BackupFrame>()
+
+    assertEquals(version, input.version)
+
+    while (true) {
+      val frame = input.readFrame()
+      if (frame.end == true) {
+        break
+      }
+
+      frames += frame
+
+      if (frame.table != null) {
+        FullBackupImporter.processTableHeader(destinationSupport, frame.table!!, input.version, inserts)
+      } else if (frame.row != null) {
+        FullBackupImporter.processTableRow(frame.row!!, inserts)
+      }
+    }
+
+    inserts.values.forEach { it.close() }
+
+    return frames
+  }
+
+  private fun readFrames(backup: ByteArray): List<BackupFrame> {
+    val input = BackupRecordInputStream(ByteArrayInputStream(backup), PASSPHRASE)
+    return generateSequence { input.readFrame() }.takeWhile { it.end != true }.toList()
+  }
+
+  private fun text(value: String): SqlStatement.SqlParameter = SqlStatement.SqlParameter.Builder().stringParamter(value).build()
+
+  private fun integer(value: Long): SqlStatement.SqlParameter = SqlStatement.SqlParameter.Builder().integerParameter(value).build()
+
+  /**
+   * Lets the importer bind to a plain [SQLiteStatement], since SQLCipher isn't available in unit tests.
+   */
+  private class AndroidStatement(private val statement: SQLiteStatement) : SupportSQLiteStatement {
+    override fun execute() = statement.execute()
+    override fun executeUpdateDelete(): Int = statement.executeUpdateDelete()
+    override fun executeInsert(): Long = statement.executeInsert()
+    override fun simpleQueryForLong(): Long = statement.simpleQueryForLong()
+    override fun simpleQueryForString(): String? = statement.simpleQueryForString()
+    override fun bindNull(index: Int) = statement.bindNull(index)
+    override fun bindLong(index: Int, value: Long) = statement.bindLong(index, value)
+    override fun bindDouble(index: Int, value: Double) = statement.bindDouble(index, value)
+    override fun bindString(index: Int, value: String) = statement.bindString(index, value)
+    override fun bindBlob(index: Int, value: ByteArray) = statement.bindBlob(index, value)
+    override fun clearBindings() = statement.clearBindings()
+    override fun close() = statement.close()
+  }
+
+  companion object {
+    private const val TABLE = "things"
+    private const val FTS_SECRET_TABLE = SearchTable.FTS_TABLE_NAME + "_data"
+    private const val PASSPHRASE = "123456789012345678901234567890"
+  }
+}
@@ -6,6 +6,7 @@
 package org.thoughtcrime.securesms.backup.v2.stream
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
 import org.junit.Test
 import org.signal.core.util.Base64
 import org.signal.core.util.Hex
@@ -16,6 +17,7 @@ import org.thoughtcrime.securesms.util.Util
 import org.whispersystems.signalservice.api.backup.BackupKey
 import org.whispersystems.signalservice.api.push.ServiceId.ACI
 import java.io.ByteArrayOutputStream
+import java.io.IOException
 import java.util.UUID
 
 class EncryptedBackupReaderWriterTest {
@@ -98,4 +100,61 @@ class EncryptedBackupReaderWriterTest {
 
     assertEquals(count, uniqueOutputs.size)
   }
+
+  @Test
+  fun `single pass - can read back all of the frames we write`() {
+    val key = BackupKey(Util.getSecretBytes(32))
+    val aci = ACI.from(UUID.randomUUID())
+    val frameCount = 10_000
+    val ciphertext: ByteArray = writeBackup(key, aci, frameCount)
+
+    var streamsOpened = 0
+    val frames: List<Frame> = EncryptedBackupReader(key, aci, ciphertext.size.toLong(), { streamsOpened++; ciphertext.inputStream() }, validateMacUpfront = false).use { reader ->
+      assertEquals(reader.backupInfo?.version, 1L)
+      reader.asSequence().toList()
+    }
+
+    assertEquals(1, streamsOpened)
+    assertEquals(frameCount, frames.size)
+
+    for (i in 0 until frameCount) {
+      assertEquals("username-$i", frames[i].account?.username)
+    }
+  }
+
+  @Test
+  fun `single pass - invalid mac is detected after the last frame`() {
+    val key = BackupKey(Util.getSecretBytes(32))
+    val aci = ACI.from(UUID.randomUUID())
+    val frameCount = 100
+    val ciphertext: ByteArray = writeBackup(key, aci, frameCount)
+
+    ciphertext[ciphertext.size - 1] = (ciphertext[ciphertext.size - 1] + 1).toByte()
+
+    var framesRead = 0
+    try {
+      EncryptedBackupReader(key, aci, ciphertext.size.toLong(), { ciphertext.inputStream() }, validateMacUpfront = false).use { reader ->
+        for (frame in reader) {
+          framesRead++
+        }
+      }
+      fail("Expected an IOException")
+    } catch (e: IOException) {
+      assertEquals(frameCount - 1, framesRead)
+    }
+  }
+
+  private fun writeBackup(key: BackupKey, aci: ACI, frameCount: Int): ByteArray {
+    val outputStream = ByteArrayOutputStream()
+
+    EncryptedBackupWriter(key, aci, outputStream, append = { outputStream.write(it) }).use { writer ->
+      writer.write(BackupInfo(version = 1, backupTimeMs = 1000L))
+
+      for (i in 0 until frameCount) {
+        writer.write(Frame(account = AccountData(username = "username-$i")))
+      }
+    }
+
+    return outputStream.toByteArray()
+  }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.backup.v2.stream
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import org.thoughtcrime.securesms.backup.v2.proto.AccountData
+import org.thoughtcrime.securesms.backup.v2.proto.BackupInfo
+import org.thoughtcrime.securesms.backup.v2.proto.Frame
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+class PipelinedBackupExportWriterTest {
+
+  @Test
+  fun `output is identical to the serial writer`() {
+    val frameCount = 10_000
+
+    val serialOutput = ByteArrayOutputStream()
+    PlainTextBackupWriter(serialOutput).use { writer ->
+      writeFrames(writer, frameCount)
+    }
+
+    val pipelinedOutput = ByteArrayOutputStream()
+    PipelinedBackupExportWriter(PlainTextBackupWriter(pipelinedOutput), encoderThreads = 4, batchSize = 7, maxPendingBatches = 2).use { writer ->
+      writeFrames(writer, frameCount)
+    }
+
+    assertArrayEquals(serialOutput.toByteArray(), pipelinedOutput.toByteArray())
+  }
+
+  @Test
+  fun `frames can be read back in order`() {
+    val frameCount = 1_000
+
+    val output = ByteArrayOutputStream()
+    PipelinedBackupExportWriter(PlainTextBackupWriter(output), encoderThreads = 3, batchSize = 10, maxPendingBatches = 1).use { writer ->
+      writeFrames(writer, frameCount)
+    }
+
+    val frames: List<Frame> = PlainTextBackupReader(output.toByteArray().inputStream()).use { reader ->
+      assertEquals(1L, reader.backupInfo?.version)
+      reader.asSequence().toList()
+    }
+
+    assertEquals(frameCount, frames.size)
+    for (i in 0 until frameCount) {
+      assertEquals("username-$i", frames[i].account?.username)
+    }
+  }
+
+  @Test(expected = IOException::class)
+  fun `writer failure is surfaced to the caller`() {
+    val failingStream = object : OutputStream() {
+      override fun write(b: Int) {
+        throw IOException("Disk full")
+      }
+    }
+
+    PipelinedBackupExportWriter(PlainTextBackupWriter(failingStream), encoderThreads = 1, batchSize = 1, maxPendingBatches = 1).use { writer ->
+      writeFrames(writer, 1_000)
+    }
+  }
+
+  @Test
+  fun `delegate is closed when the writer fails`() {
+    var closed = false
+    val failingStream = object : OutputStream() {
+      override fun write(b: Int) {
+        throw IOException("Disk full")
+      }
+
+      override fun close() {
+        closed = true
+        throw IOException("Close failed")
+      }
+    }
+
+    try {
+      PipelinedBackupExportWriter(PlainTextBackupWriter(failingStream), encoderThreads = 1, batchSize = 1, maxPendingBatches = 1).use { writer ->
+        writeFrames(writer, 1_000)
+      }
+      fail()
+    } catch (e: IOException) {
+      assertEquals("Disk full", e.message)
+      assertEquals(listOf("Close failed"), e.suppressed.map { it.message })
+    }
+
+    assertTrue(closed)
+  }
+
+  private fun writeFrames(writer: BackupExportWriter, frameCount: Int) {
+    writer.write(BackupInfo(version = 1, backupTimeMs = 1000L))
+
+    for (i in 0 until frameCount) {
+      writer.write(Frame(account = AccountData(username = "username-$i")))
+    }
+  }
+}
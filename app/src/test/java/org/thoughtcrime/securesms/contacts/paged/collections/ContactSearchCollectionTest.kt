@@ -90,6 +90,24 @@ class ContactSearchCollectionTest {
     assertEquals(listOf(0, 1, 2, 3, 4, 6, 7, 8, 9), result.filterIsInstance(ContactSearchData.TestRow::class.java).map { it.value })
   }
 
+  @Test
+  fun `Given a record is no longer available, when I getSublist, then I expect the values before it`() {
+    // GIVEN
+    val testSubject = ContactSearchCollection(
+      section = ContactSearchConfiguration.Section.Groups(includeHeader = false),
+      records = FakeContactSearchIterator((0 until 10).toList(), missing = setOf(5)),
+      recordPredicate = null,
+      recordMapper = { i -> ContactSearchData.TestRow(i) },
+      activeContactCount = 0
+    )
+
+    // WHEN
+    val result = testSubject.getSublist(0, 9)
+
+    // THEN
+    assertEquals(listOf(0, 1, 2, 3, 4), result.filterIsInstance(ContactSearchData.TestRow::class.java).map { it.value })
+  }
+
   private fun createTestSubject(
     size: Int = 10,
     includeHeader: Boolean = false,
@@ -102,13 +120,19 @@ class ContactSearchCollectionTest {
     return ContactSearchCollection(section, records, recordPredicate, recordMapper, activeContactCount)
   }
 
-  private class FakeContactSearchIterator(private val numbers: List<Int>) : ContactSearchIterator<Int> {
+  private class FakeContactSearchIterator(private val numbers: List<Int>, private val missing: Set<Int> = emptySet()) : ContactSearchIterator<Int> {
 
     private var position = -1
 
     override fun hasNext(): Boolean = position < numbers.lastIndex
 
-    override fun next(): Int = numbers[++position]
+    override fun next(): Int {
+      val number = numbers[++position]
+      if (number in missing) {
+        throw NoSuchElementException()
+      }
+      return number
+    }
 
     override fun moveToPosition(n: Int) {
       position = n
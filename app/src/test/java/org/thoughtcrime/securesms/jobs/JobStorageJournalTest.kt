@@ -0,0 +1,163 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyList
+import org.mockito.ArgumentMatchers.anyMap
+import org.mockito.Mockito
+import org.thoughtcrime.securesms.database.JobDatabase
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
+import java.util.concurrent.ScheduledExecutorService
+
+class JobStorageJournalTest {
+
+  @Test
+  fun `markJobAsRunning - does not write to database until flushed`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList())))
+
+    subject.markJobAsRunning("1", 42)
+
+    Mockito.verify(database, Mockito.never()).markJobAsRunning(Mockito.anyString(), Mockito.anyLong())
+    Mockito.verify(database, Mockito.never()).writeBatch(anyList(), anyMap(), anyList())
+
+    journal.flush()
+
+    Mockito.verify(database).writeBatch(emptyList(), mapOf("1" to 42L), emptyList())
+  }
+
+  @Test
+  fun `markJobAsRunning - coalesced per job`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList())))
+
+    subject.markJobAsRunning("1", 42)
+    subject.markJobAsRunning("1", 54)
+    journal.flush()
+
+    Mockito.verify(database).writeBatch(emptyList(), mapOf("1" to 54L), emptyList())
+  }
+
+  @Test
+  fun `updateJobAfterRetry - written before returning`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList()), FullSpec(jobSpec("2"), emptyList(), emptyList())))
+
+    subject.markJobAsRunning("1", 42)
+    subject.markJobAsRunning("2", 42)
+    subject.updateJobAfterRetry("1", 43, 2, 10, null)
+
+    val retried = jobSpec("1").copy(isRunning = false, lastRunAttemptTime = 43, runAttempt = 2, nextBackoffInterval = 10)
+    Mockito.verify(database).writeBatch(listOf(retried), mapOf("2" to 42L), emptyList())
+  }
+
+  @Test
+  fun `updateJobs - written before returning`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList())))
+
+    val updated = jobSpec("1").copy(serializedInputData = byteArrayOf(1))
+    subject.updateJobs(listOf(updated))
+
+    Mockito.verify(database).writeBatch(listOf(updated), emptyMap(), emptyList())
+  }
+
+  @Test
+  fun `markRunning - folded into a pending update`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+
+    journal.update(jobSpec("1").copy(runAttempt = 3))
+    journal.markRunning("1", 42)
+    journal.flush()
+
+    Mockito.verify(database).writeBatch(listOf(jobSpec("1").copy(runAttempt = 3, isRunning = true, lastRunAttemptTime = 42)), emptyMap(), emptyList())
+  }
+
+  @Test
+  fun `deleteJobs - written before returning, dropping pending updates for the deleted job`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList()), FullSpec(jobSpec("2"), emptyList(), emptyList())))
+
+    subject.markJobAsRunning("1", 42)
+    subject.markJobAsRunning("2", 42)
+    subject.deleteJob("1")
+
+    Mockito.verify(database).writeBatch(emptyList(), mapOf("2" to 42L), listOf("1"))
+    Mockito.verify(database, Mockito.never()).deleteJobs(anyList())
+  }
+
+  @Test
+  fun `insertJobs - flushes pending writes first`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1"), emptyList(), emptyList())))
+    subject.deleteJob("1")
+
+    val second = listOf(FullSpec(jobSpec("2"), emptyList(), emptyList()))
+    subject.insertJobs(second)
+
+    val inOrder = Mockito.inOrder(database)
+    inOrder.verify(database).writeBatch(emptyList(), emptyMap(), listOf("1"))
+    inOrder.verify(database).insertJobs(second)
+  }
+
+  @Test
+  fun `memory-only jobs - never journaled`() {
+    val database = noopDatabase()
+    val journal = JobStorageJournal(database, 100, Mockito.mock(ScheduledExecutorService::class.java))
+    val subject = FastJobStorage(database, journal)
+    subject.init()
+    subject.insertJobs(listOf(FullSpec(jobSpec("1", isMemoryOnly = true), emptyList(), emptyList())))
+
+    subject.markJobAsRunning("1", 42)
+    subject.deleteJob("1")
+    journal.flush()
+
+    Mockito.verify(database, Mockito.never()).writeBatch(anyList(), anyMap(), anyList())
+  }
+
+  private fun noopDatabase(): JobDatabase {
+    val database = Mockito.mock(JobDatabase::class.java)
+    Mockito.`when`(database.getAllJobSpecs()).thenReturn(emptyList())
+    Mockito.`when`(database.getAllConstraintSpecs()).thenReturn(emptyList())
+    Mockito.`when`(database.getAllDependencySpecs()).thenReturn(emptyList())
+    return database
+  }
+
+  private fun jobSpec(id: String, isMemoryOnly: Boolean = false): JobSpec {
+    return JobSpec(
+      id = id,
+      factoryKey = "f1",
+      queueKey = null,
+      createTime = 1,
+      lastRunAttemptTime = 1,
+      nextBackoffInterval = 0,
+      runAttempt = 1,
+      maxAttempts = 1,
+      lifespan = 1,
+      serializedData = null,
+      serializedInputData = null,
+      isRunning = false,
+      isMemoryOnly = isMemoryOnly,
+      priority = 0
+    )
+  }
+}
@@ -0,0 +1,180 @@
+package org.thoughtcrime.securesms.keyvalue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueStoreTest {
+
+  @Test
+  public void reads_neverWaitOnTheStoreLock() throws Exception {
+    KeyValueDataSet initial = new KeyValueDataSet();
+    initial.putLong("a", 1);
+
+    KeyValueStore   subject = new KeyValueStore(MockKeyValuePersistentStorage.withDataSet(initial));
+    ExecutorService reader  = Executors.newSingleThreadExecutor();
+    CountDownLatch  locked  = new CountDownLatch(1);
+    CountDownLatch  unlock  = new CountDownLatch(1);
+
+    subject.getLong("a", 0);
+
+    Thread holder = new Thread(() -> {
+      synchronized (subject) {
+        locked.countDown();
+        try {
+          unlock.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+
+    holder.start();
+    locked.await();
+
+    try {
+      Future<Long> read = reader.submit(() -> subject.getLong("a", 0));
+      assertEquals(1L, (long) read.get(5, TimeUnit.SECONDS));
+    } finally {
+      unlock.countDown();
+      holder.join();
+      reader.shutdown();
+    }
+  }
+
+  @Test
+  public void beginRead_isNotAffectedByLaterWrites() {
+    KeyValueStore subject = new KeyValueStore(new BlockingStorage().release());
+
+    subject.beginWrite().putString("a", "first").commit();
+    KeyValueReader snapshot = subject.beginRead();
+    subject.beginWrite().putString("a", "second").putLong("b", 2).commit();
+
+    assertEquals("first", snapshot.getString("a", null));
+    assertFalse(snapshot.containsKey("b"));
+    assertEquals("second", subject.getString("a", null));
+  }
+
+  @Test
+  public void writes_thatQueueUpWhileWriting_arePersistedAsOneBatch() {
+    BlockingStorage storage = new BlockingStorage();
+    KeyValueStore   subject = new KeyValueStore(storage);
+
+    subject.beginWrite().putLong("first", 1).apply();
+    storage.awaitWriting();
+
+    subject.beginWrite().putLong("a", 1).putLong("b", 1).apply();
+    subject.beginWrite().remove("a").apply();
+    subject.beginWrite().remove("c").apply();
+    subject.beginWrite().putLong("c", 3).putLong("b", 2).apply();
+
+    assertFalse(subject.containsKey("a"));
+    assertEquals(2, subject.getLong("b", 0));
+    assertEquals(3, subject.getLong("c", 0));
+
+    storage.release();
+    subject.blockUntilAllWritesFinished();
+
+    assertEquals(2, storage.writes.size());
+    assertEquals(Collections.singleton("first"), storage.writes.get(0).getValues().keySet());
+
+    KeyValueDataSet batch = storage.writes.get(1);
+    assertEquals(new HashSet<>(Arrays.asList("b", "c")), batch.getValues().keySet());
+    assertEquals(2, batch.getLong("b", 0));
+    assertEquals(Collections.singleton("a"), storage.removes.get(1));
+  }
+
+  @Test
+  public void reads_matchWrites_acrossManySeparateWrites() {
+    KeyValueStore subject = new KeyValueStore(new BlockingStorage().release());
+    subject.beginWrite().putString("removed", "value").putInteger("kept", 7).apply();
+
+    for (int i = 0; i < 200; i++) {
+      subject.beginWrite().putLong("key" + i, i).apply();
+
+      if (i % 3 == 0) {
+        subject.beginWrite().remove("key" + i).apply();
+      }
+
+      if (i == 100) {
+        subject.beginWrite().remove("removed").apply();
+      }
+    }
+
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i % 3 != 0, subject.containsKey("key" + i));
+      assertEquals(i % 3 == 0 ? -1 : i, subject.getLong("key" + i, -1));
+    }
+
+    assertFalse(subject.containsKey("removed"));
+    assertEquals(7, subject.getInteger("kept", 0));
+  }
+
+  @Test
+  public void commit_isPersistedBeforeReturning() {
+    KeyValueDataSet persisted = new KeyValueDataSet();
+    KeyValueStore   subject   = new KeyValueStore(MockKeyValuePersistentStorage.withDataSet(persisted));
+
+    subject.getLong("a", 0);
+    subject.beginWrite().putLong("a", 5).commit();
+
+    assertTrue(persisted.containsKey("a"));
+    assertEquals(5, persisted.getLong("a", 0));
+  }
+
+  private static final class BlockingStorage implements KeyValuePersistentStorage {
+    private final List<KeyValueDataSet> writes   = new ArrayList<>();
+    private final List<Set<String>>     removes  = new ArrayList<>();
+    private final CountDownLatch        writing  = new CountDownLatch(1);
+    private final CountDownLatch        released = new CountDownLatch(1);
+
+    @Override
+    public void writeDataSet(@NonNull KeyValueDataSet dataSet, @NonNull Collection<String> removes) {
+      writing.countDown();
+
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      this.writes.add(dataSet);
+      this.removes.add(new HashSet<>(removes));
+    }
+
+    @Override
+    public @NonNull KeyValueDataSet getDataSet() {
+      return new KeyValueDataSet();
+    }
+
+    void awaitWriting() {
+      try {
+        writing.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @NonNull BlockingStorage release() {
+      released.countDown();
+      return this;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Date
+
+class BinaryLogRecordTest {
+
+  private val strings = mapOf(1 to "7.0.0", 2 to "MyTag", 3 to "OtherTag")
+  private val createdAt = 1_700_000_000_000L
+
+  @Test
+  fun `format - matches text format`() {
+    val record = BinaryLogRecord.Encoder().encode('I', 1, 2, 42, "Hello there")
+
+    val expected = BinaryLogRecord.formatLine("7.0.0", "42   ", BinaryLogRecord.newDateFormat().format(Date(createdAt)), "I", "MyTag", "Hello there")
+
+    assertEquals(expected, BinaryLogRecord.Formatter(strings).format(record, createdAt))
+  }
+
+  @Test
+  fun `format - main thread`() {
+    val record = BinaryLogRecord.Encoder().encode('W', 1, 3, BinaryLogRecord.MAIN_THREAD_ID, "On main")
+
+    assertTrue(BinaryLogRecord.Formatter(strings).format(record, createdAt).startsWith("[7.0.0] [main ] "))
+  }
+
+  @Test
+  fun `format - null message`() {
+    val record = BinaryLogRecord.Encoder().encode('D', 1, 2, 5, null)
+
+    assertTrue(BinaryLogRecord.Formatter(strings).format(record, createdAt).endsWith(" D MyTag: "))
+  }
+
+  @Test
+  fun `encode - range of message`() {
+    val trace = "first line\nsecond line"
+    val record = BinaryLogRecord.Encoder().encode('E', 1, 2, 5, trace, 11, trace.length)
+
+    assertTrue(BinaryLogRecord.Formatter(strings).format(record, createdAt).endsWith(" E MyTag: second line"))
+  }
+
+  @Test
+  fun `encode - reused encoder handles messages larger than its buffer`() {
+    val encoder = BinaryLogRecord.Encoder()
+    val formatter = BinaryLogRecord.Formatter(strings)
+    val long = "é中😀".repeat(2000)
+
+    val first = encoder.encode('V', 1, 2, 5, long)
+    val second = encoder.encode('V', 1, 2, 300_000, "short")
+
+    assertTrue(formatter.format(first, createdAt).endsWith(": $long"))
+    assertTrue(formatter.format(second, createdAt).contains("[300000] "))
+    assertTrue(formatter.format(second, createdAt).endsWith(": short"))
+  }
+
+  @Test
+  fun `format - unknown string ids`() {
+    val record = BinaryLogRecord.Encoder().encode('I', 100, 200, 5, "Hi")
+
+    assertTrue(BinaryLogRecord.Formatter(strings).format(record, createdAt).startsWith("[?] "))
+  }
+
+  @Test
+  fun `format - truncated record`() {
+    val record = BinaryLogRecord.Encoder().encode('I', 1, 2, 1_000_000, "Hi").copyOf(4)
+
+    assertTrue(BinaryLogRecord.Formatter(strings).format(record, createdAt).startsWith("Truncated log record"))
+  }
+}
@@ -0,0 +1,115 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+
+class MpscRingBufferTest {
+
+  @Test
+  fun `poll - returns items in order`() {
+    val buffer = MpscRingBuffer<Int>(4)
+
+    assertTrue(buffer.offer(1))
+    assertTrue(buffer.offer(2))
+    assertTrue(buffer.offer(3))
+
+    assertEquals(1, buffer.poll())
+    assertEquals(2, buffer.poll())
+    assertEquals(3, buffer.poll())
+    assertNull(buffer.poll())
+    assertTrue(buffer.isEmpty())
+  }
+
+  @Test
+  fun `offer - rejects when full, then accepts after poll`() {
+    val buffer = MpscRingBuffer<Int>(2)
+
+    assertTrue(buffer.offer(1))
+    assertTrue(buffer.offer(2))
+    assertFalse(buffer.offer(3))
+
+    assertEquals(1, buffer.poll())
+    assertTrue(buffer.offer(3))
+
+    val out = mutableListOf<Int>()
+    assertEquals(2, buffer.drainTo(out))
+    assertEquals(listOf(2, 3), out)
+  }
+
+  @Test
+  fun `offer - sheddable items rejected past limit while others still fit`() {
+    val buffer = MpscRingBuffer<Int>(4, sheddableLimit = 2)
+
+    assertTrue(buffer.offer(1, sheddable = true))
+    assertTrue(buffer.offer(2, sheddable = true))
+    assertFalse(buffer.offer(3, sheddable = true))
+    assertTrue(buffer.offer(4))
+    assertTrue(buffer.offer(5))
+    assertFalse(buffer.offer(6))
+
+    assertEquals(4, buffer.offeredCount)
+  }
+
+  @Test
+  fun `wraps around many times`() {
+    val buffer = MpscRingBuffer<Int>(8)
+
+    for (i in 0 until 1000) {
+      assertTrue(buffer.offer(i))
+      assertTrue(buffer.offer(i + 1_000_000))
+      assertEquals(i, buffer.poll())
+      assertEquals(i + 1_000_000, buffer.poll())
+    }
+
+    assertEquals(2000, buffer.polledCount)
+  }
+
+  @Test
+  fun `concurrent producers - every item delivered exactly once, in order per producer`() {
+    val producers = 8
+    val perProducer = 50_000
+    val buffer = MpscRingBuffer<Long>(1024)
+    val start = CountDownLatch(1)
+
+    val threads = (0 until producers).map { producer ->
+      Thread {
+        start.await()
+        for (i in 0 until perProducer) {
+          val item = producer.toLong() shl 32 or i.toLong()
+          while (!buffer.offer(item)) {
+            Thread.yield()
+          }
+        }
+      }.apply { start() }
+    }
+
+    start.countDown()
+
+    val lastSeen = IntArray(producers) { -1 }
+    var received = 0
+
+    while (received < producers * perProducer) {
+      val item = buffer.poll()
+      if (item == null) {
+        Thread.yield()
+        continue
+      }
+
+      val producer = (item shr 32).toInt()
+      val index = (item and 0xFFFFFFFFL).toInt()
+
+      assertEquals(lastSeen[producer] + 1, index)
+      lastSeen[producer] = index
+      received++
+    }
+
+    threads.forEach { it.join() }
+
+    assertTrue(buffer.isEmpty())
+    lastSeen.forEach { assertEquals(perProducer - 1, it) }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.messages
+
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.whispersystems.signalservice.api.SignalWebSocket
+import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState
+import org.whispersystems.signalservice.api.websocket.WebSocketFactory
+import org.whispersystems.signalservice.internal.push.Envelope
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection
+import org.whispersystems.signalservice.internal.websocket.WebSocketRequestMessage
+import org.whispersystems.signalservice.internal.websocket.WebSocketResponseMessage
+import org.whispersystems.signalservice.internal.websocket.WebsocketResponse
+import java.util.LinkedList
+import java.util.Optional
+import java.util.concurrent.TimeoutException
+import kotlin.time.Duration.Companion.microseconds
+import kotlin.time.Duration.Companion.milliseconds
+
+/**
+ * Drains a simulated backlog through a real [SignalWebSocket], backed by a fake connection. Processing time comes from a cost model rather than the clock,
+ * so that the results are deterministic. Transactions are split the way the pipelined drain splits them: consecutive envelopes share one until an envelope
+ * has follow-up operations.
+ */
+class AdaptiveBatchSizeTest {
+
+  companion object {
+    private const val BACKLOG = 10_000
+    private const val FIXED_BATCH_SIZE = 30
+    private val BUDGET_NANOS = AdaptiveBatchSize.DEFAULT_TRANSACTION_BUDGET.inWholeNanoseconds
+  }
+
+  @Test
+  fun `fast envelopes are drained in far fewer batches`() {
+    val cost = CostModel(overhead = 5.milliseconds.inWholeNanoseconds) { 100.microseconds.inWholeNanoseconds }
+
+    val fixed = simulateDrain(null, cost)
+    val adaptive = simulateDrain(AdaptiveBatchSize(), cost)
+
+    assertEquals(BACKLOG, fixed.acked)
+    assertEquals(BACKLOG, adaptive.acked)
+    assertTrue("Expected far fewer batches, fixed: ${fixed.batches}, adaptive: ${adaptive.batches}", adaptive.batches * 4 < fixed.batches)
+    assertTrue("Expected a faster drain, fixed: ${fixed.totalNanos}, adaptive: ${adaptive.totalNanos}", adaptive.totalNanos < fixed.totalNanos)
+    assertTrue(adaptive.transactionNanos.all { it <= BUDGET_NANOS })
+  }
+
+  @Test
+  fun `slow envelopes keep transactions within the budget`() {
+    val cost = CostModel(overhead = 1.milliseconds.inWholeNanoseconds) { 4.milliseconds.inWholeNanoseconds }
+
+    val fixed = simulateDrain(null, cost)
+    val adaptive = simulateDrain(AdaptiveBatchSize(), cost)
+
+    assertEquals(BACKLOG, adaptive.acked)
+    // Apart from the last batch, which only has what's left over
+    assertTrue(fixed.transactionNanos.dropLast(1).all { it > BUDGET_NANOS })
+
+    // It takes a couple of batches to shrink down from the initial size
+    assertTrue(adaptive.transactionNanos.drop(3).all { it <= BUDGET_NANOS })
+  }
+
+  @Test
+  fun `batch size shrinks when envelopes get slower partway through`() {
+    val cost = CostModel(overhead = 1.milliseconds.inWholeNanoseconds) { index ->
+      if (index < BACKLOG / 2) 100.microseconds.inWholeNanoseconds else 5.milliseconds.inWholeNanoseconds
+    }
+
+    val batchSize = AdaptiveBatchSize()
+    val adaptive = simulateDrain(batchSize, cost)
+
+    assertEquals(BACKLOG, adaptive.acked)
+    assertTrue("Expected the size to have shrunk, was ${batchSize.size}", batchSize.size * 5 < AdaptiveBatchSize.DEFAULT_MAX_SIZE)
+
+    // Halving from the max size should only take a handful of over-budget transactions
+    assertTrue(adaptive.transactionNanos.count { it > BUDGET_NANOS } <= 6)
+  }
+
+  @Test
+  fun `follow-up operations that split transactions keep the size from shrinking`() {
+    val cost = CostModel(overhead = 1.milliseconds.inWholeNanoseconds, hasFollowUps = { index -> index % 4 == 3 }) { 4.milliseconds.inWholeNanoseconds }
+
+    val batchSize = AdaptiveBatchSize()
+    val adaptive = simulateDrain(batchSize, cost)
+
+    assertEquals(BACKLOG, adaptive.acked)
+    assertTrue(adaptive.transactionNanos.all { it <= BUDGET_NANOS })
+    assertEquals(AdaptiveBatchSize.DEFAULT_INITIAL_SIZE, batchSize.size)
+  }
+
+  @Test
+  fun `size stays within bounds`() {
+    val batchSize = AdaptiveBatchSize(minSize = 5, maxSize = 40, initialSize = 30)
+
+    repeat(10) { batchSize.onBatchProcessed(batchSize.size, 1, 1) }
+    assertEquals(40, batchSize.size)
+
+    repeat(10) { batchSize.onBatchProcessed(batchSize.size, BUDGET_NANOS * 10, BUDGET_NANOS * 10) }
+    assertEquals(5, batchSize.size)
+  }
+
+  private fun simulateDrain(batchSize: AdaptiveBatchSize?, cost: CostModel): SimulationResult {
+    val connection = FakeWebSocketConnection(BACKLOG)
+    val webSocket = SignalWebSocket(object : WebSocketFactory {
+      override fun createWebSocket(): WebSocketConnection = connection
+      override fun createUnidentifiedWebSocket(): WebSocketConnection = error("Not used")
+    })
+
+    webSocket.connect(false)
+
+    var processed = 0
+    var batches = 0
+    val transactionNanos = mutableListOf<Long>()
+
+    do {
+      val hasMore = webSocket.readMessageBatch(1000, batchSize?.size ?: FIXED_BATCH_SIZE) { batch ->
+        val batchTransactions = mutableListOf<Long>()
+        var transaction = cost.overhead
+
+        batch.forEachIndexed { i, _ ->
+          val index = processed++
+          transaction += cost.perMessage(index)
+
+          if (cost.hasFollowUps(index) || i == batch.lastIndex) {
+            batchTransactions += transaction
+            transaction = 0
+          }
+        }
+
+        batch.forEach { webSocket.sendAck(it) }
+
+        batches++
+        transactionNanos += batchTransactions
+        batchSize?.onBatchProcessed(batch.size, batchTransactions.sum(), batchTransactions.max())
+      }
+    } while (hasMore)
+
+    webSocket.disconnect()
+
+    return SimulationResult(
+      acked = connection.acked,
+      batches = batches,
+      totalNanos = transactionNanos.sum(),
+      transactionNanos = transactionNanos
+    )
+  }
+
+  private class CostModel(val overhead: Long, val hasFollowUps: (Int) -> Boolean = { false }, val perMessage: (Int) -> Long)
+
+  private data class SimulationResult(
+    val acked: Int,
+    val batches: Int,
+    val totalNanos: Long,
+    val transactionNanos: List<Long>
+  )
+
+  /**
+   * Behaves like a connection to a server with [backlogSize] queued envelopes, followed by the queue-empty signal.
+   */
+  private class FakeWebSocketConnection(backlogSize: Int) : WebSocketConnection {
+    private val requests: LinkedList<WebSocketRequestMessage> = LinkedList()
+
+    var acked = 0
+      private set
+
+    init {
+      for (i in 0 until backlogSize) {
+        requests += WebSocketRequestMessage(
+          verb = "PUT",
+          path = "/api/v1/message",
+          id = i.toLong(),
+          headers = listOf("X-Signal-Timestamp:$i"),
+          body = Envelope(type = Envelope.Type.CIPHERTEXT, timestamp = i.toLong(), serverTimestamp = i.toLong()).encodeByteString()
+        )
+      }
+      requests += WebSocketRequestMessage(verb = "PUT", path = "/api/v1/queue/empty", id = backlogSize.toLong())
+    }
+
+    override val name: String = "fake"
+
+    override var keepAlive: Boolean = false
+
+    override fun connect(): Observable<WebSocketConnectionState> = Observable.just(WebSocketConnectionState.CONNECTED)
+
+    override fun isDead(): Boolean = false
+
+    override fun disconnect() = Unit
+
+    override fun sendRequest(request: WebSocketRequestMessage): Single<WebsocketResponse> = Single.error(UnsupportedOperationException())
+
+    override fun sendKeepAlive() = Unit
+
+    override fun readRequestIfAvailable(): Optional<WebSocketRequestMessage> = Optional.ofNullable(requests.poll())
+
+    override fun readRequest(timeoutMillis: Long): WebSocketRequestMessage = requests.poll() ?: throw TimeoutException()
+
+    override fun sendResponse(response: WebSocketResponseMessage?) {
+      if (response?.status == 200) {
+        acked++
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.thoughtcrime.securesms.messages
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class MessageRetrievalPipelineTest {
+
+  @Test
+  fun `batches are processed and acked in order`() {
+    val processed: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+    val acked: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+    val drained = CountDownLatch(1)
+
+    val pipeline = MessageRetrievalPipeline<Int>(
+      maxPendingBatches = 2,
+      process = { batch ->
+        assertTrue("Processed a batch after it was acked!", batch.none { it in acked })
+        processed += batch
+      },
+      ack = { batch ->
+        assertTrue("Acked a batch before it was processed!", processed.containsAll(batch))
+        acked += batch
+      },
+      onDrained = { drained.countDown() }
+    )
+
+    for (i in 0 until 100) {
+      pipeline.submit((i * 30 until (i + 1) * 30).toList())
+    }
+    pipeline.markDrained()
+
+    assertTrue(drained.await(5, TimeUnit.SECONDS))
+    pipeline.close()
+
+    assertEquals((0 until 3000).toList(), processed)
+    assertEquals((0 until 3000).toList(), acked)
+  }
+
+  @Test
+  fun `drained is only signalled after everything before it is acked`() {
+    val acked: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+    var ackedWhenDrained = -1
+    val drained = CountDownLatch(1)
+
+    val pipeline = MessageRetrievalPipeline<Int>(
+      maxPendingBatches = 1,
+      process = { Thread.sleep(5) },
+      ack = { batch -> acked += batch },
+      onDrained = {
+        ackedWhenDrained = acked.size
+        drained.countDown()
+      }
+    )
+
+    for (i in 0 until 10) {
+      pipeline.submit(listOf(i))
+    }
+    pipeline.markDrained()
+
+    assertTrue(drained.await(5, TimeUnit.SECONDS))
+    pipeline.close()
+
+    assertEquals(10, ackedWhenDrained)
+  }
+
+  @Test(expected = IOException::class)
+  fun `processing failure is surfaced to the reader`() {
+    val pipeline = MessageRetrievalPipeline<Int>(
+      maxPendingBatches = 1,
+      process = { throw IllegalStateException("Bad envelope") },
+      ack = { },
+      onDrained = { }
+    )
+
+    try {
+      for (i in 0 until 100) {
+        pipeline.submit(listOf(i))
+      }
+      pipeline.markDrained()
+    } finally {
+      pipeline.close()
+    }
+  }
+
+  @Test
+  fun `nothing is acked after an ack failure`() {
+    val acked: MutableList<Int> = Collections.synchronizedList(mutableListOf())
+
+    val pipeline = MessageRetrievalPipeline<Int>(
+      maxPendingBatches = 1,
+      process = { },
+      ack = { batch ->
+        if (batch.first() == 5) {
+          throw IOException("Socket closed")
+        }
+        acked += batch
+      },
+      onDrained = { }
+    )
+
+    try {
+      for (i in 0 until 100) {
+        pipeline.submit(listOf(i))
+      }
+    } catch (e: IOException) {
+      // Expected
+    } finally {
+      pipeline.close()
+    }
+
+    assertEquals((0 until 5).toList(), acked)
+  }
+}
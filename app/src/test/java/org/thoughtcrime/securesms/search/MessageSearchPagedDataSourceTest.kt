@@ -0,0 +1,108 @@
+package org.thoughtcrime.securesms.search
+
+import android.app.Application
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.database.SearchTable
+import org.thoughtcrime.securesms.database.SearchTable.MessageSearchHit
+import org.thoughtcrime.securesms.recipients.Recipient
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class MessageSearchPagedDataSourceTest {
+
+  private val repository: SearchRepository = mockk()
+
+  @Test
+  fun `load - only loads the indexed results on the page`() {
+    givenHits(MessageSearchHit(5, 500), MessageSearchHit(4, 400), MessageSearchHit(3, 300), MessageSearchHit(2, 200))
+    givenMentions()
+
+    val subject = MessageSearchPagedDataSource(repository, QUERY)
+
+    assertEquals(4, subject.size())
+    assertEquals(listOf(4L, 3L), subject.load(1, 2, 4) { false }.map { it.messageId })
+    verify { repository.queryMessagesById(QUERY, listOf(4L, 3L), any()) }
+  }
+
+  @Test
+  fun `load - stops short at a message that was deleted after it was found`() {
+    givenHits(MessageSearchHit(5, 500), MessageSearchHit(4, 400), MessageSearchHit(3, 300))
+    givenMentions()
+    every { repository.queryMessagesById(QUERY, any(), any()) } answers {
+      val ids: List<Long> = secondArg()
+      ids.filter { it != 4L }.map { result(it, it * 100) }
+    }
+
+    val subject = MessageSearchPagedDataSource(repository, QUERY)
+
+    assertEquals(3, subject.size())
+    assertEquals(listOf(5L), subject.load(0, 3, 3) { false }.map { it.messageId })
+  }
+
+  @Test
+  fun `size - mention matches are merged in by date`() {
+    givenHits(MessageSearchHit(5, 500), MessageSearchHit(3, 300), MessageSearchHit(1, 100))
+    givenMentions(result(4, 400), result(2, 200), result(0, 0))
+
+    val subject = MessageSearchPagedDataSource(repository, QUERY)
+
+    assertEquals(6, subject.size())
+    assertEquals(listOf(5L, 4L, 3L, 2L, 1L, 0L), subject.load(0, 6, 6) { false }.map { it.messageId })
+  }
+
+  @Test
+  fun `size - mention matches that are also indexed matches are only included once`() {
+    givenHits(MessageSearchHit(2, 200), MessageSearchHit(1, 100))
+    givenMentions(result(2, 200))
+
+    val subject = MessageSearchPagedDataSource(repository, QUERY)
+
+    assertEquals(2, subject.size())
+  }
+
+  @Test
+  fun `size - mention matches come last when ordered by relevance`() {
+    givenHits(MessageSearchHit(1, 100), MessageSearchHit(3, 300), order = SearchTable.MessageSearchOrder.RELEVANCE)
+    givenMentions(result(2, 200))
+
+    val subject = MessageSearchPagedDataSource(repository, QUERY, order = SearchTable.MessageSearchOrder.RELEVANCE)
+
+    assertEquals(listOf(1L, 3L, 2L), subject.load(0, 3, 3) { false }.map { it.messageId })
+  }
+
+  private fun givenHits(vararg hits: MessageSearchHit, order: SearchTable.MessageSearchOrder = SearchTable.MessageSearchOrder.RECENT) {
+    every { repository.queryMessageHits(QUERY, null, order, any(), any()) } returns hits.toList()
+    every { repository.queryMessagesById(QUERY, any(), any()) } answers {
+      val ids: List<Long> = secondArg()
+      ids.map { id -> result(id, hits.first { it.messageId == id }.dateReceived) }
+    }
+  }
+
+  private fun givenMentions(vararg results: MessageResult) {
+    every { repository.queryMentionMessages(QUERY) } returns results.toList()
+  }
+
+  private fun result(messageId: Long, receivedTimestampMs: Long): MessageResult {
+    return MessageResult(
+      conversationRecipient = mockk<Recipient>(),
+      messageRecipient = mockk<Recipient>(),
+      body = "body",
+      bodySnippet = "body",
+      threadId = 1,
+      messageId = messageId,
+      receivedTimestampMs = receivedTimestampMs,
+      isMms = true
+    )
+  }
+
+  companion object {
+    private const val QUERY = "query"
+  }
+}
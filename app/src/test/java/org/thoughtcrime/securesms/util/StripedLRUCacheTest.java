@@ -0,0 +1,173 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StripedLRUCacheTest {
+
+  @Test
+  public void computeIfAbsent_onlyCreatesOnce() {
+    StripedLRUCache<Integer, String> cache   = new StripedLRUCache<>(100, 4);
+    AtomicInteger                    creates = new AtomicInteger();
+
+    String first  = cache.computeIfAbsent(1, key -> { creates.incrementAndGet(); return "value-" + key; });
+    String second = cache.computeIfAbsent(1, key -> { creates.incrementAndGet(); return "other-" + key; });
+
+    assertSame(first, second);
+    assertEquals(1, creates.get());
+  }
+
+  @Test
+  public void size_neverExceedsCapacity() {
+    StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<>(64, 8);
+
+    for (int i = 0; i < 10_000; i++) {
+      cache.put(i, i);
+    }
+
+    assertTrue(cache.size() <= 64);
+  }
+
+  @Test
+  public void recentlyUsedEntries_surviveEviction() {
+    StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<>(16, 1);
+
+    cache.put(0, 0);
+    for (int i = 1; i < 100; i++) {
+      cache.get(0);
+      cache.put(i, i);
+    }
+
+    assertEquals(Integer.valueOf(0), cache.get(0));
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  public void removeAndClear() {
+    StripedLRUCache<Integer, Integer> cache = new StripedLRUCache<>(100, 4);
+
+    for (int i = 0; i < 10; i++) {
+      cache.put(i, i);
+    }
+
+    cache.remove(5);
+    assertNull(cache.get(5));
+    assertEquals(9, cache.size());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void computeIfAbsent_concurrentCallersShareOneValue() throws InterruptedException {
+    StripedLRUCache<Integer, Object> cache   = new StripedLRUCache<>(1000, 16);
+    CountDownLatch                   start   = new CountDownLatch(1);
+    List<Thread>                     threads = new ArrayList<>();
+    Object[][]                       results = new Object[8][100];
+
+    for (int t = 0; t < 8; t++) {
+      int index = t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        for (int i = 0; i < 100; i++) {
+          results[index][i] = cache.computeIfAbsent(i, key -> new Object());
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int t = 1; t < 8; t++) {
+      for (int i = 0; i < 100; i++) {
+        assertSame(results[0][i], results[t][i]);
+      }
+    }
+  }
+
+  @Test
+  public void remap_pointsOldKeyAtNewValue() {
+    StripedLRUCache<Integer, String> cache = new StripedLRUCache<>(100, 4);
+
+    cache.put(1, "old");
+    cache.put(2, "new");
+
+    cache.remap(1, 2);
+
+    assertSame(cache.get(2), cache.get(1));
+  }
+
+  @Test
+  public void remap_removesOldKeyWhenNewKeyIsMissing() {
+    StripedLRUCache<Integer, String> cache = new StripedLRUCache<>(100, 4);
+
+    cache.put(1, "old");
+
+    cache.remap(1, 2);
+
+    assertNull(cache.get(1));
+    assertNull(cache.get(2));
+  }
+
+  @Test
+  public void remap_concurrentWithComputeIfAbsent_neverSplitsTheValue() throws InterruptedException {
+    for (int round = 0; round < 200; round++) {
+      StripedLRUCache<Integer, Object> cache  = new StripedLRUCache<>(1000, 16);
+      CountDownLatch                   start  = new CountDownLatch(1);
+      Object[]                         result = new Object[1];
+
+      Thread remapper = new Thread(() -> {
+        await(start);
+        cache.remap(1, 2);
+      });
+
+      Thread creator = new Thread(() -> {
+        await(start);
+        result[0] = cache.computeIfAbsent(2, key -> new Object());
+      });
+
+      remapper.start();
+      creator.start();
+      start.countDown();
+      remapper.join();
+      creator.join();
+
+      Object oldValue = cache.get(1);
+      if (oldValue != null) {
+        assertSame(result[0], oldValue);
+      }
+      assertSame(result[0], cache.get(2));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void stripeCount_mustBePowerOfTwo() {
+    new StripedLRUCache<Integer, Integer>(100, 3);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
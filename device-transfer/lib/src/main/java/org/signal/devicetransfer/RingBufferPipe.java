@@ -0,0 +1,214 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A fixed size, in-memory pipe between one writing thread and one reading thread. Used to decouple producing or consuming
+ * the transfer stream from the socket, so that neither side has to wait on the other for every write.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, waiting sides are woken up as soon as there's something to do, and a failure on
+ * either side is passed along to the other instead of leaving it blocked.
+ */
+public final class RingBufferPipe {
+
+  private final byte[] buffer;
+  private final Object lock = new Object();
+
+  private int  readPosition;
+  private int  available;
+  private long totalWritten;
+  private long totalRead;
+
+  private boolean   writerClosed;
+  private boolean   readerClosed;
+  private Throwable writerFailure;
+
+  private final InputStream  inputStream  = new PipeInputStream();
+  private final OutputStream outputStream = new PipeOutputStream();
+
+  public RingBufferPipe(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+
+    this.buffer = new byte[capacity];
+  }
+
+  public @NonNull InputStream getInputStream() {
+    return inputStream;
+  }
+
+  public @NonNull OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Called by the writing side when it's done. If it failed, the reading side will get a {@link WriterFailedException} with
+   * the failure as the cause once it has read everything written before it.
+   */
+  public void closeWriter(@Nullable Throwable failure) {
+    synchronized (lock) {
+      writerClosed  = true;
+      writerFailure = failure;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Called by the reading side when it isn't going to read any more. Any further writes will fail.
+   */
+  public void closeReader() {
+    synchronized (lock) {
+      readerClosed = true;
+      lock.notifyAll();
+    }
+  }
+
+  public long getTotalBytesWritten() {
+    synchronized (lock) {
+      return totalWritten;
+    }
+  }
+
+  public long getTotalBytesRead() {
+    synchronized (lock) {
+      return totalRead;
+    }
+  }
+
+  private void write(@NonNull byte[] data, int offset, int length) throws IOException {
+    synchronized (lock) {
+      while (length > 0) {
+        while (available == buffer.length && !readerClosed && !writerClosed) {
+          await();
+        }
+
+        if (writerClosed) {
+          throw new IOException("Pipe writer is closed!");
+        }
+
+        if (readerClosed) {
+          throw new IOException("Pipe reader is closed!");
+        }
+
+        int writePosition = (readPosition + available) % buffer.length;
+        int count         = Math.min(length, Math.min(buffer.length - available, buffer.length - writePosition));
+
+        System.arraycopy(data, offset, buffer, writePosition, count);
+
+        offset       += count;
+        length       -= count;
+        available    += count;
+        totalWritten += count;
+
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private int read(@NonNull byte[] data, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    synchronized (lock) {
+      while (available == 0 && !writerClosed && !readerClosed) {
+        await();
+      }
+
+      if (readerClosed) {
+        throw new IOException("Pipe reader is closed!");
+      }
+
+      if (available == 0) {
+        if (writerFailure != null) {
+          throw new WriterFailedException(writerFailure);
+        }
+        return -1;
+      }
+
+      int count = Math.min(length, Math.min(available, buffer.length - readPosition));
+
+      System.arraycopy(buffer, readPosition, data, offset, count);
+
+      readPosition = (readPosition + count) % buffer.length;
+      available   -= count;
+      totalRead   += count;
+
+      lock.notifyAll();
+
+      return count;
+    }
+  }
+
+  private int available() {
+    synchronized (lock) {
+      return available;
+    }
+  }
+
+  private void await() throws InterruptedIOException {
+    try {
+      lock.wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Thrown to the reading side when the writing side failed. The cause is the writer's failure, so that the reader can tell
+   * it apart from its own I/O errors and pass it on as it was.
+   */
+  public static final class WriterFailedException extends IOException {
+    private WriterFailedException(@NonNull Throwable cause) {
+      super("Pipe writer failed!", cause);
+    }
+  }
+
+  private final class PipeInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return RingBufferPipe.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] data, int offset, int length) throws IOException {
+      return RingBufferPipe.this.read(data, offset, length);
+    }
+
+    @Override
+    public int available() {
+      return RingBufferPipe.this.available();
+    }
+
+    @Override
+    public void close() {
+      closeReader();
+    }
+  }
+
+  private final class PipeOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      RingBufferPipe.this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] data, int offset, int length) throws IOException {
+      RingBufferPipe.this.write(data, offset, length);
+    }
+
+    @Override
+    public void close() {
+      closeWriter(null);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.signal.devicetransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RingBufferPipeTest {
+
+  @Test
+  public void read_givesBackEverythingWritten_whenMuchLargerThanBuffer() throws Exception {
+    byte[] data = new byte[1_000_000];
+    new Random(1).nextBytes(data);
+
+    RingBufferPipe pipe   = new RingBufferPipe(4096);
+    Thread         writer = new Thread(() -> {
+      try {
+        OutputStream out    = pipe.getOutputStream();
+        Random       random = new Random(2);
+        int          offset = 0;
+
+        while (offset < data.length) {
+          int length = Math.min(data.length - offset, 1 + random.nextInt(10_000));
+          out.write(data, offset, length);
+          offset += length;
+        }
+
+        pipe.closeWriter(null);
+      } catch (IOException e) {
+        pipe.closeWriter(e);
+      }
+    });
+
+    writer.start();
+
+    byte[] read = readFully(pipe.getInputStream(), 777);
+    writer.join();
+
+    assertArrayEquals(data, read);
+    assertEquals(data.length, pipe.getTotalBytesWritten());
+    assertEquals(data.length, pipe.getTotalBytesRead());
+  }
+
+  @Test
+  public void read_returnsEndOfStream_afterWriterClosed() throws Exception {
+    RingBufferPipe pipe = new RingBufferPipe(16);
+
+    pipe.getOutputStream().write(new byte[] { 1, 2, 3 });
+    pipe.closeWriter(null);
+
+    assertArrayEquals(new byte[] { 1, 2, 3 }, readFully(pipe.getInputStream(), 2));
+    assertEquals(-1, pipe.getInputStream().read());
+  }
+
+  @Test
+  public void read_throwsWriterFailure_afterBufferedDataIsRead() throws Exception {
+    RingBufferPipe pipe    = new RingBufferPipe(16);
+    Exception      failure = new IllegalStateException("Export failed");
+
+    pipe.getOutputStream().write(new byte[] { 1, 2 });
+    pipe.closeWriter(failure);
+
+    InputStream in = pipe.getInputStream();
+    assertEquals(1, in.read());
+    assertEquals(2, in.read());
+
+    try {
+      in.read();
+      fail();
+    } catch (RingBufferPipe.WriterFailedException e) {
+      assertSame(failure, e.getCause());
+    }
+  }
+
+  @Test
+  public void write_throws_whenReaderClosedWhileBlocked() throws Exception {
+    RingBufferPipe               pipe    = new RingBufferPipe(8);
+    AtomicReference<IOException> failure = new AtomicReference<>();
+
+    Thread writer = new Thread(() -> {
+      try {
+        pipe.getOutputStream().write(new byte[64]);
+      } catch (IOException e) {
+        failure.set(e);
+      }
+    });
+
+    writer.start();
+
+    while (pipe.getTotalBytesWritten() < 8) {
+      Thread.sleep(1);
+    }
+
+    pipe.closeReader();
+    writer.join();
+
+    assertTrue(failure.get() != null);
+  }
+
+  private static byte[] readFully(InputStream in, int chunkSize) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[chunkSize];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+}
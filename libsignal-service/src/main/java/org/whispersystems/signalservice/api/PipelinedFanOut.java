@@ -0,0 +1,94 @@
+package org.whispersystems.signalservice.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.exceptions.CompositeException;
+import io.reactivex.rxjava3.functions.Consumer;
+import io.reactivex.rxjava3.functions.Function;
+
+/**
+ * Sends the same thing to many recipients without giving each of them a thread.
+ * <p>
+ * Each send is subscribed to on the start scheduler, which is where it does its encryption, so recipients are encrypted in parallel. After that, a send is
+ * expected to wait on the network without holding a thread. No more than {@code maxInFlight} sends are running at once, and as each one completes the next
+ * is started, which keeps the websocket busy without queueing up every request up front.
+ */
+final class PipelinedFanOut {
+
+  private PipelinedFanOut() {}
+
+  /**
+   * Blocks until every send has completed.
+   *
+   * @param onResult Called with each result as it comes in, one at a time.
+   * @return The results, in the order they completed.
+   * @throws IOException The first failure, once all of the other sends have finished. Sends are expected to turn recoverable failures into results.
+   */
+  static <T, R> List<R> send(List<T> inputs,
+                             Function<T, Single<R>> send,
+                             Scheduler startScheduler,
+                             int maxInFlight,
+                             @Nullable Consumer<R> onResult)
+      throws IOException
+  {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("Must allow at least one send in flight: " + maxInFlight);
+    }
+
+    if (inputs.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    try {
+      return Flowable.fromIterable(inputs)
+                     .flatMapSingle(input -> Single.defer(() -> send.apply(input)).subscribeOn(startScheduler), true, maxInFlight)
+                     .doOnNext(result -> {
+                       if (onResult != null) {
+                         onResult.accept(result);
+                       }
+                     })
+                     .toList(inputs.size())
+                     .blockingGet();
+    } catch (RuntimeException e) {
+      Throwable failure = unwrap(e);
+
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof InterruptedException) {
+        throw new CancelationException(e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Finds the failure behind what {@link Single#blockingGet()} threw. Checked exceptions arrive wrapped in a plain {@link RuntimeException}, or in an
+   * {@link ExecutionException} or {@link CompletionException} if the send was built from a future, and several failures arrive as a
+   * {@link CompositeException}. Any other exception is a send's own, and is returned as it was thrown.
+   */
+  private static Throwable unwrap(RuntimeException e) {
+    Throwable failure = e instanceof CompositeException ? ((CompositeException) e).getExceptions().get(0) : e;
+
+    while (isWrapper(failure) && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+
+    return failure;
+  }
+
+  private static boolean isWrapper(Throwable throwable) {
+    return throwable.getClass() == RuntimeException.class ||
+           throwable instanceof ExecutionException ||
+           throwable instanceof CompletionException;
+  }
+}
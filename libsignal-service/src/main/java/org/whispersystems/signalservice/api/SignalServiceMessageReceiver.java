@@ -172,6 +172,25 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get(), null, 0);
   }
 
+  /**
+   * Like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, long, ProgressListener)}, but the MAC and digest are checked while the returned
+   * stream is read instead of in a separate pass beforehand. See {@link AttachmentCipherInputStream#createSinglePassForAttachment}.
+   *
+   * @param downloadSegments How many connections a large download may be split across. Attachments with an incremental MAC are always downloaded over one,
+   *                         since they can be played while the destination is still being written.
+   *
+   * @return An InputStream that streams the plaintext attachment contents, which must be discarded unless the stream is read to the end without an error.
+   */
+  public InputStream retrieveAttachmentSinglePass(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, int downloadSegments, ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    int segments = pointer.getIncrementalDigest().isPresent() ? 1 : downloadSegments;
+
+    socket.retrieveAttachment(pointer.getCdnNumber(), Collections.emptyMap(), pointer.getRemoteId(), destination, maxSizeBytes, segments, listener);
+    return AttachmentCipherInputStream.createSinglePassForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get());
+  }
+
   /**
    * Retrieves an archived media attachment.
    *
@@ -192,12 +211,58 @@ public class SignalServiceMessageReceiver {
                                                 long maxSizeBytes,
                                                 @Nullable ProgressListener listener)
       throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    retrieveArchivedAttachmentCiphertext(archivedMediaKeyMaterial, readCredentialHeaders, archiveDestination, pointer, attachmentDestination, maxSizeBytes, 1, listener);
+
+    return AttachmentCipherInputStream.createForAttachment(attachmentDestination,
+                                                           pointer.getSize().orElse(0),
+                                                           pointer.getKey(),
+                                                           pointer.getDigest().get(),
+                                                           null,
+                                                           0);
+  }
+
+  /**
+   * Like {@link #retrieveArchivedAttachment}, but the MAC and digest of the attachment are checked while the returned stream is read instead of in a separate
+   * pass beforehand. See {@link AttachmentCipherInputStream#createSinglePassForAttachment}.
+   *
+   * @param downloadSegments How many connections a large download may be split across.
+   *
+   * @return An InputStream that streams the plaintext attachment contents, which must be discarded unless the stream is read to the end without an error.
+   */
+  public InputStream retrieveArchivedAttachmentSinglePass(@Nonnull BackupKey.MediaKeyMaterial archivedMediaKeyMaterial,
+                                                          @Nonnull Map<String, String> readCredentialHeaders,
+                                                          @Nonnull File archiveDestination,
+                                                          @Nonnull SignalServiceAttachmentPointer pointer,
+                                                          @Nonnull File attachmentDestination,
+                                                          long maxSizeBytes,
+                                                          int downloadSegments,
+                                                          @Nullable ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException
+  {
+    retrieveArchivedAttachmentCiphertext(archivedMediaKeyMaterial, readCredentialHeaders, archiveDestination, pointer, attachmentDestination, maxSizeBytes, downloadSegments, listener);
+
+    return AttachmentCipherInputStream.createSinglePassForAttachment(attachmentDestination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get());
+  }
+
+  /**
+   * Downloads the archived media and removes the backup layer of encryption, leaving the attachment's own ciphertext in {@code attachmentDestination}.
+   */
+  private void retrieveArchivedAttachmentCiphertext(@Nonnull BackupKey.MediaKeyMaterial archivedMediaKeyMaterial,
+                                                    @Nonnull Map<String, String> readCredentialHeaders,
+                                                    @Nonnull File archiveDestination,
+                                                    @Nonnull SignalServiceAttachmentPointer pointer,
+                                                    @Nonnull File attachmentDestination,
+                                                    long maxSizeBytes,
+                                                    int downloadSegments,
+                                                    @Nullable ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException
   {
     if (pointer.getDigest().isEmpty()) {
       throw new InvalidMessageException("No attachment digest!");
     }
 
-    socket.retrieveAttachment(pointer.getCdnNumber(), readCredentialHeaders, pointer.getRemoteId(), archiveDestination, maxSizeBytes, listener);
+    socket.retrieveAttachment(pointer.getCdnNumber(), readCredentialHeaders, pointer.getRemoteId(), archiveDestination, maxSizeBytes, downloadSegments, listener);
 
     long originalCipherLength = pointer.getSize()
                                        .filter(s -> s > 0)
@@ -209,13 +274,6 @@ public class SignalServiceMessageReceiver {
         StreamUtil.copy(backupDecrypted, fos);
       }
     }
-
-    return AttachmentCipherInputStream.createForAttachment(attachmentDestination,
-                                                           pointer.getSize().orElse(0),
-                                                           pointer.getKey(),
-                                                           pointer.getDigest().get(),
-                                                           null,
-                                                           0);
   }
 
   public void retrieveBackup(int cdnNumber, Map<String, String> headers, String cdnPath, File destination, ProgressListener listener) throws MissingConfigurationException, IOException {
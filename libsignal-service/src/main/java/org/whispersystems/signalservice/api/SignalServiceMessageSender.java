@@ -150,6 +150,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
@@ -190,7 +193,13 @@ public class SignalServiceMessageSender {
   private final Scheduler       scheduler;
   private final long            maxEnvelopeSize;
   private final boolean         useRxMessageSend;
+  private final int             maxInFlightSends;
+  private final Scheduler       encryptionScheduler;
 
+  /**
+   * @param maxInFlightSends If greater than zero, sends to multiple recipients are pipelined with {@link PipelinedFanOut}: encryption runs in parallel on
+   *                         a pool the size of the CPU count, and up to this many sends are waiting on the network at once, without a thread each.
+   */
   public SignalServiceMessageSender(SignalServiceConfiguration urls,
                                     CredentialsProvider credentialsProvider,
                                     SignalServiceDataStore store,
@@ -202,7 +211,8 @@ public class SignalServiceMessageSender {
                                     ExecutorService executor,
                                     long maxEnvelopeSize,
                                     boolean automaticNetworkRetry,
-                                    boolean useRxMessageSend)
+                                    boolean useRxMessageSend,
+                                    int maxInFlightSends)
   {
     this.socket            = new PushServiceSocket(urls, credentialsProvider, signalAgent, clientZkProfileOperations, automaticNetworkRetry);
     this.aciStore          = store.aci();
@@ -218,6 +228,18 @@ public class SignalServiceMessageSender {
     this.localPniIdentity  = store.pni().getIdentityKeyPair();
     this.useRxMessageSend  = useRxMessageSend;
     this.scheduler         = Schedulers.from(executor, false, false);
+    this.maxInFlightSends  = maxInFlightSends;
+
+    if (maxInFlightSends > 0) {
+      int                encryptionThreads  = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor encryptionExecutor = new ThreadPoolExecutor(encryptionThreads, encryptionThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, "signal-message-encrypt"));
+
+      encryptionExecutor.allowCoreThreadTimeOut(true);
+
+      this.encryptionScheduler = Schedulers.from(encryptionExecutor);
+    } else {
+      this.encryptionScheduler = null;
+    }
   }
 
   /**
@@ -1942,6 +1964,10 @@ public class SignalServiceMessageSender {
                                               boolean                            story)
       throws IOException
   {
+    if (maxInFlightSends > 0) {
+      return sendMessagePipelined(recipients, unidentifiedAccess, timestamp, content, online, partialListener, cancelationSignal, sendEvents, urgent, story);
+    }
+
     if (useRxMessageSend) {
       return sendMessageRx(recipients, unidentifiedAccess, timestamp, content, online, partialListener, cancelationSignal, sendEvents, urgent, story);
     }
@@ -2004,6 +2030,13 @@ public class SignalServiceMessageSender {
       }
     }
 
+    double average = getAverageSendDuration(results);
+
+    Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send.");
+    return results;
+  }
+
+  private static double getAverageSendDuration(List<SendMessageResult> results) {
     double sendsForAverage = 0;
     for (SendMessageResult result : results) {
       if (result.getSuccess() != null && result.getSuccess().getDuration() != -1) {
@@ -2020,8 +2053,7 @@ public class SignalServiceMessageSender {
       }
     }
 
-    Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send.");
-    return results;
+    return average;
   }
 
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
@@ -2122,6 +2154,52 @@ public class SignalServiceMessageSender {
     throw new IOException("Failed to resolve conflicts after " + RETRY_COUNT + " attempts!");
   }
 
+  /**
+   * Sends a message to multiple recipients using {@link PipelinedFanOut}. Each send is the same as {@link #sendMessageRx(SignalServiceAddress, Optional, long,
+   * EnvelopeContent, boolean, CancelationSignal, SendEvents, boolean, boolean, int)}, but is started on the encryption pool, and only
+   * {@link #maxInFlightSends} are started at a time.
+   *
+   * @return An unordered list of a {@link SendMessageResult} for each send.
+   * @throws IOException - Unknown failure or a failure not representable by an unsuccessful {@code SendMessageResult}.
+   */
+  private List<SendMessageResult> sendMessagePipelined(List<SignalServiceAddress> recipients,
+                                                       List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                                                       long timestamp,
+                                                       EnvelopeContent content,
+                                                       boolean online,
+                                                       PartialSendCompleteListener partialListener,
+                                                       CancelationSignal cancelationSignal,
+                                                       @Nullable SendEvents sendEvents,
+                                                       boolean urgent,
+                                                       boolean story)
+      throws IOException
+  {
+    Log.d(TAG, "[" + timestamp + "] Sending to " + recipients.size() + " recipients, pipelined with up to " + maxInFlightSends + " in flight.");
+    enforceMaxContentSize(content);
+
+    long                                                                startTime = System.currentTimeMillis();
+    List<kotlin.Pair<SignalServiceAddress, Optional<UnidentifiedAccess>>> sends     = new ArrayList<>(recipients.size());
+
+    for (int i = 0; i < recipients.size(); i++) {
+      sends.add(new kotlin.Pair<>(recipients.get(i), unidentifiedAccess.get(i)));
+    }
+
+    List<SendMessageResult> results = PipelinedFanOut.send(sends,
+                                                           send -> {
+                                                             if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+                                                               return Single.error(new CancelationException());
+                                                             }
+
+                                                             return sendMessageRx(send.getFirst(), send.getSecond(), timestamp, content, online, cancelationSignal, sendEvents, urgent, story, 0);
+                                                           },
+                                                           encryptionScheduler,
+                                                           maxInFlightSends,
+                                                           partialListener != null ? partialListener::onPartialSendComplete : null);
+
+    Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(getAverageSendDuration(results)) + " ms per send, pipelined.");
+    return results;
+  }
+
   /**
    * Send a message to multiple recipients.
    *
@@ -2180,21 +2258,7 @@ public class SignalServiceMessageSender {
       }
     }
 
-    double sendsForAverage = 0;
-    for (SendMessageResult result : results) {
-      if (result.getSuccess() != null && result.getSuccess().getDuration() != -1) {
-        sendsForAverage++;
-      }
-    }
-
-    double average = 0;
-    if (sendsForAverage > 0) {
-      for (SendMessageResult result : results) {
-        if (result.getSuccess() != null && result.getSuccess().getDuration() != -1) {
-          average += result.getSuccess().getDuration() / sendsForAverage;
-        }
-      }
-    }
+    double average = getAverageSendDuration(results);
 
     Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send via Rx.");
     return results;
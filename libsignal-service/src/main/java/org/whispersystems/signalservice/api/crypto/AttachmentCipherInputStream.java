@@ -16,6 +16,7 @@ import org.whispersystems.signalservice.internal.util.ContentLengthInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterInputStream;
@@ -50,12 +51,21 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
 
-  private final Cipher cipher;
-  private final long   totalDataSize;
+  private final Cipher        cipher;
+  private final SecretKeySpec cipherKey;
+  private final long          totalDataSize;
+  private final boolean       seekable;
 
+  private final @Nullable Mac           streamingMac;
+  private final @Nullable MessageDigest streamingDigest;
+  private final @Nullable byte[]        theirDigest;
+
+  private boolean macVerified;
   private boolean done;
   private long    totalRead;
+  private long    position;
   private byte[]  overflowBuffer;
+  private byte[]  skipBuffer;
 
   /**
    * Passing in a null incrementalDigest and/or 0 for the chunk size at the call site disables incremental mac validation.
@@ -97,7 +107,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
             ChunkSizeChoice.everyNthByte(incrementalMacChunkSize),
             incrementalDigest);
       }
-      InputStream inputStream = new AttachmentCipherInputStream(wrappedStream, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
+      InputStream inputStream = new AttachmentCipherInputStream(wrappedStream, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), !hasIncrementalMac);
 
       if (plaintextLength != 0) {
         inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
@@ -111,6 +121,45 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[], byte[], int)} without an incremental MAC, but rather than reading the whole file to check
+   * the MAC and digest before decrypting it, they're computed over the ciphertext as it's decrypted and checked once the end is reached. That saves a full
+   * pass over the file, but it means the plaintext can't be trusted until the stream has returned -1.
+   * <p>
+   * Only use this when the plaintext is being written somewhere that's thrown away if reading fails. A MAC or digest mismatch is thrown as an
+   * {@link IOException} caused by an {@link InvalidMacException}.
+   */
+  public static InputStream createSinglePassForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac      mac   = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (digest == null) {
+        throw new InvalidMacException("Missing digest!");
+      }
+
+      AttachmentCipherInputStream cipherStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), mac, digest);
+      InputStream                 inputStream  = cipherStream;
+
+      if (plaintextLength != 0) {
+        inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
+      }
+
+      return new VerifyAtEndInputStream(inputStream, cipherStream);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidMacException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
   /**
    * Decrypt archived media to it's original attachment encrypted blob.
    */
@@ -129,7 +178,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         verifyMac(macVerificationStream, file.length(), mac, null);
       }
 
-      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), archivedMediaKeyMaterial.getCipherKey(), file.length() - BLOCK_SIZE - mac.getMacLength());
+      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), archivedMediaKeyMaterial.getCipherKey(), file.length() - BLOCK_SIZE - mac.getMacLength(), true);
 
       if (originalCipherTextLength != 0) {
         inputStream = new ContentLengthInputStream(inputStream, originalCipherTextLength);
@@ -160,7 +209,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         verifyMac(inputStream, data.length, mac, null);
       }
 
-      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength());
+      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength(), true);
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidMacException e) {
@@ -168,21 +217,43 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
-  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
+  /**
+   * @param seekable Whether the ciphertext has already been fully authenticated, so {@link #skip(long)} may seek past it without reading it.
+   */
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, boolean seekable)
+      throws IOException
+  {
+    this(inputStream, cipherKey, totalDataSize, seekable, null, null);
+  }
+
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, @Nonnull Mac mac, @Nonnull byte[] theirDigest)
+      throws IOException
+  {
+    this(inputStream, cipherKey, totalDataSize, false, mac, theirDigest);
+  }
+
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, boolean seekable, @Nullable Mac mac, @Nullable byte[] theirDigest)
       throws IOException
   {
     super(inputStream);
 
     try {
+      this.streamingMac    = mac;
+      this.streamingDigest = mac != null ? MessageDigest.getInstance("SHA256") : null;
+      this.theirDigest     = theirDigest;
+
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+      this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+      this.cipher    = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, this.cipherKey, new IvParameterSpec(iv));
 
       this.done          = false;
       this.totalRead     = 0;
       this.totalDataSize = totalDataSize;
+      this.seekable      = seekable;
+      this.macVerified   = mac == null;
     } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
@@ -206,13 +277,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+    int read;
+
     if (totalRead != totalDataSize) {
-      return readIncremental(buffer, offset, length);
+      read = readIncremental(buffer, offset, length);
+    } else if (overflowBuffer != null) {
+      read = readOverflow(buffer, offset, length);
     } else if (!done) {
-      return readFinal(buffer, offset, length);
+      read = readFinal(buffer, offset, length);
     } else {
       return -1;
     }
+
+    position += read;
+    return read;
   }
 
   @Override
@@ -220,25 +298,93 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return false;
   }
 
+  /**
+   * CBC decryption can start at any block, using the ciphertext block before it as the IV. So rather than decrypting everything up to the target, this
+   * moves the underlying stream to the block that contains it and only decrypts from there.
+   * <p>
+   * If the ciphertext is authenticated by an incremental MAC, the skipped ciphertext is still read through the MAC stream so that every chunk is validated,
+   * but none of it is decrypted.
+   */
   @Override
   public long skip(long byteCount) throws IOException {
-    long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int) (byteCount - skipped))];
-      int    read = read(buf);
+    if (byteCount <= 0) {
+      return 0;
+    }
+
+    long start      = position;
+    long target     = position + Math.min(byteCount, totalDataSize - position);
+    long ivPosition = Math.min(target, totalDataSize - BLOCK_SIZE) / BLOCK_SIZE * BLOCK_SIZE - BLOCK_SIZE;
+
+    // Anything the cipher is holding onto comes from before totalRead, so it's all before the target block and can be dropped.
+    if (ivPosition >= totalRead) {
+      skipCiphertext(ivPosition - totalRead);
+
+      byte[] iv = new byte[BLOCK_SIZE];
+      readFully(iv);
+
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+        throw new AssertionError(e);
+      }
 
-      skipped += read;
+      overflowBuffer = null;
+      totalRead      = ivPosition + BLOCK_SIZE;
+      position       = totalRead;
     }
 
-    return skipped;
+    if (skipBuffer == null) {
+      skipBuffer = new byte[4096];
+    }
+
+    while (position < target) {
+      if (read(skipBuffer, 0, (int) Math.min(skipBuffer.length, target - position)) == -1) {
+        break;
+      }
+    }
+
+    return position - start;
+  }
+
+  private void skipCiphertext(long byteCount) throws IOException {
+    if (seekable) {
+      while (byteCount > 0) {
+        long skipped = super.skip(byteCount);
+
+        if (skipped <= 0) {
+          throw new EOFException();
+        }
+
+        byteCount -= skipped;
+      }
+    } else {
+      byte[] buffer = new byte[(int) Math.min(byteCount, 8192)];
+
+      while (byteCount > 0) {
+        int read = readCiphertext(buffer, 0, (int) Math.min(buffer.length, byteCount));
+
+        if (read == -1) {
+          throw new EOFException();
+        }
+
+        byteCount -= read;
+      }
+    }
   }
 
   private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+    verifyMacAtEnd();
+
     try {
-      byte[] internal     = new byte[buffer.length];
-      int    actualLength = Math.min(length, cipher.doFinal(internal, 0));
+      byte[] internal     = new byte[Math.max(buffer.length, cipher.getOutputSize(0))];
+      int    finalLength  = cipher.doFinal(internal, 0);
+      int    actualLength = Math.min(length, finalLength);
       System.arraycopy(internal, 0, buffer, offset, actualLength);
 
+      if (finalLength > actualLength) {
+        overflowBuffer = Arrays.copyOfRange(internal, actualLength, finalLength);
+      }
+
       done = true;
       return actualLength;
     } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
@@ -246,6 +392,14 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  private int readOverflow(byte[] buffer, int offset, int length) {
+    int read = Math.min(length, overflowBuffer.length);
+    System.arraycopy(overflowBuffer, 0, buffer, offset, read);
+    overflowBuffer = read == overflowBuffer.length ? null : Arrays.copyOfRange(overflowBuffer, read, overflowBuffer.length);
+
+    return read;
+  }
+
   private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
     int readLength = 0;
     if (null != overflowBuffer) {
@@ -270,7 +424,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       length = (int) (totalDataSize - totalRead);
 
     byte[] internalBuffer = new byte[length];
-    int    read           = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
+    int    read           = readCiphertext(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
     totalRead += read;
 
     try {
@@ -297,6 +451,43 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  private int readCiphertext(byte[] buffer, int offset, int length) throws IOException {
+    int read = super.read(buffer, offset, length);
+
+    if (read > 0 && streamingMac != null) {
+      streamingMac.update(buffer, offset, read);
+      streamingDigest.update(buffer, offset, read);
+    }
+
+    return read;
+  }
+
+  /**
+   * For single-pass streams, reads whatever ciphertext is left without decrypting it, then checks the MAC and digest. Does nothing otherwise.
+   */
+  private void verifyMacAtEnd() throws IOException {
+    if (macVerified) {
+      return;
+    }
+
+    skipCiphertext(totalDataSize - totalRead);
+    totalRead = totalDataSize;
+
+    byte[] ourMac   = streamingMac.doFinal();
+    byte[] theirMac = new byte[streamingMac.getMacLength()];
+    Util.readFully(in, theirMac);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    if (!MessageDigest.isEqual(streamingDigest.digest(theirMac), theirDigest)) {
+      throw new IOException(new InvalidMacException("Digest doesn't match!"));
+    }
+
+    macVerified = true;
+  }
+
   private static void verifyMac(@Nonnull InputStream inputStream, long length, @Nonnull Mac mac, @Nullable byte[] theirDigest)
       throws InvalidMacException
   {
@@ -337,7 +528,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     int offset = 0;
 
     for (; ; ) {
-      int read = super.read(buffer, offset, buffer.length - offset);
+      int read = readCiphertext(buffer, offset, buffer.length - offset);
 
       if (read + offset < buffer.length) {
         offset += read;
@@ -346,4 +537,40 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       }
     }
   }
+
+  /**
+   * Stops at the plaintext length like the stream it wraps, but doesn't report the end until the rest of the ciphertext, which is padding, has been
+   * authenticated as well.
+   */
+  private static final class VerifyAtEndInputStream extends FilterInputStream {
+
+    private final AttachmentCipherInputStream cipherStream;
+
+    private VerifyAtEndInputStream(InputStream inputStream, AttachmentCipherInputStream cipherStream) {
+      super(inputStream);
+      this.cipherStream = cipherStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = super.read();
+
+      if (read == -1) {
+        cipherStream.verifyMacAtEnd();
+      }
+
+      return read;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+
+      if (read == -1) {
+        cipherStream.verifyMacAtEnd();
+      }
+
+      return read;
+    }
+  }
 }
@@ -991,6 +991,15 @@ public class PushServiceSocket {
 
   public void retrieveAttachment(int cdnNumber, Map<String, String> headers, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
+  {
+    retrieveAttachment(cdnNumber, headers, cdnPath, destination, maxSizeBytes, 1, listener);
+  }
+
+  /**
+   * @param segments How many connections the download may be split across. The destination isn't written to in order unless this is 1.
+   */
+  public void retrieveAttachment(int cdnNumber, Map<String, String> headers, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, int segments, ProgressListener listener)
+      throws IOException, MissingConfigurationException
   {
     final String path;
     if (cdnPath instanceof SignalServiceAttachmentRemoteId.V2) {
@@ -1003,7 +1012,7 @@ public class PushServiceSocket {
     } else {
       throw new IllegalArgumentException("Invalid cdnPath type: " + cdnPath.getClass().getSimpleName());
     }
-    downloadFromCdn(destination, cdnNumber, headers, path, maxSizeBytes, listener);
+    downloadFromCdn(destination, cdnNumber, headers, path, maxSizeBytes, segments, listener);
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
@@ -1660,6 +1669,25 @@ public class PushServiceSocket {
   private void downloadFromCdn(File destination, int cdnNumber, Map<String, String> headers, String path, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
   {
+    downloadFromCdn(destination, cdnNumber, headers, path, maxSizeBytes, 1, listener);
+  }
+
+  private void downloadFromCdn(File destination, int cdnNumber, Map<String, String> headers, String path, long maxSizeBytes, int segments, ProgressListener listener)
+      throws IOException, MissingConfigurationException
+  {
+    if (segments > 1 && SegmentedDownload.canDownloadInto(destination)) {
+      ConnectionHolder connectionHolder = getCdnConnectionHolder(cdnNumber);
+      Request          request          = buildCdnDownloadRequest(connectionHolder, headers, path).build();
+
+      if (new SegmentedDownload(buildCdnDownloadClient(connectionHolder), request, destination, maxSizeBytes, segments, listener, connections).run()) {
+        return;
+      }
+    } else if (SegmentedDownload.getProgressFile(destination).exists()) {
+      // A segmented download is allocated at full size with gaps, so it can't be picked up by appending to it
+      Log.i(TAG, "Discarding a partial segmented download, continuing over a single connection");
+      SegmentedDownload.deletePartialDownload(destination);
+    }
+
     try (FileOutputStream outputStream = new FileOutputStream(destination, true)) {
       downloadFromCdn(outputStream, destination.length(), cdnNumber, headers, path, maxSizeBytes, listener);
     }
@@ -1667,26 +1695,9 @@ public class PushServiceSocket {
 
   private void downloadFromCdn(OutputStream outputStream, long offset, int cdnNumber, Map<String, String> headers, String path, long maxSizeBytes, ProgressListener listener)
       throws PushNetworkException, NonSuccessfulResponseCodeException, MissingConfigurationException {
-    ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
-    if (cdnNumberClients == null) {
-      throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
-    }
-    ConnectionHolder   connectionHolder = getRandom(cdnNumberClients, random);
-    OkHttpClient       okHttpClient     = connectionHolder.getClient()
-                                                          .newBuilder()
-                                                          .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .build();
-
-    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
-
-    if (connectionHolder.getHostHeader().isPresent()) {
-      request.addHeader("Host", connectionHolder.getHostHeader().get());
-    }
-
-    for (Map.Entry<String, String> header : headers.entrySet()) {
-      request.addHeader(header.getKey(), header.getValue());
-    }
+    ConnectionHolder connectionHolder = getCdnConnectionHolder(cdnNumber);
+    OkHttpClient     okHttpClient     = buildCdnDownloadClient(connectionHolder);
+    Request.Builder  request          = buildCdnDownloadRequest(connectionHolder, headers, path);
 
     if (offset > 0) {
       Log.i(TAG, "Starting download from CDN with offset " + offset);
@@ -1740,6 +1751,36 @@ public class PushServiceSocket {
     }
   }
 
+  private ConnectionHolder getCdnConnectionHolder(int cdnNumber) throws MissingConfigurationException {
+    ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
+    if (cdnNumberClients == null) {
+      throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
+    }
+    return getRandom(cdnNumberClients, random);
+  }
+
+  private OkHttpClient buildCdnDownloadClient(ConnectionHolder connectionHolder) {
+    return connectionHolder.getClient()
+                           .newBuilder()
+                           .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                           .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                           .build();
+  }
+
+  private static Request.Builder buildCdnDownloadRequest(ConnectionHolder connectionHolder, Map<String, String> headers, String path) {
+    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      request.addHeader(header.getKey(), header.getValue());
+    }
+
+    return request;
+  }
+
   private AttachmentDigest uploadToCdn0(String path, String acl, String key, String policy, String algorithm,
                                         String credential, String date, String signature,
                                         InputStream data, String contentType, long length, boolean incremental,
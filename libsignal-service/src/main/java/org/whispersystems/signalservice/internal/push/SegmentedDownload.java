@@ -0,0 +1,504 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.signal.libsignal.protocol.logging.Log;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file from the CDN over several connections at once. The file is split into equal byte ranges, and each one is fetched with its own
+ * {@code Range} request straight into its place in the destination, which is allocated at its full size up front.
+ * <p>
+ * How far each segment has got is kept in a small file next to the destination. A segment that fails is retried from where it stopped, and a download
+ * that fails or is canceled picks every segment back up where it left off the next time. Positions are only saved once everything written up to them has
+ * been forced to disk, so that a resume never trusts bytes lost to a crash or power cut.
+ */
+public final class SegmentedDownload {
+
+  private static final String TAG = SegmentedDownload.class.getSimpleName();
+
+  /** Files are never split into segments smaller than this. */
+  static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+  static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+  private static final long    PROGRESS_SAVE_INTERVAL = 256 * 1024;
+  private static final Pattern CONTENT_RANGE          = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private final OkHttpClient               client;
+  private final Request                    request;
+  private final File                       destination;
+  private final File                       progressFile;
+  private final long                       maxSizeBytes;
+  private final int                        maxSegments;
+  private final @Nullable ProgressListener listener;
+  private final Set<Call>                  connections;
+  private final Set<Call>                  calls = new HashSet<>();
+
+  private volatile boolean     stopped;
+  private @Nullable IOException failure;
+
+  private long[] segmentPositions;
+  private long[] segmentEnds;
+  private long   totalSize;
+  private long   downloaded;
+
+  /**
+   * @param request     The request for the whole file. Each segment adds its own {@code Range} header to it.
+   * @param connections Calls are added here while they're in flight, so that they can be canceled along with everything else.
+   */
+  SegmentedDownload(OkHttpClient client,
+                    Request request,
+                    File destination,
+                    long maxSizeBytes,
+                    int maxSegments,
+                    @Nullable ProgressListener listener,
+                    Set<Call> connections)
+  {
+    this.client       = client;
+    this.request      = request;
+    this.destination  = destination;
+    this.progressFile = getProgressFile(destination);
+    this.maxSizeBytes = maxSizeBytes;
+    this.maxSegments  = maxSegments;
+    this.listener     = listener;
+    this.connections  = connections;
+  }
+
+  static File getProgressFile(File destination) {
+    return new File(destination.getPath() + ".segments");
+  }
+
+  /**
+   * Deletes a partial download along with any segment progress saved for it, so that the next download into the destination starts over.
+   *
+   * @return Whether the destination itself was deleted.
+   */
+  public static boolean deletePartialDownload(File destination) {
+    File progressFile = getProgressFile(destination);
+
+    if (progressFile.exists() && !progressFile.delete()) {
+      Log.w(TAG, "Unable to delete progress file");
+    }
+
+    return destination.delete();
+  }
+
+  /**
+   * Whether a download into this destination can be done, or picked back up, in segments. A partial download written by a single connection can only be
+   * resumed by appending to it.
+   */
+  static boolean canDownloadInto(File destination) {
+    return destination.length() == 0 || getProgressFile(destination).exists();
+  }
+
+  /**
+   * Blocks until every segment has been downloaded.
+   *
+   * @return False if the file isn't worth splitting up, or the CDN doesn't support ranges, in which case nothing has been written and it should be downloaded
+   *         over a single connection instead.
+   */
+  boolean run() throws PushNetworkException, NonSuccessfulResponseCodeException {
+    if (!readProgress()) {
+      long size = requestTotalSize();
+
+      if (size < 0 || size < MIN_SEGMENT_SIZE * 2) {
+        return false;
+      }
+
+      startProgress(size);
+    }
+
+    Log.i(TAG, "Downloading " + totalSize + " bytes in " + segmentPositions.length + " segments, " + downloaded + " bytes already downloaded");
+
+    ExecutorService executor = Executors.newFixedThreadPool(segmentPositions.length, runnable -> new Thread(runnable, "signal-cdn-download"));
+
+    try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      FileChannel        channel = file.getChannel();
+      List<Future<Void>> futures = new ArrayList<>(segmentPositions.length);
+
+      try {
+        for (int i = 0; i < segmentPositions.length; i++) {
+          int segment = i;
+          futures.add(executor.submit(() -> {
+            downloadSegmentWithRetries(channel, segment);
+            return null;
+          }));
+        }
+
+        for (Future<Void> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+              stop(null);
+              throw (RuntimeException) e.getCause();
+            }
+          } catch (InterruptedException e) {
+            stop(null);
+            throw new PushNetworkException(e);
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+        saveProgress(channel);
+      }
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+
+    if (failure instanceof RangeException) {
+      // The CDN disagrees about how big the file is, so there's nothing to resume
+      if (!progressFile.delete()) Log.w(TAG, "Unable to delete progress file");
+      throw (RangeException) failure;
+    } else if (failure instanceof NonSuccessfulResponseCodeException) {
+      throw (NonSuccessfulResponseCodeException) failure;
+    } else if (failure instanceof PushNetworkException) {
+      throw (PushNetworkException) failure;
+    } else if (failure != null) {
+      throw new PushNetworkException(failure);
+    }
+
+    if (!progressFile.delete()) {
+      Log.w(TAG, "Unable to delete progress file");
+    }
+
+    return true;
+  }
+
+  /**
+   * Asks for the first byte, which tells us how big the whole file is.
+   *
+   * @return The size, or -1 if the CDN doesn't support ranges.
+   */
+  private long requestTotalSize() throws PushNetworkException, NonSuccessfulResponseCodeException {
+    Call call = newCall(0, 0);
+
+    try (Response response = call.execute()) {
+      if (response.code() == 206) {
+        Matcher contentRange = parseContentRange(response);
+
+        if (contentRange == null) {
+          return -1;
+        }
+
+        long size = Long.parseLong(contentRange.group(3));
+
+        if (size > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
+
+        return size;
+      } else if (response.isSuccessful()) {
+        return -1;
+      } else if (response.code() == 416) {
+        throw new RangeException(0);
+      } else {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      removeCall(call);
+    }
+  }
+
+  private void downloadSegmentWithRetries(FileChannel channel, int segment) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        downloadSegment(channel, segment);
+        return;
+      } catch (PushNetworkException e) {
+        if (stopped || attempt >= MAX_SEGMENT_ATTEMPTS) {
+          stop(e);
+          throw e;
+        }
+
+        Log.w(TAG, "Segment " + segment + " failed on attempt " + attempt + ", retrying from " + getSegmentPosition(segment), e);
+      } catch (IOException e) {
+        stop(e);
+        throw e;
+      }
+    }
+  }
+
+  private void downloadSegment(FileChannel channel, int segment) throws IOException {
+    long position = getSegmentPosition(segment);
+    long end      = segmentEnds[segment];
+
+    if (position >= end) {
+      return;
+    }
+
+    Call call = newCall(position, end - 1);
+
+    try (Response response = call.execute()) {
+      if (response.code() == 416) {
+        throw new RangeException(position);
+      } else if (!response.isSuccessful()) {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+
+      Matcher contentRange = parseContentRange(response);
+      if (response.code() != 206 || contentRange == null || Long.parseLong(contentRange.group(1)) != position || Long.parseLong(contentRange.group(3)) != totalSize) {
+        throw new PushNetworkException("Unexpected range in response: " + response.header("Content-Range"));
+      }
+
+      ResponseBody body = response.body();
+      if (body == null) throw new PushNetworkException("No response body!");
+
+      InputStream in          = body.byteStream();
+      byte[]      buffer      = new byte[32768];
+      long        unsaved     = 0;
+      int         read;
+
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        if (position + read > end) throw new PushNetworkException("Response exceeded its range!");
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+        while (byteBuffer.hasRemaining()) {
+          channel.write(byteBuffer, position + byteBuffer.position());
+        }
+
+        position += read;
+        unsaved  += read;
+
+        onSegmentProgress(segment, position, read);
+
+        if (unsaved >= PROGRESS_SAVE_INTERVAL) {
+          saveProgress(channel);
+          unsaved = 0;
+        }
+      }
+
+      if (position < end) {
+        throw new PushNetworkException("Response ended " + (end - position) + " bytes early");
+      }
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      removeCall(call);
+    }
+  }
+
+  private synchronized void onSegmentProgress(int segment, long position, int read) throws PushNetworkException {
+    segmentPositions[segment] = position;
+    downloaded += read;
+
+    if (listener != null) {
+      listener.onAttachmentProgress(totalSize, downloaded);
+
+      if (listener.shouldCancel()) {
+        PushNetworkException canceled = new PushNetworkException("Canceled by listener check.");
+        stop(canceled);
+        throw canceled;
+      }
+    }
+  }
+
+  private synchronized long getSegmentPosition(int segment) {
+    return segmentPositions[segment];
+  }
+
+  private Call newCall(long start, long endInclusive) throws PushNetworkException {
+    Call call = client.newCall(request.newBuilder().header("Range", "bytes=" + start + "-" + endInclusive).build());
+
+    synchronized (this) {
+      if (stopped) {
+        throw new PushNetworkException("Download stopped");
+      }
+
+      calls.add(call);
+    }
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    return call;
+  }
+
+  private void removeCall(Call call) {
+    synchronized (this) {
+      calls.remove(call);
+    }
+
+    synchronized (connections) {
+      connections.remove(call);
+    }
+  }
+
+  /**
+   * Cancels every other segment, so the download can fail as soon as one of them does.
+   *
+   * @param cause What made the download fail, if this is the first thing to.
+   */
+  private synchronized void stop(@Nullable IOException cause) {
+    if (!stopped) {
+      failure = cause;
+    }
+
+    stopped = true;
+
+    for (Call call : calls) {
+      call.cancel();
+    }
+  }
+
+  private static @Nullable Matcher parseContentRange(Response response) {
+    String header = response.header("Content-Range");
+
+    if (header == null) {
+      return null;
+    }
+
+    Matcher matcher = CONTENT_RANGE.matcher(header);
+    return matcher.matches() ? matcher : null;
+  }
+
+  private void startProgress(long size) throws PushNetworkException {
+    int count = (int) Math.min(maxSegments, size / MIN_SEGMENT_SIZE);
+
+    totalSize        = size;
+    downloaded       = 0;
+    segmentPositions = new long[count];
+    segmentEnds      = new long[count];
+
+    for (int i = 0; i < count; i++) {
+      segmentPositions[i] = size * i / count;
+      segmentEnds[i]      = size * (i + 1) / count;
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      file.setLength(size);
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+
+    // Nothing's been written yet, so there's nothing to force
+    saveProgress(null);
+  }
+
+  /**
+   * @return False if there's no usable progress for the destination as it is now.
+   */
+  private synchronized boolean readProgress() {
+    if (!progressFile.exists()) {
+      return false;
+    }
+
+    try (DataInputStream in = new DataInputStream(new FileInputStream(progressFile))) {
+      long   size      = in.readLong();
+      int    count     = in.readInt();
+      long[] positions = new long[count];
+      long[] ends      = new long[count];
+      long   done      = 0;
+
+      if (size != destination.length() || count <= 0 || count > size) {
+        throw new IOException("Progress doesn't match the destination");
+      }
+
+      for (int i = 0; i < count; i++) {
+        long start = size * i / count;
+
+        ends[i]      = size * (i + 1) / count;
+        positions[i] = in.readLong();
+
+        if (positions[i] < start || positions[i] > ends[i]) {
+          throw new IOException("Invalid segment position");
+        }
+
+        done += positions[i] - start;
+      }
+
+      totalSize        = size;
+      downloaded       = done;
+      segmentPositions = positions;
+      segmentEnds      = ends;
+
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to resume from progress file, starting over", e);
+
+      if (!progressFile.delete()) {
+        Log.w(TAG, "Unable to delete progress file");
+      }
+
+      return false;
+    }
+  }
+
+  /**
+   * Takes a snapshot of the positions, forces everything written so far to disk, and only then saves the snapshot. Every byte before a saved position is
+   * therefore on disk, even if other segments write more while this is going on. If the data can't be forced, the last saved progress is kept.
+   *
+   * @param channel The destination's channel, or null if nothing has been written to it yet.
+   */
+  private void saveProgress(@Nullable FileChannel channel) {
+    long   size;
+    long[] positions;
+
+    synchronized (this) {
+      if (segmentPositions == null) {
+        return;
+      }
+
+      size      = totalSize;
+      positions = segmentPositions.clone();
+    }
+
+    if (channel != null) {
+      try {
+        channel.force(false);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to force the download to disk, not saving progress", e);
+        return;
+      }
+    }
+
+    synchronized (this) {
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(progressFile))) {
+        out.writeLong(size);
+        out.writeInt(positions.length);
+
+        for (long position : positions) {
+          out.writeLong(position);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to save progress", e);
+      }
+    }
+  }
+}
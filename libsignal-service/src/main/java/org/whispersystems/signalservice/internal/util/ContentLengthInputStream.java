@@ -38,4 +38,14 @@ public class ContentLengthInputStream extends FilterInputStream {
     return result;
   }
 
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (bytesRemaining == 0) return 0;
+
+    long result = super.skip(Math.min(byteCount, bytesRemaining));
+
+    bytesRemaining -= result;
+    return result;
+  }
+
 }
@@ -0,0 +1,113 @@
+package org.whispersystems.signalservice.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class PipelinedFanOutTest {
+
+  private static final List<Integer> INPUTS = IntStream.range(0, 200).boxed().collect(Collectors.toList());
+
+  @Test
+  public void send_returnsEveryResultAndNotifiesForEach() throws IOException {
+    List<Integer> notified = new CopyOnWriteArrayList<>();
+
+    List<Integer> results = PipelinedFanOut.send(INPUTS,
+                                                 input -> Single.just(input).delay(input % 7, TimeUnit.MILLISECONDS),
+                                                 Schedulers.computation(),
+                                                 16,
+                                                 notified::add);
+
+    List<Integer> sorted = new ArrayList<>(results);
+    Collections.sort(sorted);
+
+    assertEquals(INPUTS, sorted);
+    assertEquals(results, notified);
+  }
+
+  @Test
+  public void send_neverHasMoreThanMaxInFlight() throws IOException {
+    AtomicInteger inFlight    = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+
+    PipelinedFanOut.send(INPUTS,
+                         input -> Single.fromCallable(() -> {
+                                          int current = inFlight.incrementAndGet();
+                                          maxInFlight.accumulateAndGet(current, Math::max);
+                                          return input;
+                                        })
+                                        .delay(1, TimeUnit.MILLISECONDS)
+                                        .doOnSuccess(unused -> inFlight.decrementAndGet()),
+                         Schedulers.computation(),
+                         8,
+                         null);
+
+    assertTrue(maxInFlight.get() <= 8);
+    assertTrue(maxInFlight.get() > 1);
+  }
+
+  @Test
+  public void send_throwsFailure_afterOtherSendsComplete() {
+    IOException   failure   = new IOException("Rejected");
+    AtomicInteger completed = new AtomicInteger();
+
+    try {
+      PipelinedFanOut.send(INPUTS,
+                           input -> input == 10 ? Single.error(failure) : Single.just(input).delay(1, TimeUnit.MILLISECONDS),
+                           Schedulers.computation(),
+                           4,
+                           unused -> completed.incrementAndGet());
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+
+    assertEquals(INPUTS.size() - 1, completed.get());
+  }
+
+  @Test
+  public void send_rethrowsRuntimeExceptionsUnchanged() throws IOException {
+    IllegalStateException failure = new IllegalStateException("Bad state", new IOException("Not this one"));
+
+    try {
+      PipelinedFanOut.send(INPUTS, input -> input == 10 ? Single.error(failure) : Single.just(input), Schedulers.computation(), 4, null);
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void send_unwrapsFailuresFromFutures() {
+    IOException failure = new IOException("Rejected");
+
+    try {
+      PipelinedFanOut.send(INPUTS, input -> input == 10 ? Single.error(new CompletionException(failure)) : Single.just(input), Schedulers.computation(), 4, null);
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void send_emptyInputs() throws IOException {
+    assertTrue(PipelinedFanOut.send(Collections.<Integer>emptyList(), Single::just, Schedulers.computation(), 4, null).isEmpty());
+  }
+}
@@ -26,6 +26,7 @@ import java.util.Arrays;
 import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
@@ -95,6 +96,43 @@ public final class AttachmentCipherTest {
     cipherFile.delete();
   }
 
+  @Test
+  public void attachment_skip_nonIncremental() throws IOException, InvalidMessageException {
+    attachment_skip(false);
+  }
+
+  @Test
+  public void attachment_skip_incremental() throws IOException, InvalidMessageException {
+    attachment_skip(true);
+  }
+
+  private void attachment_skip(boolean incremental) throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(MEBIBYTE + 7);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key, incremental);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+
+    for (int skip : new int[] { 0, 1, 15, 16, 17, 4096, 500_000, plaintextInput.length - 17, plaintextInput.length - 1, plaintextInput.length }) {
+      InputStream inputStream = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, encryptResult.incrementalDigest, encryptResult.chunkSizeChoice);
+
+      assertEquals(skip, inputStream.skip(skip));
+      assertArrayEquals(Arrays.copyOfRange(plaintextInput, skip, plaintextInput.length), readInputStreamFully(inputStream));
+    }
+
+    InputStream inputStream = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, encryptResult.incrementalDigest, encryptResult.chunkSizeChoice);
+    byte[]      start       = new byte[100];
+
+    StreamUtil.readFully(inputStream, start);
+    assertEquals(300_000, inputStream.skip(300_000));
+    assertEquals(plaintextInput[300_100] & 0xFF, inputStream.read());
+    assertEquals(plaintextInput.length - 300_101, inputStream.skip(Long.MAX_VALUE));
+    assertEquals(-1, inputStream.read());
+
+    assertArrayEquals(Arrays.copyOfRange(plaintextInput, 0, 100), start);
+
+    cipherFile.delete();
+  }
+
   @Test(expected = InvalidMessageException.class)
   public void attachment_decryptFailOnBadKey_nonIncremental() throws IOException, InvalidMessageException {
     attachment_decryptFailOnBadKey(false);
@@ -290,6 +328,61 @@ public final class AttachmentCipherTest {
     }
   }
 
+  @Test
+  public void attachment_singlePass_encryptDecryptPaddedContent() throws IOException, InvalidMessageException {
+    byte[]                key                     = Util.getSecretBytes(64);
+    byte[]                plaintextInput          = Util.getSecretBytes(MEBIBYTE + 531);
+    InputStream           paddedInputStream       = new PaddingInputStream(new ByteArrayInputStream(plaintextInput), plaintextInput.length);
+    ByteArrayOutputStream destinationOutputStream = new ByteArrayOutputStream();
+    DigestingOutputStream encryptingOutputStream  = new AttachmentCipherOutputStreamFactory(key, Util.getSecretBytes(16)).createFor(destinationOutputStream);
+
+    Util.copy(paddedInputStream, encryptingOutputStream);
+
+    encryptingOutputStream.flush();
+    encryptingOutputStream.close();
+
+    File        cipherFile      = writeToFile(destinationOutputStream.toByteArray());
+    InputStream decryptedStream = AttachmentCipherInputStream.createSinglePassForAttachment(cipherFile, plaintextInput.length, key, encryptingOutputStream.getTransmittedDigest());
+    byte[]      plaintextOutput = readInputStreamFully(decryptedStream);
+
+    assertArrayEquals(plaintextInput, plaintextOutput);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_singlePass_decryptFailOnBadCiphertextMacOrDigest() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(MEBIBYTE);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key, false);
+    int           length         = encryptResult.ciphertext.length;
+
+    for (int position : new int[] { 0, 16, length / 2, length - 33, length - 1 }) {
+      byte[] badCiphertext = Arrays.copyOf(encryptResult.ciphertext, length);
+      badCiphertext[position] += 1;
+
+      attachment_singlePass_decryptFail(badCiphertext, plaintextInput.length, key, encryptResult.digest);
+    }
+
+    byte[] badDigest = Arrays.copyOf(encryptResult.digest, encryptResult.digest.length);
+    badDigest[0] += 1;
+
+    attachment_singlePass_decryptFail(encryptResult.ciphertext, plaintextInput.length, key, badDigest);
+  }
+
+  private void attachment_singlePass_decryptFail(byte[] ciphertext, long plaintextLength, byte[] key, byte[] digest) throws IOException, InvalidMessageException {
+    File cipherFile = writeToFile(ciphertext);
+
+    try {
+      readInputStreamFully(AttachmentCipherInputStream.createSinglePassForAttachment(cipherFile, plaintextLength, key, digest));
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof org.signal.libsignal.protocol.InvalidMacException);
+    } finally {
+      cipherFile.delete();
+    }
+  }
+
   @Test
   public void archive_encryptDecrypt() throws IOException, InvalidMessageException {
     byte[]                         key             = Util.getSecretBytes(64);
@@ -0,0 +1,264 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SegmentedDownloadTest {
+
+  private static final int     SEGMENTS = 4;
+  private static final Pattern RANGE    = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private final byte[]        content  = new byte[(int) (SegmentedDownload.MIN_SEGMENT_SIZE * SEGMENTS + 12_345)];
+  private final OkHttpClient  client   = new OkHttpClient();
+  private final Set<Call>     calls    = new HashSet<>();
+  private final RangeServer   cdn      = new RangeServer();
+  private final MockWebServer server   = new MockWebServer();
+
+  private File destination;
+
+  @Before
+  public void setUp() throws IOException {
+    new Random(42).nextBytes(content);
+    server.setDispatcher(cdn);
+    server.start();
+
+    destination = File.createTempFile("segmented", ".download");
+    destination.delete();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+    destination.delete();
+    SegmentedDownload.getProgressFile(destination).delete();
+  }
+
+  @Test
+  public void run_downloadsEverySegment_andReportsProgressInAggregate() throws IOException {
+    List<Long> progress = new CopyOnWriteArrayList<>();
+
+    assertTrue(newDownload(listener(progress, new AtomicBoolean())).run());
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertFalse(SegmentedDownload.getProgressFile(destination).exists());
+    assertEquals(1, cdn.sizeRequests.get());
+    assertEquals(SEGMENTS, cdn.requests.size());
+    assertTrue(calls.isEmpty());
+
+    assertEquals(content.length, (long) progress.get(progress.size() - 1));
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i) > progress.get(i - 1));
+    }
+  }
+
+  @Test
+  public void run_retriesFailedSegment_fromWhereItStopped() throws IOException {
+    cdn.failuresBySegment.put(1, 1);
+
+    assertTrue(newDownload(null).run());
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+
+    List<Long> starts = cdn.requestsInSegment(1);
+    assertEquals(2, starts.size());
+    assertEquals(segmentStart(1), (long) starts.get(0));
+    assertTrue(starts.get(1) > segmentStart(1));
+  }
+
+  @Test
+  public void run_failsAfterTooManyAttempts_thenResumesFromSavedProgress() throws IOException {
+    cdn.failuresBySegment.put(2, SegmentedDownload.MAX_SEGMENT_ATTEMPTS);
+
+    try {
+      newDownload(null).run();
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    assertTrue(SegmentedDownload.getProgressFile(destination).exists());
+    assertTrue(SegmentedDownload.canDownloadInto(destination));
+
+    cdn.requests.clear();
+    cdn.sizeRequests.set(0);
+
+    List<Long> progress = new CopyOnWriteArrayList<>();
+
+    assertTrue(newDownload(listener(progress, new AtomicBoolean())).run());
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(0, cdn.sizeRequests.get());
+    assertTrue(cdn.requestsInSegment(2).get(0) > segmentStart(2));
+    assertTrue(progress.get(0) > segmentStart(1) / 2);
+  }
+
+  @Test
+  public void run_stopsEverySegment_whenCanceled() throws IOException {
+    try {
+      newDownload(listener(new CopyOnWriteArrayList<>(), new AtomicBoolean(true))).run();
+      fail();
+    } catch (PushNetworkException e) {
+      assertEquals("Canceled by listener check.", e.getMessage());
+    }
+
+    assertTrue(calls.isEmpty());
+    assertTrue(SegmentedDownload.getProgressFile(destination).exists());
+  }
+
+  @Test
+  public void run_withoutRangeSupport_leavesItToASingleConnection() throws IOException {
+    cdn.supportsRanges = false;
+
+    assertFalse(newDownload(null).run());
+    assertFalse(destination.exists());
+    assertFalse(SegmentedDownload.getProgressFile(destination).exists());
+  }
+
+  @Test
+  public void canDownloadInto_isFalseForPartialSingleConnectionDownloads() throws IOException {
+    assertTrue(SegmentedDownload.canDownloadInto(destination));
+
+    Files.write(destination.toPath(), new byte[10]);
+
+    assertFalse(SegmentedDownload.canDownloadInto(destination));
+  }
+
+  @Test
+  public void deletePartialDownload_deletesTheProgressFileToo() throws IOException {
+    cdn.failuresBySegment.put(2, SegmentedDownload.MAX_SEGMENT_ATTEMPTS);
+
+    try {
+      newDownload(null).run();
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    assertTrue(SegmentedDownload.deletePartialDownload(destination));
+    assertFalse(destination.exists());
+    assertFalse(SegmentedDownload.getProgressFile(destination).exists());
+    assertTrue(SegmentedDownload.canDownloadInto(destination));
+  }
+
+  private SegmentedDownload newDownload(ProgressListener listener) {
+    Request request = new Request.Builder().url(server.url("/attachments/abc")).get().build();
+    return new SegmentedDownload(client, request, destination, Long.MAX_VALUE, SEGMENTS, listener, calls);
+  }
+
+  private long segmentStart(int segment) {
+    return (long) content.length * segment / SEGMENTS;
+  }
+
+  private static ProgressListener listener(List<Long> progress, AtomicBoolean cancel) {
+    return new ProgressListener() {
+      @Override
+      public void onAttachmentProgress(long total, long current) {
+        progress.add(current);
+      }
+
+      @Override
+      public boolean shouldCancel() {
+        return cancel.get() && progress.size() > 10;
+      }
+    };
+  }
+
+  /**
+   * Serves ranges of the content like the CDN does, and can drop the connection partway through a response for a given segment.
+   */
+  private final class RangeServer extends Dispatcher {
+    private final Map<Integer, Integer> failuresBySegment = new ConcurrentHashMap<>();
+    private final List<Long>            requests          = new CopyOnWriteArrayList<>();
+    private final AtomicInteger         sizeRequests      = new AtomicInteger();
+
+    private volatile boolean supportsRanges = true;
+
+    @Override
+    public @Nonnull MockResponse dispatch(@Nonnull RecordedRequest request) {
+      Matcher range = RANGE.matcher(String.valueOf(request.getHeader("Range")));
+
+      if (!supportsRanges || !range.matches()) {
+        return new MockResponse().setBody(new Buffer().write(content));
+      }
+
+      int start = Integer.parseInt(range.group(1));
+      int end   = Integer.parseInt(range.group(2));
+
+      if (end == 0) {
+        sizeRequests.incrementAndGet();
+      } else {
+        requests.add((long) start);
+      }
+
+      MockResponse response = new MockResponse().setResponseCode(206)
+                                                .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+                                                .setBody(new Buffer().write(content, start, end - start + 1));
+
+      if (end > 0 && failuresBySegment.computeIfPresent(segmentOf(start), (segment, failures) -> failures - 1) != null) {
+        failuresBySegment.remove(segmentOf(start), 0);
+        response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+      }
+
+      return response;
+    }
+
+    List<Long> requestsInSegment(int segment) {
+      List<Long> starts = new ArrayList<>();
+
+      for (long start : requests) {
+        if (segmentOf(start) == segment) {
+          starts.add(start);
+        }
+      }
+
+      return starts;
+    }
+
+    private int segmentOf(long start) {
+      int segment = 0;
+
+      while (segment < SEGMENTS - 1 && segmentStart(segment + 1) <= start) {
+        segment++;
+      }
+
+      return segment;
+    }
+  }
+}
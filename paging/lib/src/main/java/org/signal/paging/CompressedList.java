@@ -1,48 +1,260 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * A placeholder class for efficiently storing lists that are mostly empty space.
- * TODO [greyson][paging]
+ * A list that's efficient at storing mostly-empty space, and at being copied.
+ *
+ * Items are stored in chunks of roughly {@link #CHUNK_SIZE} items. A chunk that only holds nulls, which is any part of the list that hasn't been loaded yet,
+ * doesn't allocate any storage for its items.
+ *
+ * Copying a CompressedList (via {@link #CompressedList(List)}) only copies the list of chunks, not the chunks themselves. Both lists then share their chunks
+ * until one of them is written to, at which point only the chunk being written to is copied. This means that making a copy with a single change costs one
+ * chunk plus the chunk index, rather than the whole list.
+ *
+ * Like other lists it isn't thread-safe to write to, but a list that's no longer being written to can be read from any thread, including while copies of it
+ * are being written to.
  */
 public class CompressedList<E> extends AbstractList<E> {
 
-  private final List<E> wrapped;
+  static final int CHUNK_SIZE     = 128;
+  static final int MAX_CHUNK_SIZE = CHUNK_SIZE * 2;
+
+  /** The chunks in order. Only the first {@link #chunkCount} are in use. */
+  private Chunk[] chunks;
+
+  /** The position of the first item of each chunk. */
+  private int[] offsets;
+
+  private int chunkCount;
+  private int size;
+
+  /**
+   * Chunks tagged with this token belong to this list alone, and can be written to in place. Any other chunk is shared and must be copied before writing.
+   * Copying a list gives both lists new tokens, so that neither one can write to the chunks they now share.
+   */
+  private Object owner;
+
+  /** The chunk that was last read from, which makes sequential reads cheaper. Only ever a hint, so it doesn't need to be synchronized. */
+  private int lastChunk;
 
   public CompressedList(@NonNull List<E> source) {
-    this.wrapped = new ArrayList<>(source);
+    if (source instanceof CompressedList) {
+      CompressedList<E> other = (CompressedList<E>) source;
+
+      this.chunks     = Arrays.copyOf(other.chunks, other.chunks.length);
+      this.offsets    = Arrays.copyOf(other.offsets, other.offsets.length);
+      this.chunkCount = other.chunkCount;
+      this.size       = other.size;
+      this.owner      = new Object();
+
+      other.owner = new Object();
+    } else {
+      this.owner = new Object();
+      initEmpty(source.size());
+
+      for (int i = 0, len = source.size(); i < len; i++) {
+        E item = source.get(i);
+        if (item != null) {
+          set(i, item);
+        }
+      }
+    }
   }
 
   public CompressedList(int totalSize) {
-    this.wrapped = new ArrayList<>(totalSize);
+    this.owner = new Object();
+    initEmpty(totalSize);
+  }
+
+  private void initEmpty(int totalSize) {
+    int count = (totalSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
 
-    for (int i = 0; i < totalSize; i++) {
-      wrapped.add(null);
+    this.chunks     = new Chunk[Math.max(count, 1)];
+    this.offsets    = new int[Math.max(count, 1)];
+    this.chunkCount = count;
+    this.size       = totalSize;
+
+    for (int i = 0; i < count; i++) {
+      chunks[i]  = new Chunk(owner, Math.min(CHUNK_SIZE, totalSize - i * CHUNK_SIZE), null);
+      offsets[i] = i * CHUNK_SIZE;
     }
   }
 
   @Override
   public int size() {
-    return wrapped.size();
+    return size;
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public E get(int index) {
-    return wrapped.get(index);
+    checkIndex(index, size - 1);
+
+    int   chunkIndex = findChunk(index);
+    Chunk chunk      = chunks[chunkIndex];
+
+    return chunk.items != null ? (E) chunk.items[index - offsets[chunkIndex]] : null;
   }
 
   @Override
-  public E set(int globalIndex, E element) {
-    return wrapped.set(globalIndex, element);
+  @SuppressWarnings("unchecked")
+  public E set(int index, E element) {
+    checkIndex(index, size - 1);
+
+    int   chunkIndex = findChunk(index);
+    Chunk chunk      = chunks[chunkIndex];
+    int   local      = index - offsets[chunkIndex];
+
+    if (chunk.items == null && element == null) {
+      return null;
+    }
+
+    chunk = writableChunk(chunkIndex);
+
+    E previous = (E) chunk.items[local];
+    chunk.items[local] = element;
+
+    return previous;
   }
 
   @Override
   public void add(int index, E element) {
-    wrapped.add(index, element);
+    checkIndex(index, size);
+
+    if (chunkCount == 0) {
+      ensureDirectoryCapacity(1);
+      chunks[0]  = new Chunk(owner, 0, null);
+      offsets[0] = 0;
+      chunkCount = 1;
+    }
+
+    // Inserting at the boundary between two chunks goes at the end of the earlier chunk, which keeps appends at the end of the list in the last chunk
+    int chunkIndex = index == size ? chunkCount - 1 : findChunk(index);
+    if (chunkIndex > 0 && index == offsets[chunkIndex] && chunks[chunkIndex - 1].size < MAX_CHUNK_SIZE) {
+      chunkIndex--;
+    }
+
+    Chunk chunk = writableChunk(chunkIndex);
+    int   local = index - offsets[chunkIndex];
+
+    if (chunk.items.length == chunk.size) {
+      chunk.items = Arrays.copyOf(chunk.items, Math.max(chunk.size + 1, Math.min(MAX_CHUNK_SIZE + 1, chunk.size * 2)));
+    }
+
+    System.arraycopy(chunk.items, local, chunk.items, local + 1, chunk.size - local);
+    chunk.items[local] = element;
+    chunk.size++;
+    size++;
+
+    for (int i = chunkIndex + 1; i < chunkCount; i++) {
+      offsets[i]++;
+    }
+
+    if (chunk.size > MAX_CHUNK_SIZE) {
+      splitChunk(chunkIndex);
+    }
+
+    modCount++;
+  }
+
+  /**
+   * Returns the index of the chunk containing the item at the given position.
+   */
+  private int findChunk(int index) {
+    int hint = lastChunk;
+    if (hint < chunkCount && index >= offsets[hint] && index < offsets[hint] + chunks[hint].size) {
+      return hint;
+    }
+
+    int low  = 0;
+    int high = chunkCount - 1;
+
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    // Skip over any empty chunks that share the offset
+    while (low < chunkCount - 1 && chunks[low].size == 0) {
+      low++;
+    }
+
+    lastChunk = low;
+    return low;
+  }
+
+  /**
+   * Returns the chunk at the given index, first copying it if it's shared with another list, and allocating storage for its items if it has none.
+   */
+  private @NonNull Chunk writableChunk(int chunkIndex) {
+    Chunk chunk = chunks[chunkIndex];
+
+    if (chunk.owner != owner) {
+      Object[] items = chunk.items != null ? Arrays.copyOf(chunk.items, chunk.items.length) : null;
+      chunk = new Chunk(owner, chunk.size, items);
+      chunks[chunkIndex] = chunk;
+    }
+
+    if (chunk.items == null) {
+      chunk.items = new Object[Math.max(chunk.size, 1)];
+    }
+
+    return chunk;
+  }
+
+  private void splitChunk(int chunkIndex) {
+    Chunk chunk     = chunks[chunkIndex];
+    int   leftSize  = chunk.size / 2;
+    int   rightSize = chunk.size - leftSize;
+
+    Chunk left  = new Chunk(owner, leftSize, Arrays.copyOfRange(chunk.items, 0, leftSize));
+    Chunk right = new Chunk(owner, rightSize, Arrays.copyOfRange(chunk.items, leftSize, chunk.size));
+
+    ensureDirectoryCapacity(chunkCount + 1);
+
+    System.arraycopy(chunks, chunkIndex + 1, chunks, chunkIndex + 2, chunkCount - chunkIndex - 1);
+    System.arraycopy(offsets, chunkIndex + 1, offsets, chunkIndex + 2, chunkCount - chunkIndex - 1);
+
+    chunks[chunkIndex]      = left;
+    chunks[chunkIndex + 1]  = right;
+    offsets[chunkIndex + 1] = offsets[chunkIndex] + leftSize;
+    chunkCount++;
+  }
+
+  private void ensureDirectoryCapacity(int capacity) {
+    if (chunks.length < capacity) {
+      int newLength = Math.max(capacity, chunks.length + (chunks.length >> 1) + 1);
+      chunks  = Arrays.copyOf(chunks, newLength);
+      offsets = Arrays.copyOf(offsets, newLength);
+    }
+  }
+
+  private void checkIndex(int index, int maxIndex) {
+    if (index < 0 || index > maxIndex) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  private static final class Chunk {
+    final Object owner;
+
+    int                size;
+    @Nullable Object[] items;
+
+    Chunk(@NonNull Object owner, int size, @Nullable Object[] items) {
+      this.owner = owner;
+      this.size  = size;
+      this.items = items;
+    }
   }
 }
@@ -40,6 +40,10 @@ class DataStatus {
     state.set(startInclusive, endExclusive, true);
   }
 
+  void unmarkRange(int startInclusive, int endExclusive) {
+    state.set(startInclusive, endExclusive, false);
+  }
+
   int getEarliestUnmarkedIndexInRange(int startInclusive, int endExclusive) {
     for (int i = startInclusive; i < endExclusive; i++) {
       if (!state.get(i)) {
@@ -1,16 +1,25 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The workhorse of managing page requests.
@@ -19,21 +28,60 @@ import java.util.concurrent.Executor;
  * a fixed size throughout. It assumes that all interface methods are called on a single thread,
  * which allows it to keep track of pending requests in a thread-safe way, while spinning off
  * tasks to fetch data on its own executor.
+ *
+ * Inserts and changes that arrive in a burst (optionally waiting for
+ * {@link PagingConfig#updateCoalescingWindowMs()} for more to arrive) are loaded together with
+ * {@link PagedDataSource#load(java.util.Collection)}, and published as a single updated list.
+ * A page load requested while inserts are waiting doesn't wait out the window: the inserts are
+ * applied first, since the data source already contains them, and the page is moved along with
+ * any items inserted ahead of it. A page that was read while an insert was waiting, or while one
+ * was applied, may be off by the inserted rows, so it's read again rather than applied. A change
+ * to an item we don't have yet is remembered by every page that's loading, and a page that
+ * turns out to have read that item reads it again before it's applied.
  */
 class FixedSizePagingController<Key, Data> implements PagingController<Key> {
 
   private static final String TAG = Log.tag(FixedSizePagingController.class);
 
+  static final int MAX_CONCURRENT_LOADS = 4;
+
   private static final Executor FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-FixedSizePagingController", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD);
+  private static final Executor LOAD_EXECUTOR  = SignalExecutors.newCachedBoundedExecutor("signal-PagingLoad", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, MAX_CONCURRENT_LOADS, 15);
   private static final boolean  DEBUG          = false;
 
+  /** How many page load times worth of scrolling to read ahead by. */
+  private static final int READ_AHEAD_LOAD_TIMES    = 2;
+  private static final int MAX_TRACKED_PLACEHOLDERS = 100;
+
   private final PagedDataSource<Key, Data>  dataSource;
   private final PagingConfig                config;
   private final DataStream<Data>            dataStream;
   private final DataStatus                  loadState;
-  private final Map<Key, Integer>           keyToPosition;
+  private final KeyPositionIndex<Key>       keyToPosition;
+  private final Queue<PendingUpdate<Key>>   pendingUpdates;
+  private final ScrollTracker               scrollTracker;
+  private final List<PageLoad>              activeLoads;
+  private final Queue<PageLoad>             queuedBufferLoads;
+  private final Queue<PageLoad>             queuedReadAheadLoads;
+  private final Map<Integer, Long>          placeholderSince;
+
+  private volatile List<Data> data;
+
+  /** Loads that have been handed to an executor but haven't finished loading. Guarded by {@code activeLoads}. */
+  private int runningLoads;
+
+  /** Moving average of how long it takes to load one page. */
+  private volatile long averagePageLoadNanos;
+
+  /**
+   * Incremented whenever a page load is scheduled, so that a batch of updates never mixes ones that were queued before and after a page load was requested.
+   * Inserts are kept in line with concurrent loads separately, by {@link PageLoad#insertGeneration}.
+   */
+  private long loadGeneration;
 
-  private List<Data> data;
+  /** How many inserts have been queued, and how many of those have been applied to (or dropped from) the data. Guarded by {@code pendingUpdates}. */
+  private long insertsQueued;
+  private long insertsApplied;
 
   private volatile boolean invalidated;
 
@@ -42,12 +90,18 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
                             @NonNull DataStream<Data> dataStream,
                             int size)
   {
-    this.dataSource    = dataSource;
-    this.config        = config;
-    this.dataStream    = dataStream;
-    this.loadState     = DataStatus.obtain(size);
-    this.data          = new CompressedList<>(loadState.size());
-    this.keyToPosition = new HashMap<>();
+    this.dataSource           = dataSource;
+    this.config               = config;
+    this.dataStream           = dataStream;
+    this.loadState            = DataStatus.obtain(size);
+    this.data                 = new CompressedList<>(loadState.size());
+    this.keyToPosition        = new KeyPositionIndex<>();
+    this.pendingUpdates       = new ArrayDeque<>();
+    this.scrollTracker        = new ScrollTracker();
+    this.activeLoads          = new ArrayList<>();
+    this.queuedBufferLoads    = new ArrayDeque<>();
+    this.queuedReadAheadLoads = new ArrayDeque<>();
+    this.placeholderSince     = new HashMap<>();
 
     if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size + " (loadState.size() = " + loadState.size() + ")");
   }
@@ -55,7 +109,11 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   /**
    * We assume this method is always called on the same thread, so we can read our
    * {@code loadState} and construct the parameters of a fetch request. That fetch request can
-   * then be performed on separate single-thread executor.
+   * then be performed on separate single-thread executor, or on the shared load pool if
+   * {@link PagingConfig#maxConcurrentLoads()} allows more than one.
+   *
+   * Besides the buffer around the index, this may also read ahead in the direction the user is
+   * scrolling, depending on how fast they're going.
    */
   @Override
   public void onDataNeededAroundIndex(int aroundIndex) {
@@ -64,9 +122,16 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
       return;
     }
 
-    final int loadStart;
-    final int loadEnd;
-    final int totalSize;
+    long now = System.nanoTime();
+
+    if (scrollTracker.onIndexRequested(aroundIndex, now)) {
+      if (DEBUG) Log.d(TAG, buildDataNeededLog(aroundIndex, "Direction reversed, canceling read-ahead."));
+      cancelReadAheadLoads(-scrollTracker.getDirection());
+    }
+
+    trackPlaceholder(aroundIndex, now);
+
+    List<PageLoad> loads = new ArrayList<>();
 
     synchronized (loadState) {
       if (loadState.size() == 0) {
@@ -80,166 +145,648 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
 
       int leftLoadBoundary  = Math.max(0, leftPageBoundary - buffer);
       int rightLoadBoundary = Math.min(loadState.size(), rightPageBoundary + buffer);
+      int totalSize         = loadState.size();
+
+      int direction      = scrollTracker.getDirection();
+      int readAheadItems = getReadAheadItems();
+
+      // Serial loads can't overtake each other, so reading ahead with them just means loading more in one go
+      if (config.maxConcurrentLoads() == 1 && readAheadItems > 0) {
+        if (direction > 0) {
+          rightLoadBoundary = Math.min(totalSize, rightLoadBoundary + readAheadItems);
+        } else {
+          leftLoadBoundary = Math.max(0, leftLoadBoundary - readAheadItems);
+        }
+        readAheadItems = 0;
+      }
 
-      loadStart = loadState.getEarliestUnmarkedIndexInRange(leftLoadBoundary, rightLoadBoundary);
+      PageLoad load = markUnloadedRange(leftLoadBoundary, rightLoadBoundary, totalSize, 0);
 
-      if (loadStart < 0) {
-        if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "loadStart < 0"));
-        return;
+      if (load != null) {
+        if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "start: " + load.start + ", end: " + load.end + ", totalSize: " + totalSize));
+        loads.add(load);
+      } else {
+        if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "Nothing to load in the buffer."));
       }
 
-      loadEnd = loadState.getLatestUnmarkedIndexInRange(Math.max(leftLoadBoundary, loadStart), rightLoadBoundary) + 1;
+      if (readAheadItems > 0 && direction > 0) {
+        int limit = Math.min(totalSize, rightLoadBoundary + readAheadItems);
 
-      if (loadEnd <= loadStart) {
-        if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "loadEnd <= loadStart, loadEnd: " + loadEnd + ", loadStart: " + loadStart));
-        return;
+        for (int pageStart = rightLoadBoundary; pageStart < limit; pageStart += config.pageSize()) {
+          addIfNotNull(loads, markUnloadedRange(pageStart, Math.min(limit, pageStart + config.pageSize()), totalSize, direction));
+        }
+      } else if (readAheadItems > 0 && direction < 0) {
+        int limit = Math.max(0, leftLoadBoundary - readAheadItems);
+
+        for (int pageEnd = leftLoadBoundary; pageEnd > limit; pageEnd -= config.pageSize()) {
+          addIfNotNull(loads, markUnloadedRange(Math.max(limit, pageEnd - config.pageSize()), pageEnd, totalSize, direction));
+        }
       }
+    }
 
-      totalSize = loadState.size();
+    synchronized (pendingUpdates) {
+      if (!loads.isEmpty()) {
+        loadGeneration++;
 
-      loadState.markRange(loadStart, loadEnd);
+        // The data source already has the inserted items, so reading a page before the inserts are applied would put it in the wrong place
+        if (insertsQueued != insertsApplied) {
+          if (DEBUG) Log.d(TAG, buildDataNeededLog(aroundIndex, "Applying " + (insertsQueued - insertsApplied) + " queued inserts ahead of the load."));
+          FETCH_EXECUTOR.execute(this::applyPendingUpdates);
+        }
+      }
+
+      promoteReadAheadLoads(aroundIndex);
 
-      if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
+      for (PageLoad load : loads) {
+        submitLoad(load);
+      }
     }
+  }
 
-    FETCH_EXECUTOR.execute(() -> {
-      if (invalidated) {
-        Log.w(TAG, buildDataNeededLog(aroundIndex, "Invalidated! At beginning of load task."));
+  /**
+   * Marks the unloaded part of the range as loading, and tracks the load so that inserts ahead of it move it along. Must be called while holding the
+   * {@code loadState} lock.
+   *
+   * @param readAheadDirection The direction this page is reading ahead in, or 0 if it's part of the buffer.
+   * @return The load for the unloaded part of the range, or null if it's all loaded already.
+   */
+  private @Nullable PageLoad markUnloadedRange(int startInclusive, int endExclusive, int totalSize, int readAheadDirection) {
+    int loadStart = loadState.getEarliestUnmarkedIndexInRange(startInclusive, endExclusive);
+
+    if (loadStart < 0) {
+      return null;
+    }
+
+    int loadEnd = loadState.getLatestUnmarkedIndexInRange(Math.max(startInclusive, loadStart), endExclusive) + 1;
+
+    if (loadEnd <= loadStart) {
+      return null;
+    }
+
+    loadState.markRange(loadStart, loadEnd);
+
+    if (readAheadDirection != 0) {
+      PagingMetrics.onReadAheadPageRequested();
+    }
+
+    PageLoad load = new PageLoad(loadStart, loadEnd, totalSize, readAheadDirection);
+
+    synchronized (activeLoads) {
+      activeLoads.add(load);
+    }
+
+    return load;
+  }
+
+  /**
+   * @return How many items to load past the buffer, which is enough to stay ahead of the scroll for a couple of page load times, rounded up to whole pages.
+   */
+  private int getReadAheadItems() {
+    if (config.maxReadAheadPages() == 0 || scrollTracker.getDirection() == 0) {
+      return 0;
+    }
+
+    double itemsPerLoad = scrollTracker.getItemsPerSecond() * averagePageLoadNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    int    pages        = (int) Math.ceil(itemsPerLoad * READ_AHEAD_LOAD_TIMES / config.pageSize());
+
+    return Math.min(pages, config.maxReadAheadPages()) * config.pageSize();
+  }
+
+  /**
+   * Buffer loads go ahead of read-ahead loads. When loads are serial, buffer loads go straight onto the {@code FETCH_EXECUTOR} to keep their place in line
+   * with updates.
+   */
+  private void submitLoad(@NonNull PageLoad load) {
+    synchronized (activeLoads) {
+      if (load.readAheadDirection == 0 && config.maxConcurrentLoads() == 1) {
+        startLoad(load);
         return;
+      } else if (load.readAheadDirection == 0) {
+        queuedBufferLoads.add(load);
+      } else {
+        queuedReadAheadLoads.add(load);
       }
+    }
 
-      List<Data> loaded = dataSource.load(loadStart, loadEnd - loadStart, totalSize, () -> invalidated);
+    startQueuedLoads();
+  }
 
-      if (invalidated) {
-        Log.w(TAG, buildDataNeededLog(aroundIndex, "Invalidated! Just after data was loaded."));
-        return;
+  /**
+   * Read-ahead that hasn't started by the time the buffer has caught up with it is needed now, so it gets treated like a buffer load.
+   */
+  private void promoteReadAheadLoads(int aroundIndex) {
+    int buffer = (config.bufferPages() + 1) * config.pageSize();
+
+    synchronized (activeLoads) {
+      Iterator<PageLoad> iterator = queuedReadAheadLoads.iterator();
+
+      while (iterator.hasNext()) {
+        PageLoad load = iterator.next();
+
+        if (load.end > aroundIndex - buffer && load.start < aroundIndex + buffer) {
+          iterator.remove();
+          queuedBufferLoads.add(load);
+        }
       }
+    }
 
-      List<Data> updated = new CompressedList<>(data);
+    startQueuedLoads();
+  }
+
+  private void startQueuedLoads() {
+    synchronized (activeLoads) {
+      while (runningLoads < config.maxConcurrentLoads()) {
+        PageLoad load = queuedBufferLoads.isEmpty() ? queuedReadAheadLoads.poll() : queuedBufferLoads.poll();
 
-      for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
-        int  position = loadStart + i;
-        Data item     = loaded.get(i);
+        if (load == null) {
+          return;
+        }
 
-        updated.set(position, item);
-        keyToPosition.put(dataSource.getKey(item), position);
+        startLoad(load);
       }
+    }
+  }
 
-      data = updated;
-      dataStream.next(updated);
+  /**
+   * Must be called while holding the {@code activeLoads} lock.
+   */
+  private void startLoad(@NonNull PageLoad load) {
+    Executor executor = config.maxConcurrentLoads() == 1 ? FETCH_EXECUTOR : LOAD_EXECUTOR;
+
+    runningLoads++;
+    executor.execute(() -> {
+      try {
+        runLoad(load);
+      } finally {
+        synchronized (activeLoads) {
+          runningLoads--;
+        }
+        startQueuedLoads();
+      }
     });
   }
 
-  @Override
-  public void onDataInvalidated() {
+  /**
+   * Loads the page, and then applies it on the {@code FETCH_EXECUTOR}. That's where this is already running unless concurrent loads are enabled.
+   */
+  private void runLoad(@NonNull PageLoad load) {
     if (invalidated) {
+      Log.w(TAG, buildLoadLog(load, "Invalidated! At beginning of load task."));
+      finishLoad(load);
       return;
     }
 
-    invalidated = true;
-    loadState.recycle();
+    if (load.canceled) {
+      finishLoad(load);
+      return;
+    }
+
+    int start;
+    int end;
+    int totalSize;
+
+    synchronized (pendingUpdates) {
+      synchronized (activeLoads) {
+        start     = load.start;
+        end       = load.end;
+        totalSize = load.totalSize;
+
+        // Whatever changed before now is about to be read
+        load.changedKeys.clear();
+      }
+
+      load.insertGeneration = insertsQueued == insertsApplied ? insertsApplied : PageLoad.STALE;
+    }
+
+    long       startTime = System.nanoTime();
+    List<Data> loaded    = dataSource.load(start, end - start, totalSize, () -> invalidated || load.canceled);
+
+    onPageLoadTime((System.nanoTime() - startTime) * config.pageSize() / (end - start));
+
+    if (config.maxConcurrentLoads() == 1) {
+      applyLoad(load, start, end, loaded);
+    } else {
+      FETCH_EXECUTOR.execute(() -> applyLoad(load, start, end, loaded));
+    }
   }
 
-  @Override
-  public void onDataItemChanged(Key key) {
-    if (DEBUG) Log.d(TAG, buildItemChangedLog(key, ""));
+  private void applyLoad(@NonNull PageLoad load, int start, int end, @NonNull List<Data> loaded) {
+    if (invalidated) {
+      Log.w(TAG, buildLoadLog(load, "Invalidated! Just after data was loaded."));
+      finishLoad(load);
+      return;
+    }
 
-    FETCH_EXECUTOR.execute(() -> {
-      Integer position = keyToPosition.get(key);
+    if (load.canceled) {
+      finishLoad(load);
+      return;
+    }
 
-      if (position == null) {
-        Log.w(TAG, "Notified of key " + key + " but it wasn't in the cache!");
-        return;
+    boolean stale;
+    synchronized (pendingUpdates) {
+      stale = load.insertGeneration != insertsQueued;
+    }
+
+    if (stale) {
+      if (DEBUG) Log.d(TAG, buildLoadLog(load, "Items were inserted while it was loading. Loading again."));
+      retryLoad(load);
+      return;
+    }
+
+    Map<Key, Data> changed = loadChangedItems(load, loaded);
+    List<Data>     updated = new CompressedList<>(data);
+
+    for (int i = 0, len = Math.min(loaded.size(), data.size() - start); i < len; i++) {
+      int  position = start + i;
+      Data item     = loaded.get(i);
+      Key  key      = dataSource.getKey(item);
+
+      Data reloaded = changed.get(key);
+      if (reloaded != null) {
+        item = reloaded;
+      }
+
+      updated.set(position, item);
+      keyToPosition.put(key, position);
+    }
+
+    data = updated;
+    dataStream.next(updated);
+
+    finishLoad(load);
+    onPlaceholdersFilled(start, end);
+  }
+
+  /**
+   * Changes to items that weren't in the data yet were dropped while the page was loading, so any of those items that it read before the change need
+   * to be read again.
+   *
+   * @return The items in the page that were read again, by key. Items that couldn't be read again are left out.
+   */
+  private @NonNull Map<Key, Data> loadChangedItems(@NonNull PageLoad load, @NonNull List<Data> loaded) {
+    Set<Key> keys = new HashSet<>();
+
+    synchronized (activeLoads) {
+      if (load.changedKeys.isEmpty()) {
+        return Collections.emptyMap();
+      }
+
+      for (Data item : loaded) {
+        Key key = dataSource.getKey(item);
+
+        if (load.changedKeys.contains(key)) {
+          keys.add(key);
+        }
+      }
+    }
+
+    if (keys.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    if (DEBUG) Log.d(TAG, buildLoadLog(load, keys.size() + " items changed while it was loading. Loading them again."));
+
+    return dataSource.load(keys);
+  }
+
+  /**
+   * Loads the page again once the inserts that made it stale have been applied, which has already moved it to its new range.
+   */
+  private void retryLoad(@NonNull PageLoad load) {
+    synchronized (pendingUpdates) {
+      if (insertsQueued != insertsApplied) {
+        FETCH_EXECUTOR.execute(this::applyPendingUpdates);
       }
+    }
 
-      if (invalidated) {
-        Log.w(TAG, "Invalidated! Just before individual change was loaded for position " + position);
+    FETCH_EXECUTOR.execute(() -> {
+      if (config.maxConcurrentLoads() == 1) {
+        runLoad(load);
         return;
       }
 
+      synchronized (activeLoads) {
+        if (load.readAheadDirection == 0) {
+          queuedBufferLoads.add(load);
+        } else {
+          queuedReadAheadLoads.add(load);
+        }
+      }
+
+      startQueuedLoads();
+    });
+  }
+
+  /**
+   * Forgets about a load that's either been applied or abandoned. If it was canceled, its range is marked as unloaded again so that it can be requested later.
+   */
+  private void finishLoad(@NonNull PageLoad load) {
+    if (load.canceled && !invalidated) {
       synchronized (loadState) {
-        loadState.mark(position);
+        synchronized (activeLoads) {
+          activeLoads.remove(load);
+          loadState.unmarkRange(load.start, Math.min(load.end, loadState.size()));
+        }
+      }
+    } else {
+      synchronized (activeLoads) {
+        activeLoads.remove(load);
       }
+    }
+  }
 
-      Data item = dataSource.load(key);
+  /**
+   * Cancels any read-ahead in the given direction that hasn't finished yet.
+   */
+  private void cancelReadAheadLoads(int direction) {
+    List<PageLoad> dequeued = new ArrayList<>();
+
+    synchronized (activeLoads) {
+      for (PageLoad load : activeLoads) {
+        if (load.readAheadDirection == direction && !load.canceled) {
+          load.canceled = true;
+          PagingMetrics.onReadAheadPageCanceled();
+
+          if (queuedReadAheadLoads.remove(load)) {
+            dequeued.add(load);
+          }
+        }
+      }
+    }
 
-      if (item == null) {
-        Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
-        return;
+    for (PageLoad load : dequeued) {
+      finishLoad(load);
+    }
+  }
+
+  private void onPageLoadTime(long nanosPerPage) {
+    long average = averagePageLoadNanos;
+    averagePageLoadNanos = average == 0 ? nanosPerPage : average + (nanosPerPage - average) / 4;
+  }
+
+  /**
+   * Remembers when an item was first requested while it was still a placeholder, so that we can tell how long it was visible for.
+   */
+  private void trackPlaceholder(int index, long now) {
+    List<Data> current = data;
+
+    if (index < 0 || index >= current.size() || current.get(index) != null) {
+      return;
+    }
+
+    synchronized (placeholderSince) {
+      if (placeholderSince.size() >= MAX_TRACKED_PLACEHOLDERS) {
+        placeholderSince.clear();
       }
 
-      if (invalidated) {
-        Log.w(TAG, "Invalidated! Just after individual change was loaded for position " + position);
-        return;
+      if (!placeholderSince.containsKey(index)) {
+        placeholderSince.put(index, now);
+      }
+    }
+  }
+
+  private void onPlaceholdersFilled(int startInclusive, int endExclusive) {
+    long now = System.nanoTime();
+
+    synchronized (placeholderSince) {
+      Iterator<Map.Entry<Integer, Long>> iterator = placeholderSince.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<Integer, Long> entry = iterator.next();
+
+        if (entry.getKey() >= startInclusive && entry.getKey() < endExclusive) {
+          PagingMetrics.onPlaceholderFilled(now - entry.getValue());
+          iterator.remove();
+        }
       }
+    }
+  }
 
-      List<Data> updatedList = new CompressedList<>(data);
+  private static <E> void addIfNotNull(@NonNull List<E> list, @Nullable E item) {
+    if (item != null) {
+      list.add(item);
+    }
+  }
 
-      updatedList.set(position, item);
-      data = updatedList;
-      dataStream.next(updatedList);
+  @Override
+  public void onDataInvalidated() {
+    if (invalidated) {
+      return;
+    }
 
-      if (DEBUG) Log.d(TAG, buildItemChangedLog(key, "Published updated data"));
-    });
+    invalidated = true;
+    loadState.recycle();
+  }
+
+  @Override
+  public void onDataItemChanged(Key key) {
+    if (DEBUG) Log.d(TAG, buildItemChangedLog(key, ""));
+
+    enqueueUpdate(key, false, 0);
   }
 
   @Override
   public void onDataItemInserted(Key key, int inputPosition) {
     if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, inputPosition, ""));
 
-    FETCH_EXECUTOR.execute(() -> {
-      int position = inputPosition;
-      if (position == POSITION_END) {
-        position = data.size();
+    enqueueUpdate(key, true, inputPosition);
+  }
+
+  private void enqueueUpdate(Key key, boolean insert, int position) {
+    synchronized (pendingUpdates) {
+      boolean drainScheduled = !pendingUpdates.isEmpty();
+
+      pendingUpdates.add(new PendingUpdate<>(key, insert, position, loadGeneration));
+
+      if (insert) {
+        insertsQueued++;
       }
 
-      if (keyToPosition.containsKey(key)) {
-        Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the item already exists!");
-        return;
+      if (!drainScheduled) {
+        long delay = config.updateCoalescingWindowMs();
+
+        if (delay > 0) {
+          ThreadUtil.runOnMainDelayed(() -> FETCH_EXECUTOR.execute(this::applyPendingUpdates), delay);
+        } else {
+          FETCH_EXECUTOR.execute(this::applyPendingUpdates);
+        }
       }
+    }
+  }
 
-      if (invalidated) {
-        Log.w(TAG, "Invalidated! Just before individual insert was loaded for position " + position);
-        return;
+  /**
+   * Loads the items for all of the updates that have queued up since the last page load was scheduled in one go, applies them to a single copy of the data,
+   * and then publishes it once.
+   */
+  private void applyPendingUpdates() {
+    List<PendingUpdate<Key>> updates = new ArrayList<>();
+
+    try {
+      applyPendingUpdates(updates);
+    } finally {
+      int inserts = 0;
+      for (PendingUpdate<Key> update : updates) {
+        if (update.insert) {
+          inserts++;
+        }
       }
 
-      synchronized (loadState) {
-        loadState.insertState(position, true);
-        if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Size of loadState updated to " + loadState.size()));
+      synchronized (pendingUpdates) {
+        insertsApplied += inserts;
       }
+    }
+  }
 
-      Data item = dataSource.load(key);
+  /**
+   * @param updates Filled with the updates that were taken off the queue, whether or not they were applied.
+   */
+  private void applyPendingUpdates(@NonNull List<PendingUpdate<Key>> updates) {
+    synchronized (pendingUpdates) {
+      PendingUpdate<Key> first = pendingUpdates.peek();
 
-      if (item == null) {
-        Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the loaded item was null!");
+      if (first == null) {
         return;
       }
 
-      if (invalidated) {
-        Log.w(TAG, "Invalidated! Just after individual insert was loaded for position " + position);
-        return;
+      while (!pendingUpdates.isEmpty() && pendingUpdates.peek().loadGeneration == first.loadGeneration) {
+        updates.add(pendingUpdates.poll());
       }
 
-      List<Data> updatedList = new CompressedList<>(data);
+      // Anything left was queued behind a page load, and needs its own turn after it
+      if (!pendingUpdates.isEmpty()) {
+        FETCH_EXECUTOR.execute(this::applyPendingUpdates);
+      }
+    }
 
-      updatedList.add(position, item);
-      rebuildKeyToPositionMap(keyToPosition, updatedList, dataSource);
+    if (invalidated) {
+      Log.w(TAG, "Invalidated! Dropping " + updates.size() + " pending updates.");
+      return;
+    }
 
-      data = updatedList;
-      dataStream.next(updatedList);
+    Map<Key, Data> loaded = dataSource.load(getKeysToLoad(updates));
 
-      if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Published updated data"));
-    });
+    if (invalidated) {
+      Log.w(TAG, "Invalidated! Just after " + updates.size() + " pending updates were loaded.");
+      return;
+    }
+
+    List<Data> updatedList = new CompressedList<>(data);
+    boolean    changed     = false;
+
+    for (PendingUpdate<Key> update : updates) {
+      if (update.insert) {
+        changed |= applyInsert(updatedList, update.key, update.position, loaded.get(update.key));
+      } else {
+        changed |= applyChange(updatedList, update.key, loaded.get(update.key));
+      }
+    }
+
+    if (!changed) {
+      return;
+    }
+
+    data = updatedList;
+    dataStream.next(updatedList);
+
+    if (DEBUG) Log.d(TAG, "Published updated data for " + updates.size() + " updates.");
+  }
+
+  /**
+   * @return The keys of the items that need to be loaded, which skips changes to items we don't have, and inserts of items we already have.
+   */
+  private @NonNull Set<Key> getKeysToLoad(@NonNull List<PendingUpdate<Key>> updates) {
+    Set<Key> keys     = new LinkedHashSet<>();
+    Set<Key> inserted = new HashSet<>();
+
+    for (PendingUpdate<Key> update : updates) {
+      boolean known = keyToPosition.contains(update.key) || inserted.contains(update.key);
+
+      if (update.insert && !known) {
+        inserted.add(update.key);
+        keys.add(update.key);
+      } else if (!update.insert && known) {
+        keys.add(update.key);
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * @return True if the item was inserted into {@code updatedList}.
+   */
+  private boolean applyInsert(@NonNull List<Data> updatedList, Key key, int inputPosition, @Nullable Data item) {
+    int position = inputPosition;
+    if (position == POSITION_END) {
+      position = updatedList.size();
+    }
+
+    if (keyToPosition.contains(key)) {
+      Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the item already exists!");
+      return false;
+    }
+
+    if (item == null) {
+      Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the loaded item was null!");
+      return false;
+    }
+
+    synchronized (loadState) {
+      loadState.insertState(position, true);
+      if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Size of loadState updated to " + loadState.size()));
+
+      synchronized (activeLoads) {
+        for (PageLoad load : activeLoads) {
+          load.onItemInserted(position);
+        }
+      }
+    }
+
+    keyToPosition.insert(key, position, updatedList.size());
+    updatedList.add(position, item);
+
+    return true;
   }
 
-  private void rebuildKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
-    map.clear();
+  /**
+   * @return True if the item in {@code updatedList} was replaced.
+   */
+  private boolean applyChange(@NonNull List<Data> updatedList, Key key, @Nullable Data item) {
+    int position = keyToPosition.get(key);
+
+    if (position == KeyPositionIndex.NOT_FOUND) {
+      if (!onChangeWhileLoading(key)) {
+        Log.w(TAG, "Notified of key " + key + " but it wasn't in the cache!");
+      }
+      return false;
+    }
+
+    if (item == null) {
+      Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+      return false;
+    }
+
+    synchronized (loadState) {
+      loadState.mark(position);
+    }
+
+    updatedList.set(position, item);
 
-    for (int i = 0, len = dataList.size(); i < len; i++) {
-      Data item = dataList.get(i);
-      if (item != null) {
-        map.put(dataSource.getKey(item), i);
+    return true;
+  }
+
+  /**
+   * The item may be in a page that's loading, which could have read it before it changed, so every page that's loading remembers the change.
+   *
+   * @return True if any pages were loading.
+   */
+  private boolean onChangeWhileLoading(Key key) {
+    synchronized (activeLoads) {
+      for (PageLoad load : activeLoads) {
+        load.changedKeys.add(key);
       }
+
+      return !activeLoads.isEmpty();
     }
   }
 
@@ -247,6 +794,10 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     return "[onDataNeededAroundIndex(" + aroundIndex + "), size: " + loadState.size() + "] " + message;
   }
 
+  private String buildLoadLog(PageLoad load, String message) {
+    return "[load(" + load.start + ", " + load.end + "), size: " + loadState.size() + "] " + message;
+  }
+
   private String buildItemInsertedLog(Key key, int position, String message) {
     return "[onDataItemInserted(" + key + ", " + position + "), size: " + loadState.size() + "] " + message;
   }
@@ -254,4 +805,57 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemChanged(" + key + "), size: " + loadState.size() + "] " + message;
   }
+
+  private static final class PendingUpdate<Key> {
+    private final Key     key;
+    private final boolean insert;
+    private final int     position;
+    private final long    loadGeneration;
+
+    private PendingUpdate(Key key, boolean insert, int position, long loadGeneration) {
+      this.key            = key;
+      this.insert         = insert;
+      this.position       = position;
+      this.loadGeneration = loadGeneration;
+    }
+  }
+
+  /**
+   * The range and changed keys are guarded by the {@code activeLoads} lock, since inserts ahead of it move it, and changes arrive while it loads.
+   */
+  private static final class PageLoad {
+    private static final long STALE = -1;
+
+    private final int readAheadDirection;
+
+    /** Keys of items that changed since the page started being read, before we had them. Typed loosely since this class isn't tied to the key type. */
+    private final Set<Object> changedKeys = new HashSet<>();
+
+    private int start;
+    private int end;
+    private int totalSize;
+
+    private volatile boolean canceled;
+
+    /** How many inserts had been applied when the page was read, or {@link #STALE} if any were still queued. Checked when the page is applied. */
+    private long insertGeneration;
+
+    private PageLoad(int start, int end, int totalSize, int readAheadDirection) {
+      this.start              = start;
+      this.end                = end;
+      this.totalSize          = totalSize;
+      this.readAheadDirection = readAheadDirection;
+    }
+
+    private void onItemInserted(int position) {
+      if (position <= start) {
+        start++;
+        end++;
+      } else if (position < end) {
+        end++;
+      }
+
+      totalSize++;
+    }
+  }
 }
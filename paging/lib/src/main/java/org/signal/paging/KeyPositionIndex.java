@@ -0,0 +1,125 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the position of each key in a list that items can be inserted into, without having to revisit every key whenever an insert shifts them.
+ *
+ * Positions are stored relative to a running count of inserts at the head of the list, so inserting at the head (new messages in a conversation) or at the
+ * tail costs the same as a map write. Inserts anywhere else are appended to a log of shifts, which each key only catches up with the next time it's looked
+ * up. The log is folded into the stored positions once it gets too long, so lookups never have to replay more than {@link #MAX_SHIFTS} shifts.
+ */
+class KeyPositionIndex<Key> {
+
+  static final int NOT_FOUND  = -1;
+  static final int MAX_SHIFTS = 64;
+
+  private final Map<Key, Entry> entries;
+
+  /** Number of inserts at position 0. Every stored position is relative to this. */
+  private int headShift;
+
+  /** Positions of inserts elsewhere in the list, relative to the {@link #headShift} at the time of the insert. */
+  private int[] shifts;
+  private int   shiftCount;
+
+  KeyPositionIndex() {
+    this.entries = new HashMap<>();
+    this.shifts  = new int[8];
+  }
+
+  boolean contains(@NonNull Key key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * @return The current position of the key, or {@link #NOT_FOUND}.
+   */
+  int get(@NonNull Key key) {
+    Entry entry = entries.get(key);
+
+    if (entry == null) {
+      return NOT_FOUND;
+    }
+
+    catchUp(entry);
+    return entry.position + headShift;
+  }
+
+  void put(@NonNull Key key, int position) {
+    Entry entry = entries.get(key);
+
+    if (entry == null) {
+      entries.put(key, new Entry(position - headShift, shiftCount));
+    } else {
+      entry.position = position - headShift;
+      entry.version  = shiftCount;
+    }
+  }
+
+  /**
+   * Records that a key was inserted at the given position, moving every key at or after that position down by one.
+   *
+   * @param size The size of the list before the insert.
+   */
+  void insert(@NonNull Key key, int position, int size) {
+    if (position == 0) {
+      headShift++;
+    } else if (position < size) {
+      if (shiftCount == MAX_SHIFTS) {
+        compact();
+      }
+
+      if (shiftCount == shifts.length) {
+        shifts = Arrays.copyOf(shifts, shifts.length * 2);
+      }
+
+      shifts[shiftCount++] = position - headShift;
+    }
+
+    put(key, position);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void catchUp(@NonNull Entry entry) {
+    int position = entry.position;
+
+    for (int i = entry.version; i < shiftCount; i++) {
+      if (position >= shifts[i]) {
+        position++;
+      }
+    }
+
+    entry.position = position;
+    entry.version  = shiftCount;
+  }
+
+  private void compact() {
+    for (Entry entry : entries.values()) {
+      catchUp(entry);
+      entry.version = 0;
+    }
+
+    shiftCount = 0;
+  }
+
+  private static final class Entry {
+    /** Position relative to {@code headShift}, as of {@link #version}. */
+    int position;
+
+    /** The number of shifts that had been logged when {@link #position} was last brought up to date. */
+    int version;
+
+    Entry(int position, int version) {
+      this.position = position;
+      this.version  = version;
+    }
+  }
+}
@@ -4,7 +4,10 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a source of data that can be queried.
@@ -30,6 +33,27 @@ public interface PagedDataSource<Key, Data> {
   @WorkerThread
   @Nullable Data load(Key key);
 
+  /**
+   * Loads many items at once. Used when several items have changed or been inserted at around the same time.
+   *
+   * By default this just calls {@link #load(Object)} for each key, so you should override it if you can load multiple items more efficiently than that.
+   *
+   * @return A map of each key to its loaded item. Keys whose item couldn't be loaded should be left out.
+   */
+  @WorkerThread
+  default @NonNull Map<Key, Data> load(@NonNull Collection<Key> keys) {
+    Map<Key, Data> results = new HashMap<>(keys.size());
+
+    for (Key key : keys) {
+      Data item = load(key);
+      if (item != null) {
+        results.put(key, item);
+      }
+    }
+
+    return results;
+  }
+
   @WorkerThread
   @NonNull Key getKey(@NonNull Data data);
 
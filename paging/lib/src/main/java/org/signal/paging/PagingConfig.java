@@ -9,14 +9,20 @@ import java.util.concurrent.Executor;
  */
 public final class PagingConfig {
 
-  private final int bufferPages;
-  private final int startIndex;
-  private final int pageSize;
+  private final int  bufferPages;
+  private final int  startIndex;
+  private final int  pageSize;
+  private final long updateCoalescingWindowMs;
+  private final int  maxReadAheadPages;
+  private final int  maxConcurrentLoads;
 
   private PagingConfig(@NonNull Builder builder) {
-    this.bufferPages = builder.bufferPages;
-    this.startIndex  = builder.startIndex;
-    this.pageSize    = builder.pageSize;
+    this.bufferPages              = builder.bufferPages;
+    this.startIndex               = builder.startIndex;
+    this.pageSize                 = builder.pageSize;
+    this.updateCoalescingWindowMs = builder.updateCoalescingWindowMs;
+    this.maxReadAheadPages        = builder.maxReadAheadPages;
+    this.maxConcurrentLoads       = builder.maxConcurrentLoads;
   }
 
   /**
@@ -42,10 +48,36 @@ public final class PagingConfig {
     return startIndex;
   }
 
+  /**
+   * @return How long to wait after an item is changed or inserted before loading it, so that any other changes and inserts that follow shortly after can be
+   *         loaded and published along with it.
+   */
+  long updateCoalescingWindowMs() {
+    return updateCoalescingWindowMs;
+  }
+
+  /**
+   * @return The most pages to load beyond the buffer in the direction the user is scrolling. How many are actually loaded depends on how fast they're
+   *         scrolling compared to how long pages take to load. Zero disables read-ahead.
+   */
+  int maxReadAheadPages() {
+    return maxReadAheadPages;
+  }
+
+  /**
+   * @return How many page loads can run at the same time. With more than one, each read-ahead page is loaded separately on a shared pool.
+   */
+  int maxConcurrentLoads() {
+    return maxConcurrentLoads;
+  }
+
   public static class Builder {
-    private int bufferPages = 1;
-    private int startIndex  = 0;
-    private int pageSize    = 50;
+    private int  bufferPages              = 1;
+    private int  startIndex               = 0;
+    private int  pageSize                 = 50;
+    private long updateCoalescingWindowMs = 0;
+    private int  maxReadAheadPages        = 0;
+    private int  maxConcurrentLoads       = 1;
 
     public @NonNull Builder setBufferPages(int bufferPages) {
       if (bufferPages < 1) {
@@ -74,6 +106,33 @@ public final class PagingConfig {
       return this;
     }
 
+    public @NonNull Builder setUpdateCoalescingWindowMs(long updateCoalescingWindowMs) {
+      if (updateCoalescingWindowMs < 0) {
+        throw new IllegalArgumentException("The coalescing window can't be negative! Requested: " + updateCoalescingWindowMs);
+      }
+
+      this.updateCoalescingWindowMs = updateCoalescingWindowMs;
+      return this;
+    }
+
+    public @NonNull Builder setMaxReadAheadPages(int maxReadAheadPages) {
+      if (maxReadAheadPages < 0) {
+        throw new IllegalArgumentException("You can't read ahead a negative number of pages! Requested: " + maxReadAheadPages);
+      }
+
+      this.maxReadAheadPages = maxReadAheadPages;
+      return this;
+    }
+
+    public @NonNull Builder setMaxConcurrentLoads(int maxConcurrentLoads) {
+      if (maxConcurrentLoads < 1 || maxConcurrentLoads > FixedSizePagingController.MAX_CONCURRENT_LOADS) {
+        throw new IllegalArgumentException("Concurrent loads must be between 1 and " + FixedSizePagingController.MAX_CONCURRENT_LOADS + "! Requested: " + maxConcurrentLoads);
+      }
+
+      this.maxConcurrentLoads = maxConcurrentLoads;
+      return this;
+    }
+
     public @NonNull PagingConfig build() {
       return new PagingConfig(this);
     }
@@ -0,0 +1,78 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for how often, and for how long, views had to show placeholders while they waited for pages to load, along with how much
+ * read-ahead was done to avoid that.
+ */
+public final class PagingMetrics {
+
+  private static final AtomicLong placeholders       = new AtomicLong();
+  private static final AtomicLong placeholderNanos   = new AtomicLong();
+  private static final AtomicLong longestPlaceholder = new AtomicLong();
+  private static final AtomicLong readAheadPages     = new AtomicLong();
+  private static final AtomicLong canceledReadAheads = new AtomicLong();
+
+  private PagingMetrics() {}
+
+  static void onPlaceholderFilled(long visibleNanos) {
+    placeholders.incrementAndGet();
+    placeholderNanos.addAndGet(visibleNanos);
+    longestPlaceholder.accumulateAndGet(visibleNanos, Math::max);
+  }
+
+  static void onReadAheadPageRequested() {
+    readAheadPages.incrementAndGet();
+  }
+
+  static void onReadAheadPageCanceled() {
+    canceledReadAheads.incrementAndGet();
+  }
+
+  public static @NonNull Snapshot getSnapshot() {
+    return new Snapshot(placeholders.get(), placeholderNanos.get(), longestPlaceholder.get(), readAheadPages.get(), canceledReadAheads.get());
+  }
+
+  public static void reset() {
+    placeholders.set(0);
+    placeholderNanos.set(0);
+    longestPlaceholder.set(0);
+    readAheadPages.set(0);
+    canceledReadAheads.set(0);
+  }
+
+  public static final class Snapshot {
+    public final long placeholders;
+    public final long placeholderNanos;
+    public final long longestPlaceholderNanos;
+    public final long readAheadPages;
+    public final long canceledReadAheadPages;
+
+    Snapshot(long placeholders, long placeholderNanos, long longestPlaceholderNanos, long readAheadPages, long canceledReadAheadPages) {
+      this.placeholders            = placeholders;
+      this.placeholderNanos        = placeholderNanos;
+      this.longestPlaceholderNanos = longestPlaceholderNanos;
+      this.readAheadPages          = readAheadPages;
+      this.canceledReadAheadPages  = canceledReadAheadPages;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      double averageMs = placeholders > 0 ? placeholderNanos / (double) placeholders / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+
+      return String.format(Locale.US,
+                           "Placeholders: %d, Total visible: %d ms, Average: %.1f ms, Longest: %d ms\nRead-ahead pages: %d, Canceled: %d",
+                           placeholders,
+                           TimeUnit.NANOSECONDS.toMillis(placeholderNanos),
+                           averageMs,
+                           TimeUnit.NANOSECONDS.toMillis(longestPlaceholderNanos),
+                           readAheadPages,
+                           canceledReadAheadPages);
+    }
+  }
+}
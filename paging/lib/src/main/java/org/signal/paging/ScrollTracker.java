@@ -0,0 +1,82 @@
+package org.signal.paging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out which way and how fast the user is scrolling from the sequence of indices that data is requested around.
+ *
+ * Views tend to request a few items at a time at the leading edge, and sometimes the odd one at the trailing edge, so a change of direction is only
+ * believed once it's been seen a couple of times in a row.
+ */
+class ScrollTracker {
+
+  private static final long  IDLE_NANOS             = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final long  MIN_INTERVAL_NANOS     = TimeUnit.MILLISECONDS.toNanos(4);
+  private static final int   DIRECTION_CHANGE_COUNT = 2;
+  private static final float SMOOTHING              = 0.3f;
+
+  private int   lastIndex = -1;
+  private long  lastNanos;
+  private int   direction;
+  private int   oppositeCount;
+  private float itemsPerSecond;
+
+  /**
+   * @return True if this request reversed the direction of scrolling.
+   */
+  boolean onIndexRequested(int index, long nowNanos) {
+    if (lastIndex < 0) {
+      lastIndex = index;
+      lastNanos = nowNanos;
+      return false;
+    }
+
+    if (index == lastIndex) {
+      return false;
+    }
+
+    long    elapsed  = Math.max(nowNanos - lastNanos, MIN_INTERVAL_NANOS);
+    int     movement = Integer.signum(index - lastIndex);
+    int     distance = Math.abs(index - lastIndex);
+    boolean reversed = false;
+
+    lastIndex = index;
+    lastNanos = nowNanos;
+
+    if (elapsed > IDLE_NANOS) {
+      direction      = movement;
+      oppositeCount  = 0;
+      itemsPerSecond = 0;
+      return false;
+    }
+
+    if (direction != 0 && movement != direction) {
+      oppositeCount++;
+      if (oppositeCount < DIRECTION_CHANGE_COUNT) {
+        return false;
+      }
+
+      reversed       = true;
+      itemsPerSecond = 0;
+    }
+
+    oppositeCount = 0;
+    direction     = movement;
+
+    float instant = distance * (float) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    itemsPerSecond = itemsPerSecond == 0 ? instant : itemsPerSecond + SMOOTHING * (instant - itemsPerSecond);
+
+    return reversed;
+  }
+
+  /**
+   * @return 1 when scrolling towards the end of the list, -1 when scrolling towards the start, or 0 if we don't know yet.
+   */
+  int getDirection() {
+    return direction;
+  }
+
+  float getItemsPerSecond() {
+    return itemsPerSecond;
+  }
+}
@@ -0,0 +1,125 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompressedListTest {
+
+  @Test
+  public void emptyList_isAllNulls() {
+    CompressedList<Integer> subject = new CompressedList<>(1000);
+
+    assertEquals(1000, subject.size());
+    for (int i = 0; i < 1000; i++) {
+      assertNull(subject.get(i));
+    }
+  }
+
+  @Test
+  public void fromList_hasSameContents() {
+    List<Integer> source = Arrays.asList(1, null, 3, null, 5);
+
+    assertEquals(source, new CompressedList<>(source));
+  }
+
+  @Test
+  public void add_toEmptyList() {
+    CompressedList<Integer> subject = new CompressedList<>(0);
+
+    subject.add(0, 1);
+    subject.add(1, 2);
+    subject.add(0, 0);
+
+    assertEquals(Arrays.asList(0, 1, 2), subject);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void get_outOfBounds() {
+    new CompressedList<Integer>(10).get(10);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void add_outOfBounds() {
+    new CompressedList<Integer>(10).add(11, 1);
+  }
+
+  @Test
+  public void copy_isNotAffectedByChangesToOriginal() {
+    CompressedList<Integer> original = new CompressedList<>(1000);
+    original.set(5, 5);
+
+    CompressedList<Integer> copy = new CompressedList<>(original);
+
+    original.set(5, 50);
+    original.set(500, 500);
+    original.add(0, -1);
+
+    assertEquals(Integer.valueOf(5), copy.get(5));
+    assertNull(copy.get(500));
+    assertEquals(1000, copy.size());
+  }
+
+  @Test
+  public void original_isNotAffectedByChangesToCopy() {
+    CompressedList<Integer> original = new CompressedList<>(1000);
+    original.set(5, 5);
+
+    CompressedList<Integer> copy = new CompressedList<>(original);
+
+    copy.set(5, 50);
+    copy.add(6, 6);
+
+    assertEquals(Integer.valueOf(5), original.get(5));
+    assertNull(original.get(6));
+    assertEquals(1000, original.size());
+
+    assertEquals(Integer.valueOf(50), copy.get(5));
+    assertEquals(Integer.valueOf(6), copy.get(6));
+    assertEquals(1001, copy.size());
+  }
+
+  @Test
+  public void randomOperations_matchArrayList() {
+    Random random = new Random(1337);
+
+    for (int run = 0; run < 20; run++) {
+      int                     initialSize = random.nextInt(2000);
+      List<Integer>           expected    = new ArrayList<>(Collections.nCopies(initialSize, null));
+      CompressedList<Integer> actual      = new CompressedList<>(initialSize);
+      List<List<Integer>>     snapshots   = new ArrayList<>();
+      List<List<Integer>>     copies      = new ArrayList<>();
+
+      for (int op = 0; op < 3000; op++) {
+        int choice = random.nextInt(10);
+
+        if (choice < 5 && !expected.isEmpty()) {
+          int index = random.nextInt(expected.size());
+          expected.set(index, op);
+          actual.set(index, op);
+        } else if (choice < 9) {
+          int index = random.nextInt(expected.size() + 1);
+          expected.add(index, op);
+          actual.add(index, op);
+        } else {
+          snapshots.add(new ArrayList<>(expected));
+          copies.add(actual);
+          actual = new CompressedList<>(actual);
+        }
+      }
+
+      assertEquals(expected, actual);
+
+      for (int i = 0; i < snapshots.size(); i++) {
+        assertEquals(snapshots.get(i), copies.get(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package org.signal.paging;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class FixedSizePagingControllerTest {
+
+  private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+  @Test
+  public void onDataNeededAroundIndex_insertWaitingToCoalesce_appliesInsertBeforeLoading() {
+    TestDataSource source = new TestDataSource(100);
+    TestDataStream stream = new TestDataStream();
+    PagingConfig   config = new PagingConfig.Builder()
+                                            .setPageSize(10)
+                                            .setBufferPages(1)
+                                            .setUpdateCoalescingWindowMs(TimeUnit.MINUTES.toMillis(1))
+                                            .build();
+
+    FixedSizePagingController<String, String> subject = new FixedSizePagingController<>(source, config, stream, source.size());
+
+    source.insert(0, "new");
+    subject.onDataItemInserted("new", 0);
+    subject.onDataNeededAroundIndex(0);
+
+    List<String> data = stream.await(d -> d.size() == 101 && d.get(0) != null && d.get(20) != null);
+
+    assertEquals(101, data.size());
+    assertLoadedItemsMatch(source, data);
+  }
+
+  @Test
+  public void onDataItemInserted_whileConcurrentLoadIsReading_loadsThePageAgainAtItsNewPosition() {
+    TestDataSource source = new TestDataSource(100);
+    TestDataStream stream = new TestDataStream();
+    PagingConfig   config = new PagingConfig.Builder()
+                                            .setPageSize(10)
+                                            .setBufferPages(1)
+                                            .setMaxConcurrentLoads(2)
+                                            .build();
+
+    FixedSizePagingController<String, String> subject = new FixedSizePagingController<>(source, config, stream, source.size());
+
+    BlockedLoad blocked = source.blockNextPageLoad();
+    subject.onDataNeededAroundIndex(50);
+    await(blocked.started);
+
+    source.insert(0, "new");
+    subject.onDataItemInserted("new", 0);
+    stream.await(d -> d.size() == 101);
+
+    blocked.release.countDown();
+
+    List<String> data = stream.await(d -> d.get(41) != null && d.get(70) != null);
+
+    assertEquals(101, data.size());
+    assertLoadedItemsMatch(source, data);
+  }
+
+  @Test
+  public void onDataItemChanged_whileConcurrentLoadIsReading_appliesTheChange() {
+    TestDataSource source = new TestDataSource(100);
+    TestDataStream stream = new TestDataStream();
+    PagingConfig   config = new PagingConfig.Builder()
+                                            .setPageSize(10)
+                                            .setBufferPages(1)
+                                            .setMaxConcurrentLoads(2)
+                                            .build();
+
+    FixedSizePagingController<String, String> subject = new FixedSizePagingController<>(source, config, stream, source.size());
+
+    BlockedLoad blocked = source.blockNextPageLoad();
+    subject.onDataNeededAroundIndex(50);
+    await(blocked.started);
+
+    source.change(45, "item-45 edited");
+    subject.onDataItemChanged("item-45");
+    source.awaitKeyLoad();
+
+    blocked.release.countDown();
+
+    List<String> data = stream.await(d -> d.size() == 100 && d.get(45) != null);
+
+    assertEquals("item-45 edited", data.get(45));
+    assertLoadedItemsMatch(source, data);
+  }
+
+  private static void assertLoadedItemsMatch(@NonNull TestDataSource source, @NonNull List<String> data) {
+    List<String> expected = source.snapshot();
+
+    for (int i = 0; i < data.size(); i++) {
+      if (data.get(i) != null) {
+        assertEquals("Item at " + i, expected.get(i), data.get(i));
+      }
+    }
+  }
+
+  private static void await(@NonNull CountDownLatch latch) {
+    try {
+      assertTrue("Timed out waiting for the load", latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class BlockedLoad {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+  }
+
+  /**
+   * An item's key is the part before the first space, so that an item can change without changing its key.
+   */
+  private static final class TestDataSource implements PagedDataSource<String, String> {
+
+    private final List<String> items    = new ArrayList<>();
+    private final Semaphore    keyLoads = new Semaphore(0);
+
+    private BlockedLoad nextBlockedLoad;
+
+    TestDataSource(int size) {
+      for (int i = 0; i < size; i++) {
+        items.add("item-" + i);
+      }
+    }
+
+    synchronized void insert(int position, @NonNull String item) {
+      items.add(position, item);
+    }
+
+    synchronized void change(int position, @NonNull String item) {
+      items.set(position, item);
+    }
+
+    /**
+     * Waits for the controller to load items by key, which it does for every batch of updates, even if there's nothing in it to load.
+     */
+    void awaitKeyLoad() {
+      try {
+        assertTrue("Timed out waiting for the updates", keyLoads.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    synchronized @NonNull List<String> snapshot() {
+      return new ArrayList<>(items);
+    }
+
+    /**
+     * The next page load will read its items, and then wait to return them until it's released.
+     */
+    synchronized @NonNull BlockedLoad blockNextPageLoad() {
+      nextBlockedLoad = new BlockedLoad();
+      return nextBlockedLoad;
+    }
+
+    @Override
+    public synchronized int size() {
+      return items.size();
+    }
+
+    @Override
+    public @NonNull List<String> load(int start, int length, int totalSize, @NonNull CancellationSignal cancellationSignal) {
+      List<String> page;
+      BlockedLoad  blocked;
+
+      synchronized (this) {
+        page            = new ArrayList<>(items.subList(start, Math.min(items.size(), start + length)));
+        blocked         = nextBlockedLoad;
+        nextBlockedLoad = null;
+      }
+
+      if (blocked != null) {
+        blocked.started.countDown();
+        await(blocked.release);
+      }
+
+      return page;
+    }
+
+    @Override
+    public synchronized @Nullable String load(String key) {
+      for (String item : items) {
+        if (getKey(item).equals(key)) {
+          return item;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public @NonNull Map<String, String> load(@NonNull Collection<String> keys) {
+      Map<String, String> loaded = PagedDataSource.super.load(keys);
+      keyLoads.release();
+      return loaded;
+    }
+
+    @Override
+    public @NonNull String getKey(@NonNull String data) {
+      int space = data.indexOf(' ');
+      return space < 0 ? data : data.substring(0, space);
+    }
+  }
+
+  private static final class TestDataStream implements DataStream<String> {
+
+    private List<String> latest = Collections.emptyList();
+
+    @Override
+    public synchronized void next(List<String> data) {
+      latest = data;
+      notifyAll();
+    }
+
+    /**
+     * Waits for data that matches the condition, and returns the latest data either way so that the test can fail with a useful message.
+     */
+    synchronized @NonNull List<String> await(@NonNull Predicate<List<String>> condition) {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+      while (!condition.test(latest)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      assertTrue("Timed out waiting for data, latest size: " + latest.size(), condition.test(latest));
+      return latest;
+    }
+  }
+}
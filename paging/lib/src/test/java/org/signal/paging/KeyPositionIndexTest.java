@@ -0,0 +1,119 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPositionIndexTest {
+
+  @Test
+  public void get_missingKey() {
+    KeyPositionIndex<String> subject = new KeyPositionIndex<>();
+
+    assertEquals(KeyPositionIndex.NOT_FOUND, subject.get("a"));
+    assertFalse(subject.contains("a"));
+  }
+
+  @Test
+  public void insertAtHead_shiftsEverything() {
+    KeyPositionIndex<String> subject = new KeyPositionIndex<>();
+    subject.put("a", 0);
+    subject.put("b", 1);
+
+    subject.insert("c", 0, 2);
+
+    assertEquals(0, subject.get("c"));
+    assertEquals(1, subject.get("a"));
+    assertEquals(2, subject.get("b"));
+  }
+
+  @Test
+  public void insertAtTail_shiftsNothing() {
+    KeyPositionIndex<String> subject = new KeyPositionIndex<>();
+    subject.put("a", 0);
+    subject.put("b", 1);
+
+    subject.insert("c", 2, 2);
+
+    assertEquals(0, subject.get("a"));
+    assertEquals(1, subject.get("b"));
+    assertEquals(2, subject.get("c"));
+  }
+
+  @Test
+  public void insertInMiddle_shiftsOnlyLaterKeys() {
+    KeyPositionIndex<String> subject = new KeyPositionIndex<>();
+    subject.put("a", 0);
+    subject.put("b", 1);
+    subject.put("c", 2);
+
+    subject.insert("d", 1, 3);
+
+    assertEquals(0, subject.get("a"));
+    assertEquals(1, subject.get("d"));
+    assertEquals(2, subject.get("b"));
+    assertEquals(3, subject.get("c"));
+    assertTrue(subject.contains("d"));
+  }
+
+  @Test
+  public void randomOperations_matchList() {
+    Random random = new Random(42);
+
+    for (int run = 0; run < 20; run++) {
+      int                       initialSize = random.nextInt(500);
+      List<Integer>             expected    = new ArrayList<>();
+      KeyPositionIndex<Integer> subject     = new KeyPositionIndex<>();
+      int                       nextKey     = 0;
+
+      // Unloaded positions are represented by nulls, like they are in the paging controller's data
+      for (int i = 0; i < initialSize; i++) {
+        expected.add(null);
+      }
+
+      for (int op = 0; op < 2000; op++) {
+        int choice = random.nextInt(10);
+
+        if (choice < 3 && !expected.isEmpty()) {
+          int position = random.nextInt(expected.size());
+          if (expected.get(position) == null) {
+            expected.set(position, nextKey);
+            subject.put(nextKey, position);
+            nextKey++;
+          }
+        } else if (choice < 5) {
+          expected.add(0, nextKey);
+          subject.insert(nextKey, 0, expected.size() - 1);
+          nextKey++;
+        } else if (choice < 6) {
+          expected.add(nextKey);
+          subject.insert(nextKey, expected.size() - 1, expected.size() - 1);
+          nextKey++;
+        } else if (choice < 8) {
+          int position = random.nextInt(expected.size() + 1);
+          expected.add(position, nextKey);
+          subject.insert(nextKey, position, expected.size() - 1);
+          nextKey++;
+        } else if (!expected.isEmpty()) {
+          Integer key = expected.get(random.nextInt(expected.size()));
+          if (key != null) {
+            assertEquals(expected.indexOf(key), subject.get(key));
+          }
+        }
+      }
+
+      for (int i = 0; i < expected.size(); i++) {
+        Integer key = expected.get(i);
+        if (key != null) {
+          assertEquals(i, subject.get(key));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollTrackerTest {
+
+  private static final long FRAME = TimeUnit.MILLISECONDS.toNanos(16);
+
+  @Test
+  public void scrollingDown_isPositiveDirection() {
+    ScrollTracker subject = new ScrollTracker();
+
+    for (int i = 0; i < 10; i++) {
+      subject.onIndexRequested(i, i * FRAME);
+    }
+
+    assertEquals(1, subject.getDirection());
+    assertEquals(62.5f, subject.getItemsPerSecond(), 1f);
+  }
+
+  @Test
+  public void fasterScrolling_isFasterVelocity() {
+    ScrollTracker slow = new ScrollTracker();
+    ScrollTracker fast = new ScrollTracker();
+
+    for (int i = 0; i < 10; i++) {
+      slow.onIndexRequested(i, i * FRAME);
+      fast.onIndexRequested(i * 5, i * FRAME);
+    }
+
+    assertTrue(fast.getItemsPerSecond() > slow.getItemsPerSecond() * 4);
+  }
+
+  @Test
+  public void singleStepBack_isNotAReversal() {
+    ScrollTracker subject = new ScrollTracker();
+
+    for (int i = 0; i < 10; i++) {
+      subject.onIndexRequested(i, i * FRAME);
+    }
+
+    assertFalse(subject.onIndexRequested(8, 10 * FRAME));
+    assertFalse(subject.onIndexRequested(10, 11 * FRAME));
+    assertEquals(1, subject.getDirection());
+  }
+
+  @Test
+  public void sustainedScrollBack_isAReversal() {
+    ScrollTracker subject = new ScrollTracker();
+
+    for (int i = 0; i < 10; i++) {
+      subject.onIndexRequested(i, i * FRAME);
+    }
+
+    assertFalse(subject.onIndexRequested(8, 10 * FRAME));
+    assertTrue(subject.onIndexRequested(7, 11 * FRAME));
+    assertEquals(-1, subject.getDirection());
+  }
+
+  @Test
+  public void pause_resetsVelocity() {
+    ScrollTracker subject = new ScrollTracker();
+
+    for (int i = 0; i < 10; i++) {
+      subject.onIndexRequested(i, i * FRAME);
+    }
+
+    subject.onIndexRequested(10, 10 * FRAME + TimeUnit.SECONDS.toNanos(1));
+
+    assertEquals(0f, subject.getItemsPerSecond(), 0f);
+  }
+}